@@ -42,6 +42,7 @@ import picard.metrics.PerUnitMetricCollector;
 import picard.metrics.SAMRecordAndReference;
 import picard.metrics.SAMRecordAndReferenceMultiLevelCollector;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
@@ -128,6 +129,15 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
             }
         }
 
+        @Override
+        public void merge(final PerUnitMetricCollector<AlignmentSummaryMetrics, Comparable<?>, SAMRecordAndReference> other) {
+            final GroupAlignmentSummaryMetricsPerUnitMetricCollector group = (GroupAlignmentSummaryMetricsPerUnitMetricCollector) other;
+            unpairedCollector.merge(group.unpairedCollector);
+            firstOfPairCollector.merge(group.firstOfPairCollector);
+            secondOfPairCollector.merge(group.secondOfPairCollector);
+            pairCollector.merge(group.pairCollector);
+        }
+
         @Override
         public void finish() {
             // Let the collectors do any summary computations etc.
@@ -195,6 +205,31 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
                 collectQualityData(record, ref);
             }
 
+            /** Adds the counts of another collector for the same category, before onComplete is called on either. */
+            public void merge(final IndividualAlignmentSummaryMetricsCollector other) {
+                numPositiveStrand += other.numPositiveStrand;
+                readLengthHistogram.addHistogram(other.readLengthHistogram);
+                chimeras += other.chimeras;
+                chimerasDenominator += other.chimerasDenominator;
+                adapterReads += other.adapterReads;
+                indels += other.indels;
+                nonBisulfiteAlignedBases += other.nonBisulfiteAlignedBases;
+                hqNonBisulfiteAlignedBases += other.hqNonBisulfiteAlignedBases;
+                mismatchHistogram.addHistogram(other.mismatchHistogram);
+                hqMismatchHistogram.addHistogram(other.hqMismatchHistogram);
+                badCycleHistogram.addHistogram(other.badCycleHistogram);
+
+                metrics.TOTAL_READS += other.metrics.TOTAL_READS;
+                metrics.PF_READS += other.metrics.PF_READS;
+                metrics.PF_NOISE_READS += other.metrics.PF_NOISE_READS;
+                metrics.PF_READS_ALIGNED += other.metrics.PF_READS_ALIGNED;
+                metrics.READS_ALIGNED_IN_PAIRS += other.metrics.READS_ALIGNED_IN_PAIRS;
+                metrics.PF_HQ_ALIGNED_READS += other.metrics.PF_HQ_ALIGNED_READS;
+                metrics.PF_ALIGNED_BASES += other.metrics.PF_ALIGNED_BASES;
+                metrics.PF_HQ_ALIGNED_BASES += other.metrics.PF_HQ_ALIGNED_BASES;
+                metrics.PF_HQ_ALIGNED_Q20_BASES += other.metrics.PF_HQ_ALIGNED_Q20_BASES;
+            }
+
             public void onComplete() {
                 //summarize read data
                 if (metrics.TOTAL_READS > 0)
@@ -239,8 +274,12 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
 
                     if (record.getReadUnmappedFlag()) {
                         // If the read is unmapped see if it's adapter sequence
-                        final byte[] readBases = record.getReadBases();
-                        if (!(record instanceof BAMRecord)) StringUtil.toUpperCase(readBases);
+                        // BAM bases are always upper case; other records may be read by other collectors at the same time, so upper-case a copy
+                        byte[] readBases = record.getReadBases();
+                        if (!(record instanceof BAMRecord)) {
+                            readBases = Arrays.copyOf(readBases, readBases.length);
+                            StringUtil.toUpperCase(readBases);
+                        }
 
                         if (adapterUtility.isAdapterSequence(readBases)) {
                             this.adapterReads++;
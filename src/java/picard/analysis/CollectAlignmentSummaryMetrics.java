@@ -26,6 +26,7 @@ package picard.analysis;
 
 import htsjdk.samtools.Defaults;
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamPairUtil.PairOrientation;
 import htsjdk.samtools.metrics.MetricsFile;
@@ -37,6 +38,7 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
 import picard.cmdline.programgroups.Metrics;
+import picard.metrics.MultiLevelCollector;
 
 import java.io.File;
 import java.util.EnumSet;
@@ -119,6 +121,7 @@ public class CollectAlignmentSummaryMetrics extends SinglePassSamProgram {
     public File REFERENCE_SEQUENCE = Defaults.REFERENCE_FASTA;
 
     private AlignmentSummaryMetricsCollector collector;
+    private List<SAMReadGroupRecord> readGroups;
 
     /** Required main method implementation. */
     public static void main(final String[] argv) {
@@ -136,11 +139,24 @@ public class CollectAlignmentSummaryMetrics extends SinglePassSamProgram {
                     "in the file are aligned, then alignment summary metrics collection will fail.");
         }
 
+        readGroups = header.getReadGroups();
+        collector = makeCollector();
+    }
+
+    private AlignmentSummaryMetricsCollector makeCollector() {
         final boolean doRefMetrics = REFERENCE_SEQUENCE != null;
-        collector = new AlignmentSummaryMetricsCollector(METRIC_ACCUMULATION_LEVEL, header.getReadGroups(), doRefMetrics,
+        return new AlignmentSummaryMetricsCollector(METRIC_ACCUMULATION_LEVEL, readGroups, doRefMetrics,
                 ADAPTER_SEQUENCE, MAX_INSERT_SIZE, EXPECTED_PAIR_ORIENTATIONS, IS_BISULFITE_SEQUENCED);
     }
 
+    @Override protected MultiLevelCollector<?, ?, ?> makeShardCollector() {
+        return makeCollector();
+    }
+
+    @Override protected void mergeShardCollector(final MultiLevelCollector<?, ?, ?> shardCollector) {
+        collector.merge((AlignmentSummaryMetricsCollector) shardCollector);
+    }
+
     @Override protected void acceptRead(final SAMRecord rec, final ReferenceSequence ref) {
         collector.acceptRecord(rec, ref);
     }
@@ -25,6 +25,7 @@
 package picard.analysis;
 
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.reference.ReferenceSequence;
@@ -34,6 +35,7 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.programgroups.Metrics;
 import picard.metrics.GcBiasMetrics;
+import picard.metrics.MultiLevelCollector;
 import picard.util.RExecutor;
 
 import java.io.File;
@@ -133,8 +135,19 @@ public class CollectGcBiasMetrics extends SinglePassSamProgram {
     @Option(shortName = "LEVEL", doc = "The level(s) at which to accumulate metrics.")
     public Set<MetricAccumulationLevel> METRIC_ACCUMULATION_LEVEL = CollectionUtil.makeSet(MetricAccumulationLevel.ALL_READS);
 
+    @Option(doc = "If true, read the GC content of the reference windows from a memory-mapped cache file keyed by the sequence " +
+            "dictionary MD5s (or else the path, size and modification time) of the reference and SCAN_WINDOW_SIZE instead of scanning the reference, writing the cache first if it is missing or stale.")
+    public boolean USE_GC_WINDOW_CACHE = false;
+
+    @Option(doc = "The directory in which to keep the GC window cache if USE_GC_WINDOW_CACHE is true. Defaults to the directory " +
+            "of the reference.", optional = true)
+    public File GC_WINDOW_CACHE_DIRECTORY;
+
     // Calculates GcBiasMetrics for all METRIC_ACCUMULATION_LEVELs provided
     private GcBiasMetricsCollector multiCollector;
+    private int[] windowsByGc;
+    private GcWindowCache gcWindowCache;
+    private List<SAMReadGroupRecord> readGroups;
 
     // Bins for the histograms to track the number of windows at each GC, and the number of read starts
     // at bins of each GC %. Need 101 to get from 0-100.
@@ -158,11 +171,32 @@ public class CollectGcBiasMetrics extends SinglePassSamProgram {
         IOUtil.assertFileIsWritable(SUMMARY_OUTPUT);
         IOUtil.assertFileIsReadable(REFERENCE_SEQUENCE);
 
-        //Calculate windowsByGc for the reference sequence
-        final int[] windowsByGc = GcBiasUtils.calculateRefWindowsByGc(BINS, REFERENCE_SEQUENCE, SCAN_WINDOW_SIZE);
+        //Calculate windowsByGc for the reference sequence, or read it from the cache
+        if (USE_GC_WINDOW_CACHE) {
+            gcWindowCache = GcWindowCache.open(REFERENCE_SEQUENCE, SCAN_WINDOW_SIZE, GC_WINDOW_CACHE_DIRECTORY);
+            windowsByGc = gcWindowCache.getWindowsByGc();
+        } else {
+            windowsByGc = GcBiasUtils.calculateRefWindowsByGc(BINS, REFERENCE_SEQUENCE, SCAN_WINDOW_SIZE);
+        }
+        readGroups = header.getReadGroups();
 
         //Delegate actual collection to GcBiasMetricCollector
-        multiCollector = new GcBiasMetricsCollector(METRIC_ACCUMULATION_LEVEL, windowsByGc, header.getReadGroups(), SCAN_WINDOW_SIZE, IS_BISULFITE_SEQUENCED);
+        multiCollector = makeCollector();
+    }
+
+    private GcBiasMetricsCollector makeCollector() {
+        return new GcBiasMetricsCollector(METRIC_ACCUMULATION_LEVEL, windowsByGc, readGroups, SCAN_WINDOW_SIZE, IS_BISULFITE_SEQUENCED,
+                gcWindowCache);
+    }
+
+    @Override
+    protected MultiLevelCollector<?, ?, ?> makeShardCollector() {
+        return makeCollector();
+    }
+
+    @Override
+    protected void mergeShardCollector(final MultiLevelCollector<?, ?, ?> shardCollector) {
+        multiCollector.merge((GcBiasMetricsCollector) shardCollector);
     }
 
     ////////////////////////////////////////////////////////////////////////////
@@ -25,6 +25,7 @@
 package picard.analysis;
 
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.reference.ReferenceSequence;
@@ -36,9 +37,11 @@ import picard.analysis.directed.InsertSizeMetricsCollector;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.programgroups.Metrics;
+import picard.metrics.MultiLevelCollector;
 import picard.util.RExecutor;
 
 import java.io.File;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -105,6 +108,7 @@ public class CollectInsertSizeMetrics extends SinglePassSamProgram {
 
     // Calculates InsertSizeMetrics for all METRIC_ACCUMULATION_LEVELs provided
     private InsertSizeMetricsCollector multiCollector;
+    private List<SAMReadGroupRecord> readGroups;
 
     /** Required main method implementation. */
     public static void main(final String[] argv) {
@@ -135,8 +139,21 @@ public class CollectInsertSizeMetrics extends SinglePassSamProgram {
         IOUtil.assertFileIsWritable(Histogram_FILE);
 
         //Delegate actual collection to InsertSizeMetricCollector
-        multiCollector = new InsertSizeMetricsCollector(METRIC_ACCUMULATION_LEVEL, header.getReadGroups(),
-                                                        MINIMUM_PCT, HISTOGRAM_WIDTH, DEVIATIONS, INCLUDE_DUPLICATES);
+        readGroups = header.getReadGroups();
+        multiCollector = makeCollector();
+    }
+
+    private InsertSizeMetricsCollector makeCollector() {
+        return new InsertSizeMetricsCollector(METRIC_ACCUMULATION_LEVEL, readGroups,
+                                              MINIMUM_PCT, HISTOGRAM_WIDTH, DEVIATIONS, INCLUDE_DUPLICATES);
+    }
+
+    @Override protected MultiLevelCollector<?, ?, ?> makeShardCollector() {
+        return makeCollector();
+    }
+
+    @Override protected void mergeShardCollector(final MultiLevelCollector<?, ?, ?> shardCollector) {
+        multiCollector.merge((InsertSizeMetricsCollector) shardCollector);
     }
 
     @Override protected void acceptRead(final SAMRecord record, final ReferenceSequence ref) {
@@ -286,6 +286,21 @@ public class CollectMultipleMetrics extends CommandLineProgram {
                 return program;
             }
         },
+        CollectSequencingArtifactAndOxoGMetrics {
+            @Override
+            public boolean needsReferenceSequence() {
+                return true;
+            }
+            @Override
+            public boolean supportsMetricAccumulationLevel() { return false; }
+            @Override
+            public SinglePassSamProgram makeInstance(final String outbase, final String outext, final File input, final File reference, final Set<MetricAccumulationLevel> metricAccumulationLevel, final File dbSnp, final File intervals) {
+                // one pass over the input fills both the sequencing artifact metrics and the OxoG metrics derived from them
+                final SinglePassSamProgram program = Program.CollectSequencingArtifactMetrics.makeInstance(outbase, outext, input, reference, metricAccumulationLevel, dbSnp, intervals);
+                ((CollectSequencingArtifactMetrics) program).INCLUDE_OXOG_METRICS = true;
+                return program;
+            }
+        },
         CollectQualityYieldMetrics {
             @Override
             public boolean needsReferenceSequence() {
@@ -343,6 +358,18 @@ public class CollectMultipleMetrics extends CommandLineProgram {
             "by some PROGRAMs, PROGRAMS whose CLP doesn't allow for this argument will quetly ignore it.", optional = true)
     public File DB_SNP;
 
+    @Option(doc = "If greater than zero, decode the input on one thread and run each program on its own thread, holding " +
+            "up to this many decoded records for the slowest program. The output is identical either way.")
+    public int MAX_RECORDS_IN_PIPELINE = 0;
+
+    @Option(doc = "If true, CollectGcBiasMetrics reads the GC content of the reference windows from a memory-mapped cache file " +
+            "instead of scanning the reference, writing the cache first if it is missing or stale.")
+    public boolean USE_GC_WINDOW_CACHE = false;
+
+    @Option(doc = "The directory in which to keep the GC window cache if USE_GC_WINDOW_CACHE is true. Defaults to the directory " +
+            "of the reference.", optional = true)
+    public File GC_WINDOW_CACHE_DIRECTORY;
+
     /**
      * Contents of PROGRAM set is transferred to this set during command-line validation, so that an outside
      * developer can invoke this class programmatically and provide alternative Programs to run by calling
@@ -362,6 +389,10 @@ public class CollectMultipleMetrics extends CommandLineProgram {
         if (PROGRAM.isEmpty()) {
             return new String[]{"No programs specified with PROGRAM"};
         }
+        if (PROGRAM.contains(Program.CollectSequencingArtifactMetrics) && PROGRAM.contains(Program.CollectSequencingArtifactAndOxoGMetrics)) {
+            return new String[]{"CollectSequencingArtifactAndOxoGMetrics writes the same files as CollectSequencingArtifactMetrics, " +
+                    "so only one of them can be specified with PROGRAM"};
+        }
         programsToRun = new LinkedHashSet<>(PROGRAM);
 
         return super.customCommandLineValidation();
@@ -399,12 +430,17 @@ public class CollectMultipleMetrics extends CommandLineProgram {
             // to just set them anyway
             instance.INPUT = INPUT;
             instance.REFERENCE_SEQUENCE = REFERENCE_SEQUENCE;
+            if (instance instanceof CollectGcBiasMetrics) {
+                final CollectGcBiasMetrics gcBiasMetrics = (CollectGcBiasMetrics) instance;
+                gcBiasMetrics.USE_GC_WINDOW_CACHE = USE_GC_WINDOW_CACHE;
+                gcBiasMetrics.GC_WINDOW_CACHE_DIRECTORY = GC_WINDOW_CACHE_DIRECTORY;
+            }
 
             instance.setDefaultHeaders(getDefaultHeaders());
 
             programs.add(instance);
         }
-        SinglePassSamProgram.makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, programs);
+        SinglePassSamProgram.makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, programs, MAX_RECORDS_IN_PIPELINE);
 
         return 0;
     }
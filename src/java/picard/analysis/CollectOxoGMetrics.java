@@ -34,6 +34,8 @@ import htsjdk.samtools.filter.NotPrimaryAlignmentFilter;
 import htsjdk.samtools.filter.SamRecordFilter;
 import htsjdk.samtools.metrics.MetricBase;
 import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
 import htsjdk.samtools.reference.ReferenceSequenceFileWalker;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
@@ -50,12 +52,15 @@ import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
 import picard.cmdline.programgroups.Metrics;
 import picard.util.DbSnpBitSetUtil;
+import picard.util.OrderedParallelExecutor;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.IntFunction;
 
 import static htsjdk.samtools.util.CodeUtil.getOrElse;
 import static htsjdk.samtools.util.SequenceUtil.generateAllKmers;
@@ -137,6 +142,11 @@ public class CollectOxoGMetrics extends CommandLineProgram {
     @Option(doc = "For debugging purposes: stop after visiting this many sites with at least 1X coverage.")
     public int STOP_AFTER = Integer.MAX_VALUE;
 
+    @Option(doc = "The number of threads to use.  If greater than one, the genome, or the INTERVALS, is split into parts " +
+            "processed on separate threads, which requires the input and the reference to be indexed.  The output is the " +
+            "same whatever the number of threads.  Ignored if STOP_AFTER is set.")
+    public int NUM_THREADS = 1;
+
     private final Log log = Log.getInstance(CollectOxoGMetrics.class);
     private static final String UNKNOWN_LIBRARY = "UnknownLibrary";
     private static final String UNKNOWN_SAMPLE = "UnknownSample";
@@ -239,7 +249,6 @@ public class CollectOxoGMetrics extends CommandLineProgram {
         if (INTERVALS != null) IOUtil.assertFileIsReadable(INTERVALS);
         IOUtil.assertFileIsReadable(REFERENCE_SEQUENCE);
 
-        final ReferenceSequenceFileWalker refWalker = new ReferenceSequenceFileWalker(REFERENCE_SEQUENCE);
         final SamReader in = SamReaderFactory.makeDefault().open(INPUT);
 
         final Set<String> samples = new HashSet<String>();
@@ -256,12 +265,7 @@ public class CollectOxoGMetrics extends CommandLineProgram {
 
         // Setup the calculators
         final Set<String> contexts = CONTEXTS.isEmpty() ? makeContextStrings(CONTEXT_SIZE) : CONTEXTS;
-        final ListMap<String, Calculator> calculators = new ListMap<String, Calculator>();
-        for (final String context : contexts) {
-            for (final String library : libraries) {
-                calculators.add(context, new Calculator(library, context));
-            }
-        }
+        final ListMap<String, Calculator> calculators = makeCalculators(contexts, libraries);
 
         // Load up dbSNP if available
         log.info("Loading dbSNP File: " + DB_SNP);
@@ -269,14 +273,45 @@ public class CollectOxoGMetrics extends CommandLineProgram {
         if (DB_SNP != null) dbSnp = new DbSnpBitSetUtil(DB_SNP, in.getFileHeader().getSequenceDictionary());
         else dbSnp = null;
 
-        // Make an iterator that will filter out funny looking things
-        final SamLocusIterator iterator;
-        if (INTERVALS != null) {
-            final IntervalList intervals = IntervalList.fromFile(INTERVALS);
-            iterator = new SamLocusIterator(in, intervals.uniqued(), false);
+        final IntervalList intervals = INTERVALS == null ? null : IntervalList.fromFile(INTERVALS).uniqued();
+        if (NUM_THREADS > 1 && STOP_AFTER == Integer.MAX_VALUE && OrderedParallelExecutor.canQueryInParallel(in, REFERENCE_SEQUENCE)) {
+            addChunks(OrderedParallelExecutor.getChunks(in.getFileHeader(), intervals, NUM_THREADS), contexts, libraries, dbSnp, calculators);
         } else {
-            iterator = new SamLocusIterator(in);
+            // Make an iterator that will filter out funny looking things
+            final SamLocusIterator iterator = intervals == null ? new SamLocusIterator(in) : new SamLocusIterator(in, intervals, false);
+            final ReferenceSequenceFileWalker refWalker = new ReferenceSequenceFileWalker(REFERENCE_SEQUENCE);
+            addLoci(iterator, refWalker::get, dbSnp, calculators);
+            CloserUtil.close(refWalker);
+        }
+
+        final MetricsFile<CpcgMetrics, Integer> file = getMetricsFile();
+        for (final List<Calculator> calcs : calculators.values()) {
+            for (final Calculator calc : calcs) {
+                final CpcgMetrics m = calc.finish();
+                m.SAMPLE_ALIAS = StringUtil.join(",", new ArrayList<String>(samples));
+                file.addMetric(m);
+            }
         }
+
+        file.write(OUTPUT);
+        CloserUtil.close(in);
+        return 0;
+    }
+
+    /** Makes a calculator for each library for each context. */
+    private ListMap<String, Calculator> makeCalculators(final Set<String> contexts, final Set<String> libraries) {
+        final ListMap<String, Calculator> calculators = new ListMap<String, Calculator>();
+        for (final String context : contexts) {
+            for (final String library : libraries) {
+                calculators.add(context, new Calculator(library, context));
+            }
+        }
+        return calculators;
+    }
+
+    /** Gives the calculators each site of interest from the given SamLocusIterator, up to STOP_AFTER sites. */
+    private void addLoci(final SamLocusIterator iterator, final IntFunction<ReferenceSequence> references, final DbSnpBitSetUtil dbSnp,
+                         final ListMap<String, Calculator> calculators) {
         iterator.setEmitUncoveredLoci(false);
         iterator.setMappingQualityScoreCutoff(MINIMUM_MAPPING_QUALITY);
 
@@ -300,7 +335,7 @@ public class CollectOxoGMetrics extends CommandLineProgram {
             if (dbSnp != null && dbSnp.isDbSnpSite(chrom, pos)) continue;
 
             // Skip sites at the end of chromosomes 
-            final byte[] bases = refWalker.get(info.getSequenceIndex()).getBases();
+            final byte[] bases = references.apply(info.getSequenceIndex()).getBases();
             if (pos < 3 || pos > bases.length - 3) continue;
 
             // Skip non C-G bases
@@ -329,19 +364,44 @@ public class CollectOxoGMetrics extends CommandLineProgram {
             }
             if (sites >= STOP_AFTER) break;
         }
+        iterator.close();
+    }
 
-        final MetricsFile<CpcgMetrics, Integer> file = getMetricsFile();
-        for (final List<Calculator> calcs : calculators.values()) {
-            for (final Calculator calc : calcs) {
-                final CpcgMetrics m = calc.finish();
-                m.SAMPLE_ALIAS = StringUtil.join(",", new ArrayList<String>(samples));
-                file.addMetric(m);
+    /**
+     * Counts each chunk on a pool of NUM_THREADS threads, with its own calculators, and adds them to the given calculators.
+     * Each thread opens its own reader and reference, and keeps the contig it last read across its chunks.  The chunks do
+     * not overlap and the calculators only hold counts, so the sums are the same as on one thread.  This relies on the
+     * iterators, as on one thread, not capping the reads accumulated per locus: with a cap, which reads are dropped at a
+     * deep locus would depend on where its chunk starts.
+     */
+    private void addChunks(final List<IntervalList> chunks, final Set<String> contexts, final Set<String> libraries,
+                           final DbSnpBitSetUtil dbSnp, final ListMap<String, Calculator> calculators) {
+        log.info("Processing " + chunks.size() + " parts of the input using " + NUM_THREADS + " threads.");
+        try (final OrderedParallelExecutor<ListMap<String, Calculator>> executor = new OrderedParallelExecutor<ListMap<String, Calculator>>(
+                NUM_THREADS, "CollectOxoGMetrics chunk", chunkCalculators -> merge(calculators, chunkCalculators))) {
+            final ThreadLocal<SamReader> readers = executor.perThread(() -> SamReaderFactory.makeDefault().open(INPUT));
+            final ThreadLocal<ContigReferences> references = executor.perThread(() -> new ContigReferences(
+                    ReferenceSequenceFileFactory.getReferenceSequenceFile(REFERENCE_SEQUENCE, true, true),
+                    readers.get().getFileHeader().getSequenceDictionary()));
+            for (final IntervalList chunk : chunks) {
+                executor.submit(() -> {
+                    final ListMap<String, Calculator> chunkCalculators = makeCalculators(contexts, libraries);
+                    addLoci(new SamLocusIterator(readers.get(), chunk, true), references.get(), dbSnp, chunkCalculators);
+                    return chunkCalculators;
+                });
             }
+            executor.finish();
         }
+    }
 
-        file.write(OUTPUT);
-        CloserUtil.close(in);
-        return 0;
+    /** Adds the counts of the calculators of a chunk to the matching calculators. */
+    private static void merge(final ListMap<String, Calculator> calculators, final ListMap<String, Calculator> chunkCalculators) {
+        for (final Map.Entry<String, List<Calculator>> entry : calculators.entrySet()) {
+            final List<Calculator> chunkCalculatorsForContext = chunkCalculators.get(entry.getKey());
+            for (int i = 0; i < entry.getValue().size(); i++) {
+                entry.getValue().get(i).merge(chunkCalculatorsForContext.get(i));
+            }
+        }
     }
 
     private Set<String> makeContextStrings(final int contextSize) {
@@ -412,6 +472,18 @@ public class CollectOxoGMetrics extends CommandLineProgram {
             }
         }
 
+        void merge(final Calculator other) {
+            this.sites += other.sites;
+            this.refCcontrolA += other.refCcontrolA;
+            this.refCoxidatedA += other.refCoxidatedA;
+            this.refCcontrolC += other.refCcontrolC;
+            this.refCoxidatedC += other.refCoxidatedC;
+            this.refGcontrolA += other.refGcontrolA;
+            this.refGoxidatedA += other.refGoxidatedA;
+            this.refGcontrolC += other.refGcontrolC;
+            this.refGoxidatedC += other.refGoxidatedC;
+        }
+
         CpcgMetrics finish() {
             final CpcgMetrics m = new CpcgMetrics();
             m.LIBRARY = this.library;
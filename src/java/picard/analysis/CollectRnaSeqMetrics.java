@@ -121,6 +121,14 @@ public class CollectRnaSeqMetrics extends SinglePassSamProgram {
     @Option(shortName="LEVEL", doc="The level(s) at which to accumulate metrics.  ")
     public Set<MetricAccumulationLevel> METRIC_ACCUMULATION_LEVEL = CollectionUtil.makeSet(MetricAccumulationLevel.ALL_READS);
 
+    @Option(doc="If true, read the genes from a binary snapshot of REF_FLAT, keyed by the MD5 of REF_FLAT and the sequence " +
+            "dictionary, instead of parsing REF_FLAT, writing the snapshot first if it is missing or stale.")
+    public boolean USE_REF_FLAT_CACHE = false;
+
+    @Option(doc="The directory in which to keep the REF_FLAT snapshot if USE_REF_FLAT_CACHE is true. Defaults to the directory " +
+            "of REF_FLAT.", optional=true)
+    public File REF_FLAT_CACHE_DIRECTORY;
+
     private RnaSeqMetricsCollector collector;
 
     /**
@@ -138,7 +146,9 @@ public class CollectRnaSeqMetrics extends SinglePassSamProgram {
 
         if (CHART_OUTPUT != null) IOUtil.assertFileIsWritable(CHART_OUTPUT);
 
-        final OverlapDetector<Gene> geneOverlapDetector = GeneAnnotationReader.loadRefFlat(REF_FLAT, header.getSequenceDictionary());
+        final OverlapDetector<Gene> geneOverlapDetector = USE_REF_FLAT_CACHE
+                ? GeneAnnotationReader.loadRefFlatWithCache(REF_FLAT, header.getSequenceDictionary(), REF_FLAT_CACHE_DIRECTORY)
+                : GeneAnnotationReader.loadRefFlat(REF_FLAT, header.getSequenceDictionary());
         LOG.info("Loaded " + geneOverlapDetector.getAll().size() + " genes.");
 
         final Long ribosomalBasesInitialValue = RIBOSOMAL_INTERVALS != null ? 0L : null;
@@ -24,21 +24,35 @@
 package picard.analysis;
 
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.filter.AggregateFilter;
+import htsjdk.samtools.filter.FilteringSamIterator;
 import htsjdk.samtools.filter.SamRecordFilter;
 import htsjdk.samtools.filter.SecondaryAlignmentFilter;
 import htsjdk.samtools.metrics.MetricBase;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
 import htsjdk.samtools.reference.ReferenceSequenceFileWalker;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.Histogram;
 import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.IntervalList;
+import htsjdk.samtools.util.IntervalListReferenceSequenceMask;
 import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.PeekableIterator;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.util.QualityUtil;
+import htsjdk.samtools.util.ReferenceSequenceMask;
 import htsjdk.samtools.util.SamLocusIterator;
+import htsjdk.samtools.util.SamRecordIntervalIteratorFactory;
+import htsjdk.samtools.util.WholeGenomeReferenceSequenceMask;
+import picard.PicardException;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
@@ -49,11 +63,13 @@ import picard.filter.CountingFilter;
 import picard.filter.CountingMapQFilter;
 import picard.filter.CountingPairedFilter;
 import picard.util.MathUtil;
+import picard.util.OrderedParallelExecutor;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.function.IntFunction;
 import java.util.stream.IntStream;
 
 /**
@@ -123,6 +139,15 @@ public class CollectWgsMetrics extends CommandLineProgram {
             optional = true, overridable = true)
     public File INTERVALS = null;
 
+    @Option(doc = "If true, computes the coverage one read at a time rather than one locus at a time, which is faster " +
+            "and gives the same results.  Ignored if STOP_AFTER is set.")
+    public boolean USE_FAST_ALGORITHM = false;
+
+    @Option(doc = "The number of threads to use.  If greater than one, the genome, or the INTERVALS, is split into parts " +
+            "processed on separate threads, which requires the input and the reference to be indexed.  The output is the " +
+            "same whatever the number of threads.  Ignored if STOP_AFTER is set.")
+    public int NUM_THREADS = 1;
+
     private SAMFileHeader header = null;
 
     private final Log log = Log.getInstance(CollectWgsMetrics.class);
@@ -216,13 +241,35 @@ public class CollectWgsMetrics extends CommandLineProgram {
         final ProgressLogger progress = new ProgressLogger(log, 10000000, "Processed", "loci");
         final ReferenceSequenceFileWalker refWalker = new ReferenceSequenceFileWalker(REFERENCE_SEQUENCE);
         final SamReader in = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(INPUT);
-        final SamLocusIterator iterator = getLocusIterator(in);
         this.header = in.getFileHeader();
 
-        final List<SamRecordFilter> filters = new ArrayList<>();
         final CountingFilter dupeFilter = new CountingDuplicateFilter();
         final CountingFilter mapqFilter = new CountingMapQFilter(MINIMUM_MAPPING_QUALITY);
         final CountingPairedFilter pairFilter = new CountingPairedFilter();
+        final WgsMetricsCollector collector = getCollector(COVERAGE_CAP);
+
+        if (NUM_THREADS > 1 && STOP_AFTER <= 0 && OrderedParallelExecutor.canQueryInParallel(in, REFERENCE_SEQUENCE)) {
+            addChunks(OrderedParallelExecutor.getChunks(header, getIntervals(), NUM_THREADS), collector, dupeFilter, mapqFilter, pairFilter);
+        } else {
+            final List<SamRecordFilter> filters = getFilters(dupeFilter, mapqFilter, pairFilter);
+            if (USE_FAST_ALGORITHM && STOP_AFTER <= 0) {
+                addReads(in, refWalker::get, getIntervals(), filters, collector, progress);
+            } else {
+                addLoci(getLocusIterator(in), refWalker::get, filters, collector, progress);
+            }
+        }
+        CloserUtil.close(in);
+
+        final MetricsFile<WgsMetrics, Integer> out = getMetricsFile();
+        collector.addToMetricsFile(out, INCLUDE_BQ_HISTOGRAM, dupeFilter, mapqFilter, pairFilter);
+        out.write(OUTPUT);
+
+        return 0;
+    }
+
+    private List<SamRecordFilter> getFilters(final SamRecordFilter dupeFilter, final SamRecordFilter mapqFilter,
+                                             final SamRecordFilter pairFilter) {
+        final List<SamRecordFilter> filters = new ArrayList<>();
         // The order in which filters are added matters!
         filters.add(new SecondaryAlignmentFilter()); // Not a counting filter because we never want to count reads twice
         filters.add(mapqFilter);
@@ -230,6 +277,24 @@ public class CollectWgsMetrics extends CommandLineProgram {
         if (!COUNT_UNPAIRED) {
             filters.add(pairFilter);
         }
+        return filters;
+    }
+
+    /** Gives the collector each locus within the intervals, or the whole genome if null, using a WgsDepthAccumulator. */
+    private void addReads(final SamReader in, final IntFunction<ReferenceSequence> references, final IntervalList intervals,
+                          final List<SamRecordFilter> filters, final WgsMetricsCollector collector, final ProgressLogger progress) {
+        final CloseableIterator<SAMRecord> records = intervals == null ? in.iterator() :
+                new SamRecordIntervalIteratorFactory().makeSamRecordIntervalIterator(in, intervals.uniqued().getIntervals(), in.hasIndex());
+        final ReferenceSequenceMask mask = intervals == null ?
+                new WholeGenomeReferenceSequenceMask(in.getFileHeader()) : new IntervalListReferenceSequenceMask(intervals);
+        new WgsDepthAccumulator(collector, references, in.getFileHeader(), mask, MINIMUM_BASE_QUALITY, LOCUS_ACCUMULATION_CAP, progress)
+                .addReads(new PeekableIterator<>(new FilteringSamIterator(records, new AggregateFilter(filters))));
+        records.close();
+    }
+
+    /** Gives the collector each locus from the given SamLocusIterator, up to STOP_AFTER loci. */
+    private void addLoci(final SamLocusIterator iterator, final IntFunction<ReferenceSequence> references, final List<SamRecordFilter> filters,
+                         final WgsMetricsCollector collector, final ProgressLogger progress) {
         iterator.setSamFilters(filters);
         iterator.setEmitUncoveredLoci(true);
         iterator.setMappingQualityScoreCutoff(0); // Handled separately because we want to count bases
@@ -237,8 +302,6 @@ public class CollectWgsMetrics extends CommandLineProgram {
         iterator.setIncludeNonPfReads(false);
         iterator.setMaxReadsToAccumulatePerLocus(LOCUS_ACCUMULATION_CAP);
 
-        final WgsMetricsCollector collector = getCollector(COVERAGE_CAP);
-
         final boolean usingStopAfter = STOP_AFTER > 0;
         final long stopAfter = STOP_AFTER - 1;
         long counter = 0;
@@ -246,7 +309,7 @@ public class CollectWgsMetrics extends CommandLineProgram {
         // Loop through all the loci
         while (iterator.hasNext()) {
             final SamLocusIterator.LocusInfo info = iterator.next();
-            final ReferenceSequence ref = refWalker.get(info.getSequenceIndex());
+            final ReferenceSequence ref = references.apply(info.getSequenceIndex());
 
             // Check that the reference is not N
             final byte base = ref.getBases()[info.getPosition() - 1];
@@ -259,13 +322,91 @@ public class CollectWgsMetrics extends CommandLineProgram {
             progress.record(info.getSequenceName(), info.getPosition());
             if (usingStopAfter && ++counter > stopAfter) break;
         }
+        iterator.close();
+    }
 
+    /**
+     * Collects each chunk on a pool of NUM_THREADS threads, with its own collector and filters, and adds them to the given
+     * collector and filters in order.  Each thread opens its own reader and reference.
+     */
+    private void addChunks(final List<IntervalList> chunks, final WgsMetricsCollector collector, final CountingFilter dupeFilter,
+                           final CountingFilter mapqFilter, final CountingPairedFilter pairFilter) {
+        log.info("Processing " + chunks.size() + " parts of the input using " + NUM_THREADS + " threads.");
+        try (final OrderedParallelExecutor<ChunkResult> executor = new OrderedParallelExecutor<>(NUM_THREADS, "CollectWgsMetrics chunk",
+                result -> result.addTo(collector, dupeFilter, mapqFilter, pairFilter))) {
+            final ThreadLocal<SamReader> readers =
+                    executor.perThread(() -> SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(INPUT));
+            final ThreadLocal<ReferenceSequenceFile> referenceFiles =
+                    executor.perThread(() -> ReferenceSequenceFileFactory.getReferenceSequenceFile(REFERENCE_SEQUENCE, true, true));
+            for (int i = 0; i < chunks.size(); ++i) {
+                final IntervalList chunk = chunks.get(i);
+                final Interval previous = i == 0 ? null : chunks.get(i - 1).getIntervals().get(chunks.get(i - 1).size() - 1);
+                executor.submit(() -> {
+                    final ChunkResult result = new ChunkResult(previous);
+                    final IntFunction<ReferenceSequence> references = new ContigReferences(referenceFiles.get(), header.getSequenceDictionary());
+                    final ProgressLogger progress = new ProgressLogger(log, 10000000, "Processed", "loci");
+                    if (USE_FAST_ALGORITHM) {
+                        addReads(readers.get(), references, chunk, result.getFilters(), result.collector, progress);
+                    } else {
+                        addLoci(new SamLocusIterator(readers.get(), chunk), references, result.getFilters(), result.collector, progress);
+                    }
+                    return result;
+                });
+            }
+            executor.finish();
+        }
+    }
 
-        final MetricsFile<WgsMetrics, Integer> out = getMetricsFile();
-        collector.addToMetricsFile(out, INCLUDE_BQ_HISTOGRAM, dupeFilter, mapqFilter, pairFilter);
-        out.write(OUTPUT);
+    /** The collector and filters of one chunk. */
+    private class ChunkResult {
+        final WgsMetricsCollector collector = new WgsMetricsCollector(COVERAGE_CAP);
+        final CountingFilter dupeFilter = new CountingDuplicateFilter();
+        final CountingFilter mapqFilter = new CountingMapQFilter(MINIMUM_MAPPING_QUALITY);
+        final CountingPairedFilter pairFilter = new CountingPairedFilter();
 
-        return 0;
+        // The last interval of the previous chunk, if any, whose reads are not counted again by the filters
+        final Interval previous;
+
+        ChunkResult(final Interval previous) {
+            this.previous = previous;
+        }
+
+        List<SamRecordFilter> getFilters() {
+            return CollectWgsMetrics.this.getFilters(new ChunkFilter(dupeFilter), new ChunkFilter(mapqFilter), new ChunkFilter(pairFilter));
+        }
+
+        void addTo(final WgsMetricsCollector collector, final CountingFilter dupeFilter, final CountingFilter mapqFilter,
+                   final CountingPairedFilter pairFilter) {
+            collector.merge(this.collector);
+            dupeFilter.addCounts(this.dupeFilter);
+            mapqFilter.addCounts(this.mapqFilter);
+            pairFilter.addCounts(this.pairFilter);
+        }
+
+        /**
+         * Filters as the given CountingFilter does, but only counts the reads that do not overlap the previous chunk, as
+         * that chunk has already counted them.
+         */
+        private class ChunkFilter implements SamRecordFilter {
+            private final CountingFilter filter;
+
+            ChunkFilter(final CountingFilter filter) {
+                this.filter = filter;
+            }
+
+            @Override
+            public boolean filterOut(final SAMRecord record) {
+                final boolean counted = previous == null ||
+                        !record.getReferenceName().equals(previous.getContig()) ||
+                        record.getAlignmentStart() > previous.getEnd();
+                return counted ? filter.filterOut(record) : filter.reallyFilterOut(record);
+            }
+
+            @Override
+            public boolean filterOut(final SAMRecord first, final SAMRecord second) {
+                throw new UnsupportedOperationException();
+            }
+        }
     }
 
     protected SAMFileHeader getSamFileHeader() {
@@ -285,7 +426,13 @@ public class CollectWgsMetrics extends CommandLineProgram {
     }
 
     protected SamLocusIterator getLocusIterator(final SamReader in) {
-        return (INTERVALS != null) ? new SamLocusIterator(in, IntervalList.fromFile(INTERVALS)) : new SamLocusIterator(in);
+        final IntervalList intervals = getIntervals();
+        return (intervals != null) ? new SamLocusIterator(in, intervals) : new SamLocusIterator(in);
+    }
+
+    /** Returns the intervals to restrict the assessment to, or null to assess the whole genome. */
+    protected IntervalList getIntervals() {
+        return (INTERVALS != null) ? IntervalList.fromFile(INTERVALS) : null;
     }
 
     protected WgsMetricsCollector getCollector(final int coverageCap) {
@@ -318,24 +465,56 @@ public class CollectWgsMetrics extends CommandLineProgram {
             int pileupSizeForBaseQHetSens = 0;
             for (final SamLocusIterator.RecordAndOffset recs : info.getRecordAndPositions()) {
                 pileupSizeForBaseQHetSens++;
-                if(pileupSizeForBaseQHetSens <= coverageCap) {
-                    baseQHetSensHistogram[recs.getRecord().getBaseQualities()[recs.getOffset()]]++;
-                }
+                final byte baseQuality = recs.getRecord().getBaseQualities()[recs.getOffset()];
+                final boolean overlapsMate = baseQuality >= MINIMUM_BASE_QUALITY && !readNames.add(recs.getRecord().getReadName());
+                if (addBase(baseQuality, pileupSizeForBaseQHetSens, pileupSize, overlapsMate)) pileupSize++;
+            }
 
-                if (recs.getBaseQuality() < MINIMUM_BASE_QUALITY)                   { ++basesExcludedByBaseq;   continue; }
-                if (!readNames.add(recs.getRecord().getReadName()))                 { ++basesExcludedByOverlap; continue; }
+            addLocus(pileupSize);
+        }
 
-                pileupSize++;
-                if (pileupSize <= coverageCap) {
-                    baseQHistogramArray[recs.getRecord().getBaseQualities()[recs.getOffset()]]++;
-                }
+        /**
+         * Counts one base of a locus, as addInfo does for each of the bases of the locus in turn.
+         * @param baseQuality the quality of the base
+         * @param pileupSize the number of bases of the locus so far, including this one
+         * @param depth the number of bases of the locus so far that count towards its coverage, excluding this one
+         * @param overlapsMate true if a previous base of the locus from a read of the same name counts towards coverage
+         * @return true if this base counts towards the coverage of the locus
+         */
+        protected boolean addBase(final byte baseQuality, final int pileupSize, final int depth, final boolean overlapsMate) {
+            if (pileupSize <= coverageCap) {
+                baseQHetSensHistogram[baseQuality]++;
             }
 
-            final int depth = Math.min(readNames.size(), coverageCap);
-            if (depth < readNames.size()) basesExcludedByCapping += readNames.size() - coverageCap;
+            if (baseQuality < MINIMUM_BASE_QUALITY) { ++basesExcludedByBaseq;   return false; }
+            if (overlapsMate)                       { ++basesExcludedByOverlap; return false; }
+
+            if (depth < coverageCap) {
+                baseQHistogramArray[baseQuality]++;
+            }
+            return true;
+        }
+
+        /** Counts a locus once all its bases have been counted, given the number of them that count towards its coverage. */
+        protected void addLocus(final int readCount) {
+            final int depth = Math.min(readCount, coverageCap);
+            if (depth < readCount) basesExcludedByCapping += readCount - coverageCap;
             histogramArray[depth]++;
         }
 
+        /** Adds the counts of another collector with the same coverage cap, such as one that counted another part of the genome. */
+        public void merge(final WgsMetricsCollector other) {
+            if (other.coverageCap != coverageCap) {
+                throw new PicardException("Cannot merge collectors with different coverage caps.");
+            }
+            for (int i = 0; i < histogramArray.length; ++i) histogramArray[i] += other.histogramArray[i];
+            for (int i = 0; i < baseQHistogramArray.length; ++i) baseQHistogramArray[i] += other.baseQHistogramArray[i];
+            for (int i = 0; i < baseQHetSensHistogram.length; ++i) baseQHetSensHistogram[i] += other.baseQHetSensHistogram[i];
+            basesExcludedByBaseq += other.basesExcludedByBaseq;
+            basesExcludedByOverlap += other.basesExcludedByOverlap;
+            basesExcludedByCapping += other.basesExcludedByCapping;
+        }
+
         public void addToMetricsFile(final MetricsFile<WgsMetrics, Integer> file,
                                      final boolean includeBQHistogram,
                                      final CountingFilter dupeFilter,
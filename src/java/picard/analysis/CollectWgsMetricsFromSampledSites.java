@@ -24,7 +24,6 @@
 
 package picard.analysis;
 
-import htsjdk.samtools.SamReader;
 import htsjdk.samtools.util.*;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
@@ -64,9 +63,9 @@ public class CollectWgsMetricsFromSampledSites extends CollectWgsMetrics {
     }
 
     @Override
-    protected SamLocusIterator getLocusIterator(final SamReader in) {
+    protected IntervalList getIntervals() {
         IOUtil.assertFileIsReadable(INTERVALS);
-        return new SamLocusIterator(in, IntervalList.fromFile(INTERVALS));
+        return IntervalList.fromFile(INTERVALS);
     }
 
     /**
@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.analysis;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.IntFunction;
+
+/**
+ * Gets the reference sequences of the contigs of an input by index from an indexed reference, one at a time.  Unlike a
+ * ReferenceSequenceFileWalker the contigs may be asked for in any order, so each thread working on part of an input
+ * can have its own.  The current contig is kept, so a thread working on several parts of one contig reads it only once.
+ */
+class ContigReferences implements IntFunction<ReferenceSequence>, Closeable {
+    private final ReferenceSequenceFile referenceFile;
+    private final SAMSequenceDictionary dictionary;
+    private int contigIndex = -1;
+    private ReferenceSequence reference = null;
+
+    ContigReferences(final ReferenceSequenceFile referenceFile, final SAMSequenceDictionary dictionary) {
+        this.referenceFile = referenceFile;
+        this.dictionary = dictionary;
+    }
+
+    @Override
+    public ReferenceSequence apply(final int contigIndex) {
+        if (contigIndex != this.contigIndex) {
+            this.reference = referenceFile.getSequence(dictionary.getSequence(contigIndex).getSequenceName());
+            this.contigIndex = contigIndex;
+        }
+        return reference;
+    }
+
+    /** Closes the reference file. */
+    @Override
+    public void close() throws IOException {
+        referenceFile.close();
+    }
+}
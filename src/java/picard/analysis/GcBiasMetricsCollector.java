@@ -35,11 +35,12 @@ import picard.metrics.GcBiasMetrics;
 import picard.metrics.MultiLevelCollector;
 import picard.metrics.PerUnitMetricCollector;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.HashMap;
 
 /** Calculates GC Bias Metrics on multiple levels
  *  Created by kbergin on 3/23/15.
@@ -49,18 +50,32 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
     // at windows of each GC. Need 101 to get from 0-100.
     private final int scanWindowSize;
     private final boolean bisulfite;
+    private final GcWindowCache gcWindowCache;
     private int[] windowsByGc = new int[BINS];
     private static final int BINS = 101;
 
+    // The GC of the windows of the current contig is calculated in blocks of this many windows, as reads need them,
+    // so that a collector given only part of a contig does not scan all of it
+    private static final int GC_BLOCK_SIZE = 1 << 16;
+
     //will hold the relevant gc information per contig
-    private byte [] gc = null;
+    private ByteBuffer gc = null; // from the cache, if any
+    private final Map<Integer, byte[]> gcBlocks = new HashMap<>(); // otherwise, by block index
     private int referenceIndex = -1;
     private byte [] refBases = null;
 
     public GcBiasMetricsCollector(final Set<MetricAccumulationLevel> accumulationLevels, final int[] windowsByGc,
                                   final List<SAMReadGroupRecord> samRgRecords, final int scanWindowSize, final boolean bisulfite) {
+        this(accumulationLevels, windowsByGc, samRgRecords, scanWindowSize, bisulfite, null);
+    }
+
+    /** If gcWindowCache is not null, the GC of the windows of each contig is read from it rather than computed from the reference. */
+    public GcBiasMetricsCollector(final Set<MetricAccumulationLevel> accumulationLevels, final int[] windowsByGc,
+                                  final List<SAMReadGroupRecord> samRgRecords, final int scanWindowSize, final boolean bisulfite,
+                                  final GcWindowCache gcWindowCache) {
         this.scanWindowSize = scanWindowSize;
         this.bisulfite = bisulfite;
+        this.gcWindowCache = gcWindowCache;
         this.windowsByGc = windowsByGc;
         setup(accumulationLevels, samRgRecords);
     }
@@ -83,83 +98,121 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
     @Override
     public void acceptRecord(final SAMRecord rec, final ReferenceSequence ref) {super.acceptRecord(rec, ref);}
 
+    /** Drops the reference bases and GC of the last contig, which are not needed to merge the counts. */
+    @Override
+    public void finishShard() {
+        gc = null;
+        gcBlocks.clear();
+        refBases = null;
+        referenceIndex = -1;
+    }
+
+    /** Returns the GC of the window starting at the given position of the current contig, or -1 if it has too many no-calls. */
+    private int getWindowGc(final int pos) {
+        if (gcWindowCache != null) return gc.get(pos);
+        final int blockIndex = pos / GC_BLOCK_SIZE;
+        byte[] block = gcBlocks.get(blockIndex);
+        if (block == null) {
+            final int blockStart = blockIndex * GC_BLOCK_SIZE;
+            block = GcBiasUtils.calculateGcs(refBases, blockStart, blockStart + GC_BLOCK_SIZE, refBases.length - scanWindowSize,
+                    scanWindowSize);
+            gcBlocks.put(blockIndex, block);
+        }
+        return block[pos - blockIndex * GC_BLOCK_SIZE];
+    }
+
     /////////////////////////////////////////////////////////////////////////////
     //A collector for individual GcBiasMetrics for a given SAMPLE or SAMPLE/LIBRARY
     //or SAMPLE/LIBRARY/READ_GROUP (depending on aggregation levels)
     /////////////////////////////////////////////////////////////////////////////
     public class PerUnitGcBiasMetricsCollector implements PerUnitMetricCollector<GcBiasMetrics, Integer, GcBiasCollectorArgs> {
-        Map<String, GcObject> gcData = new HashMap<String, GcObject>();
         private final String sample;
         private final String library;
         private final String readGroup;
         private static final String allReads = "All_Reads";
 
+        // The name of the unit (read group, library, sample or All_Reads) and its accumulation level
+        private final String gcType;
+        private final String group;
+
+        // Indexed by GC, from 0 to 100
+        private int totalClusters = 0;
+        private long totalAlignedReads = 0;
+        private final int[] readsByGc = new int[BINS];
+        private final long[] basesByGc = new long[BINS];
+        private final long[] errorsByGc = new long[BINS];
+
         /////////////////////////////////////////////////////////////////////////////
-        //Records the accumulation level for each level of collection and initializes
-        // a GcObject for this accumulation level
+        //Records the accumulation level of this collector and the name of its unit
         /////////////////////////////////////////////////////////////////////////////
         public PerUnitGcBiasMetricsCollector(final String sample, final String library, final String readGroup) {
             this.sample = sample;
             this.library = library;
             this.readGroup = readGroup;
-            final String prefix;
             if (this.readGroup != null) {
-                prefix = this.readGroup;
-                gcData.put(prefix, new GcObject());
+                gcType = this.readGroup;
+                group = "Read Group";
             } else if (this.library != null) {
-                prefix = this.library;
-                gcData.put(prefix, new GcObject());
+                gcType = this.library;
+                group = "Library";
             } else if (this.sample != null) {
-                prefix = this.sample;
-                gcData.put(prefix, new GcObject());
+                gcType = this.sample;
+                group = "Sample";
             } else {
-                prefix = allReads;
-                gcData.put(prefix, new GcObject());
+                gcType = allReads;
+                group = "All Reads";
             }
         }
 
         /////////////////////////////////////////////////////////////////////////////
-        //Takes each record and sends them to addRead to calculate gc metrics for
-        // that read for each accumulation level
+        //Takes each record and adds it to the gc metrics of this collector
         /////////////////////////////////////////////////////////////////////////////
         public void acceptRecord(final GcBiasCollectorArgs args) {
             final SAMRecord rec = args.getRec();
-            final String type;
+            if (!rec.getReadPairedFlag() || rec.getFirstOfPairFlag()) ++totalClusters;
             if (!rec.getReadUnmappedFlag()) {
-                if(referenceIndex != rec.getReferenceIndex() || gc == null){
+                if(referenceIndex != rec.getReferenceIndex() || refBases == null){
                     final ReferenceSequence ref = args.getRef();
                     refBases = ref.getBases();
                     StringUtil.toUpperCase(refBases);
-                    final int refLength = refBases.length;
-                    final int lastWindowStart = refLength - scanWindowSize;
-                    gc = GcBiasUtils.calculateAllGcs(refBases, lastWindowStart, scanWindowSize);
+                    if (gcWindowCache != null) {
+                        gc = gcWindowCache.getGc(ref.getName());
+                    } else {
+                        gcBlocks.clear();
+                    }
                     referenceIndex=rec.getReferenceIndex();
                 }
+                addRead(rec);
+            }
+        }
 
-                final String group;
-                if (this.readGroup != null) {
-                    type = this.readGroup;
-                    group = "Read Group";
-                    addRead(gcData.get(type), rec, group, gc, refBases);
-                } else if (this.library != null) {
-                    type = this.library;
-                    group = "Library";
-                    addRead(gcData.get(type), rec, group, gc, refBases);
-                } else if (this.sample != null) {
-                    type = this.sample;
-                    group = "Sample";
-                    addRead(gcData.get(type), rec, group, gc, refBases);
-                } else {
-                    type = allReads;
-                    group = "All Reads";
-                    addRead(gcData.get(type), rec, group, gc, refBases);
+        /////////////////////////////////////////////////////////////////////////////
+        //Adds the read to the bin of the GC of the window it starts in
+        /////////////////////////////////////////////////////////////////////////////
+        private void addRead(final SAMRecord rec) {
+            final int pos = rec.getReadNegativeStrandFlag() ? rec.getAlignmentEnd() - scanWindowSize : rec.getAlignmentStart();
+            ++totalAlignedReads;
+            if (pos > 0) {
+                final int windowGc = getWindowGc(pos);
+                if (windowGc >= 0) {
+                    ++readsByGc[windowGc];
+                    basesByGc[windowGc] += rec.getReadLength();
+                    errorsByGc[windowGc] +=
+                            SequenceUtil.countMismatches(rec, refBases, bisulfite) +
+                                    SequenceUtil.countInsertedBases(rec) + SequenceUtil.countDeletedBases(rec);
                 }
             }
-            else {
-                for (final Map.Entry<String, GcObject> entry : gcData.entrySet()) {
-                    final GcObject gcCur = entry.getValue();
-                    if (!rec.getReadPairedFlag() || rec.getFirstOfPairFlag()) ++gcCur.totalClusters;
-                }
+        }
+
+        @Override
+        public void merge(final PerUnitMetricCollector<GcBiasMetrics, Integer, GcBiasCollectorArgs> other) {
+            final PerUnitGcBiasMetricsCollector gcOther = (PerUnitGcBiasMetricsCollector) other;
+            totalClusters += gcOther.totalClusters;
+            totalAlignedReads += gcOther.totalAlignedReads;
+            for (int i = 0; i < BINS; ++i) {
+                readsByGc[i] += gcOther.readsByGc[i];
+                basesByGc[i] += gcOther.basesByGc[i];
+                errorsByGc[i] += gcOther.errorsByGc[i];
             }
         }
 
@@ -183,70 +236,58 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
         // these metrics are used for graphing gc bias in R script
         /////////////////////////////////////////////////////////////////////////////
         public void addMetricsToFile(final MetricsFile<GcBiasMetrics, Integer> file) {
-            for (final Map.Entry<String, GcObject> entry : gcData.entrySet()) {
-                final GcObject gcCur = entry.getValue();
-                final String gcType = entry.getKey();
-
-                final int[] readsByGc = gcCur.readsByGc;
-                final long[] errorsByGc = gcCur.errorsByGc;
-                final long[] basesByGc = gcCur.basesByGc;
-                final int totalClusters = gcCur.totalClusters;
-                final long totalAlignedReads = gcCur.totalAlignedReads;
-                final String group = gcCur.group;
-
-                final GcBiasMetrics metrics = new GcBiasMetrics();
-
-                final double totalWindows = sum(windowsByGc);
-                final double totalReads = sum(readsByGc);
-                final double meanReadsPerWindow = totalReads / totalWindows;
-
-                if (totalAlignedReads > 0) {
-                    for (int i = 0; i < windowsByGc.length; ++i) {
-                        final GcBiasDetailMetrics detail = new GcBiasDetailMetrics();
-                        detail.GC = i;
-                        detail.WINDOWS = windowsByGc[i];
-                        detail.READ_STARTS = readsByGc[i];
-                        if (errorsByGc[i] > 0) {
-                            detail.MEAN_BASE_QUALITY = QualityUtil.getPhredScoreFromObsAndErrors(basesByGc[i], errorsByGc[i]);
-                        }
-                        if (windowsByGc[i] != 0) {
-                            detail.NORMALIZED_COVERAGE = (detail.READ_STARTS / (double) detail.WINDOWS) / meanReadsPerWindow;
-                            detail.ERROR_BAR_WIDTH = (Math.sqrt(detail.READ_STARTS) / (double) detail.WINDOWS) / meanReadsPerWindow;
-                        } else {
-                            detail.NORMALIZED_COVERAGE = 0;
-                            detail.ERROR_BAR_WIDTH = 0;
-                        }
-                        detail.ACCUMULATION_LEVEL = group;
-                        if (group.equals("Read Group")) {detail.READ_GROUP = gcType;}
-                        else if (group.equals("Sample")) {detail.SAMPLE = gcType;}
-                        else if (group.equals("Library")) {detail.LIBRARY = gcType;}
-
-                        metrics.DETAILS.addMetric(detail);
+            final GcBiasMetrics metrics = new GcBiasMetrics();
+
+            final double totalWindows = sum(windowsByGc);
+            final double totalReads = sum(readsByGc);
+            final double meanReadsPerWindow = totalReads / totalWindows;
+
+            if (totalAlignedReads > 0) {
+                for (int i = 0; i < windowsByGc.length; ++i) {
+                    final GcBiasDetailMetrics detail = new GcBiasDetailMetrics();
+                    detail.GC = i;
+                    detail.WINDOWS = windowsByGc[i];
+                    detail.READ_STARTS = readsByGc[i];
+                    if (errorsByGc[i] > 0) {
+                        detail.MEAN_BASE_QUALITY = QualityUtil.getPhredScoreFromObsAndErrors(basesByGc[i], errorsByGc[i]);
                     }
+                    if (windowsByGc[i] != 0) {
+                        detail.NORMALIZED_COVERAGE = (detail.READ_STARTS / (double) detail.WINDOWS) / meanReadsPerWindow;
+                        detail.ERROR_BAR_WIDTH = (Math.sqrt(detail.READ_STARTS) / (double) detail.WINDOWS) / meanReadsPerWindow;
+                    } else {
+                        detail.NORMALIZED_COVERAGE = 0;
+                        detail.ERROR_BAR_WIDTH = 0;
+                    }
+                    detail.ACCUMULATION_LEVEL = group;
+                    if (group.equals("Read Group")) {detail.READ_GROUP = gcType;}
+                    else if (group.equals("Sample")) {detail.SAMPLE = gcType;}
+                    else if (group.equals("Library")) {detail.LIBRARY = gcType;}
 
-                    // Synthesize the high level summary metrics
-                    final GcBiasSummaryMetrics summary = new GcBiasSummaryMetrics();
-                    if (group.equals("Read Group")) {summary.READ_GROUP = gcType;}
-                    else if (group.equals("Sample")) {summary.SAMPLE = gcType;}
-                    else if (group.equals("Library")) {summary.LIBRARY = gcType;}
+                    metrics.DETAILS.addMetric(detail);
+                }
 
-                    summary.ACCUMULATION_LEVEL = group;
-                    summary.WINDOW_SIZE = scanWindowSize;
-                    summary.TOTAL_CLUSTERS = totalClusters;
-                    summary.ALIGNED_READS = totalAlignedReads;
-                    summary.GC_NC_0_19 = calculateGcNormCoverage(meanReadsPerWindow, readsByGc, 0, 19);
-                    summary.GC_NC_20_39 = calculateGcNormCoverage(meanReadsPerWindow, readsByGc, 20, 39);
-                    summary.GC_NC_40_59 = calculateGcNormCoverage(meanReadsPerWindow, readsByGc, 40, 59);
-                    summary.GC_NC_60_79 = calculateGcNormCoverage(meanReadsPerWindow, readsByGc, 60, 79);
-                    summary.GC_NC_80_100 = calculateGcNormCoverage(meanReadsPerWindow, readsByGc, 80, 100);
+                // Synthesize the high level summary metrics
+                final GcBiasSummaryMetrics summary = new GcBiasSummaryMetrics();
+                if (group.equals("Read Group")) {summary.READ_GROUP = gcType;}
+                else if (group.equals("Sample")) {summary.SAMPLE = gcType;}
+                else if (group.equals("Library")) {summary.LIBRARY = gcType;}
 
+                summary.ACCUMULATION_LEVEL = group;
+                summary.WINDOW_SIZE = scanWindowSize;
+                summary.TOTAL_CLUSTERS = totalClusters;
+                summary.ALIGNED_READS = totalAlignedReads;
+                summary.GC_NC_0_19 = calculateGcNormCoverage(meanReadsPerWindow, readsByGc, 0, 19);
+                summary.GC_NC_20_39 = calculateGcNormCoverage(meanReadsPerWindow, readsByGc, 20, 39);
+                summary.GC_NC_40_59 = calculateGcNormCoverage(meanReadsPerWindow, readsByGc, 40, 59);
+                summary.GC_NC_60_79 = calculateGcNormCoverage(meanReadsPerWindow, readsByGc, 60, 79);
+                summary.GC_NC_80_100 = calculateGcNormCoverage(meanReadsPerWindow, readsByGc, 80, 100);
 
-                    calculateDropoutMetrics(metrics.DETAILS.getMetrics(), summary);
 
-                    metrics.SUMMARY = summary;
+                calculateDropoutMetrics(metrics.DETAILS.getMetrics(), summary);
 
-                    file.addMetric(metrics);
-                }
+                metrics.SUMMARY = summary;
+
+                file.addMetric(metrics);
             }
         }
     }
@@ -303,41 +344,6 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
         summary.AT_DROPOUT = atDropout;
         summary.GC_DROPOUT = gcDropout;
     }
-
-    /////////////////////////////////////////////////////////////////////////////
-    //Keeps track of each level of GcCalculation
-    /////////////////////////////////////////////////////////////////////////////
-    class GcObject {
-        int totalClusters = 0;
-        long totalAlignedReads = 0;
-        int[] readsByGc = new int[BINS];
-        long[] basesByGc = new long[BINS];
-        long[] errorsByGc = new long[BINS];
-        String group = null;
-    }
-
-    /////////////////////////////////////////////////////////////////////////////
-    //Adds each read to the appropriate gcObj which is determined in acceptRecord above
-    //Also calculates values for calculating GC Bias at each level
-    /////////////////////////////////////////////////////////////////////////////
-     private void addRead(final GcObject gcObj, final SAMRecord rec, final String group, final byte[] gc, final byte[] refBases) {
-        if (!rec.getReadPairedFlag() || rec.getFirstOfPairFlag()) ++gcObj.totalClusters;
-        final int pos = rec.getReadNegativeStrandFlag() ? rec.getAlignmentEnd() - scanWindowSize : rec.getAlignmentStart();
-        ++gcObj.totalAlignedReads;
-        if (pos > 0) {
-            final int windowGc = gc[pos];
-            if (windowGc >= 0) {
-                ++gcObj.readsByGc[windowGc];
-                gcObj.basesByGc[windowGc] += rec.getReadLength();
-                gcObj.errorsByGc[windowGc] +=
-                        SequenceUtil.countMismatches(rec, refBases, bisulfite) +
-                                SequenceUtil.countInsertedBases(rec) + SequenceUtil.countDeletedBases(rec);
-            }
-        }
-        if (gcObj.group == null) {
-            gcObj.group = group;
-        }
-    }
 }
 
 /////////////////////////////////////////////////////////////////////////////
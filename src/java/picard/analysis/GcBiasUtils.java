@@ -95,16 +95,24 @@ public class GcBiasUtils {
     // Calculate all the GC values for all windows
     /////////////////////////////////////////////////////////////////////////////
     public static byte [] calculateAllGcs(final byte[] refBases, final int lastWindowStart, final int windowSize) {
+        return calculateGcs(refBases, 0, refBases.length + 1, lastWindowStart, windowSize);
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    // Calculate the GC values of the windows starting from start (inclusive) to
+    // end (exclusive), as calculateAllGcs would, but indexed from start
+    /////////////////////////////////////////////////////////////////////////////
+    public static byte [] calculateGcs(final byte[] refBases, final int start, final int end, final int lastWindowStart,
+                                       final int windowSize) {
 
         final CalculateGcState state = new GcBiasUtils().new CalculateGcState();
 
-        final int refLength = refBases.length;
-        final byte[] gc = new byte[refLength + 1];
+        final byte[] gc = new byte[end - start];
 
-        for (int i = 1; i < lastWindowStart; ++i) {
+        for (int i = Math.max(1, start); i < Math.min(end, lastWindowStart); ++i) {
             final int windowEnd = i + windowSize;
             final int windowGc = calculateGc(refBases, i, windowEnd, state);
-            gc[i] = (byte) windowGc;
+            gc[i - start] = (byte) windowGc;
         }
 
         return gc;
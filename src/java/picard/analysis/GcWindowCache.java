@@ -0,0 +1,236 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.StringUtil;
+import picard.PicardException;
+import picard.util.CacheFileUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent table of the GC content of every scanning window of a reference, so that GC bias metrics can be
+ * collected without scanning the reference. The table holds, for each contig, the array computed by
+ * GcBiasUtils.calculateAllGcs() (-1 marking the windows with too many no-calls), and the number of windows at each GC.
+ *
+ * The table lives in a sidecar file named after the reference and the window size, and is keyed by a digest of the
+ * MD5s of the sequence dictionary if it has them for every contig, otherwise of the path, length and modification time
+ * of the reference file. A missing or stale file is rewritten the first time it is needed. The per-contig arrays are memory-mapped,
+ * so opening the table costs next to nothing however large the reference is.
+ *
+ * The file holds a header (magic, version, window size, MD5), the per-contig arrays back to back, an index (the number of
+ * windows at each GC, then the name, offset and length of each contig's array) and finally the offset of the index.
+ */
+public class GcWindowCache {
+    private static final int MAGIC = 0x50474357; // "PGCW"
+    private static final int VERSION = 1;
+    private static final int MD5_LENGTH = 16;
+    private static final int BINS = 101;
+
+    private static final Log log = Log.getInstance(GcWindowCache.class);
+
+    private final int[] windowsByGc;
+    private final Map<String, ByteBuffer> gcByContig = new HashMap<String, ByteBuffer>();
+
+    /**
+     * Opens the GC window cache of the reference for the given window size, writing it first if it is missing or stale.
+     *
+     * @param cacheDirectory where to keep the cache, or null to keep it next to the reference.
+     */
+    public static GcWindowCache open(final File reference, final int windowSize, final File cacheDirectory) {
+        IOUtil.assertFileIsReadable(reference);
+        final File cacheFile = getCacheFile(reference, windowSize, cacheDirectory);
+        final byte[] md5 = calculateReferenceMd5(reference);
+        if (!isUpToDate(cacheFile, windowSize, md5)) {
+            log.info("Writing GC window cache " + cacheFile + " for window size " + windowSize + ".");
+            write(reference, windowSize, md5, cacheFile);
+        }
+        return new GcWindowCache(cacheFile);
+    }
+
+    /** The file holding the GC window cache of the reference for the given window size. */
+    public static File getCacheFile(final File reference, final int windowSize, final File cacheDirectory) {
+        final File directory = cacheDirectory != null ? cacheDirectory : reference.getAbsoluteFile().getParentFile();
+        return new File(directory, reference.getName() + ".gc" + windowSize + ".cache");
+    }
+
+    private GcWindowCache(final File cacheFile) {
+        try (final RandomAccessFile file = new RandomAccessFile(cacheFile, "r")) {
+            file.seek(file.length() - 8);
+            final long indexOffset = file.readLong();
+            final byte[] indexBytes = new byte[(int) (file.length() - 8 - indexOffset)];
+            file.seek(indexOffset);
+            file.readFully(indexBytes);
+
+            final DataInputStream index = new DataInputStream(new ByteArrayInputStream(indexBytes));
+            windowsByGc = new int[BINS];
+            for (int i = 0; i < BINS; ++i) {
+                windowsByGc[i] = index.readInt();
+            }
+            final int contigs = index.readInt();
+            final FileChannel channel = file.getChannel();
+            for (int i = 0; i < contigs; ++i) {
+                final String name = index.readUTF();
+                final long offset = index.readLong();
+                final int length = index.readInt();
+                gcByContig.put(name, channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+            }
+        } catch (final IOException e) {
+            throw new PicardException("Error reading GC window cache " + cacheFile, e);
+        }
+    }
+
+    /** The number of windows of the reference at each GC, from 0 to 100. */
+    public int[] getWindowsByGc() {
+        return windowsByGc;
+    }
+
+    /**
+     * The GC of the window starting at each position of the contig, indexed by 1-based position like the array
+     * returned by GcBiasUtils.calculateAllGcs().
+     */
+    public ByteBuffer getGc(final String contig) {
+        final ByteBuffer gc = gcByContig.get(contig);
+        if (gc == null) {
+            throw new PicardException("The GC window cache has no contig " + contig + ".");
+        }
+        return gc.duplicate();
+    }
+
+    /** Whether the cache file exists and was written for this window size and reference. */
+    private static boolean isUpToDate(final File cacheFile, final int windowSize, final byte[] md5) {
+        if (!cacheFile.exists()) return false;
+        try (final DataInputStream in = new DataInputStream(new FileInputStream(cacheFile))) {
+            final byte[] cachedMd5 = new byte[MD5_LENGTH];
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != windowSize) return false;
+            in.readFully(cachedMd5);
+            return Arrays.equals(cachedMd5, md5);
+        } catch (final IOException e) {
+            log.warn("Could not read GC window cache " + cacheFile + ", rewriting it: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** Scans the reference and writes the cache. */
+    private static void write(final File reference, final int windowSize, final byte[] md5, final File cacheFile) {
+        final int[] windowsByGc = new int[BINS];
+        final List<String> names = new ArrayList<String>();
+        final List<Long> offsets = new ArrayList<Long>();
+        final List<Integer> lengths = new ArrayList<Integer>();
+
+        final ReferenceSequenceFile refFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(reference);
+        try {
+            CacheFileUtil.writeAtomically(cacheFile, out -> {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(windowSize);
+                out.write(md5);
+
+                long offset = out.size();
+                ReferenceSequence ref;
+                while ((ref = refFile.nextSequence()) != null) {
+                    final byte[] refBases = ref.getBases();
+                    StringUtil.toUpperCase(refBases);
+                    final int lastWindowStart = refBases.length - windowSize;
+                    final byte[] gc = GcBiasUtils.calculateAllGcs(refBases, lastWindowStart, windowSize);
+                    for (int i = 1; i < lastWindowStart; ++i) {
+                        if (gc[i] >= 0) ++windowsByGc[gc[i]];
+                    }
+                    out.write(gc);
+                    names.add(ref.getName());
+                    offsets.add(offset);
+                    lengths.add(gc.length);
+                    offset += gc.length;
+                }
+
+                for (final int windows : windowsByGc) {
+                    out.writeInt(windows);
+                }
+                out.writeInt(names.size());
+                for (int i = 0; i < names.size(); ++i) {
+                    out.writeUTF(names.get(i));
+                    out.writeLong(offsets.get(i));
+                    out.writeInt(lengths.get(i));
+                }
+                out.writeLong(offset);
+            });
+        } finally {
+            CloserUtil.close(refFile);
+        }
+    }
+
+    /**
+     * The MD5 that identifies the reference: a digest of the names, lengths and MD5s of the contigs if the sequence
+     * dictionary has an MD5 for every contig, otherwise a digest of the path, length and modification time of the
+     * reference file and of the names and lengths of its contigs.  The reference file itself is read only if its
+     * modification time is not available.
+     */
+    static byte[] calculateReferenceMd5(final File reference) {
+        final ReferenceSequenceFile refFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(reference);
+        final SAMSequenceDictionary dictionary = refFile.getSequenceDictionary();
+        CloserUtil.close(refFile);
+
+        final MessageDigest digest = CacheFileUtil.newMd5();
+        final boolean useMd5s = dictionary != null && !dictionary.isEmpty() && hasAllMd5s(dictionary);
+        if (!useMd5s && !CacheFileUtil.updateWithFileStamp(digest, reference)) {
+            return CacheFileUtil.calculateFileMd5(reference);
+        }
+        if (dictionary != null) {
+            for (final SAMSequenceRecord sequence : dictionary.getSequences()) {
+                digest.update(StringUtil.stringToBytes(sequence.getSequenceName() + "\t" + sequence.getSequenceLength() +
+                        (useMd5s ? "\t" + sequence.getMd5() : "") + "\n"));
+            }
+        }
+        return digest.digest();
+    }
+
+    private static boolean hasAllMd5s(final SAMSequenceDictionary dictionary) {
+        for (final SAMSequenceRecord sequence : dictionary.getSequences()) {
+            if (sequence.getMd5() == null) return false;
+        }
+        return true;
+    }
+}
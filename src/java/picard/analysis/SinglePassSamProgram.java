@@ -40,6 +40,7 @@ import picard.PicardException;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
+import picard.metrics.MultiLevelCollector;
 
 import java.io.File;
 import java.util.Arrays;
@@ -66,6 +67,15 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
     @Option(doc = "Stop after processing N reads, mainly for debugging.")
     public long STOP_AFTER = 0;
 
+    @Option(doc = "The number of threads to process the input with.  Only used by programs that can collect their " +
+            "metrics over regions of the input separately (CollectAlignmentSummaryMetrics, CollectInsertSizeMetrics " +
+            "and CollectGcBiasMetrics), and only if the input, and the reference if given, are indexed.  The output " +
+            "is the same whatever the number of threads.")
+    public int NUM_THREADS = 1;
+
+    /** The most bases of a contig processed as one region when NUM_THREADS is greater than one. */
+    int shardSize = SinglePassSamProgramShards.SHARD_SIZE;
+
     private static final Log log = Log.getInstance(SinglePassSamProgram.class);
 
     /**
@@ -74,7 +84,7 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
      */
     @Override
     protected final int doWork() {
-        makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, Arrays.asList(this));
+        makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, Arrays.asList(this), 0, NUM_THREADS);
         return 0;
     }
 
@@ -83,6 +93,35 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
                                 final boolean assumeSorted,
                                 final long stopAfter,
                                 final Collection<SinglePassSamProgram> programs) {
+        makeItSo(input, referenceSequence, assumeSorted, stopAfter, programs, 0);
+    }
+
+    /**
+     * As above, but if maxRecordsInPipeline is greater than zero, runs each program on its own thread while the
+     * calling thread reads the input, holding up to maxRecordsInPipeline records for the slowest program.  The
+     * results are the same either way.
+     */
+    public static void makeItSo(final File input,
+                                final File referenceSequence,
+                                final boolean assumeSorted,
+                                final long stopAfter,
+                                final Collection<SinglePassSamProgram> programs,
+                                final int maxRecordsInPipeline) {
+        makeItSo(input, referenceSequence, assumeSorted, stopAfter, programs, maxRecordsInPipeline, 1);
+    }
+
+    /**
+     * As above, but if numThreads is greater than one and there is a single program that supports it, processes
+     * regions of the input in parallel on numThreads threads and merges the results, which are the same either way.
+     * See makeShardCollector().
+     */
+    public static void makeItSo(final File input,
+                                final File referenceSequence,
+                                final boolean assumeSorted,
+                                final long stopAfter,
+                                final Collection<SinglePassSamProgram> programs,
+                                final int maxRecordsInPipeline,
+                                final int numThreads) {
 
         // Setup the standard inputs
         IOUtil.assertFileIsReadable(input);
@@ -123,32 +162,59 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
             anyUseNoRefReads = anyUseNoRefReads || program.usesNoRefReads();
         }
 
+        if (numThreads > 1) {
+            if (programs.size() != 1 || stopAfter > 0) {
+                log.warn("Only a single program processing the whole input can use more than one thread, running on one thread.");
+            } else {
+                final SinglePassSamProgram program = programs.iterator().next();
+                if (SinglePassSamProgramShards.run(input, referenceSequence, in, program, numThreads)) {
+                    CloserUtil.close(in);
+                    program.finish();
+                    return;
+                }
+            }
+        }
+
 
         final ProgressLogger progress = new ProgressLogger(log);
+        final SinglePassSamProgramPipeline pipeline =
+                maxRecordsInPipeline > 0 ? new SinglePassSamProgramPipeline(programs, maxRecordsInPipeline) : null;
+        boolean finished = false;
 
-        for (final SAMRecord rec : in) {
-            final ReferenceSequence ref;
-            if (walker == null || rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-                ref = null;
-            } else {
-                ref = walker.get(rec.getReferenceIndex());
-            }
+        try {
+            for (final SAMRecord rec : in) {
+                final ReferenceSequence ref;
+                if (walker == null || rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+                    ref = null;
+                } else {
+                    ref = walker.get(rec.getReferenceIndex());
+                }
 
-            for (final SinglePassSamProgram program : programs) {
-                program.acceptRead(rec, ref);
-            }
+                if (pipeline == null) {
+                    for (final SinglePassSamProgram program : programs) {
+                        program.acceptRead(rec, ref);
+                    }
+                } else {
+                    pipeline.add(rec, ref);
+                }
 
-            progress.record(rec);
+                progress.record(rec);
 
-            // See if we need to terminate early?
-            if (stopAfter > 0 && progress.getCount() >= stopAfter) {
-                break;
-            }
+                // See if we need to terminate early?
+                if (stopAfter > 0 && progress.getCount() >= stopAfter) {
+                    break;
+                }
 
-            // And see if we're into the unmapped reads at the end
-            if (!anyUseNoRefReads && rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-                break;
+                // And see if we're into the unmapped reads at the end
+                if (!anyUseNoRefReads && rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+                    break;
+                }
             }
+
+            if (pipeline != null) pipeline.finish();
+            finished = true;
+        } finally {
+            if (pipeline != null && !finished) pipeline.abort();
         }
 
         CloserUtil.close(in);
@@ -171,6 +237,21 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
      */
     protected abstract void acceptRead(final SAMRecord rec, final ReferenceSequence ref);
 
+    /**
+     * Can be overridden by subclasses whose results are gathered by a MultiLevelCollector, to allow regions of the
+     * input to be processed in parallel.  Called after setup(), possibly from several threads at once, to make a new
+     * collector, set up like the program's own, for one region of the input.  Returns null if not supported.
+     */
+    protected MultiLevelCollector<?, ?, ?> makeShardCollector() { return null; }
+
+    /**
+     * Merges the results of a collector made by makeShardCollector(), once it has accepted every record of its region,
+     * into the program's results.  Called in the order of the regions in the input, from the thread that called setup().
+     */
+    protected void mergeShardCollector(final MultiLevelCollector<?, ?, ?> shardCollector) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not process regions separately.");
+    }
+
     /** Should be implemented by subclasses to do one-time finalization work. */
     protected abstract void finish();
 
@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.analysis;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTag;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.util.Log;
+import picard.PicardException;
+import picard.util.OrderedParallelExecutor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Runs each of a set of SinglePassSamProgram on its own thread, feeding them the records read by the calling thread.
+ * <p/>
+ * The calling thread fully decodes each record, so that the records can then be read safely by every program at once,
+ * and publishes them in batches to a ring buffer that all the programs read from in order.  A slot of the ring is only
+ * reused once every program is done with it, so at most maxRecordsInRam records, plus one batch per program and the
+ * batch being filled, are held at any time.  Each program sees exactly the same records in the same order as when
+ * they are all run on the calling thread, so the results are identical.
+ */
+class SinglePassSamProgramPipeline {
+    /** The number of records published to the programs at a time. */
+    static final int RECORDS_PER_BATCH = 1000;
+
+    private static final Log log = Log.getInstance(SinglePassSamProgramPipeline.class);
+
+    /** A batch of records and the reference sequence for each, which may be null. */
+    private static class Batch {
+        final SAMRecord[] records;
+        final ReferenceSequence[] refs;
+        int size = 0;
+
+        Batch(final int capacity) {
+            this.records = new SAMRecord[capacity];
+            this.refs = new ReferenceSequence[capacity];
+        }
+    }
+
+    private final int recordsPerBatch;
+    private final Batch[] ring;
+    private final List<Thread> workers = new ArrayList<>();
+
+    // Guarded by this: the number of batches published, the number taken by each program, and how the run ended
+    private long published = 0;
+    private final long[] taken;
+    private boolean done = false;
+    private Throwable failure = null;
+
+    private Batch batch;
+
+    /**
+     * Starts one thread per program.  Programs must already have been set up.
+     *
+     * @param maxRecordsInRam the maximum number of records in the ring buffer, waiting for the slowest program
+     */
+    SinglePassSamProgramPipeline(final Collection<SinglePassSamProgram> programs, final int maxRecordsInRam) {
+        this.recordsPerBatch = Math.max(1, Math.min(RECORDS_PER_BATCH, maxRecordsInRam));
+        this.ring = new Batch[Math.max(1, maxRecordsInRam / recordsPerBatch)];
+        this.taken = new long[programs.size()];
+        this.batch = new Batch(recordsPerBatch);
+
+        int index = 0;
+        for (final SinglePassSamProgram program : programs) {
+            final int programIndex = index++;
+            workers.add(OrderedParallelExecutor.daemonThreadFactory("SinglePassSamProgram " + program.getClass().getSimpleName())
+                    .newThread(() -> run(program, programIndex)));
+        }
+        log.info("Running " + workers.size() + " programs on their own threads, with up to " +
+                ring.length * recordsPerBatch + " records buffered.");
+        for (final Thread worker : workers) worker.start();
+    }
+
+    /** Decodes a record and queues it for every program, waiting if the slowest program is too far behind. */
+    void add(final SAMRecord rec, final ReferenceSequence ref) {
+        decode(rec);
+        batch.records[batch.size] = rec;
+        batch.refs[batch.size] = ref;
+        if (++batch.size == recordsPerBatch) {
+            publish(batch);
+            batch = new Batch(recordsPerBatch);
+        }
+    }
+
+    /** Queues the remaining records, waits for every program to process them and rethrows any failure. */
+    void finish() {
+        if (batch.size > 0) publish(batch);
+        batch = null;
+        synchronized (this) {
+            done = true;
+            notifyAll();
+        }
+        joinWorkers();
+        synchronized (this) {
+            if (failure != null) throw new PicardException("Error while running programs.", failure);
+        }
+    }
+
+    /** Stops the programs without waiting for them to process the queued records, e.g. when reading fails. */
+    void abort() {
+        synchronized (this) {
+            if (failure == null) failure = new PicardException("Reading was aborted.");
+            notifyAll();
+        }
+        joinWorkers();
+    }
+
+    /**
+     * Forces the decoding of every lazily computed field that the programs may use, so that they never write to the
+     * shared records.
+     */
+    private static void decode(final SAMRecord rec) {
+        rec.getReadName();
+        rec.getReadLength();
+        rec.getCigar();
+        rec.getCigarString();
+        rec.getReadBases();
+        rec.getBaseQualities();
+        rec.getAttribute(SAMTag.RG.name()); // decodes all of the attributes
+        rec.getReferenceIndex();
+        rec.getMateReferenceIndex();
+        rec.getAlignmentEnd();
+        rec.getAlignmentBlocks();
+    }
+
+    private synchronized void publish(final Batch batch) {
+        try {
+            while (failure == null && published - slowest() >= ring.length) wait();
+        } catch (final InterruptedException ie) {
+            failure = ie;
+            notifyAll();
+        }
+        if (failure != null) throw new PicardException("Error while running programs.", failure);
+
+        ring[(int) (published % ring.length)] = batch;
+        ++published;
+        notifyAll();
+    }
+
+    /** Returns the next batch for a program, or null once every record has been published or the run has failed. */
+    private synchronized Batch take(final int programIndex) throws InterruptedException {
+        while (failure == null && !done && taken[programIndex] == published) wait();
+        if (failure != null || taken[programIndex] == published) return null;
+
+        final Batch next = ring[(int) (taken[programIndex] % ring.length)];
+        ++taken[programIndex];
+        notifyAll();
+        return next;
+    }
+
+    private long slowest() {
+        long slowest = Long.MAX_VALUE;
+        for (final long t : taken) slowest = Math.min(slowest, t);
+        return slowest;
+    }
+
+    private void run(final SinglePassSamProgram program, final int programIndex) {
+        try {
+            for (Batch next = take(programIndex); next != null; next = take(programIndex)) {
+                for (int i = 0; i < next.size; ++i) {
+                    program.acceptRead(next.records[i], next.refs[i]);
+                }
+            }
+        } catch (final Throwable t) {
+            synchronized (this) {
+                if (failure == null) failure = t;
+                notifyAll();
+            }
+        }
+    }
+
+    private void joinWorkers() {
+        for (final Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted while waiting for programs to finish.", ie);
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.analysis;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Log;
+import picard.metrics.MultiLevelCollector;
+import picard.util.OrderedParallelExecutor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a SinglePassSamProgram that supports it over shards of an indexed input in parallel.
+ * <p/>
+ * The input is split into regions of at most shardSize bases of each contig, plus one shard for the unplaced
+ * unmapped reads.  Each record belongs to the shard in which it starts, so every record is seen exactly once.  Each
+ * shard is fed to its own collector, made by the program's makeShardCollector, on a pool of threads, and the
+ * collectors are then merged into the program's results in shard order with mergeShardCollector.  As the per-unit
+ * collectors of such programs only accumulate, the results are the same as reading the input in order.
+ */
+class SinglePassSamProgramShards {
+    /** The default for the most bases of a contig in one shard. */
+    static final int SHARD_SIZE = 10000000;
+
+    private static final Log log = Log.getInstance(SinglePassSamProgramShards.class);
+
+    /** A region of a contig, or the unplaced unmapped reads if contig is null. */
+    private static class Shard {
+        final String contig;
+        final int contigIndex;
+        final int start;
+        final int end;
+
+        Shard(final String contig, final int contigIndex, final int start, final int end) {
+            this.contig = contig;
+            this.contigIndex = contigIndex;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String toString() {
+            return contig == null ? "unmapped reads" : contig + ":" + start + "-" + end;
+        }
+    }
+
+    private final File input;
+    private final File referenceSequence;
+    private final SinglePassSamProgram program;
+    private final int numThreads;
+
+    // Guarded by this: the reference sequences in use with the number of shards that still need each one
+    private final ReferenceSequenceFile referenceFile;
+    private final Map<Integer, ReferenceSequence> references = new HashMap<>();
+    private final Map<Integer, Integer> shardsPerReference = new HashMap<>();
+
+    private SinglePassSamProgramShards(final File input, final File referenceSequence, final SinglePassSamProgram program,
+                                       final int numThreads) {
+        this.input = input;
+        this.referenceSequence = referenceSequence;
+        this.program = program;
+        this.numThreads = numThreads;
+        this.referenceFile = referenceSequence == null ? null :
+                ReferenceSequenceFileFactory.getReferenceSequenceFile(referenceSequence, true);
+    }
+
+    /**
+     * Runs the program over shards of the input if it supports it and the input is indexed, as is the reference if
+     * any.  The program must already have been set up, and is not finished.
+     *
+     * @return false if nothing was done because the input cannot be sharded
+     */
+    static boolean run(final File input, final File referenceSequence, final SamReader in, final SinglePassSamProgram program,
+                       final int numThreads) {
+        if (program.makeShardCollector() == null) {
+            log.warn(program.getClass().getSimpleName() + " cannot process shards in parallel, running on one thread.");
+            return false;
+        }
+        if (!OrderedParallelExecutor.canQueryInParallel(in, referenceSequence)) return false;
+        final SinglePassSamProgramShards shards = new SinglePassSamProgramShards(input, referenceSequence, program, numThreads);
+        try {
+            shards.run(in.getFileHeader());
+            return true;
+        } finally {
+            shards.close();
+        }
+    }
+
+    private void run(final SAMFileHeader header) {
+        final List<Shard> shards = new ArrayList<>();
+        for (final SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+            for (int start = 1; start <= sequence.getSequenceLength(); start += program.shardSize) {
+                // The last shard of a contig is open ended, in case of records past the end of the contig
+                final int end = start + program.shardSize > sequence.getSequenceLength() ? 0 : start + program.shardSize - 1;
+                shards.add(new Shard(sequence.getSequenceName(), sequence.getSequenceIndex(), start, end));
+                final Integer count = shardsPerReference.get(sequence.getSequenceIndex());
+                shardsPerReference.put(sequence.getSequenceIndex(), count == null ? 1 : count + 1);
+            }
+        }
+        if (program.usesNoRefReads()) shards.add(new Shard(null, SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX, 0, 0));
+        log.info("Processing " + shards.size() + " shards of the input using " + numThreads + " threads.");
+
+        try (final OrderedParallelExecutor<MultiLevelCollector<?, ?, ?>> executor =
+                     new OrderedParallelExecutor<>(numThreads, "SinglePassSamProgram shard", program::mergeShardCollector)) {
+            final ThreadLocal<SamReader> readers =
+                    executor.perThread(() -> SamReaderFactory.makeDefault().referenceSequence(referenceSequence).open(input));
+            for (final Shard shard : shards) executor.submit(() -> collect(shard, readers.get()));
+            executor.finish();
+        }
+    }
+
+    private MultiLevelCollector<?, ?, ?> collect(final Shard shard, final SamReader reader) {
+        final MultiLevelCollector<?, ?, ?> collector = program.makeShardCollector();
+        final ReferenceSequence ref = shard.contig == null || referenceFile == null ? null : acquireReference(shard);
+
+        final SAMRecordIterator iterator = shard.contig == null ?
+                reader.queryUnmapped() : reader.query(shard.contig, shard.start, shard.end, false);
+        try {
+            while (iterator.hasNext()) {
+                final SAMRecord rec = iterator.next();
+                // Records starting before the shard belong to the previous shard
+                if (shard.contig != null && rec.getAlignmentStart() < shard.start) continue;
+                collector.acceptRecord(rec, ref);
+            }
+        } finally {
+            iterator.close();
+            if (ref != null) releaseReference(shard);
+        }
+        collector.finishShard();
+        log.debug("Processed " + shard);
+        return collector;
+    }
+
+    private synchronized ReferenceSequence acquireReference(final Shard shard) {
+        ReferenceSequence ref = references.get(shard.contigIndex);
+        if (ref == null) {
+            ref = referenceFile.getSequence(shard.contig);
+            references.put(shard.contigIndex, ref);
+        }
+        return ref;
+    }
+
+    /** Drops a reference sequence once every shard of its contig is done with it. */
+    private synchronized void releaseReference(final Shard shard) {
+        final int remaining = shardsPerReference.get(shard.contigIndex) - 1;
+        shardsPerReference.put(shard.contigIndex, remaining);
+        if (remaining == 0) references.remove(shard.contigIndex);
+    }
+
+    private void close() {
+        CloserUtil.close(referenceFile);
+    }
+}
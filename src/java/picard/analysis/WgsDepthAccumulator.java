@@ -0,0 +1,300 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.analysis;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.PeekableIterator;
+import htsjdk.samtools.util.ProgressLogger;
+import htsjdk.samtools.util.ReferenceSequenceMask;
+import htsjdk.samtools.util.WholeGenomeReferenceSequenceMask;
+import picard.PicardException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.IntFunction;
+
+/**
+ * Computes the same coverage as CollectWgsMetrics does with a SamLocusIterator, but one read at a time rather than
+ * one locus at a time, without making objects for each base.
+ * <p/>
+ * The number of bases and the coverage at each locus that reads may still reach are kept in circular arrays that
+ * move along with the alignment starts of the reads.  Each base of a read is given to the WgsMetricsCollector as
+ * soon as the read is seen, in the order in which SamLocusIterator would have listed it at its locus, and each locus
+ * is given to the collector once no more reads can reach it.  Rather than looking for repeated read names at each
+ * locus, each read is looked up once by name among the reads that are still in reach, and only the reads that share
+ * a name with one of them (usually overlapping mates) have their overlapping bases worked out.
+ */
+class WgsDepthAccumulator {
+    private static final Log log = Log.getInstance(WgsDepthAccumulator.class);
+
+    private final CollectWgsMetrics.WgsMetricsCollector collector;
+    private final IntFunction<ReferenceSequence> references;
+    private final SAMFileHeader header;
+    private final ReferenceSequenceMask mask;
+    private final boolean wholeGenome;
+    private final int locusAccumulationCap;
+    private final int minimumBaseQuality;
+    private final ProgressLogger progress;
+    private boolean enforcedAccumulationLimit = false;
+
+    // The contig being processed, and its bases if any of its loci are to be counted
+    private int contig = -1;
+    private String contigName;
+    private int contigLength;
+    private byte[] bases;
+
+    // The number of bases, and the number of bases that count towards coverage, at the loci from windowStart to
+    // windowEnd, in circular arrays whose length is a power of two
+    private int[] pileupSizes = new int[1024];
+    private int[] depths = new int[1024];
+    private int windowStart = 1;
+    private int windowEnd = 0;
+
+    // The reads that end at or after the start of the latest read, by name and by alignment end
+    private final Map<String, List<SAMRecord>> readsInReach = new HashMap<>();
+    private final PriorityQueue<SAMRecord> readsInReachByEnd =
+            new PriorityQueue<>((lhs, rhs) -> Integer.compare(lhs.getAlignmentEnd(), rhs.getAlignmentEnd()));
+
+    // For the read being processed, the loci (marked with the read's number) at which a read of the same name has a
+    // base that passes the base quality filter
+    private int[] overlappedLoci = new int[1024];
+    private int readNumber = 0;
+
+    WgsDepthAccumulator(final CollectWgsMetrics.WgsMetricsCollector collector, final IntFunction<ReferenceSequence> references,
+                        final SAMFileHeader header, final ReferenceSequenceMask mask, final int minimumBaseQuality,
+                        final int locusAccumulationCap, final ProgressLogger progress) {
+        this.collector = collector;
+        this.references = references;
+        this.header = header;
+        this.mask = mask;
+        this.wholeGenome = mask instanceof WholeGenomeReferenceSequenceMask;
+        this.minimumBaseQuality = minimumBaseQuality;
+        this.locusAccumulationCap = locusAccumulationCap;
+        this.progress = progress;
+    }
+
+    /**
+     * Gives the collector every locus in the mask, with the coverage of the given reads, which must already have been
+     * filtered and be coordinate sorted.  Like SamLocusIterator, stops at the first read without a reference, and
+     * skips unmapped and non-PF reads.
+     */
+    public void addReads(final PeekableIterator<SAMRecord> records) {
+        while (records.hasNext()) {
+            final SAMRecord rec = records.peek();
+            if (rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) break;
+            if (rec.getReadUnmappedFlag() || rec.getReadFailsVendorQualityCheckFlag()) {
+                records.next();
+                continue;
+            }
+
+            if (rec.getReferenceIndex() != contig) {
+                if (rec.getReferenceIndex() < contig) {
+                    throw new PicardException("Input is not coordinate sorted at read " + rec.getSAMString());
+                }
+                finishContigsBefore(rec.getReferenceIndex());
+                startContig(rec.getReferenceIndex());
+            }
+            if (rec.getAlignmentStart() < windowStart) {
+                throw new PicardException("Input is not coordinate sorted at read " + rec.getSAMString());
+            }
+            addLociBefore(rec.getAlignmentStart());
+
+            if (pileupSizes[rec.getAlignmentStart() & (pileupSizes.length - 1)] >= locusAccumulationCap) {
+                if (!enforcedAccumulationLimit) {
+                    log.warn("We have encountered greater than " + locusAccumulationCap + " reads at position " +
+                            contigName + ":" + rec.getAlignmentStart() + " and will ignore the remaining reads at this position.  " +
+                            "Note that further warnings will be suppressed.");
+                    enforcedAccumulationLimit = true;
+                }
+            } else {
+                addRead(rec);
+            }
+            records.next();
+        }
+        finishContigsBefore(mask.getMaxSequenceIndex() + 1);
+    }
+
+    private void addRead(final SAMRecord rec) {
+        final int start = rec.getAlignmentStart();
+        final int end = rec.getAlignmentEnd();
+        ensureCapacity(end - windowStart + 1);
+        windowEnd = Math.max(windowEnd, end);
+        final int windowMask = pileupSizes.length - 1;
+
+        // Forget the reads that can no longer overlap anything
+        while (!readsInReachByEnd.isEmpty() && readsInReachByEnd.peek().getAlignmentEnd() < start) {
+            forgetRead(readsInReachByEnd.poll());
+        }
+
+        final boolean overlaps = markOverlappedLoci(rec, start, end);
+
+        final byte[] qualities = rec.getBaseQualities();
+        for (final AlignmentBlock block : rec.getAlignmentBlocks()) {
+            final int readStart = block.getReadStart() - 1;
+            final int refStart = block.getReferenceStart();
+            for (int i = 0; i < block.getLength(); ++i) {
+                final int locus = refStart + i;
+                final int index = locus & windowMask;
+                final int pileupSize = ++pileupSizes[index];
+                if (!isCounted(locus)) continue;
+
+                final boolean overlapsMate = overlaps && overlappedLoci[locus - start] == readNumber;
+                if (collector.addBase(qualities[readStart + i], pileupSize, depths[index], overlapsMate)) {
+                    ++depths[index];
+                }
+            }
+        }
+
+        List<SAMRecord> reads = readsInReach.get(rec.getReadName());
+        if (reads == null) {
+            reads = new ArrayList<>(1);
+            readsInReach.put(rec.getReadName(), reads);
+        }
+        reads.add(rec);
+        readsInReachByEnd.add(rec);
+    }
+
+    /**
+     * Marks the loci from start to end at which a previous read of the same name has a base that passes the base
+     * quality filter.  Returns false if there are no previous reads of the same name.
+     */
+    private boolean markOverlappedLoci(final SAMRecord rec, final int start, final int end) {
+        final List<SAMRecord> reads = readsInReach.get(rec.getReadName());
+        if (reads == null) return false;
+
+        if (overlappedLoci.length < end - start + 1) {
+            overlappedLoci = new int[Math.max(end - start + 1, 2 * overlappedLoci.length)];
+            readNumber = 0;
+        }
+        if (++readNumber == Integer.MAX_VALUE) {
+            Arrays.fill(overlappedLoci, 0);
+            readNumber = 1;
+        }
+        for (final SAMRecord read : reads) {
+            final byte[] qualities = read.getBaseQualities();
+            for (final AlignmentBlock block : read.getAlignmentBlocks()) {
+                final int readStart = block.getReadStart() - 1;
+                final int refStart = block.getReferenceStart();
+                for (int i = Math.max(0, start - refStart); i < block.getLength() && refStart + i <= end; ++i) {
+                    if (qualities[readStart + i] >= minimumBaseQuality) {
+                        overlappedLoci[refStart + i - start] = readNumber;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private void forgetRead(final SAMRecord rec) {
+        final List<SAMRecord> reads = readsInReach.get(rec.getReadName());
+        for (int i = 0; i < reads.size(); ++i) {
+            if (reads.get(i) == rec) {
+                reads.remove(i);
+                break;
+            }
+        }
+        if (reads.isEmpty()) readsInReach.remove(rec.getReadName());
+    }
+
+    /** Whether the collector is given the given locus of the current contig. */
+    private boolean isCounted(final int locus) {
+        return bases != null && locus <= contigLength && (wholeGenome || mask.get(contig, locus)) && bases[locus - 1] != 'N';
+    }
+
+    /** Gives the collector the loci of the current contig before the given one, which no more reads can reach. */
+    private void addLociBefore(final int locus) {
+        final int windowMask = pileupSizes.length - 1;
+        while (windowStart < locus && windowStart <= windowEnd) {
+            final int index = windowStart & windowMask;
+            if (isCounted(windowStart)) addLocus(windowStart, depths[index]);
+            pileupSizes[index] = 0;
+            depths[index] = 0;
+            ++windowStart;
+        }
+        if (windowStart < locus) {
+            // Nothing reaches the remaining loci
+            if (bases != null) {
+                final int last = Math.min(locus - 1, contigLength);
+                for (int i = wholeGenome ? windowStart : mask.nextPosition(contig, windowStart - 1);
+                     i != -1 && i <= last;
+                     i = wholeGenome ? i + 1 : mask.nextPosition(contig, i)) {
+                    if (bases[i - 1] != 'N') addLocus(i, 0);
+                }
+            }
+            windowStart = locus;
+        }
+    }
+
+    private void addLocus(final int locus, final int depth) {
+        collector.addLocus(depth);
+        progress.record(contigName, locus);
+    }
+
+    /** Gives the collector the remaining loci of the current contig, and all the loci of the contigs after it and before the given one. */
+    private void finishContigsBefore(final int nextContig) {
+        if (contig >= 0) {
+            addLociBefore(Math.max(contigLength, windowEnd) + 1);
+        }
+        for (int i = contig + 1; i < nextContig; ++i) {
+            startContig(i);
+            addLociBefore(contigLength + 1);
+        }
+    }
+
+    private void startContig(final int contigIndex) {
+        contig = contigIndex;
+        contigName = header.getSequence(contigIndex).getSequenceName();
+        contigLength = header.getSequence(contigIndex).getSequenceLength();
+        bases = wholeGenome || mask.nextPosition(contigIndex, 0) != -1 ? references.apply(contigIndex).getBases() : null;
+        windowStart = 1;
+        windowEnd = 0;
+        readsInReach.clear();
+        readsInReachByEnd.clear();
+    }
+
+    /** Grows the circular arrays, if needed, to hold the given number of loci from windowStart. */
+    private void ensureCapacity(final int numLoci) {
+        if (numLoci <= pileupSizes.length) return;
+        int capacity = pileupSizes.length;
+        while (capacity < numLoci) capacity *= 2;
+        final int[] newPileupSizes = new int[capacity];
+        final int[] newDepths = new int[capacity];
+        for (int locus = windowStart; locus <= windowEnd; ++locus) {
+            newPileupSizes[locus & (capacity - 1)] = pileupSizes[locus & (pileupSizes.length - 1)];
+            newDepths[locus & (capacity - 1)] = depths[locus & (depths.length - 1)];
+        }
+        pileupSizes = newPileupSizes;
+        depths = newDepths;
+    }
+}
@@ -1,6 +1,5 @@
 package picard.analysis.artifacts;
 
-import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.util.ListMap;
 import htsjdk.samtools.util.SequenceUtil;
 import htsjdk.samtools.util.StringUtil;
@@ -8,6 +7,7 @@ import picard.PicardException;
 import picard.analysis.artifacts.SequencingArtifactMetrics.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -21,7 +21,37 @@ class ArtifactCounter {
     private final String sampleAlias;
     private final String library;
 
-    private final Map<String, RefContext> contextMap = new HashMap<>();
+    /**
+     * The largest context size whose full contexts get dense arrays of counts and sub-contexts. Their number grows
+     * 16-fold with each step: at 4 that is 4^9 contexts and 32MB of counts per library, at 5 already 512MB. Larger
+     * context sizes keep counts only for the contexts that are seen.
+     */
+    public static final int MAX_DENSE_CONTEXT_SIZE = 4;
+
+    /** The largest supported context size, at which a packed context of 2 * contextSize + 1 bases still fits in an int. */
+    public static final int MAX_CONTEXT_SIZE = 7;
+
+    // 2-bit codes of the bases, upper or lower case. Anything other than ACGT is -1.
+    private static final int[] BASE_CODES = new int[256];
+    static {
+        Arrays.fill(BASE_CODES, -1);
+        for (final Transition.Base base : Transition.Base.values()) {
+            BASE_CODES[base.base] = BASE_CODES[StringUtil.toLowerCase(base.base)] = Transition.baseIndexMap[base.base];
+        }
+    }
+
+    private final int contextSize;
+
+    // the sub-contexts of each full reference context, indexed by the packed code of the full context.
+    // Null if the context size is larger than MAX_DENSE_CONTEXT_SIZE, in which case they are made when finishing.
+    private final RefContext[] refContexts;
+
+    // counts for each full context, laid out like those of a ContextAccumulator but indexed by the packed context code.
+    // The half and zero context accumulators are filled from these when counting is finished.
+    private final long[] fullContextCounts;
+
+    // if the context size is larger than MAX_DENSE_CONTEXT_SIZE, the counts of each context seen instead, by packed code
+    private final Map<Integer, long[]> sparseContextCounts;
 
     private final ContextAccumulator fullContextAccumulator;
     private final ContextAccumulator halfContextAccumulator;
@@ -48,8 +78,27 @@ class ArtifactCounter {
     }
 
     public ArtifactCounter(final String sampleAlias, final String library, final int contextSize, final boolean expectedTandemReads) {
+        this(sampleAlias, library, contextSize, expectedTandemReads, MAX_DENSE_CONTEXT_SIZE);
+    }
+
+    ArtifactCounter(final String sampleAlias, final String library, final int contextSize, final boolean expectedTandemReads,
+                    final int maxDenseContextSize) {
         this.sampleAlias = sampleAlias;
         this.library = library;
+        if (contextSize < 0 || contextSize > MAX_CONTEXT_SIZE) {
+            throw new PicardException("Context size must be between 0 and " + MAX_CONTEXT_SIZE + ": " + contextSize);
+        }
+        this.contextSize = contextSize;
+        if (contextSize <= maxDenseContextSize) {
+            final int numContexts = contextMask(contextSize) + 1;
+            this.refContexts = new RefContext[numContexts];
+            this.fullContextCounts = new long[numContexts * ContextAccumulator.COUNTS_PER_CONTEXT];
+            this.sparseContextCounts = null;
+        } else {
+            this.refContexts = null;
+            this.fullContextCounts = null;
+            this.sparseContextCounts = new HashMap<>();
+        }
 
         // define the contexts
         final HashSet<String> fullContexts = new HashSet<>();
@@ -62,17 +111,13 @@ class ArtifactCounter {
         // the half contexts specify either leading or trailing bases. the zero context is just the center.
         // NB: we use N to represent a wildcard base, rather than an ambiguous base. It's assumed that all of the input
         // contexts are unambiguous, and that any actual N's in the data have been dealt with elsewhere.
-        final String padding = StringUtil.repeatCharNTimes('N', contextSize);
         for (final String context : fullContexts) {
-            final char centralBase = context.charAt(contextSize);
-            final String leading = context.substring(0, contextSize) + centralBase + padding;
-            final String trailing = padding + centralBase + context.substring(contextSize + 1, context.length());
-            final String zero = padding + centralBase + padding;
-            contextMap.put(context, new RefContext(context, leading, trailing, zero));
-
-            leadingContexts.add(leading);
-            trailingContexts.add(trailing);
-            zeroContexts.add(zero);
+            final RefContext refContext = makeRefContext(context);
+            if (refContexts != null) refContexts[encodeContext(context)] = refContext;
+
+            leadingContexts.add(refContext.leading);
+            trailingContexts.add(refContext.trailing);
+            zeroContexts.add(refContext.zero);
         }
 
         final Set<String> halfContexts = new HashSet<>(leadingContexts);
@@ -89,16 +134,69 @@ class ArtifactCounter {
         baitBiasDetailMetricsList = new ArrayList<BaitBiasDetailMetrics>();
     }
 
+    private RefContext makeRefContext(final String context) {
+        final String padding = StringUtil.repeatCharNTimes('N', contextSize);
+        final char centralBase = context.charAt(contextSize);
+        final String leading = context.substring(0, contextSize) + centralBase + padding;
+        final String trailing = padding + centralBase + context.substring(contextSize + 1, context.length());
+        final String zero = padding + centralBase + padding;
+        return new RefContext(context, leading, trailing, zero);
+    }
+
+    /**
+     * Returns the 2-bit code of a reference or read base (A=0, C=1, G=2, T=3, in either case), or -1 for any other base.
+     */
+    public static int baseCode(final byte base) {
+        return BASE_CODES[base & 0xFF];
+    }
+
+    /**
+     * Packs a context 2 bits per base, first base in the most significant bits, or returns -1 if it contains a base
+     * other than ACGT. A context can be rolled forward one base with ((code << 2) | baseCode) & contextMask.
+     */
+    public static int encodeContext(final String context) {
+        int code = 0;
+        for (int i = 0; i < context.length(); i++) {
+            final char c = context.charAt(i);
+            final int base = c < 256 ? BASE_CODES[c] : -1;
+            if (base < 0) return -1;
+            code = (code << 2) | base;
+        }
+        return code;
+    }
+
+    /**
+     * Returns the mask that keeps the bits of a packed context of the given size.
+     */
+    public static int contextMask(final int contextSize) {
+        return (1 << (2 * (2 * contextSize + 1))) - 1;
+    }
+
+    /**
+     * Unpacks a context of the given size packed by encodeContext().
+     */
+    public static String decodeContext(int code, final int contextSize) {
+        final char[] bases = new char[2 * contextSize + 1];
+        for (int i = bases.length - 1; i >= 0; i--, code >>= 2) {
+            bases[i] = (char) Transition.Base.values()[code & 3].base;
+        }
+        return new String(bases);
+    }
+
     /**
-     * Add a record to all the accumulators.
+     * Add one called base to the accumulators. This is the per-base path: the context is packed as by encodeContext(),
+     * the called base is a baseCode() and the category is given by ContextAccumulator.categoryOf() for the read.
      */
-    public void countRecord(final String refContext, final char calledBase, final SAMRecord rec) {
-        if (this.contextMap.containsKey(refContext)) {
-            final RefContext contexts = contextMap.get(refContext);
-            this.fullContextAccumulator.countRecord(contexts.ref, calledBase, rec);
-            this.halfContextAccumulator.countRecord(contexts.leading, calledBase, rec);
-            this.halfContextAccumulator.countRecord(contexts.trailing, calledBase, rec);
-            this.zeroContextAccumulator.countRecord(contexts.zero, calledBase, rec);
+    public void countBase(final int contextCode, final int calledBaseCode, final int category) {
+        if (fullContextCounts != null) {
+            fullContextCounts[contextCode * ContextAccumulator.COUNTS_PER_CONTEXT + calledBaseCode * ContextAccumulator.NUM_CATEGORIES + category]++;
+        } else {
+            long[] counts = sparseContextCounts.get(contextCode);
+            if (counts == null) {
+                counts = new long[ContextAccumulator.COUNTS_PER_CONTEXT];
+                sparseContextCounts.put(contextCode, counts);
+            }
+            counts[calledBaseCode * ContextAccumulator.NUM_CATEGORIES + category]++;
         }
     }
 
@@ -106,6 +204,17 @@ class ArtifactCounter {
      * Stop counting, tally things up, and extract metrics.
      */
     public void finish() {
+        // fold the counts of each full context into the accumulators of its sub-contexts
+        if (fullContextCounts != null) {
+            for (int code = 0; code < refContexts.length; code++) {
+                addCounts(refContexts[code], fullContextCounts, code * ContextAccumulator.COUNTS_PER_CONTEXT);
+            }
+        } else {
+            for (final Map.Entry<Integer, long[]> entry : sparseContextCounts.entrySet()) {
+                addCounts(makeRefContext(decodeContext(entry.getKey(), contextSize)), entry.getValue(), 0);
+            }
+        }
+
         final ListMap<Transition, DetailPair> allDetailMetrics = getDetailMetrics();
         final Map<Transition, SummaryPair> allSummaryMetrics = getSummaryMetrics();
 
@@ -121,6 +230,13 @@ class ArtifactCounter {
         }
     }
 
+    private void addCounts(final RefContext contexts, final long[] counts, final int offset) {
+        this.fullContextAccumulator.addCounts(contexts.ref, counts, offset);
+        this.halfContextAccumulator.addCounts(contexts.leading, counts, offset);
+        this.halfContextAccumulator.addCounts(contexts.trailing, counts, offset);
+        this.zeroContextAccumulator.addCounts(contexts.zero, counts, offset);
+    }
+
     public List<PreAdapterSummaryMetrics> getPreAdapterSummaryMetrics() { return preAdapterSummaryMetricsList; }
     public List<PreAdapterDetailMetrics> getPreAdapterDetailMetrics() { return preAdapterDetailMetricsList; }
     public List<BaitBiasSummaryMetrics> getBaitBiasSummaryMetrics() { return baitBiasSummaryMetricsList; }
@@ -17,8 +17,10 @@ import htsjdk.samtools.reference.ReferenceSequence;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.IntervalList;
 import htsjdk.samtools.util.IntervalListReferenceSequenceMask;
+import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.StringUtil;
 import picard.PicardException;
+import picard.analysis.CollectOxoGMetrics.CpcgMetrics;
 import picard.analysis.SinglePassSamProgram;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
@@ -113,7 +115,8 @@ public class CollectSequencingArtifactMetrics extends SinglePassSamProgram {
     @Option(doc = "When available, use original quality scores for filtering.")
     public boolean USE_OQ = true;
 
-    @Option(doc = "The number of context bases to include on each side of the assayed base.")
+    @Option(doc = "The number of context bases to include on each side of the assayed base, at most " + ArtifactCounter.MAX_CONTEXT_SIZE + ". " +
+            "Above " + ArtifactCounter.MAX_DENSE_CONTEXT_SIZE + ", counts are kept only for the contexts seen, which is slower.")
     public int CONTEXT_SIZE = 1;
 
     @Option(doc = "If specified, only print results for these contexts in the detail metrics output. " +
@@ -123,6 +126,12 @@ public class CollectSequencingArtifactMetrics extends SinglePassSamProgram {
     @Option(shortName = "EXT", doc="Append the given file extension to all metric file names (ex. OUTPUT.pre_adapter_summary_metrics.EXT). None if null", optional=true)
     public String FILE_EXTENSION = null;
 
+    @Option(doc = "If true, also write OxoG metrics in the format of CollectOxoGMetrics to OUTPUT.oxog_metrics, derived from the " +
+            "same counts in the same pass over the input, as ConvertSequencingArtifactToOxoG would. The read filters of this " +
+            "program apply, and TOTAL_SITES is only counted if the input is coordinate-sorted.")
+    public boolean INCLUDE_OXOG_METRICS = false;
+
+    private static final Log log = Log.getInstance(CollectSequencingArtifactMetrics.class);
     private static final String UNKNOWN_LIBRARY = "UnknownLibrary";
     private static final String UNKNOWN_SAMPLE = "UnknownSample";
 
@@ -130,18 +139,22 @@ public class CollectSequencingArtifactMetrics extends SinglePassSamProgram {
     private File preAdapterDetailsOut;
     private File baitBiasSummaryOut;
     private File baitBiasDetailsOut;
+    private File oxogOut;
 
     private IntervalListReferenceSequenceMask intervalMask;
     private DbSnpBitSetUtil dbSnpMask;
     private SamRecordFilter recordFilter;
 
-    private String currentRefString = null;
-    private int currentRefIndex = -1;
-
     private final Set<String> samples = new HashSet<String>();
     private final Set<String> libraries = new HashSet<String>();
     private final Map<String, ArtifactCounter> artifactCounters = new HashMap<String, ArtifactCounter>();
 
+    // OxoG sites are marked per library on the current contig, and tallied when the reads move on to another contig
+    private final Map<String, OxoGSiteCounter> oxoGSiteCounters = new HashMap<String, OxoGSiteCounter>();
+    private final Set<Integer> finishedContigs = new HashSet<Integer>();
+    private ReferenceSequence currentContig = null;
+    private boolean countOxoGSites = true;
+
     public static void main(final String[] args) {
         new CollectSequencingArtifactMetrics().instanceMainWithExit(args);
     }
@@ -152,6 +165,7 @@ public class CollectSequencingArtifactMetrics extends SinglePassSamProgram {
 
         final int contextFullLength = 2 * CONTEXT_SIZE + 1;
         if (CONTEXT_SIZE < 0) messages.add("CONTEXT_SIZE cannot be negative");
+        if (CONTEXT_SIZE > ArtifactCounter.MAX_CONTEXT_SIZE) messages.add("CONTEXT_SIZE cannot be greater than " + ArtifactCounter.MAX_CONTEXT_SIZE);
         for (final String context : CONTEXTS_TO_PRINT) {
             if (context.length() != contextFullLength) {
                 messages.add("Context " + context + " is not the length implied by CONTEXT_SIZE: " + contextFullLength);
@@ -179,6 +193,10 @@ public class CollectSequencingArtifactMetrics extends SinglePassSamProgram {
         IOUtil.assertFileIsWritable(preAdapterDetailsOut);
         IOUtil.assertFileIsWritable(baitBiasSummaryOut);
         IOUtil.assertFileIsWritable(baitBiasDetailsOut);
+        if (INCLUDE_OXOG_METRICS) {
+            oxogOut = new File(OUTPUT + SequencingArtifactMetrics.OXOG_METRICS_EXT + outext);
+            IOUtil.assertFileIsWritable(oxogOut);
+        }
 
         for (final SAMReadGroupRecord rec : header.getReadGroups()) {
             samples.add(getOrElse(rec.getSample(), UNKNOWN_SAMPLE));
@@ -212,6 +230,7 @@ public class CollectSequencingArtifactMetrics extends SinglePassSamProgram {
         final String sampleAlias = StringUtil.join(",", new ArrayList<String>(samples));
         for (final String library : libraries) {
             artifactCounters.put(library, new ArtifactCounter(sampleAlias, library, CONTEXT_SIZE, TANDEM_READS));
+            if (INCLUDE_OXOG_METRICS) oxoGSiteCounters.put(library, new OxoGSiteCounter(CONTEXT_SIZE));
         }
     }
 
@@ -229,7 +248,14 @@ public class CollectSequencingArtifactMetrics extends SinglePassSamProgram {
 
         // set up some constants that don't change in the loop below
         final int contextFullLength = 2 * CONTEXT_SIZE + 1;
+        final int contextMask = ArtifactCounter.contextMask(CONTEXT_SIZE);
         final ArtifactCounter counter = artifactCounters.get(library);
+        final OxoGSiteCounter siteCounter = countOxoGSites ? oxoGSiteCounters.get(library) : null;
+        if (siteCounter != null && (currentContig == null || currentContig.getContigIndex() != ref.getContigIndex())) {
+            startContig(ref);
+        }
+        final int category = ContextAccumulator.categoryOf(rec);
+        final byte[] refBases = ref.getBases();
         final byte[] readBases = rec.getReadBases();
         final byte[] readQuals;
         if (USE_OQ) {
@@ -241,8 +267,20 @@ public class CollectSequencingArtifactMetrics extends SinglePassSamProgram {
 
         // iterate over aligned positions
         for (final AlignmentBlock block : rec.getAlignmentBlocks()) {
-            for (int offset = 0; offset < block.getLength(); offset++) {
+            // the context of each aligned base is kept packed 2 bits per base, and rolled forward one reference base
+            // at a time. refIndex is the 0-based index of the last base of the context, and the most recent base that
+            // isn't ACGT (e.g. an N) is remembered so that contexts containing it can be skipped.
+            final int firstContextEnd = block.getReferenceStart() + CONTEXT_SIZE - 1;
+            int contextCode = 0;
+            int lastNonAcgtIndex = Integer.MIN_VALUE;
+            for (int refIndex = firstContextEnd - contextFullLength + 1; refIndex < firstContextEnd + block.getLength(); refIndex++) {
+                final int refBase = (refIndex >= 0 && refIndex < refBases.length) ? ArtifactCounter.baseCode(refBases[refIndex]) : -1;
+                if (refBase < 0) lastNonAcgtIndex = refIndex;
+                contextCode = ((contextCode << 2) | (refBase & 3)) & contextMask;
+                if (refIndex < firstContextEnd) continue;
+
                 // remember, these are 1-based!
+                final int offset = refIndex - firstContextEnd;
                 final int readPos = block.getReadStart() + offset;
                 final int refPos = block.getReferenceStart() + offset;
 
@@ -251,8 +289,8 @@ public class CollectSequencingArtifactMetrics extends SinglePassSamProgram {
                 if (qual < MINIMUM_QUALITY_SCORE) continue;
 
                 // skip N bases in read
-                final char readBase = Character.toUpperCase((char)readBases[readPos - 1]);
-                if (readBase == 'N') continue;
+                final byte readBase = readBases[readPos - 1];
+                if (readBase == 'N' || readBase == 'n') continue;
 
                 /**
                  * Skip regions outside of intervals.
@@ -271,33 +309,45 @@ public class CollectSequencingArtifactMetrics extends SinglePassSamProgram {
                 final int contextStartIndex = refPos - CONTEXT_SIZE - 1;
                 if (contextStartIndex < 0 || contextStartIndex + contextFullLength > ref.length()) continue;
 
-                // skip contexts with N bases
-                final String context = getRefContext(ref, contextStartIndex, contextFullLength);
-                if (context.contains("N")) continue;
+                // skip contexts with N (or other non-ACGT) bases
+                if (lastNonAcgtIndex >= contextStartIndex) continue;
 
                 // count the base!
-                counter.countRecord(context, readBase, rec);
+                final int calledBase = ArtifactCounter.baseCode(readBase);
+                if (calledBase < 0) throw new PicardException("Unexpected base " + (char) readBase + " in read " + rec.getReadName());
+                counter.countBase(contextCode, calledBase, category);
+                if (siteCounter != null && siteCounter.isOxoGBase(contextCode, calledBase)) siteCounter.markSite(refPos - 1);
             }
         }
     }
 
-    private String getRefContext(final ReferenceSequence ref, final int contextStartIndex, final int contextFullLength) {
-        // cache the upper-cased string version of this reference so we don't need to create a string for every base in every read
-        if (currentRefIndex != ref.getContigIndex()) {
-            currentRefString = new String(ref.getBases()).toUpperCase();
-            currentRefIndex = ref.getContigIndex();
+    /**
+     * Tallies the OxoG sites of the contig the reads are leaving. Sites can only be counted once all the reads of a contig
+     * have gone by, so if the input turns out not to be coordinate-sorted, TOTAL_SITES is not counted at all.
+     */
+    private void startContig(final ReferenceSequence ref) {
+        if (currentContig != null) {
+            for (final OxoGSiteCounter siteCounter : oxoGSiteCounters.values()) siteCounter.finishContig(currentContig.getBases());
+            finishedContigs.add(currentContig.getContigIndex());
+        }
+        if (ref != null && finishedContigs.contains(ref.getContigIndex())) {
+            log.warn("Input is not coordinate-sorted, so TOTAL_SITES will not be counted in the OxoG metrics.");
+            countOxoGSites = false;
         }
-        return currentRefString.substring(contextStartIndex, contextStartIndex + contextFullLength);
+        currentContig = ref;
     }
 
     @Override
     protected void finish() {
+        if (INCLUDE_OXOG_METRICS && countOxoGSites) startContig(null);
+        final MetricsFile<CpcgMetrics, Integer> oxogMetricsFile = getMetricsFile();
         final MetricsFile<PreAdapterSummaryMetrics, Integer> preAdapterSummaryMetricsFile = getMetricsFile();
         final MetricsFile<PreAdapterDetailMetrics, Integer> preAdapterDetailMetricsFile = getMetricsFile();
         final MetricsFile<BaitBiasSummaryMetrics, Integer> baitBiasSummaryMetricsFile = getMetricsFile();
         final MetricsFile<BaitBiasDetailMetrics, Integer> baitBiasDetailMetricsFile = getMetricsFile();
 
-        for (final ArtifactCounter counter : artifactCounters.values()) {
+        for (final Map.Entry<String, ArtifactCounter> entry : artifactCounters.entrySet()) {
+            final ArtifactCounter counter = entry.getValue();
             // build metrics
             counter.finish();
 
@@ -316,12 +366,20 @@ public class CollectSequencingArtifactMetrics extends SinglePassSamProgram {
                 }
             }
 
+            if (INCLUDE_OXOG_METRICS) {
+                final OxoGSiteCounter siteCounter = oxoGSiteCounters.get(entry.getKey());
+                for (final CpcgMetrics oxogMetrics : ConvertSequencingArtifactToOxoG.toOxoGMetrics(counter.getPreAdapterDetailMetrics(), counter.getBaitBiasDetailMetrics())) {
+                    if (countOxoGSites) oxogMetrics.TOTAL_SITES = siteCounter.getSites(oxogMetrics.CONTEXT);
+                    oxogMetricsFile.addMetric(oxogMetrics);
+                }
+            }
         }
 
         preAdapterDetailMetricsFile.write(preAdapterDetailsOut);
         preAdapterSummaryMetricsFile.write(preAdapterSummaryOut);
         baitBiasDetailMetricsFile.write(baitBiasDetailsOut);
         baitBiasSummaryMetricsFile.write(baitBiasSummaryOut);
+        if (INCLUDE_OXOG_METRICS) oxogMetricsFile.write(oxogOut);
     }
 
     @Override
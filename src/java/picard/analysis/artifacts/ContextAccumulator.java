@@ -14,34 +14,59 @@ import java.util.Set;
 import java.util.TreeSet;
 
 /**
- * Keeps track of the AlignmentAccumulators for each artifact / context of interest.
+ * Keeps track of the alignment counts for each artifact / context of interest. The counts are kept in one flat array,
+ * broken down by context, called base, read end and strand.
  */
 class ContextAccumulator {
 
+    // the read end x strand categories that each called base is broken down by
+    static final int R1_POS = 0;
+    static final int R1_NEG = 1;
+    static final int R2_POS = 2;
+    static final int R2_NEG = 3;
+    static final int NUM_CATEGORIES = 4;
+
+    // the number of counts kept for each context: one per called base and category
+    static final int COUNTS_PER_CONTEXT = Transition.Base.values().length * NUM_CATEGORIES;
+
     // are the PE reads expected to face the same direction?
     private final boolean expectedTandemReads;
 
-    // mapping from contexts to the accumulators
-    private final Map<String, AlignmentAccumulator[]> artifactMap;
+    // mapping from contexts to the offset of their counts
+    private final Map<String, Integer> contextOffsets;
+    private final long[] counts;
 
     public ContextAccumulator(final Set<String> contexts, final boolean expectedTandemReads) {
         this.expectedTandemReads = expectedTandemReads;
-        this.artifactMap = new HashMap<>();
+        this.contextOffsets = new HashMap<>();
         for (final String context : contexts) {
 
             // sanity check that the context length is odd
             if ((context.length() & 1) == 0) throw new PicardException("Contexts cannot have an even number of bases: " + context);
 
-            final AlignmentAccumulator[] accumulators = new AlignmentAccumulator[Transition.Base.values().length];
-            for (int i = 0; i < Transition.Base.values().length; i++) {
-                accumulators[i] = new AlignmentAccumulator();
-            }
-            this.artifactMap.put(context, accumulators);
+            this.contextOffsets.put(context, this.contextOffsets.size() * COUNTS_PER_CONTEXT);
         }
+        this.counts = new long[this.contextOffsets.size() * COUNTS_PER_CONTEXT];
+    }
+
+    /**
+     * Returns the read end x strand category of a record: read two means the second of a pair.
+     */
+    static int categoryOf(final SAMRecord rec) {
+        final boolean isNegativeStrand = rec.getReadNegativeStrandFlag();
+        final boolean isReadTwo = rec.getReadPairedFlag() && rec.getSecondOfPairFlag();
+        if (isReadTwo) return isNegativeStrand ? R2_NEG : R2_POS;
+        else return isNegativeStrand ? R1_NEG : R1_POS;
     }
 
-    public void countRecord(final String refContext, final char calledBase, final SAMRecord rec) {
-        artifactMap.get(refContext)[Transition.baseIndexMap[calledBase]].countRecord(rec);
+    /**
+     * Adds the COUNTS_PER_CONTEXT counts starting at sourceOffset in source to the counts of the given context.
+     */
+    public void addCounts(final String refContext, final long[] source, final int sourceOffset) {
+        final int offset = contextOffsets.get(refContext);
+        for (int i = 0; i < COUNTS_PER_CONTEXT; i++) {
+            counts[offset + i] += source[sourceOffset + i];
+        }
     }
 
     /**
@@ -49,7 +74,7 @@ class ContextAccumulator {
      */
     public ListMap<Transition, DetailPair> calculateMetrics(final String sampleAlias, final String library) {
         final ListMap<Transition, DetailPair> detailMetricsMap = new ListMap<>();
-        for (final String context : new TreeSet<>(artifactMap.keySet())) {
+        for (final String context : new TreeSet<>(contextOffsets.keySet())) {
 
             // sanity check that the context length is odd
             if ((context.length() & 1) == 0) throw new PicardException("Contexts cannot have an even number of bases: " + context + ".  This should never happen here!");
@@ -75,35 +100,35 @@ class ContextAccumulator {
                 baitBiasDetailMetrics.REF_BASE = transition.ref();
                 baitBiasDetailMetrics.ALT_BASE = transition.call();
 
-                // retrieve all the necessary alignment counters.
-                final AlignmentAccumulator[] accumulators = artifactMap.get(context);
-                final AlignmentAccumulator[] reverseCompAccumulators = artifactMap.get(SequenceUtil.reverseComplement(context));
+                // retrieve the offsets of all the necessary alignment counts.
+                final int offset = contextOffsets.get(context);
+                final int reverseCompOffset = contextOffsets.get(SequenceUtil.reverseComplement(context));
 
-                final AlignmentAccumulator fwdRefAlignments = accumulators[Transition.baseIndexMap[transition.ref()]];
-                final AlignmentAccumulator fwdAltAlignments = accumulators[Transition.baseIndexMap[transition.call()]];
-                final AlignmentAccumulator revRefAlignments = reverseCompAccumulators[Transition.baseIndexMap[transition.complement().ref()]];
-                final AlignmentAccumulator revAltAlignments = reverseCompAccumulators[Transition.baseIndexMap[transition.complement().call()]];
+                final int fwdRef = offset + Transition.baseIndexMap[transition.ref()] * NUM_CATEGORIES;
+                final int fwdAlt = offset + Transition.baseIndexMap[transition.call()] * NUM_CATEGORIES;
+                final int revRef = reverseCompOffset + Transition.baseIndexMap[transition.complement().ref()] * NUM_CATEGORIES;
+                final int revAlt = reverseCompOffset + Transition.baseIndexMap[transition.complement().call()] * NUM_CATEGORIES;
 
                 // categorize observations of pre-adapter artifacts
                 if (expectedTandemReads) {
                     // if both ends are sequenced on the same strand, then read1/read2 should exhibit the same bias
-                    preAdapterDetailMetrics.PRO_REF_BASES = fwdRefAlignments.R1_POS + fwdRefAlignments.R2_POS + revRefAlignments.R1_NEG + revRefAlignments.R2_NEG;
-                    preAdapterDetailMetrics.PRO_ALT_BASES = fwdAltAlignments.R1_POS + fwdAltAlignments.R2_POS + revAltAlignments.R1_NEG + revAltAlignments.R2_NEG;
-                    preAdapterDetailMetrics.CON_REF_BASES = fwdRefAlignments.R1_NEG + fwdRefAlignments.R2_NEG + revRefAlignments.R1_POS + revRefAlignments.R2_POS;
-                    preAdapterDetailMetrics.CON_ALT_BASES = fwdAltAlignments.R1_NEG + fwdAltAlignments.R2_NEG + revAltAlignments.R1_POS + revAltAlignments.R2_POS;
+                    preAdapterDetailMetrics.PRO_REF_BASES = counts[fwdRef + R1_POS] + counts[fwdRef + R2_POS] + counts[revRef + R1_NEG] + counts[revRef + R2_NEG];
+                    preAdapterDetailMetrics.PRO_ALT_BASES = counts[fwdAlt + R1_POS] + counts[fwdAlt + R2_POS] + counts[revAlt + R1_NEG] + counts[revAlt + R2_NEG];
+                    preAdapterDetailMetrics.CON_REF_BASES = counts[fwdRef + R1_NEG] + counts[fwdRef + R2_NEG] + counts[revRef + R1_POS] + counts[revRef + R2_POS];
+                    preAdapterDetailMetrics.CON_ALT_BASES = counts[fwdAlt + R1_NEG] + counts[fwdAlt + R2_NEG] + counts[revAlt + R1_POS] + counts[revAlt + R2_POS];
                 } else {
                     // if ends are sequenced on opposite strands, then read1/read2 should exhibit opposite biases
-                    preAdapterDetailMetrics.PRO_REF_BASES = fwdRefAlignments.R1_POS + fwdRefAlignments.R2_NEG + revRefAlignments.R1_NEG + revRefAlignments.R2_POS;
-                    preAdapterDetailMetrics.PRO_ALT_BASES = fwdAltAlignments.R1_POS + fwdAltAlignments.R2_NEG + revAltAlignments.R1_NEG + revAltAlignments.R2_POS;
-                    preAdapterDetailMetrics.CON_REF_BASES = fwdRefAlignments.R1_NEG + fwdRefAlignments.R2_POS + revRefAlignments.R1_POS + revRefAlignments.R2_NEG;
-                    preAdapterDetailMetrics.CON_ALT_BASES = fwdAltAlignments.R1_NEG + fwdAltAlignments.R2_POS + revAltAlignments.R1_POS + revAltAlignments.R2_NEG;
+                    preAdapterDetailMetrics.PRO_REF_BASES = counts[fwdRef + R1_POS] + counts[fwdRef + R2_NEG] + counts[revRef + R1_NEG] + counts[revRef + R2_POS];
+                    preAdapterDetailMetrics.PRO_ALT_BASES = counts[fwdAlt + R1_POS] + counts[fwdAlt + R2_NEG] + counts[revAlt + R1_NEG] + counts[revAlt + R2_POS];
+                    preAdapterDetailMetrics.CON_REF_BASES = counts[fwdRef + R1_NEG] + counts[fwdRef + R2_POS] + counts[revRef + R1_POS] + counts[revRef + R2_NEG];
+                    preAdapterDetailMetrics.CON_ALT_BASES = counts[fwdAlt + R1_NEG] + counts[fwdAlt + R2_POS] + counts[revAlt + R1_POS] + counts[revAlt + R2_NEG];
                 }
 
                 // categorize observations of bait bias artifacts
-                baitBiasDetailMetrics.FWD_CXT_REF_BASES = fwdRefAlignments.R1_POS + fwdRefAlignments.R1_NEG + fwdRefAlignments.R2_POS + fwdRefAlignments.R2_NEG;
-                baitBiasDetailMetrics.FWD_CXT_ALT_BASES = fwdAltAlignments.R1_POS + fwdAltAlignments.R1_NEG + fwdAltAlignments.R2_POS + fwdAltAlignments.R2_NEG;
-                baitBiasDetailMetrics.REV_CXT_REF_BASES = revRefAlignments.R1_POS + revRefAlignments.R1_NEG + revRefAlignments.R2_POS + revRefAlignments.R2_NEG;
-                baitBiasDetailMetrics.REV_CXT_ALT_BASES = revAltAlignments.R1_POS + revAltAlignments.R1_NEG + revAltAlignments.R2_POS + revAltAlignments.R2_NEG;
+                baitBiasDetailMetrics.FWD_CXT_REF_BASES = sum(fwdRef);
+                baitBiasDetailMetrics.FWD_CXT_ALT_BASES = sum(fwdAlt);
+                baitBiasDetailMetrics.REV_CXT_REF_BASES = sum(revRef);
+                baitBiasDetailMetrics.REV_CXT_ALT_BASES = sum(revAlt);
 
                 // calculate error rates + Q-scores
                 preAdapterDetailMetrics.calculateDerivedStatistics();
@@ -116,25 +141,8 @@ class ContextAccumulator {
         return detailMetricsMap;
     }
 
-    /**
-     * Little class for breaking down alignments by read1/read2 and positive/negative strand.
-     */
-    private static class AlignmentAccumulator {
-        private long R1_POS = 0;
-        private long R1_NEG = 0;
-        private long R2_POS = 0;
-        private long R2_NEG = 0;
-
-        private void countRecord(final SAMRecord rec) {
-            final boolean isNegativeStrand = rec.getReadNegativeStrandFlag();
-            final boolean isReadTwo = rec.getReadPairedFlag() && rec.getSecondOfPairFlag();
-            if (isReadTwo) {
-                if (isNegativeStrand) this.R2_NEG++;
-                else this.R2_POS++;
-            } else {
-                if (isNegativeStrand) this.R1_NEG++;
-                else this.R1_POS++;
-            }
-        }
+    /** Sums the counts of all categories for one context and called base. */
+    private long sum(final int offset) {
+        return counts[offset + R1_POS] + counts[offset + R1_NEG] + counts[offset + R2_POS] + counts[offset + R2_NEG];
     }
 }
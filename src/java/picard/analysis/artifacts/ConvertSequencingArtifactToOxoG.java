@@ -67,7 +67,7 @@ public class ConvertSequencingArtifactToOxoG extends CommandLineProgram {
 
         final File PRE_ADAPTER_IN = new File(INPUT_BASE + SequencingArtifactMetrics.PRE_ADAPTER_DETAILS_EXT);
         final File BAIT_BIAS_IN = new File(INPUT_BASE + SequencingArtifactMetrics.BAIT_BIAS_DETAILS_EXT);
-        final File OXOG_OUT = new File(OUTPUT_BASE + ".oxog_metrics");
+        final File OXOG_OUT = new File(OUTPUT_BASE + SequencingArtifactMetrics.OXOG_METRICS_EXT);
 
         IOUtil.assertFileIsReadable(PRE_ADAPTER_IN);
         IOUtil.assertFileIsReadable(BAIT_BIAS_IN);
@@ -77,7 +77,23 @@ public class ConvertSequencingArtifactToOxoG extends CommandLineProgram {
         final List<BaitBiasDetailMetrics> baitBiasDetailMetricsList = MetricsFile.readBeans(BAIT_BIAS_IN);
 
         // TODO should we validate that the two inputs match up as expected?
+        final List<CpcgMetrics> oxogMetrics = toOxoGMetrics(preAdapterDetailMetricsList, baitBiasDetailMetricsList);
 
+        final MetricsFile<CpcgMetrics, Integer> outputFile = getMetricsFile();
+        for (final CpcgMetrics m : oxogMetrics) {
+            outputFile.addMetric(m);
+        }
+
+        outputFile.write(OXOG_OUT);
+        return 0;
+    }
+
+    /**
+     * Converts the detail metrics of all contexts into OxoG metrics, one per library and 'C' context. TOTAL_SITES is not
+     * calculated in the detail metrics, so it is left at 0.
+     */
+    public static List<CpcgMetrics> toOxoGMetrics(final List<PreAdapterDetailMetrics> preAdapterDetailMetricsList,
+                                                  final List<BaitBiasDetailMetrics> baitBiasDetailMetricsList) {
         /**
          * Determine output fields. Just copy these from the input for now.
          */
@@ -172,17 +188,10 @@ public class ConvertSequencingArtifactToOxoG extends CommandLineProgram {
                 oxogMetrics.add(m);
             }
         }
-
-        final MetricsFile<CpcgMetrics, Integer> outputFile = getMetricsFile();
-        for (final CpcgMetrics m : oxogMetrics) {
-            outputFile.addMetric(m);
-        }
-
-        outputFile.write(OXOG_OUT);
-        return 0;
+        return oxogMetrics;
     }
 
-    private boolean isOxoG(final Transition t) {
+    private static boolean isOxoG(final Transition t) {
         return t.equals(Transition.CtoA) || t.equals(Transition.GtoT);
     }
 }
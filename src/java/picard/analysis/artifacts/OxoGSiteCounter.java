@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.analysis.artifacts;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts, for each OxoG context (the 'C'-centered contexts reported by CollectOxoGMetrics), the number of reference C/G
+ * sites at which at least one reference or OxoG alt base (C>A at a C, G>T at a G) was counted. This is the TOTAL_SITES
+ * of CollectOxoGMetrics, which the artifact counts alone cannot provide.
+ *
+ * Sites are marked as the reads of a contig go by, and tallied by context once the contig is done.
+ */
+class OxoGSiteCounter {
+    private static final int A = ArtifactCounter.baseCode((byte) 'A');
+    private static final int C = ArtifactCounter.baseCode((byte) 'C');
+    private static final int G = ArtifactCounter.baseCode((byte) 'G');
+    private static final int T = ArtifactCounter.baseCode((byte) 'T');
+
+    private final int contextSize;
+    private final int[] sitesByContext; // by packed context, or null above ArtifactCounter.MAX_DENSE_CONTEXT_SIZE
+    private final Map<Integer, Integer> sparseSitesByContext;
+    private final BitSet markedSites = new BitSet();
+
+    OxoGSiteCounter(final int contextSize) {
+        this.contextSize = contextSize;
+        if (contextSize <= ArtifactCounter.MAX_DENSE_CONTEXT_SIZE) {
+            this.sitesByContext = new int[ArtifactCounter.contextMask(contextSize) + 1];
+            this.sparseSitesByContext = null;
+        } else {
+            this.sitesByContext = null;
+            this.sparseSitesByContext = new HashMap<>();
+        }
+    }
+
+    /**
+     * Returns true if a called base, at a site whose packed context is given, counts towards the OxoG sites.
+     */
+    boolean isOxoGBase(final int contextCode, final int calledBase) {
+        final int refBase = (contextCode >> (2 * contextSize)) & 3;
+        return (refBase == C && (calledBase == C || calledBase == A)) || (refBase == G && (calledBase == G || calledBase == T));
+    }
+
+    /** Marks the site at the given 0-based index of the current contig. */
+    void markSite(final int refIndex) {
+        markedSites.set(refIndex);
+    }
+
+    /**
+     * Tallies the sites marked on the contig that is done, given its bases, and clears them. Sites on a 'G' are counted
+     * under the reverse complement of their context, as in CollectOxoGMetrics.
+     */
+    void finishContig(final byte[] refBases) {
+        for (int i = markedSites.nextSetBit(0); i >= 0; i = markedSites.nextSetBit(i + 1)) {
+            int code = 0;
+            for (int j = i - contextSize; j <= i + contextSize; j++) {
+                code = (code << 2) | ArtifactCounter.baseCode(refBases[j]);
+            }
+            if (ArtifactCounter.baseCode(refBases[i]) == G) {
+                int reverseComplement = 0;
+                for (int j = 0; j < 2 * contextSize + 1; j++, code >>= 2) {
+                    reverseComplement = (reverseComplement << 2) | (3 - (code & 3));
+                }
+                code = reverseComplement;
+            }
+            if (sitesByContext != null) sitesByContext[code]++;
+            else sparseSitesByContext.merge(code, 1, Integer::sum);
+        }
+        markedSites.clear();
+    }
+
+    /** Returns the number of sites counted for an OxoG context. */
+    int getSites(final String context) {
+        final int code = ArtifactCounter.encodeContext(context);
+        if (code < 0) return 0;
+        if (sitesByContext != null) return sitesByContext[code];
+        return sparseSitesByContext.getOrDefault(code, 0);
+    }
+}
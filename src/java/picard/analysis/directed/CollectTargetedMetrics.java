@@ -1,8 +1,10 @@
 package picard.analysis.directed;
 
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.metrics.MetricsFile;
@@ -20,8 +22,10 @@ import picard.cmdline.CommandLineProgram;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
 import picard.metrics.MultilevelMetrics;
+import picard.util.OrderedParallelExecutor;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
@@ -75,7 +79,8 @@ public abstract class CollectTargetedMetrics<METRIC extends MultilevelMetrics, C
     public File PER_TARGET_COVERAGE;
 
     @Option(optional = true, doc = "An optional file to output per base coverage information to. The per-base file contains " +
-            "one line per target base and can grow very large. It is not recommended for use with large target sets.")
+            "one line per target base and can grow very large. It is not recommended for use with large target sets. " +
+            "If the file name ends in .gz, the file is block compressed (BGZF) and indexed with tabix.")
     public File PER_BASE_COVERAGE;
 
     @Option(optional = true, doc= "The maximum distance between a read and the nearest probe/bait/amplicon for the read to be " +
@@ -97,6 +102,10 @@ public abstract class CollectTargetedMetrics<METRIC extends MultilevelMetrics, C
     @Option(doc="Sample Size used for Theoretical Het Sensitivity sampling. Default is 10000.", optional = true)
     public int SAMPLE_SIZE=10000;
 
+    @Option(doc = "The number of threads to use.  If greater than one and the input is indexed, the reads of each contig " +
+            "are processed on their own thread.  The output is the same whatever the number of threads.", optional = true)
+    public int NUM_THREADS = 1;
+
     /**
      * Asserts that files are readable and writable and then fires off an
      * HsMetricsCalculator instance to do the real work.
@@ -141,10 +150,15 @@ public abstract class CollectTargetedMetrics<METRIC extends MultilevelMetrics, C
                 NEAR_DISTANCE
         );
 
-        final ProgressLogger progress = new ProgressLogger(log);
-        for (final SAMRecord record : reader) {
-            collector.acceptRecord(record, null);
-            progress.record(record);
+        if (NUM_THREADS > 1 && OrderedParallelExecutor.canQueryInParallel(reader, null)) {
+            addContigs(reader.getFileHeader(), collector);
+        } else {
+            collector.setCoordinateSortedInput(reader.getFileHeader().getSortOrder() == SAMFileHeader.SortOrder.coordinate);
+            final ProgressLogger progress = new ProgressLogger(log);
+            for (final SAMRecord record : reader) {
+                collector.acceptRecord(record, null);
+                progress.record(record);
+            }
         }
 
         // Write the output file
@@ -159,6 +173,44 @@ public abstract class CollectTargetedMetrics<METRIC extends MultilevelMetrics, C
         return 0;
     }
 
+    /**
+     * Collects the reads of each contig, and then the unmapped reads, on a pool of NUM_THREADS threads with a collector made
+     * by TargetMetricsCollector.makeContigCollector, and merges these into the given collector in order.  Each thread
+     * opens its own reader.
+     */
+    private void addContigs(final SAMFileHeader header, final COLLECTOR collector) {
+        final List<String> contigs = new ArrayList<>();
+        for (final SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+            contigs.add(sequence.getSequenceName());
+        }
+        contigs.add(null);
+
+        log.info("Processing " + contigs.size() + " contigs of the input using " + NUM_THREADS + " threads.");
+        try (final OrderedParallelExecutor<TargetMetricsCollector<METRIC>> executor =
+                     new OrderedParallelExecutor<>(NUM_THREADS, getClass().getSimpleName() + " contig", collector::merge)) {
+            final ThreadLocal<SamReader> readers =
+                    executor.perThread(() -> SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(INPUT));
+            for (final String contig : contigs) {
+                executor.submit(() -> {
+                    final TargetMetricsCollector<METRIC> contigCollector = collector.makeContigCollector(contig);
+                    final ProgressLogger progress = new ProgressLogger(log);
+                    final SAMRecordIterator iterator = contig == null ? readers.get().queryUnmapped() : readers.get().query(contig, 0, 0, false);
+                    try {
+                        while (iterator.hasNext()) {
+                            final SAMRecord record = iterator.next();
+                            contigCollector.acceptRecord(record, null);
+                            progress.record(record);
+                        }
+                    } finally {
+                        iterator.close();
+                    }
+                    return contigCollector;
+                });
+            }
+            executor.finish();
+        }
+    }
+
     /** Renders a probe name from the provided file, returning {@link java.io.File#getName()} with all extensions stripped. */
     static String renderProbeNameFromFile(final File probeIntervalFile) {
         final String name = probeIntervalFile.getName();
@@ -112,6 +112,14 @@ public class InsertSizeMetricsCollector extends MultiLevelCollector<InsertSizeMe
             histograms.get(args.getPairOrientation()).increment(args.getInsertSize());
         }
 
+        @Override
+        public void merge(final PerUnitMetricCollector<InsertSizeMetrics, Integer, InsertSizeCollectorArgs> other) {
+            final PerUnitInsertSizeMetricsCollector otherCollector = (PerUnitInsertSizeMetricsCollector) other;
+            for (final Map.Entry<SamPairUtil.PairOrientation, Histogram<Integer>> entry : histograms.entrySet()) {
+                entry.getValue().addHistogram(otherCollector.histograms.get(entry.getKey()));
+            }
+        }
+
         public void finish() { }
 
         public double getTotalInserts() {
@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis.directed;
+
+import htsjdk.samtools.util.Interval;
+import picard.PicardException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact index over a sorted list of non-overlapping intervals (e.g. the result of IntervalList.uniqued()).
+ * Interval bounds are held in primitive arrays grouped by contig, and each interval is assigned an offset so that
+ * per-base values for all intervals can be stored in a single array of length {@link #getTotalLength()}.
+ *
+ * Lookups are made through a {@link Cursor}, which advances forward cheaply when queried with coordinate-sorted
+ * positions and falls back to a binary search when the position moves backwards.
+ */
+class IntervalIndex {
+    private final Interval[] intervals;
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] offsets;
+
+    /** Maps each contig to the [from, to) range of indices of the intervals on it. */
+    private final Map<String, int[]> rangeByContig = new HashMap<>();
+
+    /** Builds an index over intervals that must be sorted by contig and position and must not overlap. */
+    IntervalIndex(final List<Interval> sortedIntervals) {
+        final int n = sortedIntervals.size();
+        this.intervals = sortedIntervals.toArray(new Interval[n]);
+        this.starts = new int[n];
+        this.ends = new int[n];
+        this.offsets = new int[n + 1];
+
+        long offset = 0;
+        int[] range = null;
+        for (int i = 0; i < n; ++i) {
+            final Interval interval = intervals[i];
+            if (range == null || !intervals[range[0]].getContig().equals(interval.getContig())) {
+                if (range != null) range[1] = i;
+                range = new int[]{i, n};
+                if (rangeByContig.put(interval.getContig(), range) != null) {
+                    throw new PicardException("Intervals are not grouped by contig: " + interval);
+                }
+            } else if (interval.getStart() <= ends[i - 1]) {
+                throw new PicardException("Intervals are unsorted or overlapping: " + intervals[i - 1] + " and " + interval);
+            }
+
+            starts[i] = interval.getStart();
+            ends[i] = interval.getEnd();
+            offsets[i] = (int) offset;
+            offset += Math.max(interval.length(), 0);
+            if (offset > Integer.MAX_VALUE) {
+                throw new PicardException("Intervals cover too many bases to be indexed: " + offset);
+            }
+        }
+        offsets[n] = (int) offset;
+    }
+
+    /** The number of intervals in the index. */
+    int size() { return intervals.length; }
+
+    /** The total number of bases covered by all intervals, i.e. the length of an array addressed by {@link #getOffset(int)}. */
+    int getTotalLength() { return offsets[intervals.length]; }
+
+    Interval getInterval(final int index) { return intervals[index]; }
+
+    int getStart(final int index) { return starts[index]; }
+
+    int getEnd(final int index) { return ends[index]; }
+
+    /** The offset of the first base of the interval at index in an array holding per-base values for all intervals. */
+    int getOffset(final int index) { return offsets[index]; }
+
+    /** Builds an index over the intervals of this index on one contig only, which may be none. */
+    IntervalIndex forContig(final String contig) {
+        final int[] range = rangeByContig.get(contig);
+        return new IntervalIndex(range == null ? Collections.<Interval>emptyList() : Arrays.asList(intervals).subList(range[0], range[1]));
+    }
+
+    /**
+     * The offset of the first base of the intervals on contig, i.e. where the values of an index made by
+     * {@link #forContig(String)} start in an array addressed by this index.
+     */
+    int getOffset(final String contig) {
+        final int[] range = rangeByContig.get(contig);
+        return range == null ? 0 : offsets[range[0]];
+    }
+
+    /** Creates a new cursor positioned before the first interval. */
+    Cursor cursor() { return new Cursor(); }
+
+    /**
+     * Finds intervals on a contig ending at or after a position. Each cursor caches the contig and index of the last
+     * query, so a cursor should not be shared between threads or between unrelated streams of positions.
+     */
+    class Cursor {
+        private String contig = null;
+        private int from = 0;
+        private int to = 0;
+        private int position = Integer.MIN_VALUE;
+        private int index = 0;
+
+        /**
+         * Returns the index of the first interval on contig whose end is at or after position, or {@link #limit()} if there is
+         * none. Intervals from the returned index up to {@link #limit()} are in ascending order of start and end.
+         */
+        int seek(final String contig, final int position) {
+            if (!contig.equals(this.contig)) {
+                final int[] range = rangeByContig.get(contig);
+                this.contig = contig;
+                this.from = range == null ? 0 : range[0];
+                this.to = range == null ? 0 : range[1];
+                this.index = binarySearch(position);
+            } else if (position < this.position) {
+                this.index = binarySearch(position);
+            } else {
+                while (index < to && ends[index] < position) ++index;
+            }
+            this.position = position;
+            return index;
+        }
+
+        /** The index one past the last interval on the contig of the last call to {@link #seek(String, int)}. */
+        int limit() { return to; }
+
+        /** Returns the first index in [from, to) whose interval ends at or after position. */
+        private int binarySearch(final int position) {
+            int lo = from, hi = to;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (ends[mid] < position) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+}
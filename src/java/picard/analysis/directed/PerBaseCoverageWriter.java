@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis.directed;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.samtools.util.StringUtil;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the per-base coverage of targets, one target at a time, as lines of "chrom pos target coverage" after a header
+ * line.  If the file name ends in ".gz" the file is block compressed (BGZF) and a tabix index is written next to it,
+ * so that the coverage of a region can be looked up with tabix or htsjdk's TabixReader.
+ */
+class PerBaseCoverageWriter implements Closeable {
+    /** The file is indexed on the chrom and pos columns, skipping the header line. */
+    static final TabixFormat TABIX_FORMAT = new TabixFormat(TabixFormat.GENERIC_FLAGS, 1, 2, 0, '#', 1);
+
+    static final String HEADER = "chrom\tpos\ttarget\tcoverage";
+
+    private final File file;
+    private final OutputStream out;
+    private final BlockCompressedOutputStream blockCompressedOut;
+    private final TabixIndexCreator indexCreator;
+
+    // Holds the bytes of the lines of one target, written out at once
+    private byte[] buffer = new byte[64 * 1024];
+    private int length = 0;
+
+    PerBaseCoverageWriter(final File file, final SAMSequenceDictionary dictionary) {
+        this.file = file;
+        if (file.getName().endsWith(".gz")) {
+            this.blockCompressedOut = new BlockCompressedOutputStream(file);
+            this.indexCreator = new TabixIndexCreator(dictionary, TABIX_FORMAT);
+            this.out = blockCompressedOut;
+        } else {
+            this.blockCompressedOut = null;
+            this.indexCreator = null;
+            this.out = new BufferedOutputStream(IOUtil.openFileForWriting(file));
+        }
+        append(HEADER);
+        append('\n');
+        flushBuffer();
+    }
+
+    /** Writes the coverage of target, which is held in coverage[from, to). */
+    void write(final Interval target, final int[] coverage, final int from, final int to) {
+        if (from == to) return;
+        if (indexCreator != null) indexCreator.addFeature(new TargetFeature(target), blockCompressedOut.getFilePointer());
+
+        final byte[] contig = StringUtil.stringToBytes(target.getContig());
+        final byte[] name = StringUtil.stringToBytes(String.valueOf(target.getName()));
+        for (int i = from; i < to; ++i) {
+            append(contig);
+            append('\t');
+            append(target.getStart() + i - from);
+            append('\t');
+            append(name);
+            append('\t');
+            append(coverage[i]);
+            append('\n');
+            if (length > buffer.length / 2) flushBuffer();
+        }
+        flushBuffer();
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.close();
+            if (indexCreator != null) {
+                indexCreator.finalizeIndex(blockCompressedOut.getFilePointer()).writeBasedOnFeatureFile(file);
+            }
+        } catch (final IOException ioe) {
+            throw new RuntimeIOException("Error writing " + file, ioe);
+        }
+    }
+
+    private void append(final String s) {
+        append(StringUtil.stringToBytes(s));
+    }
+
+    private void append(final byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void append(final char c) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+    }
+
+    /** Appends the decimal representation of a non-negative value. */
+    private void append(int value) {
+        ensureCapacity(10);
+        final int start = length;
+        do {
+            buffer[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = length - 1; i < j; ++i, --j) {
+            final byte b = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+        }
+    }
+
+    private void ensureCapacity(final int extra) {
+        if (length + extra > buffer.length) {
+            final byte[] bigger = new byte[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, 0, bigger, 0, length);
+            buffer = bigger;
+        }
+    }
+
+    private void flushBuffer() {
+        try {
+            out.write(buffer, 0, length);
+            length = 0;
+        } catch (final IOException ioe) {
+            throw new RuntimeIOException("Error writing " + file, ioe);
+        }
+    }
+
+    /** The span of a target, as indexed by tabix. */
+    private static class TargetFeature implements Feature {
+        private final Interval target;
+
+        TargetFeature(final Interval target) {
+            this.target = target;
+        }
+
+        @Deprecated
+        @Override
+        public String getChr() { return target.getContig(); }
+
+        @Override
+        public String getContig() { return target.getContig(); }
+
+        @Override
+        public int getStart() { return target.getStart(); }
+
+        @Override
+        public int getEnd() { return target.getEnd(); }
+    }
+}
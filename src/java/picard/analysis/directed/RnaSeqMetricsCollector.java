@@ -40,17 +40,23 @@ public class RnaSeqMetricsCollector extends SAMRecordMultiLevelCollector<RnaSeqM
 
     final private Set<Integer> ignoredSequenceIndices;
 
-    private final OverlapDetector<Gene> geneOverlapDetector;
+    private final TranscriptIndex transcriptIndex;
     private final OverlapDetector<Interval> ribosomalSequenceOverlapDetector;
     private final boolean collectCoverageStatistics;
-    
+
+    // The genes overlapping the last record looked up, which all the per-unit collectors share
+    private final TranscriptIndex.Cursor geneCursor;
+    private SAMRecord lastRecord = null;
+    private int overlappingGeneCount = 0;
+
     public RnaSeqMetricsCollector(final Set<MetricAccumulationLevel> accumulationLevels, final List<SAMReadGroupRecord> samRgRecords,
                                   final Long ribosomalBasesInitialValue, OverlapDetector<Gene> geneOverlapDetector, OverlapDetector<Interval> ribosomalSequenceOverlapDetector,
                                   final HashSet<Integer> ignoredSequenceIndices, final int minimumLength, final StrandSpecificity strandSpecificity,
                                   final double rrnaFragmentPercentage, boolean collectCoverageStatistics) {
         this.ribosomalInitialValue  = ribosomalBasesInitialValue;
         this.ignoredSequenceIndices = ignoredSequenceIndices;
-        this.geneOverlapDetector    = geneOverlapDetector;
+        this.transcriptIndex        = new TranscriptIndex(geneOverlapDetector.getAll());
+        this.geneCursor             = transcriptIndex.cursor();
         this.ribosomalSequenceOverlapDetector = ribosomalSequenceOverlapDetector;
         this.minimumLength          = minimumLength;
         this.strandSpecificity      = strandSpecificity;
@@ -64,6 +70,18 @@ public class RnaSeqMetricsCollector extends SAMRecordMultiLevelCollector<RnaSeqM
         return new PerUnitRnaSeqMetricsCollector(sample, library, readGroup, ribosomalInitialValue);
     }
 
+    /**
+     * Finds the genes overlapping the aligned span of the record, once per record however many per-unit collectors ask.
+     * Returns how many there are; the gene indices are then available from geneCursor.
+     */
+    private int findOverlappingGenes(final SAMRecord rec) {
+        if (rec != lastRecord) {
+            overlappingGeneCount = geneCursor.find(rec.getReferenceName(), rec.getAlignmentStart(), rec.getAlignmentEnd());
+            lastRecord = rec;
+        }
+        return overlappingGeneCount;
+    }
+
     public static OverlapDetector<Interval> makeOverlapDetector(final File samFile, final SAMFileHeader header, final File ribosomalIntervalsFile) {
 
         OverlapDetector<Interval> ribosomalSequenceOverlapDetector = new OverlapDetector<Interval>(0, 0);
@@ -99,7 +117,8 @@ public class RnaSeqMetricsCollector extends SAMRecordMultiLevelCollector<RnaSeqM
 
         final RnaSeqMetrics metrics = new RnaSeqMetrics();
         
-        private final Map<Gene.Transcript, int[]> coverageByTranscript = new HashMap<Gene.Transcript, int[]>();
+        // Allocated on first use, since units with many read groups and no coverage statistics need none
+        private TranscriptIndex.Coverage coverage = null;
 
         public PerUnitRnaSeqMetricsCollector(final String sample,
                                              final String library,
@@ -165,7 +184,7 @@ public class RnaSeqMetricsCollector extends SAMRecordMultiLevelCollector<RnaSeqM
                 }
             }
 
-            final Collection<Gene> overlappingGenes                  = geneOverlapDetector.getOverlaps(readInterval);
+            final int overlappingGeneCount                           = findOverlappingGenes(rec);
             final List<AlignmentBlock> alignmentBlocks               = rec.getAlignmentBlocks();
             boolean overlapsExon = false;
 
@@ -176,23 +195,18 @@ public class RnaSeqMetricsCollector extends SAMRecordMultiLevelCollector<RnaSeqM
                 // By default, if base does not overlap with rRNA or gene, it is intergenic.
                 Arrays.fill(locusFunctions, 0, locusFunctions.length, LocusFunction.INTERGENIC);
 
-                for (final Gene gene : overlappingGenes) {
-                    for (final Gene.Transcript transcript : gene) {
-                        transcript.assignLocusFunctionForRange(alignmentBlock.getReferenceStart(), locusFunctions);
+                for (int i = 0; i < overlappingGeneCount; ++i) {
+                    final int gene = geneCursor.getOverlap(i);
+                    for (int tx = transcriptIndex.getFirstTranscript(gene); tx < transcriptIndex.getFirstTranscript(gene + 1); ++tx) {
+                        transcriptIndex.getTranscript(tx).assignLocusFunctionForRange(alignmentBlock.getReferenceStart(), locusFunctions);
                         // if you want to gather coverage statistics, this variable should be true.
-                        // added for cases with many units [samples/read groups] which overwhelm memory.                
+                        // added for cases with many units [samples/read groups] which overwhelm memory.
                         // Add coverage to our coverage counter for this transcript
                         if (collectCoverageStatistics) {
-                            int[] coverage = this.coverageByTranscript.get(transcript);
-                            if (coverage == null) {
-                                coverage = new int[transcript.length()];
-                                this.coverageByTranscript.put(transcript, coverage);
-                            }
-                            transcript.addCoverageCounts(alignmentBlock.getReferenceStart(),
-                                    CoordMath.getEnd(alignmentBlock.getReferenceStart(), alignmentBlock.getLength()),
-                                    coverage);
+                            if (coverage == null) coverage = transcriptIndex.newCoverage();
+                            coverage.add(tx, alignmentBlock.getReferenceStart(),
+                                    CoordMath.getEnd(alignmentBlock.getReferenceStart(), alignmentBlock.getLength()));
                         }
-
                     }
                 }
 
@@ -223,8 +237,8 @@ public class RnaSeqMetricsCollector extends SAMRecordMultiLevelCollector<RnaSeqM
 
             // Strand-specificity is tallied on read basis rather than base at a time.  A read that aligns to more than one
             // gene is not counted.
-            if (!rec.getNotPrimaryAlignmentFlag() && overlapsExon && strandSpecificity != StrandSpecificity.NONE && overlappingGenes.size() == 1) {
-                final boolean negativeTranscriptionStrand = overlappingGenes.iterator().next().isNegativeStrand();
+            if (!rec.getNotPrimaryAlignmentFlag() && overlapsExon && strandSpecificity != StrandSpecificity.NONE && overlappingGeneCount == 1) {
+                final boolean negativeTranscriptionStrand = transcriptIndex.getGene(geneCursor.getOverlap(0)).isNegativeStrand();
                 final boolean negativeReadStrand = rec.getReadNegativeStrandFlag();
                 final boolean readAndTranscriptStrandsAgree = negativeReadStrand == negativeTranscriptionStrand;
                 final boolean readOneOrUnpaired = !rec.getReadPairedFlag() || rec.getFirstOfPairFlag();
@@ -296,7 +310,7 @@ public class RnaSeqMetricsCollector extends SAMRecordMultiLevelCollector<RnaSeqM
 
             final Histogram<Integer> normalizedCoverageByNormalizedPosition = new Histogram<Integer>("normalized_position", prefix + "normalized_coverage");
 
-            final Map<Gene.Transcript,int[]> transcripts = pickTranscripts(coverageByTranscript);
+            final Map<Gene.Transcript,int[]> transcripts = pickTranscripts();
             final double transcriptCount = transcripts.size();
 
             for (final Map.Entry<Gene.Transcript,int[]> entry : transcripts.entrySet()) {
@@ -368,26 +382,29 @@ public class RnaSeqMetricsCollector extends SAMRecordMultiLevelCollector<RnaSeqM
             return out;
         }
 
-        /** Picks the set of transcripts on which the coverage metrics are to be calculated. */
-        public Map<Gene.Transcript, int[]> pickTranscripts(final Map<Gene.Transcript, int[]> transcriptCoverage) {
+        /** Picks the set of transcripts on which the coverage metrics are to be calculated, with their coverage. */
+        public Map<Gene.Transcript, int[]> pickTranscripts() {
             final Map<Gene.Transcript, Double> bestPerGene = new HashMap<Gene.Transcript, Double>();
+            final Map<Gene.Transcript, int[]> transcriptCoverage = new HashMap<Gene.Transcript, int[]>();
 
             // Make a map of the best transcript per gene to it's mean coverage
-            for (final Gene gene : geneOverlapDetector.getAll()) {
+            for (int gene = 0; coverage != null && gene < transcriptIndex.getGeneCount(); ++gene) {
                 Gene.Transcript best = null;
                 double bestMean = 0;
 
-                for (final Gene.Transcript tx : gene) {
-                    final int[] cov = transcriptCoverage.get(tx);
+                for (int t = transcriptIndex.getFirstTranscript(gene); t < transcriptIndex.getFirstTranscript(gene + 1); ++t) {
+                    final Gene.Transcript tx = transcriptIndex.getTranscript(t);
 
                     if (tx.length() < Math.max(minimumLength, 100)) continue;
-                    if (cov == null) continue;
+                    if (!coverage.isAllocated(t)) continue;
 
+                    final int[] cov = coverage.get(t);
                     final double mean = MathUtil.mean(MathUtil.promote(cov), 0, cov.length);
                     if (mean < 1d) continue;
                     if (best == null || mean > bestMean) {
                         best = tx;
                         bestMean = mean;
+                        transcriptCoverage.put(tx, cov);
                     }
                 }
 
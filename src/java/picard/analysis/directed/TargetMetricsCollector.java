@@ -36,13 +36,11 @@ import htsjdk.samtools.reference.ReferenceSequenceFile;
 import htsjdk.samtools.util.CollectionUtil;
 import htsjdk.samtools.util.CoordMath;
 import htsjdk.samtools.util.FormatUtil;
-import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.QualityUtil;
 import htsjdk.samtools.util.Histogram;
 import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.IntervalList;
 import htsjdk.samtools.util.Log;
-import htsjdk.samtools.util.OverlapDetector;
 import htsjdk.samtools.util.RuntimeIOException;
 import htsjdk.samtools.util.SequenceUtil;
 import htsjdk.samtools.util.StringUtil;
@@ -59,12 +57,8 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -98,13 +92,14 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
     //The interval list of the the regions we intend to cover
     private final IntervalList allTargets;
 
-    // Overlap detector for finding overlaps between reads and the experimental targets
-    private final OverlapDetector<Interval> targetDetector;
+    // Index of the unique targets, used to find overlaps between reads and the experimental targets and to address coverage
+    private final IntervalIndex targetIndex;
 
-    // Overlap detector for finding overlaps between the reads and the baits (and the near bait space)
-    private final OverlapDetector<Interval> probeDetector;
+    // Index of the unique baits, used to find overlaps between the reads and the baits (and the near bait space)
+    private final IntervalIndex probeIndex;
 
-    private Map<Interval,Double> intervalToGc = null;
+    // The GC content of each unique target, by index in targetIndex, or null if no reference was given
+    private double[] targetGc = null;
 
     //The number of bases within all unique intervals in allProbes
     private final long probeTerritory;
@@ -127,13 +122,14 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
     private final int minimumBaseQuality;
     private final boolean clipOverlappingReads;
     private boolean noSideEffects;
+    private boolean coordinateSortedInput = false;
 
-    //A map of coverage by target in which coverage is reset every read, this is done
-    //so that we can calculate overlap for a read once and the resulting coverage is
-    //than added to the cumulative coverage of every collector that collects
-    //information on that read
-    private final Map<Interval, Coverage> coverageByTargetForRead;
-    private final Coverage [] cov;
+    // The offset of the first target of targetIndex in the coverage of all unique targets; not zero only for the
+    // collectors of a single contig made by makeContigCollector
+    private final int coverageOffset;
+
+    private final Set<MetricAccumulationLevel> accumulationLevels;
+    private final List<SAMReadGroupRecord> samRgRecords;
 
     /** Gets the distance that is allowed between a read and the nearest probe for it to be considered "near probe" and "selected. */
     public int getNearProbeDistance() { return nearProbeDistance; }
@@ -161,6 +157,15 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
         this.noSideEffects = value;
     }
 
+    /**
+     * Declares that the records passed to acceptRecord are coordinate sorted, so that the per-base coverage of each
+     * target can be written out as soon as the records have gone past it rather than all at once in finish.  A
+     * PicardException is thrown if a record then turns up over a target that has already been written.
+     */
+    public void setCoordinateSortedInput(final boolean value) {
+        this.coordinateSortedInput = value;
+    }
+
     /** Get the the number of bases in the given alignment block and record that have base quality greater or equal to the minimum */
     public static int getNumBasesPassingMinimumBaseQuality(final SAMRecord record, final AlignmentBlock block, final int minimumBaseQuality) {
         int basesInBlockAtMinimumQuality = 0;
@@ -280,25 +285,13 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
         this.sampleSize = sampleSize;
 
         final List<Interval> uniqueBaits = this.allProbes.uniqued().getIntervals();
-        this.probeDetector = new OverlapDetector<Interval>(-this.nearProbeDistance, 0);
-        this.probeDetector.addAll(uniqueBaits, uniqueBaits);
+        this.probeIndex = new IntervalIndex(uniqueBaits);
         this.probeTerritory = Interval.countBases(uniqueBaits);
 
         final List<Interval> uniqueTargets = this.allTargets.uniqued().getIntervals();
-        targetDetector = new OverlapDetector<Interval>(0,0);
-        this.targetDetector.addAll(uniqueTargets, uniqueTargets);
+        this.targetIndex = new IntervalIndex(uniqueTargets);
         this.targetTerritory = Interval.countBases(uniqueTargets);
 
-        // Populate the coverage by target map
-        int i = 0;
-        cov = new Coverage[uniqueTargets.size()];
-        this.coverageByTargetForRead = new LinkedHashMap<Interval, Coverage>(uniqueTargets.size() * 2, 0.5f);
-        for (final Interval target : uniqueTargets) {
-            final Coverage coverage = new Coverage(target, 0);
-            this.coverageByTargetForRead.put(target, coverage);
-            cov[i++] = coverage;
-        }
-
         long genomeSizeAccumulator = 0;
         for (final SAMSequenceRecord seq : this.allProbes.getHeader().getSequenceDictionary().getSequences()) {
             genomeSizeAccumulator += seq.getSequenceLength();
@@ -307,10 +300,11 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
 
 
         if (refFile != null) {
-            intervalToGc = new HashMap<Interval,Double>();
-            for (final Interval target : uniqueTargets) {
+            targetGc = new double[uniqueTargets.size()];
+            for (int i = 0; i < targetGc.length; ++i) {
+                final Interval target = uniqueTargets.get(i);
                 final ReferenceSequence rs = refFile.getSubsequenceAt(target.getSequence(), target.getStart(), target.getEnd());
-                intervalToGc.put(target,SequenceUtil.calculateGc(rs.getBases()));
+                targetGc[i] = SequenceUtil.calculateGc(rs.getBases());
             }
         }
 
@@ -318,15 +312,59 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
         this.minimumBaseQuality = minimumBaseQuality;
         this.clipOverlappingReads = clipOverlappingReads;
         this.noSideEffects = noSideEffects;
+        this.coverageOffset = 0;
 
+        this.accumulationLevels = accumulationLevels;
+        this.samRgRecords = samRgRecords;
         setup(accumulationLevels, samRgRecords);
     }
 
+    /** Makes a collector for the reads of one contig, see makeContigCollector. */
+    private TargetMetricsCollector(final TargetMetricsCollector<METRIC_TYPE> parent, final String contig) {
+        this.perTargetCoverage = null;
+        this.perBaseCoverage = null;
+        this.probeSetName = parent.probeSetName;
+        this.nearProbeDistance = parent.nearProbeDistance;
+        this.allProbes = parent.allProbes;
+        this.allTargets = parent.allTargets;
+        this.coverageCap = parent.coverageCap;
+        this.sampleSize = parent.sampleSize;
+        this.probeIndex = parent.probeIndex.forContig(contig);
+        this.probeTerritory = parent.probeTerritory;
+        this.targetIndex = parent.targetIndex.forContig(contig);
+        this.targetTerritory = parent.targetTerritory;
+        this.genomeSize = parent.genomeSize;
+        this.minimumMappingQuality = parent.minimumMappingQuality;
+        this.minimumBaseQuality = parent.minimumBaseQuality;
+        this.clipOverlappingReads = parent.clipOverlappingReads;
+        this.noSideEffects = parent.noSideEffects;
+        this.coverageOffset = parent.coverageOffset + parent.targetIndex.getOffset(contig);
+
+        this.accumulationLevels = parent.accumulationLevels;
+        this.samRgRecords = parent.samRgRecords;
+        setup(accumulationLevels, samRgRecords);
+    }
+
+    /**
+     * Makes a collector for the reads aligned to one contig, e.g. to collect the contigs of an indexed input on separate
+     * threads, and the unmapped reads if contig is null.  It only holds the coverage of the targets on that contig, and
+     * must be combined into this collector with merge before finish is called; it cannot be finished itself.
+     */
+    public TargetMetricsCollector<METRIC_TYPE> makeContigCollector(final String contig) {
+        final TargetMetricsCollector<METRIC_TYPE> parent = this;
+        return new TargetMetricsCollector<METRIC_TYPE>(this, contig) {
+            @Override
+            public METRIC_TYPE convertMetric(final TargetMetrics targetMetrics) {
+                return parent.convertMetric(targetMetrics);
+            }
+        };
+    }
+
     @Override
     protected PerUnitMetricCollector<METRIC_TYPE, Integer, SAMRecord> makeChildCollector(final String sample, final String library, final String readGroup) {
-        final PerUnitTargetMetricCollector collector =  new PerUnitTargetMetricCollector(probeSetName, coverageByTargetForRead.keySet(),
+        final PerUnitTargetMetricCollector collector =  new PerUnitTargetMetricCollector(probeSetName,
                                                                                          sample, library, readGroup, probeTerritory, targetTerritory, genomeSize,
-                                                                                         intervalToGc, minimumMappingQuality, minimumBaseQuality, clipOverlappingReads);
+                                                                                         minimumMappingQuality, minimumBaseQuality, clipOverlappingReads);
         if (this.probeSetName != null) {
             collector.setBaitSetName(probeSetName);
         }
@@ -347,13 +385,20 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
      * Collect the Target Metrics for one unit of "accumulation" (i.e. for one sample, or for one library ...)
      */
     public class PerUnitTargetMetricCollector implements PerUnitMetricCollector<METRIC_TYPE, Integer, SAMRecord> {
-        private final Map<Interval, Double> intervalToGc;
         private File perTargetOutput;
         private File perBaseOutput;
+
+        // The per-base coverage writer, opened when the first target is written, and the index of the next target to write
+        private PerBaseCoverageWriter perBaseWriter;
+        private int nextTargetToWrite = 0;
         final long[] baseQHistogramArray = new long[Byte.MAX_VALUE];
 
-        // A Map to accumulate per-bait-region (i.e. merge of overlapping targets) coverage. */
-        private final Map<Interval, Coverage> coverageByTarget;
+        // Per-base coverage of every unique target (i.e. merge of overlapping targets), addressed by IntervalIndex.getOffset()
+        private final int[] coverage = new int[targetIndex.getTotalLength()];
+
+        // Cursors over the targets and baits; these advance with the reads when they are coordinate sorted
+        private final IntervalIndex.Cursor targetCursor = targetIndex.cursor();
+        private final IntervalIndex.Cursor probeCursor = probeIndex.cursor();
 
         private final TargetMetrics metrics = new TargetMetrics();
         private final int minimumBaseQuality;
@@ -364,10 +409,9 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
          * Constructor that parses the squashed reference to genome reference file and stores the
          * information in a map for later use.
          */
-        public PerUnitTargetMetricCollector(final String probeSetName, final Set<Interval> coverageTargets,
+        public PerUnitTargetMetricCollector(final String probeSetName,
                                             final String sample, final String library, final String readGroup,
                                             final long probeTerritory, final long targetTerritory, final long genomeSize,
-                                            final Map<Interval, Double> intervalToGc,
                                             final int minimumMappingQuality,
                                             final int minimumBaseQuality,
                                             final boolean clipOverlappingReads) {
@@ -380,14 +424,8 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
             metrics.TARGET_TERRITORY = targetTerritory;
             metrics.GENOME_SIZE      = genomeSize;
 
-            this.coverageByTarget = new LinkedHashMap<Interval, Coverage>(coverageTargets.size() * 2, 0.5f);
-            for (final Interval target : coverageTargets) {
-                this.coverageByTarget.put(target, new Coverage(target, 0));
-            }
-
             this.mapQFilter = new CountingMapQFilter(minimumMappingQuality);
             this.minimumBaseQuality = minimumBaseQuality;
-            this.intervalToGc = intervalToGc;
             this.clipOverlappingReads = clipOverlappingReads;
         }
 
@@ -461,15 +499,28 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
             ///////////////////////////////////////////////////////////////////
             if (record.getReadUnmappedFlag()) return;
 
-            // Prefetch the list of target and bait overlaps here as they're needed multiple times.
-            final Interval read = new Interval(record.getReferenceName(), record.getAlignmentStart(), record.getAlignmentEnd());
-            final Collection<Interval> targets = targetDetector.getOverlaps(read);
-            final Collection<Interval> probes  = probeDetector.getOverlaps(read);
+            // Locate the first target and the first bait (including the near bait space) that can overlap the read here, as they're needed multiple times.
+            final String contig = record.getReferenceName();
+            final int readStart = record.getAlignmentStart(), readEnd = record.getAlignmentEnd();
+            final int firstTarget = targetCursor.seek(contig, readStart);
+            final int targetLimit = targetCursor.limit();
+            final int firstProbe = probeCursor.seek(contig, readStart - nearProbeDistance);
+            final int probeLimit = probeCursor.limit();
+            final boolean nearProbes = firstProbe < probeLimit && probeIndex.getStart(firstProbe) - nearProbeDistance <= readEnd;
+
+            // With coordinate sorted input no later record can cover the targets before this one
+            if (this.perBaseOutput != null && coordinateSortedInput) {
+                if (firstTarget < nextTargetToWrite && firstTarget < targetLimit && targetIndex.getStart(firstTarget) <= readEnd) {
+                    throw new PicardException("Record " + record.getReadName() + " covers target " + targetIndex.getInterval(firstTarget) +
+                            " whose per-base coverage has already been written, the input is not coordinate sorted.");
+                }
+                writePerBaseCoverage(firstTarget);
+            }
 
             // Calculate the values we need for HS_LIBRARY_SIZE
             if (!record.getSupplementaryAlignmentFlag()) {
                 if (record.getReadPairedFlag() && record.getFirstOfPairFlag() && !record.getReadUnmappedFlag() && !record.getMateUnmappedFlag()) {
-                    if (!probes.isEmpty()) {
+                    if (nearProbes) {
                         ++this.metrics.PF_SELECTED_PAIRS;
                         if (!record.getDuplicateReadFlag()) ++this.metrics.PF_SELECTED_UNIQUE_PAIRS;
                     }
@@ -483,14 +534,12 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
                 final int mappedBases = basesAlignedInRecord;
                 int onBaitBases = 0;
 
-                if (!probes.isEmpty()) {
-                    for (final Interval bait : probes) {
+                if (nearProbes) {
+                    for (int bait = firstProbe; bait < probeLimit && probeIndex.getStart(bait) - nearProbeDistance <= readEnd; ++bait) {
                         for (final AlignmentBlock block : record.getAlignmentBlocks()) {
-                            final int end = CoordMath.getEnd(block.getReferenceStart(), block.getLength());
-
-                            for (int pos = block.getReferenceStart(); pos <= end; ++pos) {
-                                if (pos >= bait.getStart() && pos <= bait.getEnd()) ++onBaitBases;
-                            }
+                            final int start = Math.max(block.getReferenceStart(), probeIndex.getStart(bait));
+                            final int end = Math.min(CoordMath.getEnd(block.getReferenceStart(), block.getLength()), probeIndex.getEnd(bait));
+                            if (start <= end) onBaitBases += end - start + 1;
                         }
                     }
 
@@ -522,38 +571,80 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
                 metrics.PCT_EXC_OVERLAP += numOverlappingBasesToClip;
             } else rec = record;
 
-            // Find the target overlaps
+            // Find the target overlaps; targets do not overlap each other and blocks are in ascending order, so
+            // a single pointer is advanced through the targets overlapping the read.
+            int target = firstTarget;
             for (final AlignmentBlock block : rec.getAlignmentBlocks()) {
-                final int length = block.getLength(), refStart = block.getReferenceStart(), readStart = block.getReadStart();
+                final int length = block.getLength(), refStart = block.getReferenceStart(), blockReadStart = block.getReadStart();
 
                 for (int offset = 0; offset < length; ++offset) {
                     final int refPos = refStart + offset;
-                    final int readPos = readStart + offset;
+                    final int readPos = blockReadStart + offset;
                     final int qual = baseQualities[readPos - 1];
 
                     if (qual < minimumBaseQuality) {
                         this.metrics.PCT_EXC_BASEQ++;
                     } else {
-                        boolean isOnTarget = false;
-                        for (final Interval target : targets) {
-                            if (refPos >= target.getStart() && refPos <= target.getEnd()) {
-                                isOnTarget = true;
-                                ++this.metrics.ON_TARGET_BASES;
-                                if (mappedInPair) ++this.metrics.ON_TARGET_FROM_PAIR_BASES;
-
-                                final int targetOffset = refPos - target.getStart();
-                                final Coverage coverage = this.coverageByTarget.get(target);
-                                coverage.addBase(targetOffset);
-                                baseQHistogramArray[baseQualities[offset]]++;
-                            }
-                        }
+                        while (target < targetLimit && targetIndex.getEnd(target) < refPos) ++target;
+
+                        if (target < targetLimit && targetIndex.getStart(target) <= refPos) {
+                            ++this.metrics.ON_TARGET_BASES;
+                            if (mappedInPair) ++this.metrics.ON_TARGET_FROM_PAIR_BASES;
 
-                        if (!isOnTarget) this.metrics.PCT_EXC_OFF_TARGET++;
+                            final int coverageOffset = targetIndex.getOffset(target) + refPos - targetIndex.getStart(target);
+                            if (coverage[coverageOffset] < Integer.MAX_VALUE) ++coverage[coverageOffset];
+                            baseQHistogramArray[baseQualities[offset]]++;
+                        } else {
+                            this.metrics.PCT_EXC_OFF_TARGET++;
+                        }
                     }
                 }
             }
         }
 
+        @Override
+        public void merge(final PerUnitMetricCollector<METRIC_TYPE, Integer, SAMRecord> other) {
+            final PerUnitTargetMetricCollector otherCollector = (PerUnitTargetMetricCollector) other;
+            final TargetMetrics otherMetrics = otherCollector.metrics;
+
+            metrics.TOTAL_READS               += otherMetrics.TOTAL_READS;
+            metrics.PF_READS                  += otherMetrics.PF_READS;
+            metrics.PF_BASES                  += otherMetrics.PF_BASES;
+            metrics.PF_UNIQUE_READS           += otherMetrics.PF_UNIQUE_READS;
+            metrics.PF_SELECTED_PAIRS         += otherMetrics.PF_SELECTED_PAIRS;
+            metrics.PF_SELECTED_UNIQUE_PAIRS  += otherMetrics.PF_SELECTED_UNIQUE_PAIRS;
+            metrics.PF_UQ_READS_ALIGNED       += otherMetrics.PF_UQ_READS_ALIGNED;
+            metrics.PF_BASES_ALIGNED          += otherMetrics.PF_BASES_ALIGNED;
+            metrics.PF_UQ_BASES_ALIGNED       += otherMetrics.PF_UQ_BASES_ALIGNED;
+            metrics.ON_PROBE_BASES            += otherMetrics.ON_PROBE_BASES;
+            metrics.NEAR_PROBE_BASES          += otherMetrics.NEAR_PROBE_BASES;
+            metrics.OFF_PROBE_BASES           += otherMetrics.OFF_PROBE_BASES;
+            metrics.ON_TARGET_BASES           += otherMetrics.ON_TARGET_BASES;
+            metrics.ON_TARGET_FROM_PAIR_BASES += otherMetrics.ON_TARGET_FROM_PAIR_BASES;
+
+            // These only hold counts of bases until finish
+            metrics.PCT_EXC_DUPE              += otherMetrics.PCT_EXC_DUPE;
+            metrics.PCT_EXC_BASEQ             += otherMetrics.PCT_EXC_BASEQ;
+            metrics.PCT_EXC_OVERLAP           += otherMetrics.PCT_EXC_OVERLAP;
+            metrics.PCT_EXC_OFF_TARGET        += otherMetrics.PCT_EXC_OFF_TARGET;
+            mapQFilter.addCounts(otherCollector.mapQFilter);
+
+            for (int i = 0; i < baseQHistogramArray.length; ++i) {
+                baseQHistogramArray[i] += otherCollector.baseQHistogramArray[i];
+            }
+
+            // The other collector may only hold the coverage of the targets of one contig
+            final int shift = otherCollector.getCoverageOffset() - coverageOffset;
+            for (int i = 0; i < otherCollector.coverage.length; ++i) {
+                coverage[shift + i] = (int) Math.min((long) coverage[shift + i] + otherCollector.coverage[i], Integer.MAX_VALUE);
+            }
+        }
+
+        /** The offset of the first value of the coverage array in the coverage of all unique targets. */
+        private int getCoverageOffset() {
+            return coverageOffset;
+        }
+
         @Override
         public void finish() {
             metrics.PCT_PF_READS            = metrics.PF_READS / (double) metrics.TOTAL_READS;
@@ -593,7 +684,10 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
             metrics.HET_SNP_Q = QualityUtil.getPhredScoreFromErrorProbability((1 - metrics.HET_SNP_SENSITIVITY));
 
             calculateGcMetrics();
-            emitPerBaseCoverageIfRequested();
+            if (this.perBaseOutput != null) {
+                writePerBaseCoverage(targetIndex.size());
+                perBaseWriter.close();
+            }
         }
 
         /** Calculates how much additional sequencing is needed to raise 80% of bases to the mean for the lane. */
@@ -609,16 +703,17 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
             final int[] targetBases = new int[targetBasesDepth.length]; // counts for how many target bases are at at least X coverage, where X corresponds to the value at the same offset in targetBasesDepth
 
             // consider all bases in calculating the mean, median etc.
-            for (final Coverage c : this.coverageByTarget.values()) {
-                final boolean hasCoverage = c.hasCoverage();
-                final int[] targetDepths = c.getDepths();
+            for (int target = 0; target < targetIndex.size(); ++target) {
+                final int from = targetIndex.getOffset(target), to = targetIndex.getOffset(target + 1);
+                final boolean hasCoverage = hasCoverage(from, to);
 
                 if (!hasCoverage) {
                     zeroCoverageTargets++;
-                    coverageDistribution[0] += c.getDepths().length;
+                    coverageDistribution[0] += to - from;
                 }
 
-                for (final int depth : targetDepths) {
+                for (int offset = from; offset < to; ++offset) {
+                    final int depth = coverage[offset];
                     if (0 < depth) totalCoverage += depth;
                     if (hasCoverage) depths[depthIndex++] = depth;
                     coverageDistribution[Math.min(depth, coverageCap)]++;
@@ -664,35 +759,19 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
             return coverageDistribution;
         }
 
-        /** Emits a file with per base coverage if an output file has been set. */
-        private void emitPerBaseCoverageIfRequested() {
-            if (this.perBaseOutput == null) return;
-
-            final PrintWriter out = new PrintWriter(IOUtil.openFileForBufferedWriting(this.perBaseOutput));
-            out.println("chrom\tpos\ttarget\tcoverage");
-            for (final Map.Entry<Interval,Coverage> entry : this.coverageByTarget.entrySet()) {
-                final Interval interval = entry.getKey();
-                final String chrom = interval.getContig();
-                final int firstBase = interval.getStart();
-
-                final int[] cov = entry.getValue().getDepths();
-                for (int i = 0; i < cov.length; ++i) {
-                    out.print(chrom);
-                    out.print('\t');
-                    out.print(firstBase + i);
-                    out.print('\t');
-                    out.print(interval.getName());
-                    out.print('\t');
-                    out.print(cov[i]);
-                    out.println();
-                }
+        /** Writes the per-base coverage of the targets that have not been written yet up to, but not including, target end. */
+        private void writePerBaseCoverage(final int end) {
+            if (perBaseWriter == null) {
+                perBaseWriter = new PerBaseCoverageWriter(this.perBaseOutput, allTargets.getHeader().getSequenceDictionary());
+            }
+            for (; nextTargetToWrite < end; ++nextTargetToWrite) {
+                perBaseWriter.write(targetIndex.getInterval(nextTargetToWrite), coverage,
+                        targetIndex.getOffset(nextTargetToWrite), targetIndex.getOffset(nextTargetToWrite + 1));
             }
-
-            out.close();
         }
 
         private void calculateGcMetrics() {
-            if (this.intervalToGc != null) {
+            if (targetGc != null) {
                 log.info("Calculating GC metrics");
 
                 // Setup the output file if we're outputting per-target coverage
@@ -713,27 +792,31 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
                 final long[] targetBasesByGc  = new long[bins];
                 final long[] alignedBasesByGc = new long[bins];
 
-                for (final Map.Entry<Interval,Coverage> entry : this.coverageByTarget.entrySet()) {
-                    final Interval interval = entry.getKey();
-                    final Coverage cov = entry.getValue();
+                for (int target = 0; target < targetIndex.size(); ++target) {
+                    final Interval interval = targetIndex.getInterval(target);
 
                     if (interval.length() <= 0) {
                         log.warn("interval of length zero found: " + interval + " skipped.");
                         continue;
                     }
 
-                    final double gcDouble = this.intervalToGc.get(interval);
+                    final double gcDouble = targetGc[target];
                     final int gc = (int) Math.round(gcDouble * 100);
 
+                    final int from = targetIndex.getOffset(target), to = targetIndex.getOffset(target + 1);
+                    int total = 0;
+                    for (int i = from; i < to; ++i) total += this.coverage[i];
+
                     targetBasesByGc[gc]  += interval.length();
-                    alignedBasesByGc[gc] += cov.getTotal();
+                    alignedBasesByGc[gc] += total;
 
                     if (out != null) {
-                        final double coverage = cov.getTotal() / (double) interval.length();
+                        final double coverage = total / (double) interval.length();
                         double min = Integer.MAX_VALUE;
                         double max = Integer.MIN_VALUE;
                         double targetBasesAt0x = 0.0;
-                        for (final int d : cov.getDepths()) {
+                        for (int i = from; i < to; ++i) {
+                            final int d = this.coverage[i];
                             if (0 == d) targetBasesAt0x++;
                             if (d < min) min = d;
                             if (max < d) max = d;
@@ -783,6 +866,15 @@ public abstract class TargetMetricsCollector<METRIC_TYPE extends MultilevelMetri
         }
 
 
+        /** Returns true if any base in the range [from, to) of the coverage array has coverage of > 0 */
+        private boolean hasCoverage(final int from, final int to) {
+            for (int i = from; i < to; ++i) {
+                if (coverage[i] > 0) return true;
+            }
+
+            return false;
+        }
+
         @Override
         public void addMetricsToFile(final MetricsFile<METRIC_TYPE, Integer> hsMetricsComparableMetricsFile) {
             hsMetricsComparableMetricsFile.addMetric(convertMetric(this.metrics));
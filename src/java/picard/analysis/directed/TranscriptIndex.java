@@ -0,0 +1,284 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis.directed;
+
+import htsjdk.samtools.util.CoordMath;
+import picard.PicardException;
+import picard.annotation.Gene;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable index over the genes and transcripts of an annotation (e.g. as loaded by GeneAnnotationReader.loadRefFlat()),
+ * meant to be built once and shared by all the per-unit collectors of RnaSeqMetricsCollector.
+ *
+ * Genes are held grouped by contig in order of start, with a running maximum of their ends, so that the genes overlapping
+ * a read can be found through a {@link Cursor}, which advances forward cheaply for coordinate-sorted reads and falls back
+ * to a binary search otherwise. Each transcript is assigned an offset so that the per-base coverage of all transcripts can be
+ * held in a single {@link Coverage}, whose pages are only allocated once some base in them is covered.
+ */
+class TranscriptIndex {
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    /** The genes in the order in which they were given, and the [first, last) transcripts of each. */
+    private final Gene[] genes;
+    private final int[] firstTranscripts;
+
+    /** The transcripts of all genes, gene after gene, and the offset of the coverage of each. */
+    private final Gene.Transcript[] transcripts;
+    private final long[] coverageOffsets;
+    private final long totalLength;
+
+    /** The exons of each transcript as [start, end, offset in transcript] triples, or null if they are not sorted by start. */
+    private final int[][] exons;
+
+    /** The indices of the genes sorted by contig and start, with their starts, ends, and the running maximum end on the contig. */
+    private final int[] sortedGenes;
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] maxEnds;
+
+    /** Maps each contig to the [from, to) range of the sorted genes on it. */
+    private final Map<String, int[]> rangeByContig = new HashMap<>();
+
+    TranscriptIndex(final Collection<Gene> genes) {
+        this.genes = genes.toArray(new Gene[genes.size()]);
+        this.firstTranscripts = new int[this.genes.length + 1];
+
+        final List<Gene.Transcript> transcripts = new ArrayList<>();
+        for (int g = 0; g < this.genes.length; ++g) {
+            firstTranscripts[g] = transcripts.size();
+            for (final Gene.Transcript transcript : this.genes[g]) {
+                transcripts.add(transcript);
+            }
+        }
+        firstTranscripts[this.genes.length] = transcripts.size();
+        this.transcripts = transcripts.toArray(new Gene.Transcript[transcripts.size()]);
+
+        // Transcripts that are equal (same name and coordinates) share their coverage, as they would as keys of a map
+        this.coverageOffsets = new long[this.transcripts.length];
+        this.exons = new int[this.transcripts.length][];
+        final Map<Gene.Transcript, Long> offsetByTranscript = new HashMap<>();
+        long offset = 0;
+        for (int t = 0; t < this.transcripts.length; ++t) {
+            final Gene.Transcript transcript = this.transcripts[t];
+            final Long existingOffset = offsetByTranscript.get(transcript);
+            if (existingOffset != null) {
+                coverageOffsets[t] = existingOffset;
+            } else {
+                coverageOffsets[t] = offset;
+                offsetByTranscript.put(transcript, offset);
+                offset += transcript.length();
+            }
+            exons[t] = makeExons(transcript);
+        }
+        this.totalLength = offset;
+        if ((totalLength >>> PAGE_SHIFT) >= Integer.MAX_VALUE) {
+            throw new PicardException("Transcripts cover too many bases to be indexed: " + totalLength);
+        }
+
+        final Integer[] order = new Integer[this.genes.length];
+        for (int g = 0; g < order.length; ++g) order[g] = g;
+        Arrays.sort(order, (lhs, rhs) -> {
+            final int cmp = this.genes[lhs].getContig().compareTo(this.genes[rhs].getContig());
+            return cmp != 0 ? cmp : Integer.compare(this.genes[lhs].getStart(), this.genes[rhs].getStart());
+        });
+
+        final int n = order.length;
+        this.sortedGenes = new int[n];
+        this.starts = new int[n];
+        this.ends = new int[n];
+        this.maxEnds = new int[n];
+        int[] range = null;
+        for (int i = 0; i < n; ++i) {
+            final Gene gene = this.genes[order[i]];
+            sortedGenes[i] = order[i];
+            starts[i] = gene.getStart();
+            ends[i] = gene.getEnd();
+            if (range == null || !this.genes[sortedGenes[range[0]]].getContig().equals(gene.getContig())) {
+                if (range != null) range[1] = i;
+                range = new int[]{i, n};
+                rangeByContig.put(gene.getContig(), range);
+                maxEnds[i] = ends[i];
+            } else {
+                maxEnds[i] = Math.max(maxEnds[i - 1], ends[i]);
+            }
+        }
+    }
+
+    /** Returns the exons of the transcript as [start, end, offset] triples, or null if they are not in order of start. */
+    private static int[] makeExons(final Gene.Transcript transcript) {
+        final int[] exons = new int[3 * transcript.exons.length];
+        int offset = 0;
+        for (int e = 0; e < transcript.exons.length; ++e) {
+            final Gene.Transcript.Exon exon = transcript.exons[e];
+            if (e > 0 && exon.start < exons[3 * (e - 1)]) return null;
+            exons[3 * e] = exon.start;
+            exons[3 * e + 1] = exon.end;
+            exons[3 * e + 2] = offset;
+            offset += CoordMath.getLength(exon.start, exon.end);
+        }
+        return exons;
+    }
+
+    /** The number of genes, in the order in which they were given to the constructor. */
+    int getGeneCount() { return genes.length; }
+
+    Gene getGene(final int gene) { return genes[gene]; }
+
+    /** The index of the first transcript of the gene; the transcripts of gene g are those up to getFirstTranscript(g + 1). */
+    int getFirstTranscript(final int gene) { return firstTranscripts[gene]; }
+
+    Gene.Transcript getTranscript(final int transcript) { return transcripts[transcript]; }
+
+    Cursor cursor() { return new Cursor(); }
+
+    Coverage newCoverage() { return new Coverage(); }
+
+    /**
+     * Finds the genes overlapping a range of a contig.  Queries with ranges in coordinate order are answered by walking
+     * forward from the previous answer.
+     */
+    class Cursor {
+        private String contig = null;
+        private int from = 0;
+        private int to = 0;
+        private int position = Integer.MIN_VALUE;
+        private int index = 0;
+
+        private int[] overlaps = new int[16];
+        private int overlapCount = 0;
+
+        /** Finds the genes overlapping [start, end] on contig, and returns how many there are. */
+        int find(final String contig, final int start, final int end) {
+            if (!contig.equals(this.contig)) {
+                final int[] range = rangeByContig.get(contig);
+                this.contig = contig;
+                this.from = range == null ? 0 : range[0];
+                this.to = range == null ? 0 : range[1];
+                this.index = binarySearch(start);
+            } else if (start < this.position) {
+                this.index = binarySearch(start);
+            } else {
+                while (index < to && maxEnds[index] < start) ++index;
+            }
+            this.position = start;
+
+            overlapCount = 0;
+            for (int i = index; i < to && starts[i] <= end; ++i) {
+                if (ends[i] >= start) {
+                    if (overlapCount == overlaps.length) overlaps = Arrays.copyOf(overlaps, 2 * overlapCount);
+                    overlaps[overlapCount++] = sortedGenes[i];
+                }
+            }
+            return overlapCount;
+        }
+
+        /** The gene index of the i'th gene found by the last call to {@link #find(String, int, int)}. */
+        int getOverlap(final int i) { return overlaps[i]; }
+
+        /** Returns the first index in [from, to) at or after which genes may end at or after position. */
+        private int binarySearch(final int position) {
+            int lo = from, hi = to;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (maxEnds[mid] < position) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    /** Per-base coverage of every transcript, held in pages that are allocated when first covered. */
+    class Coverage {
+        private final int[][] pages = new int[(int) ((totalLength + PAGE_SIZE - 1) >>> PAGE_SHIFT)][];
+
+        /**
+         * Adds one to the coverage of every base of the transcript in the genomic range [genomeStart, genomeEnd),
+         * like Gene.Transcript.addCoverageCounts().
+         */
+        void add(final int transcript, final int genomeStart, final int genomeEnd) {
+            final int[] exons = TranscriptIndex.this.exons[transcript];
+            final long offset = coverageOffsets[transcript];
+            if (exons == null) {
+                final Gene.Transcript tx = transcripts[transcript];
+                for (int i = genomeStart; i < genomeEnd; ++i) {
+                    final int txBase = tx.getTranscriptCoordinate(i);
+                    if (txBase > 0) increment(offset + txBase - 1);
+                }
+                return;
+            }
+
+            // Exons are in order of start, so a base belongs to the first exon containing it iff it is after the ends of all
+            // earlier exons.
+            int coveredEnd = Integer.MIN_VALUE;
+            for (int e = 0; e < exons.length && exons[e] < genomeEnd; e += 3) {
+                final int from = Math.max(genomeStart, Math.max(exons[e], coveredEnd + 1));
+                final int to = Math.min(genomeEnd - 1, exons[e + 1]);
+                for (int i = from; i <= to; ++i) {
+                    increment(offset + exons[e + 2] + i - exons[e]);
+                }
+                coveredEnd = Math.max(coveredEnd, exons[e + 1]);
+            }
+        }
+
+        private void increment(final long position) {
+            final int page = (int) (position >>> PAGE_SHIFT);
+            if (pages[page] == null) pages[page] = new int[PAGE_SIZE];
+            ++pages[page][(int) (position & (PAGE_SIZE - 1))];
+        }
+
+        /** Whether any base of the transcript has been covered, or has shared a page with a covered base. */
+        boolean isAllocated(final int transcript) {
+            final long offset = coverageOffsets[transcript];
+            final long end = offset + transcripts[transcript].length();
+            for (long page = offset >>> PAGE_SHIFT; page << PAGE_SHIFT < end; ++page) {
+                if (pages[(int) page] != null) return true;
+            }
+            return false;
+        }
+
+        /** Returns a copy of the per-base coverage of the transcript. */
+        int[] get(final int transcript) {
+            final long offset = coverageOffsets[transcript];
+            final int[] coverage = new int[transcripts[transcript].length()];
+            for (int i = 0; i < coverage.length; ) {
+                final long position = offset + i;
+                final int[] page = pages[(int) (position >>> PAGE_SHIFT)];
+                final int inPage = (int) (position & (PAGE_SIZE - 1));
+                final int length = Math.min(coverage.length - i, PAGE_SIZE - inPage);
+                if (page != null) System.arraycopy(page, inPage, coverage, i, length);
+                i += length;
+            }
+            return coverage;
+        }
+    }
+}
@@ -36,4 +36,16 @@ public class GeneAnnotationReader {
     public static OverlapDetector<Gene> loadRefFlat(File refFlatFile, SAMSequenceDictionary sequenceDictionary) {
         return RefFlatReader.load(refFlatFile, sequenceDictionary);
     }
+
+    /**
+     * Like loadRefFlat(), but reads the genes from a binary snapshot of the refFlat file if there is an up-to-date one,
+     * and otherwise writes one after parsing the file.  The snapshot is keyed by the MD5 of the refFlat file and by the
+     * sequence dictionary.
+     *
+     * @param cacheDirectory where to keep the snapshot, or null to keep it next to the refFlat file.
+     */
+    public static OverlapDetector<Gene> loadRefFlatWithCache(final File refFlatFile, final SAMSequenceDictionary sequenceDictionary,
+                                                             final File cacheDirectory) {
+        return RefFlatCache.load(refFlatFile, sequenceDictionary, cacheDirectory);
+    }
 }
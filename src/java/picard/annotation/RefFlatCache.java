@@ -0,0 +1,195 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.annotation;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.OverlapDetector;
+import htsjdk.samtools.util.StringUtil;
+import picard.util.CacheFileUtil;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A binary snapshot of the genes parsed from a refFlat file, so that the same annotation need not be parsed again.
+ * The snapshot is keyed by the MD5 of the refFlat file and by a digest of the names and lengths of the sequence dictionary
+ * (which decides which genes are kept), and lives in a sidecar file named after both.  A missing or stale snapshot is
+ * written the first time it is needed; an existing one is memory-mapped and decoded straight into Gene objects.
+ *
+ * The file holds a header (magic, version, the two digests) followed by the number of genes and, for each gene in the
+ * order in which RefFlatReader found them, its sequence index, start, end, strand, name and transcripts with their exons.
+ */
+class RefFlatCache {
+    private static final int MAGIC = 0x50524643; // "PRFC"
+    private static final int VERSION = 1;
+    private static final int MD5_LENGTH = 16;
+    private static final int HEADER_LENGTH = 4 + 4 + 2 * MD5_LENGTH;
+
+    private static final Log log = Log.getInstance(RefFlatCache.class);
+
+    private RefFlatCache() {}
+
+    /** Loads the genes of the refFlat file from its snapshot, writing the snapshot first if it is missing or stale. */
+    static OverlapDetector<Gene> load(final File refFlatFile, final SAMSequenceDictionary sequenceDictionary, final File cacheDirectory) {
+        IOUtil.assertFileIsReadable(refFlatFile);
+        final byte[] refFlatMd5 = CacheFileUtil.calculateFileMd5(refFlatFile);
+        final byte[] dictionaryMd5 = calculateDictionaryMd5(sequenceDictionary);
+        final File cacheFile = getCacheFile(refFlatFile, dictionaryMd5, cacheDirectory);
+
+        List<Gene> genes = read(cacheFile, refFlatMd5, dictionaryMd5, sequenceDictionary);
+        if (genes == null) {
+            genes = new RefFlatReader(refFlatFile, sequenceDictionary).loadGenes();
+            log.info("Writing refFlat cache " + cacheFile + ".");
+            write(genes, refFlatMd5, dictionaryMd5, sequenceDictionary, cacheFile);
+        }
+        return RefFlatReader.makeOverlapDetector(genes);
+    }
+
+    /** The snapshot of the refFlat file for the sequence dictionary with the given digest. */
+    static File getCacheFile(final File refFlatFile, final byte[] dictionaryMd5, final File cacheDirectory) {
+        final File directory = cacheDirectory != null ? cacheDirectory : refFlatFile.getAbsoluteFile().getParentFile();
+        final String dictionaryTag = StringUtil.bytesToHexString(Arrays.copyOf(dictionaryMd5, 4)).toLowerCase();
+        return new File(directory, refFlatFile.getName() + "." + dictionaryTag + ".cache");
+    }
+
+    /** Reads the genes from the snapshot, or returns null if there is none for these digests. */
+    static List<Gene> read(final File cacheFile, final byte[] refFlatMd5, final byte[] dictionaryMd5,
+                           final SAMSequenceDictionary sequenceDictionary) {
+        if (!cacheFile.exists()) return null;
+        final ByteBuffer buffer;
+        try (final RandomAccessFile file = new RandomAccessFile(cacheFile, "r")) {
+            if (file.length() < HEADER_LENGTH) return null;
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } catch (final IOException e) {
+            log.warn("Could not read refFlat cache " + cacheFile + ", rewriting it: " + e.getMessage());
+            return null;
+        }
+
+        final byte[] md5 = new byte[MD5_LENGTH];
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+        buffer.get(md5);
+        if (!Arrays.equals(md5, refFlatMd5)) return null;
+        buffer.get(md5);
+        if (!Arrays.equals(md5, dictionaryMd5)) return null;
+
+        try {
+            final int geneCount = buffer.getInt();
+            final List<Gene> genes = new ArrayList<Gene>(geneCount);
+            for (int g = 0; g < geneCount; ++g) {
+                final String contig = sequenceDictionary.getSequence(buffer.getInt()).getSequenceName();
+                final int start = buffer.getInt();
+                final int end = buffer.getInt();
+                final boolean negative = buffer.get() != 0;
+                final Gene gene = new Gene(contig, start, end, negative, readString(buffer));
+                for (int t = buffer.getInt(); t > 0; --t) {
+                    final String name = readString(buffer);
+                    final int transcriptionStart = buffer.getInt();
+                    final int transcriptionEnd = buffer.getInt();
+                    final int codingStart = buffer.getInt();
+                    final int codingEnd = buffer.getInt();
+                    final int exonCount = buffer.getInt();
+                    final Gene.Transcript tx = gene.addTranscript(name, transcriptionStart, transcriptionEnd, codingStart, codingEnd, exonCount);
+                    for (int e = 0; e < exonCount; ++e) {
+                        tx.addExon(buffer.getInt(), buffer.getInt());
+                    }
+                }
+                genes.add(gene);
+            }
+            return genes;
+        } catch (final RuntimeException e) {
+            log.warn("Could not decode refFlat cache " + cacheFile + ", rewriting it: " + e);
+            return null;
+        }
+    }
+
+    /** Writes the genes to the cache file. */
+    static void write(final List<Gene> genes, final byte[] refFlatMd5, final byte[] dictionaryMd5,
+                      final SAMSequenceDictionary sequenceDictionary, final File cacheFile) {
+        CacheFileUtil.writeAtomically(cacheFile, out -> {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(refFlatMd5);
+            out.write(dictionaryMd5);
+            out.writeInt(genes.size());
+            for (final Gene gene : genes) {
+                out.writeInt(sequenceDictionary.getSequenceIndex(gene.getContig()));
+                out.writeInt(gene.getStart());
+                out.writeInt(gene.getEnd());
+                out.writeByte(gene.isNegativeStrand() ? 1 : 0);
+                writeString(out, gene.getName());
+
+                int transcriptCount = 0;
+                for (final Gene.Transcript ignored : gene) ++transcriptCount;
+                out.writeInt(transcriptCount);
+                // In iteration order, so that the transcripts of the decoded gene iterate in the same order
+                for (final Gene.Transcript tx : gene) {
+                    writeString(out, tx.name);
+                    out.writeInt(tx.transcriptionStart);
+                    out.writeInt(tx.transcriptionEnd);
+                    out.writeInt(tx.codingStart);
+                    out.writeInt(tx.codingEnd);
+                    out.writeInt(tx.exons.length);
+                    for (final Gene.Transcript.Exon exon : tx.exons) {
+                        out.writeInt(exon.start);
+                        out.writeInt(exon.end);
+                    }
+                }
+            }
+        });
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** A digest of the names and lengths of the sequences, in order, which is all that loading a refFlat file depends on. */
+    static byte[] calculateDictionaryMd5(final SAMSequenceDictionary sequenceDictionary) {
+        final MessageDigest digest = CacheFileUtil.newMd5();
+        for (final SAMSequenceRecord sequence : sequenceDictionary.getSequences()) {
+            digest.update(StringUtil.stringToBytes(sequence.getSequenceName() + "\t" + sequence.getSequenceLength() + "\n"));
+        }
+        return digest.digest();
+    }
+}
@@ -67,7 +67,21 @@ public class RefFlatReader {
     }
 
     OverlapDetector<Gene> load() {
+        return makeOverlapDetector(loadGenes());
+    }
+
+    /** Puts the genes into an OverlapDetector, in the order given. */
+    static OverlapDetector<Gene> makeOverlapDetector(final List<Gene> genes) {
         final OverlapDetector<Gene> overlapDetector = new OverlapDetector<Gene>(0, 0);
+        for (final Gene gene : genes) {
+            overlapDetector.addLhs(gene, gene);
+        }
+        return overlapDetector;
+    }
+
+    /** Parses the genes of the refFlat file, in the order in which load() adds them to its OverlapDetector. */
+    List<Gene> loadGenes() {
+        final List<Gene> genes = new ArrayList<Gene>();
 
         final int expectedColumns = RefFlatColumns.values().length;
         final TabbedTextFileWithHeaderParser parser = new TabbedTextFileWithHeaderParser(refFlatFile, RefFlatColumnLabels);
@@ -102,7 +116,7 @@ public class RefFlatReader {
         for (final List<TabbedTextFileWithHeaderParser.Row> transcriptLines : refFlatLinesByGene.values()) {
             try {
                 final Gene gene = makeGeneFromRefFlatLines(transcriptLines);
-                overlapDetector.addLhs(gene, gene);
+                genes.add(gene);
                 if (gene.length() > longestInterval) longestInterval = gene.length();
                 if (gene.length() > 1000000) ++numIntervalsOver1MB;
             } catch (AnnotationException e) {
@@ -110,7 +124,7 @@ public class RefFlatReader {
             }
         }
         LOG.debug("Longest gene: " + longestInterval + "; number of genes > 1MB: " + numIntervalsOver1MB);
-        return overlapDetector;
+        return genes;
     }
 
     private boolean isSequenceRecognized(final String sequence) {
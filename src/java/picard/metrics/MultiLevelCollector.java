@@ -26,6 +26,7 @@ package picard.metrics;
 
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTagUtil;
 import htsjdk.samtools.metrics.MetricBase;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.reference.ReferenceSequence;
@@ -33,6 +34,7 @@ import picard.PicardException;
 import picard.analysis.MetricAccumulationLevel;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -74,6 +76,12 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
     //these will be listed in the order in which their children would be added to a metric file
     private List<Distributor> outputOrderedDistributors;
 
+    //For each read group ID, the collectors (one per Distributor, in the same order) that records of that read group
+    //go to, so that records can be dispatched with one lookup.  Read groups whose collectors are not all known in
+    //setup (those with no sample or library) are added when first seen, as are records without a read group
+    private Map<String, PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>[]> collectorsByReadGroupId;
+    private PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>[] collectorsWithoutReadGroup;
+
     //Convert the current SAMRecord and the ReferenceSequence for that record into an ARGTYPE object
     //see accept record for use
     protected abstract ARGTYPE makeArg(final SAMRecord samRec, final ReferenceSequence refSeq);
@@ -143,9 +151,26 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
             }
         }
 
-        /** Call acceptRecord(args) on the record collector identified by getKey */
-        public void acceptRecord(final ARGTYPE args, final SAMReadGroupRecord rg) {
+        /** Return the collector identified by getKey, or null if it has not been made yet */
+        public PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> findCollector(final SAMReadGroupRecord rg) {
+            return collectors.get(getKeyOrUnknown(rg));
+        }
 
+        /** Return the collector identified by getKey, making the collector for unknown records if needed */
+        public PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> getCollector(final SAMReadGroupRecord rg) {
+            final String key = getKeyOrUnknown(rg);
+            PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> collector = collectors.get(key);
+            if (collector == null) {
+                if (!UNKNOWN.equals(key)) {
+                    throw new PicardException("Could not find collector for " + key);
+                }
+                collector = makeUnknownCollector();
+                collectors.put(key, collector);
+            }
+            return collector;
+        }
+
+        private String getKeyOrUnknown(final SAMReadGroupRecord rg) {
             String key = UNKNOWN;
             if(rg != null) {
                 final String computedKey = getKey(rg);
@@ -153,15 +178,24 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
                     key = computedKey;
                 }
             }
-            PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> collector = collectors.get(key);
-            if (collector == null) {
-                if (!UNKNOWN.equals(key)) {
-                    throw new PicardException("Could not find collector for " + key);
+            return key;
+        }
+
+        /**
+         * Merge the collectors of another Distributor of the same kind, for the same read groups, into the collectors
+         * of this one.  Collectors only present in the other Distributor (i.e. for unknown read groups) are merged into
+         * a new collector made by this one, as the other's collector may not be usable on its own (see
+         * TargetMetricsCollector.makeContigCollector).
+         */
+        public void merge(final Distributor other) {
+            for (final Map.Entry<String, PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>> entry : other.collectors.entrySet()) {
+                PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> collector = collectors.get(entry.getKey());
+                if (collector == null) {
+                    collector = makeUnknownCollector();
+                    collectors.put(entry.getKey(), collector);
                 }
-                collector = makeUnknownCollector();
-                collectors.put(key, collector);
+                collector.merge(entry.getValue());
             }
-            collector.acceptRecord(args);
         }
 
         /** Add all records to the MetricsFile passed in, this will happen in the order they were
@@ -188,8 +222,14 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
             return null;
         }
 
-        public void acceptRecord(final ARGTYPE args, final SAMReadGroupRecord rg) {
-            allReadCollector.acceptRecord(args);
+        @Override
+        public PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> findCollector(final SAMReadGroupRecord rg) {
+            return allReadCollector;
+        }
+
+        @Override
+        public PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> getCollector(final SAMReadGroupRecord rg) {
+            return allReadCollector;
         }
 
         @Override
@@ -208,6 +248,11 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
             allReadCollector.finish();
         }
 
+        @Override
+        public void merge(final Distributor other) {
+            // Nothing to do, as the all reads collectors are merged by MultiLevelCollector.merge
+        }
+
         @Override
         public void addToFile(final MetricsFile<METRIC_TYPE, Histogram_KEY> file) {
             allReadCollector.addMetricsToFile(file);
@@ -302,6 +347,46 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
         if(accumulationLevels.contains(MetricAccumulationLevel.READ_GROUP)) {
             outputOrderedDistributors.add(new ReadGroupCollector(samRgRecords));
         }
+
+        collectorsByReadGroupId = new HashMap<String, PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>[]>();
+        collectorsWithoutReadGroup = null;
+        for (final SAMReadGroupRecord rg : samRgRecords) {
+            final PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>[] collectors = newCollectorArray();
+            boolean allKnown = true;
+            for (int i = 0; i < collectors.length && allKnown; ++i) {
+                collectors[i] = outputOrderedDistributors.get(i).findCollector(rg);
+                allKnown = collectors[i] != null;
+            }
+            if (allKnown) {
+                collectorsByReadGroupId.put(rg.getId(), collectors);
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>[] newCollectorArray() {
+        return new PerUnitMetricCollector[outputOrderedDistributors.size()];
+    }
+
+    /** Return the collectors that the given record should be passed to, one per Distributor */
+    private PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>[] getCollectors(final SAMRecord record) {
+        final String readGroupId = (String) record.getAttribute(SAMTagUtil.getSingleton().RG);
+        PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>[] collectors =
+                readGroupId == null ? collectorsWithoutReadGroup : collectorsByReadGroupId.get(readGroupId);
+        if (collectors == null) {
+            // The first record of a read group not known in setup, or of the records without a read group
+            final SAMReadGroupRecord rg = record.getReadGroup();
+            collectors = newCollectorArray();
+            for (int i = 0; i < collectors.length; ++i) {
+                collectors[i] = outputOrderedDistributors.get(i).getCollector(rg);
+            }
+            if (readGroupId == null) {
+                collectorsWithoutReadGroup = collectors;
+            } else {
+                collectorsByReadGroupId.put(readGroupId, collectors);
+            }
+        }
+        return collectors;
     }
 
     /**
@@ -311,8 +396,8 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
     public void acceptRecord(final SAMRecord record, final ReferenceSequence refSeq) {
         final ARGTYPE arg = makeArg(record, refSeq);
 
-        for(final Distributor collector : outputOrderedDistributors) {
-            collector.acceptRecord(arg, record.getReadGroup());
+        for(final PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> collector : getCollectors(record)) {
+            collector.acceptRecord(arg);
         }
     }
 
@@ -325,6 +410,30 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
         }
     }
 
+    /**
+     * Called once a collector that was given the records of only part of the input has accepted all of them, before
+     * it waits to be merged.  Subclasses may drop state, such as reference data, that merging does not need.
+     */
+    public void finishShard() {
+    }
+
+    /**
+     * Merge into this collector the PerUnitMetricCollectors of another collector of the same class, set up with the
+     * same accumulation levels and read groups, that was given a disjoint set of records.  Must be called before
+     * finish, and the other collector must not be used afterwards.  See PerUnitMetricCollector.merge.
+     */
+    public void merge(final MultiLevelCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> other) {
+        if (other.outputOrderedDistributors.size() != outputOrderedDistributors.size()) {
+            throw new PicardException("Cannot merge collectors with different accumulation levels.");
+        }
+        if (allReadCollector != null) {
+            allReadCollector.merge(other.allReadCollector);
+        }
+        for (int i = 0; i < outputOrderedDistributors.size(); ++i) {
+            outputOrderedDistributors.get(i).merge(other.outputOrderedDistributors.get(i));
+        }
+    }
+
     /** Get the PerUnitMetricCollector that collects reads for all levels */
     public PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> getAllReadsCollector() {
         return allReadCollector;
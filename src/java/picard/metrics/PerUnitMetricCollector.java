@@ -35,6 +35,9 @@ import htsjdk.samtools.metrics.MetricsFile;
  *      2. Call collector.finish() - perform any final calculations necessary after ALL records have been accepted
  *      3. addMetricsToFile is then used to add any metric(s) or Histogram(s) to the given file
  *
+ *      Collectors whose state only accumulates (counts, sums, histograms) may also implement merge, so that
+ *      disjoint sets of records can be collected separately, e.g. on several threads, and then combined.
+ *
  *      BEAN    - The Metric type we are generating
  *      HKEY    - The Key used in any Histograms, use a Wildcard(?) type if there are no Histograms
  *      ARGTYPE - Collectors are often used in groups of accumulation levels, in order to avoid recalculating
@@ -49,6 +52,16 @@ public interface PerUnitMetricCollector<BEAN extends MetricBase, HKEY extends Co
      */
     public void acceptRecord(final ARGTYPE args);
 
+    /**
+     * Adds to this collector everything accepted by another collector of the same kind, for the same unit, that was
+     * given a disjoint set of records, as if this collector had accepted those records too.  Called before finish on
+     * both collectors.  Collectors that cannot be merged throw UnsupportedOperationException.
+     * @param other a collector of the same class for the same unit, which is not used afterwards
+     */
+    default public void merge(final PerUnitMetricCollector<BEAN, HKEY, ARGTYPE> other) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support merging.");
+    }
+
     /** When all records have been collected, compute any final values needed to finish constructing metrics/Histogram */
     public void finish();
 
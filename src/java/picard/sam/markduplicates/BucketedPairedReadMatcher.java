@@ -0,0 +1,247 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.sam.markduplicates;
+
+import picard.sam.markduplicates.EstimateLibraryComplexity.PairedReadSequence;
+import picard.sam.markduplicates.EstimateLibraryComplexity.PairedReadSequenceWithBarcodes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds, for read pairs in a group of EstimateLibraryComplexity, the later pairs in the group that may match a given
+ * pair, without comparing it to every other pair in the group.
+ * <p/>
+ * Two pairs match if they differ at no more than maxErrors of the compared bases.  The bases that every pair in the
+ * group has, after the MIN_IDENTICAL_BASES that the group shares, are split into maxErrors + 1 blocks, where maxErrors
+ * is the most that any two pairs in the group may differ by.  By the pigeonhole principle, two pairs that match are
+ * identical in at least one block, so each pair is placed in one bucket per block, keyed by the block's bases, and
+ * only pairs sharing a bucket are compared.  Candidates are returned in group order, so the duplicate sets are
+ * exactly those found by comparing all pairs.  When the shared bases are too few to give each block at least one base,
+ * {@link #isApplicable()} is false and the caller must compare all pairs.
+ * <p/>
+ * The comparison itself counts mismatches on bases packed two bits each, 32 to a long, with a separate mask for bases
+ * other than A, C, G and T, which are compared byte by byte.
+ */
+class BucketedPairedReadMatcher {
+    private static final long LOW_BITS = 0x5555555555555555L;
+
+    private final List<PairedReadSequence> seqs;
+    private final int minIdenticalBases;
+    private final int maxReadLength;
+    private final double maxDiffRate;
+    private final boolean useBarcodes;
+    private final boolean applicable;
+
+    /** Per pair: the packed bases of each read from minIdenticalBases on, and the masks of bases that are not ACGT. */
+    private final long[][] packed1, packed2, other1, other2;
+
+    /** Per pair: the buckets it was placed in, one per block. */
+    private final Bucket[][] bucketsOf;
+
+    private int[] candidates = new int[16];
+    private int numCandidates = 0;
+
+    /** The indexes of the pairs in a bucket that may still be returned as candidates, in increasing order. */
+    private static class Bucket {
+        int[] indexes = new int[2];
+        int size = 0;
+
+        void add(final int index) {
+            if (size == indexes.length) indexes = Arrays.copyOf(indexes, size * 2);
+            indexes[size++] = index;
+        }
+    }
+
+    BucketedPairedReadMatcher(final List<PairedReadSequence> seqs, final int minIdenticalBases, final int maxReadLength,
+                              final double maxDiffRate, final boolean useBarcodes) {
+        this.seqs = seqs;
+        this.minIdenticalBases = minIdenticalBases;
+        this.maxReadLength = maxReadLength;
+        this.maxDiffRate = maxDiffRate;
+        this.useBarcodes = useBarcodes;
+
+        int minLength1 = Integer.MAX_VALUE, minLength2 = Integer.MAX_VALUE, maxLength1 = 0, maxLength2 = 0;
+        for (final PairedReadSequence prs : seqs) {
+            final int length1 = Math.min(prs.read1.length, maxReadLength), length2 = Math.min(prs.read2.length, maxReadLength);
+            minLength1 = Math.min(minLength1, length1);
+            minLength2 = Math.min(minLength2, length2);
+            maxLength1 = Math.max(maxLength1, length1);
+            maxLength2 = Math.max(maxLength2, length2);
+        }
+        final int maxErrors = (int) Math.floor((maxLength1 + maxLength2) * maxDiffRate);
+        final int shared1 = Math.max(0, minLength1 - minIdenticalBases), shared2 = Math.max(0, minLength2 - minIdenticalBases);
+        final int numBlocks = maxErrors + 1;
+        this.applicable = shared1 + shared2 >= numBlocks;
+
+        final int n = seqs.size();
+        packed1 = new long[n][];
+        packed2 = new long[n][];
+        other1 = new long[n][];
+        other2 = new long[n][];
+        bucketsOf = new Bucket[n][];
+        if (!applicable) return;
+
+        final Map<Long, Bucket> buckets = new HashMap<>();
+        for (int i = 0; i < n; ++i) {
+            final PairedReadSequence prs = seqs.get(i);
+            packed1[i] = new long[words(prs.read1)];
+            other1[i] = new long[packed1[i].length];
+            pack(prs.read1, packed1[i], other1[i]);
+            packed2[i] = new long[words(prs.read2)];
+            other2[i] = new long[packed2[i].length];
+            pack(prs.read2, packed2[i], other2[i]);
+
+            bucketsOf[i] = new Bucket[numBlocks];
+            for (int block = 0; block < numBlocks; ++block) {
+                // Block boundaries within the shared bases of read1 followed by those of read2
+                final int from = (int) ((long) block * (shared1 + shared2) / numBlocks);
+                final int to = (int) ((long) (block + 1) * (shared1 + shared2) / numBlocks);
+                long hash = block * 0x9E3779B97F4A7C15L;
+                for (int k = from; k < to; ++k) {
+                    final byte base = k < shared1 ? prs.read1[minIdenticalBases + k] : prs.read2[minIdenticalBases + k - shared1];
+                    hash = (hash ^ base) * 0x100000001b3L;
+                }
+                final Bucket bucket = buckets.computeIfAbsent(hash, h -> new Bucket());
+                bucket.add(i);
+                bucketsOf[i][block] = bucket;
+            }
+        }
+    }
+
+    /** False if the blocks cannot be formed, in which case all pairs must be compared. */
+    boolean isApplicable() {
+        return applicable;
+    }
+
+    /**
+     * Returns, in increasing order, the indexes after i of the pairs that share a block with pair i and have not been
+     * removed from the group (set to null).  The returned array is reused; its length is given by the return value of
+     * {@link #getNumCandidates()}.
+     */
+    int[] candidatesAfter(final int i) {
+        int numCandidates = 0;
+        for (final Bucket bucket : bucketsOf[i]) {
+            // Drop indexes that can never be candidates again, as callers ask about increasing i
+            int kept = 0;
+            for (int k = 0; k < bucket.size; ++k) {
+                final int j = bucket.indexes[k];
+                if (j <= i || seqs.get(j) == null) continue;
+                bucket.indexes[kept++] = j;
+                if (numCandidates == candidates.length) candidates = Arrays.copyOf(candidates, numCandidates * 2);
+                candidates[numCandidates++] = j;
+            }
+            bucket.size = kept;
+        }
+        Arrays.sort(candidates, 0, numCandidates);
+        int distinct = 0;
+        for (int k = 0; k < numCandidates; ++k) {
+            if (distinct == 0 || candidates[k] != candidates[distinct - 1]) candidates[distinct++] = candidates[k];
+        }
+        this.numCandidates = distinct;
+        return candidates;
+    }
+
+    /** The number of candidates returned by the last call to {@link #candidatesAfter(int)}. */
+    int getNumCandidates() {
+        return numCandidates;
+    }
+
+    /** Returns the same as EstimateLibraryComplexity's comparison of pairs i and j, using the packed bases. */
+    boolean matches(final int i, final int j) {
+        final PairedReadSequence lhs = seqs.get(i), rhs = seqs.get(j);
+        if (useBarcodes) {
+            final PairedReadSequenceWithBarcodes lhsWithBarcodes = (PairedReadSequenceWithBarcodes) lhs;
+            final PairedReadSequenceWithBarcodes rhsWithBarcodes = (PairedReadSequenceWithBarcodes) rhs;
+            if (lhsWithBarcodes.barcode != rhsWithBarcodes.barcode ||
+                    lhsWithBarcodes.readOneBarcode != rhsWithBarcodes.readOneBarcode ||
+                    lhsWithBarcodes.readTwoBarcode != rhsWithBarcodes.readTwoBarcode) {
+                return false;
+            }
+        }
+
+        final int read1Length = Math.min(Math.min(lhs.read1.length, rhs.read1.length), maxReadLength);
+        final int read2Length = Math.min(Math.min(lhs.read2.length, rhs.read2.length), maxReadLength);
+        final int maxErrors = (int) Math.floor((read1Length + read2Length) * maxDiffRate);
+
+        final int errors = countMismatches(packed1[i], other1[i], lhs.read1, packed1[j], other1[j], rhs.read1, read1Length - minIdenticalBases, maxErrors);
+        if (errors > maxErrors) return false;
+        return errors + countMismatches(packed2[i], other2[i], lhs.read2, packed2[j], other2[j], rhs.read2, read2Length - minIdenticalBases, maxErrors - errors) <= maxErrors;
+    }
+
+    /** Counts mismatches in the first numBases packed bases, stopping once more than maxErrors have been found. */
+    private int countMismatches(final long[] lhs, final long[] lhsOther, final byte[] lhsBases,
+                                final long[] rhs, final long[] rhsOther, final byte[] rhsBases,
+                                final int numBases, final int maxErrors) {
+        int errors = 0;
+        for (int word = 0; word * 32 < numBases; ++word) {
+            final long x = lhs[word] ^ rhs[word];
+            long diff = (x | (x >>> 1)) & LOW_BITS;
+            final long eitherOther = lhsOther[word] | rhsOther[word];
+            if (eitherOther != 0) {
+                // A base that is not ACGT differs from any ACGT base; two such bases must be compared as bytes
+                diff = (diff & ~eitherOther) | (lhsOther[word] ^ rhsOther[word]);
+                for (long both = lhsOther[word] & rhsOther[word]; both != 0; both &= both - 1) {
+                    final int base = minIdenticalBases + word * 32 + Long.numberOfTrailingZeros(both) / 2;
+                    if (lhsBases[base] != rhsBases[base]) diff |= Long.lowestOneBit(both);
+                }
+            }
+            final int remaining = numBases - word * 32;
+            if (remaining < 32) diff &= (1L << (2 * remaining)) - 1;
+            errors += Long.bitCount(diff);
+            if (errors > maxErrors) return errors;
+        }
+        return errors;
+    }
+
+    private int words(final byte[] bases) {
+        final int numBases = Math.max(0, Math.min(bases.length, maxReadLength) - minIdenticalBases);
+        return (numBases + 31) / 32;
+    }
+
+    /** Packs the bases from minIdenticalBases on, two bits each, marking bases other than A, C, G and T. */
+    private void pack(final byte[] bases, final long[] packed, final long[] other) {
+        final int end = Math.min(bases.length, maxReadLength);
+        for (int k = minIdenticalBases; k < end; ++k) {
+            final int offset = k - minIdenticalBases;
+            final int shift = 2 * (offset % 32);
+            final long code;
+            switch (bases[k]) {
+                case 'A': code = 0; break;
+                case 'C': code = 1; break;
+                case 'G': code = 2; break;
+                case 'T': code = 3; break;
+                default:
+                    code = 0;
+                    other[offset / 32] |= 1L << shift;
+            }
+            packed[offset / 32] |= code << shift;
+        }
+    }
+}
@@ -56,11 +56,16 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import static java.lang.Math.pow;
 
@@ -138,9 +143,10 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
             "lower average quality are filtered out and not considered in any calculations.")
     public int MIN_MEAN_QUALITY = 20;
 
-    @Option(doc = "Do not process self-similar groups that are this many times over the mean expected group size. " +
+    @Option(doc = "Report in the log self-similar groups that are this many times over the mean expected group size. " +
             "I.e. if the input contains 10m read pairs and MIN_IDENTICAL_BASES is set to 5, then the mean expected " +
-            "group size would be approximately 10 reads.")
+            "group size would be approximately 10 reads. Such groups are processed like any other; large groups are " +
+            "compared by buckets of shared bases rather than all against all.")
     public int MAX_GROUP_RATIO = 500;
 
     @Option(doc = "Barcode SAM tag (ex. BC for 10X Genomics)", optional = true)
@@ -162,6 +168,16 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
             "size calculation, for example, adapter dimers.", optional = true)
     public int MIN_GROUP_COUNT = 2;
 
+    @Option(doc = "The number of threads to use when comparing the read pairs within groups. The output is identical " +
+            "regardless of the number of threads.")
+    public int NUM_THREADS = 1;
+
+    /** Groups from one library larger than this are compared by buckets of shared bases rather than all against all. */
+    static final int MIN_BUCKETED_GROUP_SIZE = 64;
+
+    /** The number of read pairs handed to a worker thread at a time when NUM_THREADS is greater than one. */
+    int readPairsPerBatch = 10000;
+
     private final Log log = Log.getInstance(EstimateLibraryComplexity.class);
 
     @Override
@@ -233,9 +249,32 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
      * Codec class for writing and read PairedReadSequence objects.
      */
     static class PairedReadCodec implements SortingCollection.Codec<PairedReadSequence> {
+        /** Writes the location as shorts and the bases one byte each. */
+        static final int BYTE_BASES_VERSION = 1;
+
+        /**
+         * Writes the location as varints and the bases two bits each, followed by the positions and values of any
+         * bases other than A, C, G and T, so that temporary files are about a quarter of the size.
+         */
+        static final int PACKED_BASES_VERSION = 2;
+
+        private static final byte[] PACKED_BASES = {'A', 'C', 'G', 'T'};
+
+        protected final int version;
         protected DataOutputStream out;
         protected DataInputStream in;
 
+        public PairedReadCodec() {
+            this(PACKED_BASES_VERSION);
+        }
+
+        public PairedReadCodec(final int version) {
+            if (version != BYTE_BASES_VERSION && version != PACKED_BASES_VERSION) {
+                throw new PicardException("Unknown read pair codec version " + version);
+            }
+            this.version = version;
+        }
+
         public void setOutputStream(final OutputStream out) {
             this.out = new DataOutputStream(out);
         }
@@ -246,14 +285,23 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
 
         public void encode(final PairedReadSequence val) {
             try {
-                this.out.writeShort(val.readGroup);
-                this.out.writeShort(val.tile);
-                this.out.writeShort(val.x);
-                this.out.writeShort(val.y);
-                this.out.writeInt(val.read1.length);
-                this.out.write(val.read1);
-                this.out.writeInt(val.read2.length);
-                this.out.write(val.read2);
+                if (version == BYTE_BASES_VERSION) {
+                    this.out.writeShort(val.readGroup);
+                    this.out.writeShort(val.tile);
+                    this.out.writeShort(val.x);
+                    this.out.writeShort(val.y);
+                    this.out.writeInt(val.read1.length);
+                    this.out.write(val.read1);
+                    this.out.writeInt(val.read2.length);
+                    this.out.write(val.read2);
+                } else {
+                    writeVarint(val.readGroup);
+                    writeVarint(val.tile);
+                    writeVarint(val.x);
+                    writeVarint(val.y);
+                    writePackedBases(val.read1);
+                    writePackedBases(val.read2);
+                }
             } catch (final IOException ioe) {
                 throw new PicardException("Error write out read pair.", ioe);
             }
@@ -262,26 +310,38 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         public PairedReadSequence decode() {
             try {
                 final PairedReadSequence val = new PairedReadSequence();
-                try {
-                    val.readGroup = this.in.readShort();
-                } catch (final EOFException eof) {
-                    return null;
-                }
+                if (version == BYTE_BASES_VERSION) {
+                    try {
+                        val.readGroup = this.in.readShort();
+                    } catch (final EOFException eof) {
+                        return null;
+                    }
 
-                val.tile = this.in.readShort();
-                val.x = this.in.readShort();
-                val.y = this.in.readShort();
+                    val.tile = this.in.readShort();
+                    val.x = this.in.readShort();
+                    val.y = this.in.readShort();
 
-                int length = this.in.readInt();
-                val.read1 = new byte[length];
-                if (this.in.read(val.read1) != length) {
-                    throw new PicardException("Could not read " + length + " bytes from temporary file.");
-                }
+                    int length = this.in.readInt();
+                    val.read1 = new byte[length];
+                    if (this.in.read(val.read1) != length) {
+                        throw new PicardException("Could not read " + length + " bytes from temporary file.");
+                    }
 
-                length = this.in.readInt();
-                val.read2 = new byte[length];
-                if (this.in.read(val.read2) != length) {
-                    throw new PicardException("Could not read " + length + " bytes from temporary file.");
+                    length = this.in.readInt();
+                    val.read2 = new byte[length];
+                    if (this.in.read(val.read2) != length) {
+                        throw new PicardException("Could not read " + length + " bytes from temporary file.");
+                    }
+                } else {
+                    final int firstByte = this.in.read();
+                    if (firstByte == -1) return null;
+
+                    val.readGroup = (short) readVarint(firstByte);
+                    val.tile = (short) readVarint(this.in.readUnsignedByte());
+                    val.x = (short) readVarint(this.in.readUnsignedByte());
+                    val.y = (short) readVarint(this.in.readUnsignedByte());
+                    val.read1 = readPackedBases();
+                    val.read2 = readPackedBases();
                 }
 
                 return val;
@@ -290,8 +350,81 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
             }
         }
 
+        /** Writes a zigzag encoded varint, so that small negative values such as a missing read group stay short. */
+        private void writeVarint(final int value) throws IOException {
+            int zigzag = (value << 1) ^ (value >> 31);
+            while ((zigzag & ~0x7F) != 0) {
+                this.out.write((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            this.out.write(zigzag);
+        }
+
+        private int readVarint(final int firstByte) throws IOException {
+            int zigzag = firstByte & 0x7F;
+            int b = firstByte;
+            for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+                b = this.in.readUnsignedByte();
+                zigzag |= (b & 0x7F) << shift;
+            }
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        private void writePackedBases(final byte[] bases) throws IOException {
+            writeVarint(bases.length);
+            int numOtherBases = 0;
+            for (int i = 0; i < bases.length; i += 4) {
+                int packed = 0;
+                for (int j = i; j < Math.min(i + 4, bases.length); ++j) {
+                    final int code = packedCode(bases[j]);
+                    if (code < 0) ++numOtherBases;
+                    else packed |= code << (2 * (j - i));
+                }
+                this.out.write(packed);
+            }
+
+            writeVarint(numOtherBases);
+            int previous = 0;
+            for (int i = 0; i < bases.length && numOtherBases > 0; ++i) {
+                if (packedCode(bases[i]) < 0) {
+                    writeVarint(i - previous);
+                    this.out.write(bases[i]);
+                    previous = i;
+                    --numOtherBases;
+                }
+            }
+        }
+
+        private byte[] readPackedBases() throws IOException {
+            final byte[] bases = new byte[readVarint(this.in.readUnsignedByte())];
+            for (int i = 0; i < bases.length; i += 4) {
+                final int packed = this.in.readUnsignedByte();
+                for (int j = i; j < Math.min(i + 4, bases.length); ++j) {
+                    bases[j] = PACKED_BASES[(packed >>> (2 * (j - i))) & 3];
+                }
+            }
+
+            final int numOtherBases = readVarint(this.in.readUnsignedByte());
+            int position = 0;
+            for (int i = 0; i < numOtherBases; ++i) {
+                position += readVarint(this.in.readUnsignedByte());
+                bases[position] = this.in.readByte();
+            }
+            return bases;
+        }
+
+        private static int packedCode(final byte base) {
+            switch (base) {
+                case 'A': return 0;
+                case 'C': return 1;
+                case 'G': return 2;
+                case 'T': return 3;
+                default: return -1;
+            }
+        }
+
         @Override
-        public SortingCollection.Codec<PairedReadSequence> clone() { return new PairedReadCodec(); }
+        public SortingCollection.Codec<PairedReadSequence> clone() { return new PairedReadCodec(version); }
     }
 
 
@@ -299,6 +432,14 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
      * Codec class for writing and read PairedReadSequence objects.
      */
     static class PairedReadWithBarcodesCodec extends PairedReadCodec {
+        public PairedReadWithBarcodesCodec() {
+            super();
+        }
+
+        public PairedReadWithBarcodesCodec(final int version) {
+            super(version);
+        }
+
         @Override
         public void encode(final PairedReadSequence val) {
             if (!(val instanceof PairedReadSequenceWithBarcodes)) {
@@ -334,7 +475,7 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         }
 
         @Override
-        public SortingCollection.Codec<PairedReadSequence> clone() { return new PairedReadWithBarcodesCodec(); }
+        public SortingCollection.Codec<PairedReadSequence> clone() { return new PairedReadWithBarcodesCodec(version); }
     }
 
     /**
@@ -496,70 +637,57 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         long lastLogTime = System.currentTimeMillis();
         final int meanGroupSize = (int) (Math.max(1, (progress.getCount() / 2) / (int) pow(4, MIN_IDENTICAL_BASES * 2)));
 
+        // With more than one thread, batches of groups are compared by a pool of workers that each build their own
+        // histograms, which are added to the totals in the order the batches were submitted
+        final ForkJoinPool pool = NUM_THREADS > 1 ? new ForkJoinPool(NUM_THREADS) : null;
+        final Deque<ForkJoinTask<BatchHistograms>> pendingBatches = new ArrayDeque<ForkJoinTask<BatchHistograms>>();
+        List<List<PairedReadSequence>> batch = new ArrayList<List<PairedReadSequence>>();
+        int readPairsInBatch = 0;
+        if (pool != null) log.info("Comparing read pairs using " + NUM_THREADS + " threads.");
+
         while (iterator.hasNext()) {
-            // Get the next group and split it apart by library
+            // Get the next group
             final List<PairedReadSequence> group = getNextGroup(iterator);
 
             if (group.size() > meanGroupSize * MAX_GROUP_RATIO) {
                 final PairedReadSequence prs = group.get(0);
-                log.warn("Omitting group with over " + MAX_GROUP_RATIO + " times the expected mean number of read pairs. " +
+                log.info("Processing group with over " + MAX_GROUP_RATIO + " times the expected mean number of read pairs. " +
                         "Mean=" + meanGroupSize + ", Actual=" + group.size() + ". Prefixes: " +
                         StringUtil.bytesToString(prs.read1, 0, MIN_IDENTICAL_BASES) +
                         " / " +
                         StringUtil.bytesToString(prs.read2, 0, MIN_IDENTICAL_BASES));
-            } else {
-                final Map<String, List<PairedReadSequence>> sequencesByLibrary = splitByLibrary(group, readGroups);
-
-                // Now process the reads by library
-                for (final Map.Entry<String, List<PairedReadSequence>> entry : sequencesByLibrary.entrySet()) {
-                    final String library = entry.getKey();
-                    final List<PairedReadSequence> seqs = entry.getValue();
-
-                    Histogram<Integer> duplicationHisto = duplicationHistosByLibrary.get(library);
-                    Histogram<Integer> opticalHisto = opticalHistosByLibrary.get(library);
-                    if (duplicationHisto == null) {
-                        duplicationHisto = new Histogram<Integer>("duplication_group_count", library);
-                        opticalHisto = new Histogram<Integer>("duplication_group_count", "optical_duplicates");
-                        duplicationHistosByLibrary.put(library, duplicationHisto);
-                        opticalHistosByLibrary.put(library, opticalHisto);
-                    }
+            }
 
-                    // Figure out if any reads within this group are duplicates of one another
-                    for (int i = 0; i < seqs.size(); ++i) {
-                        final PairedReadSequence lhs = seqs.get(i);
-                        if (lhs == null) continue;
-                        final List<PairedReadSequence> dupes = new ArrayList<PairedReadSequence>();
-
-                        for (int j = i + 1; j < seqs.size(); ++j) {
-                            final PairedReadSequence rhs = seqs.get(j);
-                            if (rhs == null) continue;
-
-                            if (matches(lhs, rhs, MAX_DIFF_RATE, useBarcodes)) {
-                                dupes.add(rhs);
-                                seqs.set(j, null);
-                            }
-                        }
-
-                        if (!dupes.isEmpty()) {
-                            dupes.add(lhs);
-                            final int duplicateCount = dupes.size();
-                            duplicationHisto.increment(duplicateCount);
-
-                            final boolean[] flags = opticalDuplicateFinder.findOpticalDuplicates(dupes, lhs);
-                            for (final boolean b : flags) {
-                                if (b) opticalHisto.increment(duplicateCount);
-                            }
-                        } else {
-                            duplicationHisto.increment(1);
-                        }
+            if (pool == null) {
+                processGroup(group, readGroups, useBarcodes, duplicationHistosByLibrary, opticalHistosByLibrary);
+            } else {
+                batch.add(group);
+                readPairsInBatch += group.size();
+                if (readPairsInBatch >= readPairsPerBatch) {
+                    pendingBatches.add(submitBatch(pool, batch, readGroups, useBarcodes));
+                    batch = new ArrayList<List<PairedReadSequence>>();
+                    readPairsInBatch = 0;
+                    while (pendingBatches.size() > 2 * NUM_THREADS) {
+                        mergeBatch(pendingBatches.remove(), duplicationHistosByLibrary, opticalHistosByLibrary);
                     }
                 }
+            }
+
+            ++groupsProcessed;
+            if (lastLogTime < System.currentTimeMillis() - 60000) {
+                log.info("Processed " + groupsProcessed + " groups.");
+                lastLogTime = System.currentTimeMillis();
+            }
+        }
 
-                ++groupsProcessed;
-                if (lastLogTime < System.currentTimeMillis() - 60000) {
-                    log.info("Processed " + groupsProcessed + " groups.");
-                    lastLogTime = System.currentTimeMillis();
+        if (pool != null) {
+            try {
+                if (!batch.isEmpty()) pendingBatches.add(submitBatch(pool, batch, readGroups, useBarcodes));
+                while (!pendingBatches.isEmpty()) {
+                    mergeBatch(pendingBatches.remove(), duplicationHistosByLibrary, opticalHistosByLibrary);
                 }
+            } finally {
+                pool.shutdownNow();
             }
         }
 
@@ -596,6 +724,134 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         return 0;
     }
 
+    /** Duplication and optical duplicate histograms by library for one batch of groups. */
+    private static class BatchHistograms {
+        final Map<String, Histogram<Integer>> duplicationHistosByLibrary = new HashMap<String, Histogram<Integer>>();
+        final Map<String, Histogram<Integer>> opticalHistosByLibrary = new HashMap<String, Histogram<Integer>>();
+    }
+
+    private ForkJoinTask<BatchHistograms> submitBatch(final ForkJoinPool pool, final List<List<PairedReadSequence>> groups,
+                                                      final List<SAMReadGroupRecord> readGroups, final boolean useBarcodes) {
+        return pool.submit(() -> {
+            final BatchHistograms histograms = new BatchHistograms();
+            for (final List<PairedReadSequence> group : groups) {
+                processGroup(group, readGroups, useBarcodes, histograms.duplicationHistosByLibrary, histograms.opticalHistosByLibrary);
+            }
+            return histograms;
+        });
+    }
+
+    /** Waits for a batch and adds its histograms to the totals. */
+    private void mergeBatch(final ForkJoinTask<BatchHistograms> task,
+                            final Map<String, Histogram<Integer>> duplicationHistosByLibrary,
+                            final Map<String, Histogram<Integer>> opticalHistosByLibrary) {
+        final BatchHistograms histograms;
+        try {
+            histograms = task.get();
+        } catch (final InterruptedException ie) {
+            throw new PicardException("Interrupted while comparing read pairs.", ie);
+        } catch (final ExecutionException ee) {
+            throw new PicardException("Error while comparing read pairs.", ee.getCause());
+        }
+
+        for (final Map.Entry<String, Histogram<Integer>> entry : histograms.duplicationHistosByLibrary.entrySet()) {
+            final String library = entry.getKey();
+            addHistogramsIfAbsent(library, duplicationHistosByLibrary, opticalHistosByLibrary);
+            duplicationHistosByLibrary.get(library).addHistogram(entry.getValue());
+            opticalHistosByLibrary.get(library).addHistogram(histograms.opticalHistosByLibrary.get(library));
+        }
+    }
+
+    /** Creates the histograms for a library if they do not exist yet. */
+    private void addHistogramsIfAbsent(final String library,
+                               final Map<String, Histogram<Integer>> duplicationHistosByLibrary,
+                               final Map<String, Histogram<Integer>> opticalHistosByLibrary) {
+        if (!duplicationHistosByLibrary.containsKey(library)) {
+            duplicationHistosByLibrary.put(library, new Histogram<Integer>("duplication_group_count", library));
+            opticalHistosByLibrary.put(library, new Histogram<Integer>("duplication_group_count", "optical_duplicates"));
+        }
+    }
+
+    /** Splits a group by library and adds its duplicate sets to the histograms of each library. */
+    private void processGroup(final List<PairedReadSequence> group, final List<SAMReadGroupRecord> readGroups, final boolean useBarcodes,
+                              final Map<String, Histogram<Integer>> duplicationHistosByLibrary,
+                              final Map<String, Histogram<Integer>> opticalHistosByLibrary) {
+        final Map<String, List<PairedReadSequence>> sequencesByLibrary = splitByLibrary(group, readGroups);
+
+        // Now process the reads by library
+        for (final Map.Entry<String, List<PairedReadSequence>> entry : sequencesByLibrary.entrySet()) {
+            final String library = entry.getKey();
+            final List<PairedReadSequence> seqs = entry.getValue();
+
+            addHistogramsIfAbsent(library, duplicationHistosByLibrary, opticalHistosByLibrary);
+            final Histogram<Integer> duplicationHisto = duplicationHistosByLibrary.get(library);
+            final Histogram<Integer> opticalHisto = opticalHistosByLibrary.get(library);
+
+            // Figure out if any reads within this group are duplicates of one another
+            for (final List<PairedReadSequence> dupes : findDuplicateSets(seqs, useBarcodes, seqs.size() > MIN_BUCKETED_GROUP_SIZE)) {
+                final int duplicateCount = dupes.size();
+                duplicationHisto.increment(duplicateCount);
+
+                if (duplicateCount > 1) {
+                    final PairedReadSequence lhs = dupes.get(duplicateCount - 1);
+                    final boolean[] flags = opticalDuplicateFinder.findOpticalDuplicates(dupes, lhs);
+                    for (final boolean b : flags) {
+                        if (b) opticalHisto.increment(duplicateCount);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Greedily partitions a group of read pairs from one library into sets of duplicates: each pair not yet in a set
+     * starts a new set, which takes every later pair not yet in a set that matches it.  Each set lists the later pairs
+     * in order, followed by the pair that started it.  Sets of one are returned for pairs without duplicates.  The
+     * entries of seqs are set to null as they are placed in sets.
+     *
+     * @param useBuckets if true, only compare pairs that share a block of bases, which finds the same sets; otherwise
+     *                   compare every pair with every later pair
+     */
+    List<List<PairedReadSequence>> findDuplicateSets(final List<PairedReadSequence> seqs, final boolean useBarcodes, final boolean useBuckets) {
+        final int maxReadLength = (MAX_READ_LENGTH <= 0) ? Integer.MAX_VALUE : MAX_READ_LENGTH;
+        final BucketedPairedReadMatcher matcher = useBuckets ?
+                new BucketedPairedReadMatcher(seqs, MIN_IDENTICAL_BASES, maxReadLength, MAX_DIFF_RATE, useBarcodes) : null;
+        final boolean bucketed = matcher != null && matcher.isApplicable();
+
+        final List<List<PairedReadSequence>> sets = new ArrayList<List<PairedReadSequence>>();
+        for (int i = 0; i < seqs.size(); ++i) {
+            final PairedReadSequence lhs = seqs.get(i);
+            if (lhs == null) continue;
+            final List<PairedReadSequence> dupes = new ArrayList<PairedReadSequence>();
+
+            if (bucketed) {
+                final int[] candidates = matcher.candidatesAfter(i);
+                for (int k = 0; k < matcher.getNumCandidates(); ++k) {
+                    final int j = candidates[k];
+                    if (matcher.matches(i, j)) {
+                        dupes.add(seqs.get(j));
+                        seqs.set(j, null);
+                    }
+                }
+            } else {
+                for (int j = i + 1; j < seqs.size(); ++j) {
+                    final PairedReadSequence rhs = seqs.get(j);
+                    if (rhs == null) continue;
+
+                    if (matches(lhs, rhs, MAX_DIFF_RATE, useBarcodes)) {
+                        dupes.add(rhs);
+                        seqs.set(j, null);
+                    }
+                }
+            }
+
+            seqs.set(i, null);
+            dupes.add(lhs);
+            sets.add(dupes);
+        }
+        return sets;
+    }
+
     /**
      * Checks to see if two reads pairs have sequence that are the same, give or take a few
      * errors/diffs as dictated by the maxDiffRate.
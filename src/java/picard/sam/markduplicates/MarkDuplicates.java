@@ -35,11 +35,16 @@ import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.*;
 import htsjdk.samtools.util.CloseableIterator;
-import htsjdk.samtools.util.SortingCollection;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Histogram;
 import htsjdk.samtools.util.SortingLongCollection;
 import picard.sam.markduplicates.util.AbstractMarkDuplicatesCommandLineProgram;
+import picard.sam.markduplicates.util.BitmapDuplicateIndexCollection;
 import picard.sam.markduplicates.util.DiskBasedReadEndsForMarkDuplicatesMap;
+import picard.sam.markduplicates.util.DuplicateIndexCollection;
 import picard.sam.markduplicates.util.LibraryIdGenerator;
+import picard.sam.markduplicates.util.OffHeapReadEndsForMarkDuplicatesMap;
+import picard.sam.markduplicates.util.PackedReadEndsForMarkDuplicatesCollection;
 import picard.sam.markduplicates.util.ReadEnds;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicates;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesCodec;
@@ -47,9 +52,12 @@ import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesMap;
 import htsjdk.samtools.DuplicateScoringStrategy.ScoringStrategy;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodes;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodesCodec;
+import picard.sam.markduplicates.util.SortingDuplicateIndexCollection;
+import picard.util.OrderedParallelExecutor;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * A better duplication marking algorithm that handles all cases including clipped
@@ -123,6 +131,17 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                     "This number can be found by executing the 'ulimit -n' command on a Unix system.")
     public int MAX_FILE_HANDLES_FOR_READ_ENDS_MAP = 8000;
 
+    @Option(doc = "If true, hold the read ends of pairs whose mate has not been seen yet in an off-heap hash table " +
+            "that spills to memory-mapped files, instead of in one temporary file per reference sequence. This avoids " +
+            "re-reading files when mates are far apart or on different sequences. MAX_FILE_HANDLES_FOR_READ_ENDS_MAP " +
+            "is ignored when this is true.")
+    public boolean USE_OFF_HEAP_READ_ENDS_MAP = false;
+
+    @Option(doc = "The number of bytes of read ends the off-heap read ends map may keep in direct memory before using " +
+            "memory-mapped files. Defaults to half of the JVM's direct memory limit (-XX:MaxDirectMemorySize), which is " +
+            "separate from the heap. Only used if USE_OFF_HEAP_READ_ENDS_MAP is true.", optional = true)
+    public Long OFF_HEAP_READ_ENDS_MAP_MAX_BYTES = null;
+
     @Option(doc = "This number, plus the maximum RAM available to the JVM, determine the memory footprint used by " +
             "some of the sorting collections.  If you are running out of memory, try reducing this number.")
     public double SORTING_COLLECTION_SIZE_RATIO = 0.25;
@@ -144,12 +163,22 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
     @Option(doc= "Determines how duplicate types are recorded in the DT optional attribute.")
     public DuplicateTaggingPolicy TAGGING_POLICY = DuplicateTaggingPolicy.DontTag;
 
-    private SortingCollection<ReadEndsForMarkDuplicates> pairSort;
-    private SortingCollection<ReadEndsForMarkDuplicates> fragSort;
-    private SortingLongCollection duplicateIndexes;
-    private SortingLongCollection opticalDuplicateIndexes;
+    @Option(doc = "The number of threads to use when resolving duplicate sets from the sorted read ends. The output " +
+            "is identical regardless of the number of threads.")
+    public int NUM_THREADS = 1;
+
+    @Option(doc = "If true, collect the indexes of duplicate records in a sorting collection that spills to TMP_DIR, " +
+            "as in earlier versions, rather than in an in-memory compressed bitmap. The output is the same either way.")
+    public boolean SPILL_DUPLICATE_INDEXES_TO_DISK = false;
+
+    private PackedReadEndsForMarkDuplicatesCollection pairSort;
+    private PackedReadEndsForMarkDuplicatesCollection fragSort;
+    private DuplicateIndexCollection duplicateIndexes;
+    private DuplicateIndexCollection opticalDuplicateIndexes;
 
     private int numDuplicateIndices = 0;
+    /** The number of read ends handed to a worker thread at a time when NUM_THREADS is greater than one. */
+    int readEndsPerBatch = 10000;
     static private final long NO_SUCH_INDEX = Long.MAX_VALUE; // needs to be large so that that >= test fails for query-sorted traversal
 
     protected LibraryIdGenerator libraryIdGenerator = null; // this is initialized in buildSortedReadEndLists
@@ -328,6 +357,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         iterator.close();
 
         this.duplicateIndexes.cleanup();
+        if (this.opticalDuplicateIndexes != null) this.opticalDuplicateIndexes.cleanup();
 
         reportMemoryStats("Before output close");
         out.close();
@@ -365,36 +395,27 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
             sizeInBytes = ReadEndsForMarkDuplicates.getSizeOf();
         }
         MAX_RECORDS_IN_RAM = (int) (Runtime.getRuntime().maxMemory() / sizeInBytes) / 2;
-        final int maxInMemory = (int) ((Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO) / sizeInBytes);
+        // The sorted lists hold read ends packed into primitive arrays, which take less space than the objects
+        final int maxInMemory = (int) ((Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO) / PackedReadEndsForMarkDuplicatesCollection.getSizeOf(useBarcodes));
         log.info("Will retain up to " + maxInMemory + " data points before spilling to disk.");
 
-        final ReadEndsForMarkDuplicatesCodec fragCodec, pairCodec, diskCodec;
+        final ReadEndsForMarkDuplicatesCodec diskCodec;
         if (useBarcodes) {
-            fragCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
-            pairCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
             diskCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
         } else {
-            fragCodec = new ReadEndsForMarkDuplicatesCodec();
-            pairCodec = new ReadEndsForMarkDuplicatesCodec();
             diskCodec = new ReadEndsForMarkDuplicatesCodec();
         }
 
-        this.pairSort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
-                pairCodec,
-                new ReadEndsMDComparator(useBarcodes),
-                maxInMemory,
-                TMP_DIR);
-
-        this.fragSort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
-                fragCodec,
-                new ReadEndsMDComparator(useBarcodes),
-                maxInMemory,
-                TMP_DIR);
+        this.pairSort = new PackedReadEndsForMarkDuplicatesCollection(useBarcodes, maxInMemory, TMP_DIR);
+        this.fragSort = new PackedReadEndsForMarkDuplicatesCollection(useBarcodes, maxInMemory, TMP_DIR);
 
         final SamHeaderAndIterator headerAndIterator = openInputs();
         final SAMFileHeader.SortOrder assumedSortOrder = headerAndIterator.header.getSortOrder();
         final SAMFileHeader header = headerAndIterator.header;
-        final ReadEndsForMarkDuplicatesMap tmp = new DiskBasedReadEndsForMarkDuplicatesMap(MAX_FILE_HANDLES_FOR_READ_ENDS_MAP, diskCodec);
+        final ReadEndsForMarkDuplicatesMap tmp = USE_OFF_HEAP_READ_ENDS_MAP
+                ? new OffHeapReadEndsForMarkDuplicatesMap(useBarcodes, OFF_HEAP_READ_ENDS_MAP_MAX_BYTES != null
+                        ? OFF_HEAP_READ_ENDS_MAP_MAX_BYTES : OffHeapReadEndsForMarkDuplicatesMap.defaultMaxBytesInRam(), TMP_DIR)
+                : new DiskBasedReadEndsForMarkDuplicatesMap(MAX_FILE_HANDLES_FOR_READ_ENDS_MAP, diskCodec);
         long index = 0;
         final ProgressLogger progress = new ProgressLogger(log, (int) 1e6, "Read");
         final CloseableIterator<SAMRecord> iterator = headerAndIterator.iterator;
@@ -495,6 +516,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
 
         log.info("Read " + index + " records. " + tmp.size() + " pairs never matched.");
         iterator.close();
+        CloserUtil.close(tmp);
 
         // Tell these collections to free up memory if possible.
         this.pairSort.doneAdding();
@@ -559,16 +581,24 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      * @return an array with an ordered list of indexes into the source file
      */
     private void generateDuplicateIndexes(final boolean useBarcodes, final boolean indexOpticalDuplicates) {
-        // Keep this number from getting too large even if there is a huge heap.
-        int maxInMemory = (int) Math.min((Runtime.getRuntime().maxMemory() * 0.25) / SortingLongCollection.SIZEOF, (double) (Integer.MAX_VALUE - 5));
-        // If we're also tracking optical duplicates, cut maxInMemory in half, since we'll need two sorting collections
-        if (indexOpticalDuplicates) {
-            maxInMemory /= 2;
-            this.opticalDuplicateIndexes = new SortingLongCollection(maxInMemory, TMP_DIR.toArray(new File[TMP_DIR.size()]));
+        if (SPILL_DUPLICATE_INDEXES_TO_DISK) {
+            // Keep this number from getting too large even if there is a huge heap.
+            int maxInMemory = (int) Math.min((Runtime.getRuntime().maxMemory() * 0.25) / SortingLongCollection.SIZEOF, (double) (Integer.MAX_VALUE - 5));
+            // If we're also tracking optical duplicates, cut maxInMemory in half, since we'll need two sorting collections
+            if (indexOpticalDuplicates) {
+                maxInMemory /= 2;
+                this.opticalDuplicateIndexes = new SortingDuplicateIndexCollection(maxInMemory, TMP_DIR.toArray(new File[TMP_DIR.size()]));
+            }
+            log.info("Will retain up to " + maxInMemory + " duplicate indices before spilling to disk.");
+            this.duplicateIndexes = new SortingDuplicateIndexCollection(maxInMemory, TMP_DIR.toArray(new File[TMP_DIR.size()]));
+        } else {
+            if (indexOpticalDuplicates) {
+                this.opticalDuplicateIndexes = new BitmapDuplicateIndexCollection("Optical duplicate indexes");
+            }
+            this.duplicateIndexes = new BitmapDuplicateIndexCollection("Duplicate indexes");
         }
-        log.info("Will retain up to " + maxInMemory + " duplicate indices before spilling to disk.");
-        this.duplicateIndexes = new SortingLongCollection(maxInMemory, TMP_DIR.toArray(new File[TMP_DIR.size()]));
 
+        final DuplicateSetResolver resolver = NUM_THREADS > 1 ? new ParallelDuplicateSetResolver(NUM_THREADS) : new DuplicateSetResolver();
         ReadEndsForMarkDuplicates firstOfNextChunk = null;
         final List<ReadEndsForMarkDuplicates> nextChunk = new ArrayList<ReadEndsForMarkDuplicates>(200);
 
@@ -579,14 +609,14 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                 nextChunk.add(next);
             } else {
                 if (nextChunk.size() > 1) {
-                    markDuplicatePairs(nextChunk);
+                    resolver.resolvePairs(nextChunk);
                 }
                 nextChunk.clear();
                 nextChunk.add(next);
                 firstOfNextChunk = next;
             }
         }
-        if (nextChunk.size() > 1) markDuplicatePairs(nextChunk);
+        if (nextChunk.size() > 1) resolver.resolvePairs(nextChunk);
         this.pairSort.cleanup();
         this.pairSort = null;
 
@@ -604,7 +634,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                 containsFrags = containsFrags || !next.isPaired();
             } else {
                 if (nextChunk.size() > 1 && containsFrags) {
-                    markDuplicateFragments(nextChunk, containsPairs);
+                    resolver.resolveFragments(nextChunk, containsPairs);
                 }
                 nextChunk.clear();
                 nextChunk.add(next);
@@ -613,7 +643,8 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                 containsFrags = !next.isPaired();
             }
         }
-        markDuplicateFragments(nextChunk, containsPairs);
+        resolver.resolveFragments(nextChunk, containsPairs);
+        resolver.finish();
         this.fragSort.cleanup();
         this.fragSort = null;
 
@@ -657,8 +688,9 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      * not be marked as duplicates.  This assumes that the list contains objects representing pairs.
      *
      * @param list
+     * @param sink where to record the indexes of the duplicates found
      */
-    private void markDuplicatePairs(final List<ReadEndsForMarkDuplicates> list) {
+    private void markDuplicatePairs(final List<ReadEndsForMarkDuplicates> list, final DuplicateIndexSink sink) {
         short maxScore = 0;
         ReadEndsForMarkDuplicates best = null;
 
@@ -671,20 +703,20 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         }
 
         if (this.READ_NAME_REGEX != null) {
-            AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(list, best, opticalDuplicateFinder, libraryIdGenerator);
+            AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(list, best, opticalDuplicateFinder, sink.getOpticalDuplicatesByLibraryId());
         }
 
         for (final ReadEndsForMarkDuplicates end : list) {
             if (end != best) {
-                addIndexAsDuplicate(end.read1IndexInFile);
+                sink.addDuplicate(end.read1IndexInFile);
 
                 // in query-sorted case, these will be the same.
                 // TODO: also in coordinate sorted, when one read is unmapped
-                if(end.read2IndexInFile != end.read1IndexInFile) addIndexAsDuplicate(end.read2IndexInFile);
+                if(end.read2IndexInFile != end.read1IndexInFile) sink.addDuplicate(end.read2IndexInFile);
 
-                if (end.isOpticalDuplicate && this.opticalDuplicateIndexes != null) {
-                    this.opticalDuplicateIndexes.add(end.read1IndexInFile);
-                    this.opticalDuplicateIndexes.add(end.read2IndexInFile);
+                if (end.isOpticalDuplicate) {
+                    sink.addOpticalDuplicate(end.read1IndexInFile);
+                    sink.addOpticalDuplicate(end.read2IndexInFile);
                 }
             }
         }
@@ -696,11 +728,12 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      *
      * @param list
      * @param containsPairs true if the list also contains objects containing pairs, false otherwise.
+     * @param sink where to record the indexes of the duplicates found
      */
-    private void markDuplicateFragments(final List<ReadEndsForMarkDuplicates> list, final boolean containsPairs) {
+    private void markDuplicateFragments(final List<ReadEndsForMarkDuplicates> list, final boolean containsPairs, final DuplicateIndexSink sink) {
         if (containsPairs) {
             for (final ReadEndsForMarkDuplicates end : list) {
-                if (!end.isPaired()) addIndexAsDuplicate(end.read1IndexInFile);
+                if (!end.isPaired()) sink.addDuplicate(end.read1IndexInFile);
             }
         } else {
             short maxScore = 0;
@@ -714,12 +747,139 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
 
             for (final ReadEndsForMarkDuplicates end : list) {
                 if (end != best) {
-                    addIndexAsDuplicate(end.read1IndexInFile);
+                    sink.addDuplicate(end.read1IndexInFile);
                 }
             }
         }
     }
 
+    /** Receives the indexes of duplicate records, and optical duplicate counts, found while resolving duplicate sets. */
+    private interface DuplicateIndexSink {
+        void addDuplicate(long index);
+
+        void addOpticalDuplicate(long index);
+
+        Histogram<Short> getOpticalDuplicatesByLibraryId();
+    }
+
+    /** Records duplicates straight into the duplicate index collections and the library id generator. */
+    private final DuplicateIndexSink duplicateIndexCollector = new DuplicateIndexSink() {
+        @Override
+        public void addDuplicate(final long index) { addIndexAsDuplicate(index); }
+
+        @Override
+        public void addOpticalDuplicate(final long index) {
+            if (opticalDuplicateIndexes != null) opticalDuplicateIndexes.add(index);
+        }
+
+        @Override
+        public Histogram<Short> getOpticalDuplicatesByLibraryId() { return libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap(); }
+    };
+
+    /** Holds the results of resolving a batch of duplicate sets on a worker thread until they can be merged. */
+    private static class DuplicateIndexBuffer implements DuplicateIndexSink {
+        private long[] duplicates = new long[64];
+        private int numDuplicates = 0;
+        private long[] opticalDuplicates = new long[16];
+        private int numOpticalDuplicates = 0;
+        private final Histogram<Short> opticalDuplicatesByLibraryId = new Histogram<>();
+
+        @Override
+        public void addDuplicate(final long index) {
+            if (numDuplicates == duplicates.length) duplicates = Arrays.copyOf(duplicates, duplicates.length * 2);
+            duplicates[numDuplicates++] = index;
+        }
+
+        @Override
+        public void addOpticalDuplicate(final long index) {
+            if (numOpticalDuplicates == opticalDuplicates.length) opticalDuplicates = Arrays.copyOf(opticalDuplicates, opticalDuplicates.length * 2);
+            opticalDuplicates[numOpticalDuplicates++] = index;
+        }
+
+        @Override
+        public Histogram<Short> getOpticalDuplicatesByLibraryId() { return opticalDuplicatesByLibraryId; }
+
+        /** Passes everything held in this buffer on to the given sink, in the order it was found. */
+        void drainTo(final DuplicateIndexSink sink) {
+            for (int i = 0; i < numDuplicates; ++i) sink.addDuplicate(duplicates[i]);
+            for (int i = 0; i < numOpticalDuplicates; ++i) sink.addOpticalDuplicate(opticalDuplicates[i]);
+            sink.getOpticalDuplicatesByLibraryId().addHistogram(opticalDuplicatesByLibraryId);
+        }
+    }
+
+    /** Resolves each duplicate set as soon as it is handed over, on the calling thread. */
+    private class DuplicateSetResolver {
+        void resolvePairs(final List<ReadEndsForMarkDuplicates> list) {
+            markDuplicatePairs(list, duplicateIndexCollector);
+        }
+
+        void resolveFragments(final List<ReadEndsForMarkDuplicates> list, final boolean containsPairs) {
+            markDuplicateFragments(list, containsPairs, duplicateIndexCollector);
+        }
+
+        /** Blocks until every duplicate set handed over so far has been resolved and recorded. */
+        void finish() { }
+    }
+
+    /**
+     * Resolves duplicate sets in batches on a pool of worker threads.  Each batch records into its own buffer, and
+     * buffers are merged back on the calling thread in the order the batches were submitted, so that the duplicate
+     * indexes and metrics come out exactly as they would on a single thread.  The number of batches in flight is
+     * bounded so that memory use does not grow with the input.
+     */
+    private class ParallelDuplicateSetResolver extends DuplicateSetResolver {
+        private final OrderedParallelExecutor<DuplicateIndexBuffer> executor;
+        private List<Consumer<DuplicateIndexSink>> batch = new ArrayList<>();
+        private int readEndsInBatch = 0;
+
+        ParallelDuplicateSetResolver(final int numThreads) {
+            this.executor = new OrderedParallelExecutor<>(numThreads, "MarkDuplicates duplicate set resolver",
+                    buffer -> buffer.drainTo(duplicateIndexCollector));
+            log.info("Resolving duplicate sets using " + numThreads + " threads.");
+        }
+
+        @Override
+        void resolvePairs(final List<ReadEndsForMarkDuplicates> list) {
+            final List<ReadEndsForMarkDuplicates> duplicateSet = new ArrayList<>(list);
+            addToBatch(sink -> markDuplicatePairs(duplicateSet, sink), duplicateSet.size());
+        }
+
+        @Override
+        void resolveFragments(final List<ReadEndsForMarkDuplicates> list, final boolean containsPairs) {
+            final List<ReadEndsForMarkDuplicates> duplicateSet = new ArrayList<>(list);
+            addToBatch(sink -> markDuplicateFragments(duplicateSet, containsPairs, sink), duplicateSet.size());
+        }
+
+        @Override
+        void finish() {
+            try {
+                submitBatch();
+                executor.finish();
+            } finally {
+                executor.close();
+            }
+        }
+
+        private void addToBatch(final Consumer<DuplicateIndexSink> duplicateSet, final int numReadEnds) {
+            batch.add(duplicateSet);
+            readEndsInBatch += numReadEnds;
+            if (readEndsInBatch >= readEndsPerBatch) submitBatch();
+        }
+
+        private void submitBatch() {
+            if (batch.isEmpty()) return;
+            final List<Consumer<DuplicateIndexSink>> duplicateSets = batch;
+            batch = new ArrayList<>();
+            readEndsInBatch = 0;
+
+            executor.submit(() -> {
+                final DuplicateIndexBuffer buffer = new DuplicateIndexBuffer();
+                for (final Consumer<DuplicateIndexSink> duplicateSet : duplicateSets) duplicateSet.accept(buffer);
+                return buffer;
+            });
+        }
+    }
+
     // To avoid overflows or underflows when subtracting two large (positive and negative) numbers
     static int compareInteger(final int x, final int y) {
         return (x < y) ? -1 : ((x == y) ? 0 : 1);
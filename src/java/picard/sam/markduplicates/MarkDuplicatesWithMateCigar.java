@@ -27,6 +27,7 @@ package picard.sam.markduplicates;
 import picard.PicardException;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.Histogram;
 import htsjdk.samtools.util.IterableAdapter;
 import htsjdk.samtools.util.Log;
@@ -35,6 +36,7 @@ import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.*;
 import picard.cmdline.programgroups.SamOrBam;
 import picard.sam.markduplicates.util.AbstractMarkDuplicatesCommandLineProgram;
+import picard.util.AsyncIterator;
 
 
 import java.util.*;
@@ -98,6 +100,11 @@ public class MarkDuplicatesWithMateCigar extends AbstractMarkDuplicatesCommandLi
     @Option(doc = "The block size for use in the coordinate-sorted record buffer.", optional = true)
     public int BLOCK_SIZE = 100000;
 
+    @Option(doc = "If true, decode the input and encode and compress the output on threads of their own, so that only " +
+            "duplicate marking runs on the main thread. The stages are connected by bounded queues, so memory use stays flat, " +
+            "and the output is identical.")
+    public boolean PIPELINE = false;
+
     /** Warnings that will only be emitted once */
     private boolean warnedNullProgramRecords = false;
     private boolean warnedMissingProgramRecords = false;
@@ -134,14 +141,19 @@ public class MarkDuplicatesWithMateCigar extends AbstractMarkDuplicatesCommandLi
         // Key: previous PG ID on a SAM Record (or null).  Value: New PG ID to replace it.
         final Map<String, String> chainedPgIds = getChainedPgIds(outputHeader);
 
-        // Open the output
-        final SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,
+        // Open the output.  When pipelining, records are encoded and compressed on the writer's own thread.
+        final SAMFileWriter out = new SAMFileWriterFactory().setUseAsyncIo(PIPELINE).makeSAMOrBAMWriter(outputHeader,
                 true,
                 OUTPUT);
 
+        // When pipelining, records are read and fully decoded on a separate thread
+        final CloseableIterator<SAMRecord> input = PIPELINE
+                ? new AsyncIterator<SAMRecord>(new DecodingIterator(headerAndIterator.iterator), AsyncIterator.DEFAULT_QUEUE_SIZE, "MarkDuplicatesWithMateCigar reader ")
+                : headerAndIterator.iterator;
+
         // Create the mark duplicate iterator.  The duplicate marking is handled by the iterator, conveniently.
         final MarkDuplicatesWithMateCigarIterator iterator = new MarkDuplicatesWithMateCigarIterator(headerAndIterator.header,
-                headerAndIterator.iterator,
+                input,
                 this.opticalDuplicateFinder,
                 this.DUPLICATE_SCORING_STRATEGY,
                 this.MINIMUM_DISTANCE,
@@ -187,6 +199,39 @@ public class MarkDuplicatesWithMateCigar extends AbstractMarkDuplicatesCommandLi
         return 0;
     }
 
+    /**
+     * Forces the lazily decoded parts of each record to be decoded as it is read, so that this happens on the reader
+     * thread rather than when duplicate marking first looks at them.
+     */
+    private static class DecodingIterator implements CloseableIterator<SAMRecord> {
+        private final CloseableIterator<SAMRecord> iterator;
+
+        DecodingIterator(final CloseableIterator<SAMRecord> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public SAMRecord next() {
+            final SAMRecord record = iterator.next();
+            record.getReadName();
+            record.getCigar();
+            record.getReadBases();
+            record.getBaseQualities();
+            record.getAttribute(SAMTag.MC.name()); // decodes all of the attributes
+            return record;
+        }
+
+        @Override
+        public void close() {
+            iterator.close();
+        }
+    }
+
     /**
      * Updates the program record if necessary.
      */
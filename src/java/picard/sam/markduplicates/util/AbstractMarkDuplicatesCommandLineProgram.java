@@ -244,6 +244,18 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
                                               final ReadEnds keeper,
                                               final OpticalDuplicateFinder opticalDuplicateFinder,
                                               final LibraryIdGenerator libraryIdGenerator) {
+        trackOpticalDuplicates(ends, keeper, opticalDuplicateFinder, libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
+    }
+
+    /**
+     * As {@link #trackOpticalDuplicates(List, ReadEnds, OpticalDuplicateFinder, LibraryIdGenerator)}, but stores the
+     * number of optical duplicates found in the given histogram, keyed by library id.  This allows callers to
+     * accumulate counts separately (e.g. per thread) and merge them later.
+     */
+    public static void trackOpticalDuplicates(List<? extends ReadEnds> ends,
+                                              final ReadEnds keeper,
+                                              final OpticalDuplicateFinder opticalDuplicateFinder,
+                                              final Histogram<Short> opticalDuplicatesByLibraryId) {
         boolean hasFR = false, hasRF = false;
 
         // Check to see if we have a mixture of FR/RF
@@ -273,10 +285,10 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
             }
 
             // track the duplicates
-            trackOpticalDuplicates(trackOpticalDuplicatesF, keeper, opticalDuplicateFinder, libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
-            trackOpticalDuplicates(trackOpticalDuplicatesR, keeper, opticalDuplicateFinder, libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
+            trackOpticalDuplicatesWithSameOrientation(trackOpticalDuplicatesF, keeper, opticalDuplicateFinder, opticalDuplicatesByLibraryId);
+            trackOpticalDuplicatesWithSameOrientation(trackOpticalDuplicatesR, keeper, opticalDuplicateFinder, opticalDuplicatesByLibraryId);
         } else { // No need to partition
-            AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(ends, keeper, opticalDuplicateFinder, libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
+            trackOpticalDuplicatesWithSameOrientation(ends, keeper, opticalDuplicateFinder, opticalDuplicatesByLibraryId);
         }
     }
 
@@ -290,10 +302,10 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
      * optical duplicate detection, we do not consider them duplicates if one read as FR and the other RF when we order orientation by the
      * first mate sequenced (read #1 of the pair).
      */
-    private static void trackOpticalDuplicates(final List<? extends ReadEnds> list,
-                                               final ReadEnds keeper,
-                                               final OpticalDuplicateFinder opticalDuplicateFinder,
-                                               final Histogram<Short> opticalDuplicatesByLibraryId) {
+    private static void trackOpticalDuplicatesWithSameOrientation(final List<? extends ReadEnds> list,
+                                                                  final ReadEnds keeper,
+                                                                  final OpticalDuplicateFinder opticalDuplicateFinder,
+                                                                  final Histogram<Short> opticalDuplicatesByLibraryId) {
         final boolean[] opticalDuplicateFlags = opticalDuplicateFinder.findOpticalDuplicates(list, keeper);
 
         int opticalDuplicates = 0;
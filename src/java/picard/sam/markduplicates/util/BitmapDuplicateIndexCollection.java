@@ -0,0 +1,208 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.SortingLongCollection;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A DuplicateIndexCollection that holds the indexes in a compressed bitmap in memory, in the style of a roaring
+ * bitmap.  Record indexes are dense ordinals from zero to the number of records in the file, so rather than sorting
+ * (and possibly spilling) the indexes as a SortingLongCollection does, each one sets a bit.
+ *
+ * The index space is split into containers of 2^16 indexes, allocated only when an index falls within them.  A
+ * container starts out as an unsorted array of the low 16 bits of its indexes and is converted to a plain bitmap of
+ * 8KB once it holds ARRAY_CONTAINER_MAX_SIZE values, so that sparse regions cost two bytes per index and dense regions
+ * at most one bit per record.  Array containers are sorted and de-duplicated once adding is done.
+ */
+public class BitmapDuplicateIndexCollection implements DuplicateIndexCollection {
+    private static final Log log = Log.getInstance(BitmapDuplicateIndexCollection.class);
+
+    private static final int CONTAINER_BITS = 16;
+    private static final int CONTAINER_SIZE = 1 << CONTAINER_BITS;
+    private static final int CONTAINER_MASK = CONTAINER_SIZE - 1;
+    private static final int BITMAP_WORDS = CONTAINER_SIZE / Long.SIZE;
+    /** An array container of this many values takes as much memory as a bitmap container. */
+    static final int ARRAY_CONTAINER_MAX_SIZE = BITMAP_WORDS * Long.BYTES / Character.BYTES;
+
+    /** The low bits of the indexes in each container that is still an array; null if a bitmap or empty. */
+    private char[][] arrays = new char[0][];
+    /** The number of values in each array container. */
+    private int[] arraySizes = new int[0];
+    /** The bits of each container that has been converted to a bitmap; null otherwise. */
+    private long[][] bitmaps = new long[0][];
+
+    private final String description;
+    private boolean doneAdding = false;
+    private long numAdded = 0;
+
+    // Iteration state
+    private int container = 0;
+    private int position = 0;
+    private long nextIndex = -1;
+
+    public BitmapDuplicateIndexCollection(final String description) {
+        this.description = description;
+    }
+
+    @Override
+    public void add(final long index) {
+        if (doneAdding) throw new IllegalStateException("Cannot add after calling doneAddingStartIteration()");
+        if (index < 0) throw new IllegalArgumentException("Duplicate indexes must not be negative: " + index);
+        final long key = index >>> CONTAINER_BITS;
+        if (key >= Integer.MAX_VALUE) throw new IllegalArgumentException("Duplicate index is too large: " + index);
+        final int containerIndex = (int) key;
+        final char low = (char) (index & CONTAINER_MASK);
+        ensureContainers(containerIndex + 1);
+        ++numAdded;
+
+        final long[] bitmap = bitmaps[containerIndex];
+        if (bitmap != null) {
+            bitmap[low >>> 6] |= 1L << low;
+            return;
+        }
+
+        char[] array = arrays[containerIndex];
+        final int size = arraySizes[containerIndex];
+        if (array == null) {
+            array = arrays[containerIndex] = new char[16];
+        } else if (size == array.length) {
+            if (size == ARRAY_CONTAINER_MAX_SIZE) {
+                final long[] newBitmap = new long[BITMAP_WORDS];
+                for (int i = 0; i < size; ++i) newBitmap[array[i] >>> 6] |= 1L << array[i];
+                newBitmap[low >>> 6] |= 1L << low;
+                bitmaps[containerIndex] = newBitmap;
+                arrays[containerIndex] = null;
+                arraySizes[containerIndex] = 0;
+                return;
+            }
+            array = arrays[containerIndex] = Arrays.copyOf(array, Math.min(size * 2, ARRAY_CONTAINER_MAX_SIZE));
+        }
+        array[size] = low;
+        arraySizes[containerIndex] = size + 1;
+    }
+
+    private void ensureContainers(final int numContainers) {
+        if (numContainers <= bitmaps.length) return;
+        final int newLength = (int) Math.min(Integer.MAX_VALUE, Math.max((long) numContainers, bitmaps.length * 2L));
+        arrays = Arrays.copyOf(arrays, newLength);
+        arraySizes = Arrays.copyOf(arraySizes, newLength);
+        bitmaps = Arrays.copyOf(bitmaps, newLength);
+    }
+
+    @Override
+    public void doneAddingStartIteration() {
+        if (doneAdding) throw new IllegalStateException("doneAddingStartIteration() has already been called");
+        doneAdding = true;
+
+        int numArrayContainers = 0;
+        int numBitmapContainers = 0;
+        long numDistinct = 0;
+        long bytes = 0;
+        for (int i = 0; i < bitmaps.length; ++i) {
+            if (arrays[i] != null) {
+                final char[] array = arrays[i];
+                Arrays.sort(array, 0, arraySizes[i]);
+                int size = 0;
+                for (int j = 0; j < arraySizes[i]; ++j) {
+                    if (size == 0 || array[j] != array[size - 1]) array[size++] = array[j];
+                }
+                arraySizes[i] = size;
+                ++numArrayContainers;
+                numDistinct += size;
+                bytes += (long) array.length * Character.BYTES;
+            } else if (bitmaps[i] != null) {
+                ++numBitmapContainers;
+                for (final long word : bitmaps[i]) numDistinct += Long.bitCount(word);
+                bytes += BITMAP_WORDS * Long.BYTES;
+            }
+        }
+        bytes += (long) bitmaps.length * (2 * 8 + Integer.BYTES); // the container references and sizes, roughly
+
+        log.info(String.format("%s: %s distinct indexes (%s added) held in %s array and %s bitmap containers " +
+                        "using %s bytes, rather than %s bytes as sorted longs.",
+                description, numDistinct, numAdded, numArrayContainers, numBitmapContainers,
+                bytes, numAdded * SortingLongCollection.SIZEOF));
+
+        container = 0;
+        position = 0;
+        advance();
+    }
+
+    /** Finds the next index at or after the current container and position, setting nextIndex to -1 if none. */
+    private void advance() {
+        while (container < bitmaps.length) {
+            final long base = (long) container << CONTAINER_BITS;
+            final char[] array = arrays[container];
+            final long[] bitmap = bitmaps[container];
+            if (array != null && position < arraySizes[container]) {
+                nextIndex = base + array[position++];
+                return;
+            } else if (bitmap != null) {
+                int word = position >>> 6;
+                if (word < BITMAP_WORDS) {
+                    long bits = bitmap[word] & (-1L << position);
+                    while (bits == 0 && ++word < BITMAP_WORDS) bits = bitmap[word];
+                    if (bits != 0) {
+                        final int bit = word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+                        position = bit + 1;
+                        nextIndex = base + bit;
+                        return;
+                    }
+                }
+            }
+            ++container;
+            position = 0;
+        }
+        nextIndex = -1;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!doneAdding) throw new IllegalStateException("Must call doneAddingStartIteration() before iterating");
+        return nextIndex >= 0;
+    }
+
+    @Override
+    public long next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        final long result = nextIndex;
+        advance();
+        return result;
+    }
+
+    @Override
+    public void cleanup() {
+        arrays = new char[0][];
+        arraySizes = new int[0];
+        bitmaps = new long[0][];
+        container = 0;
+        nextIndex = -1;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.sam.markduplicates.util;
+
+/**
+ * Collects the indexes in the input file of records that are to be marked as duplicates, and once all have been
+ * added hands them back in ascending order.  Each index is returned only once, however many times it was added.
+ *
+ * The methods mirror those of htsjdk's SortingLongCollection so that either store can be used for the write pass.
+ */
+public interface DuplicateIndexCollection {
+
+    /** Adds a non-negative record index.  Must not be called after doneAddingStartIteration(). */
+    void add(long index);
+
+    /** Signals that all indexes have been added and prepares for iteration. */
+    void doneAddingStartIteration();
+
+    /** Returns true if there are more indexes to be returned by next(). */
+    boolean hasNext();
+
+    /** Returns the next index, in ascending order. */
+    long next();
+
+    /** Releases any memory or temporary files held by this collection. */
+    void cleanup();
+}
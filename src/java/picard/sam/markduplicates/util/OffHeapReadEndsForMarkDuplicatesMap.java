@@ -0,0 +1,410 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import picard.PicardException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementation of ReadEndsForMarkDuplicatesMap that keeps everything outside the Java heap, in an open-addressing
+ * hash table keyed by a 64-bit hash of the key (read group and read name) and the mate's sequence index.  Unlike
+ * DiskBasedReadEndsForMarkDuplicatesMap, nothing is re-read when the input moves on to another sequence, so mates that
+ * are far apart or on different sequences do not cause files to be re-read or handles to be opened and closed.
+ * <p/>
+ * The table holds, for each entry, the hash and the location of a serialized record in an append-only segment.  Each
+ * record holds the full key, which is compared on lookup so that hash collisions are harmless.  Segments are direct
+ * buffers until the given number of bytes is in use, after which new segments are memory-mapped temporary files, left
+ * to the operating system to page out.  A segment is released, or reused if it is in memory, once all of its records
+ * have been removed; since most mates are found soon after their first end, old segments empty out quickly.
+ * <p/>
+ * As with the other implementations, a key stored with one mate sequence index is only found with the same index,
+ * and putting a key that is already present replaces its record.  Counters for the hit rate of remove() and the bytes
+ * written to memory-mapped segments are logged by close(), which also deletes the temporary files.
+ */
+public class OffHeapReadEndsForMarkDuplicatesMap implements ReadEndsForMarkDuplicatesMap, Closeable {
+    private static final Log log = Log.getInstance(OffHeapReadEndsForMarkDuplicatesMap.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    /** mateSequenceIndex, key length, the key's chars, then the fields of the read ends. */
+    private static final int FIXED_RECORD_SIZE = 4 + 4 + 2 + 1 + 1 + 2 + 2 + 4 + 4 + 4 + 4 + 8 + 8 + 2 + 4 + 4;
+    private static final int BARCODES_SIZE = 3 * 4;
+
+    private final boolean useBarcodes;
+    private final int segmentSize;
+    private final int maxSegmentsInRam;
+    private final List<File> tmpDirs;
+
+    /** Two longs per slot: the hash, and one more than the record's location (so that zero marks an empty slot). */
+    private LongBuffer table;
+    private int capacity;
+    private int size = 0;
+
+    /** The segments still holding live records, or still being written, by id. */
+    private final Map<Integer, Segment> segments = new HashMap<>();
+    private int nextSegmentId = 0;
+    private final Deque<ByteBuffer> freeRamBuffers = new ArrayDeque<>();
+    private Segment current = null;
+    private int segmentsInRam = 0;
+    private int sizeInRam = 0;
+
+    // Counters
+    private long lookups = 0;
+    private long hits = 0;
+    private long bytesSpilled = 0;
+    private int segmentFilesCreated = 0;
+    private int maxSize = 0;
+
+    /** An append-only block of serialized records, either a direct buffer or a memory-mapped file. */
+    private static class Segment {
+        final int id;
+        final ByteBuffer buffer;
+        final File file; // null if in memory
+        int position = 0;
+        int liveRecords = 0;
+
+        Segment(final int id, final ByteBuffer buffer, final File file) {
+            this.id = id;
+            this.buffer = buffer;
+            this.file = file;
+        }
+    }
+
+    /**
+     * @param useBarcodes   true if the read ends are ReadEndsForMarkDuplicatesWithBarcodes
+     * @param maxBytesInRam the number of bytes of records to keep in direct memory before using memory-mapped files
+     * @param tmpDirs       the directories in which to create the memory-mapped files
+     */
+    public OffHeapReadEndsForMarkDuplicatesMap(final boolean useBarcodes, final long maxBytesInRam, final List<File> tmpDirs) {
+        this(useBarcodes, maxBytesInRam, tmpDirs, DEFAULT_SEGMENT_SIZE);
+    }
+
+    OffHeapReadEndsForMarkDuplicatesMap(final boolean useBarcodes, final long maxBytesInRam, final List<File> tmpDirs, final int segmentSize) {
+        this.useBarcodes = useBarcodes;
+        this.segmentSize = segmentSize;
+        this.maxSegmentsInRam = (int) Math.min(Integer.MAX_VALUE, maxBytesInRam / segmentSize);
+        this.tmpDirs = tmpDirs;
+        this.capacity = INITIAL_CAPACITY;
+        this.table = ByteBuffer.allocateDirect(capacity * 2 * Long.BYTES).asLongBuffer();
+    }
+
+    /**
+     * The default for maxBytesInRam: half of the JVM's limit on direct memory, which is set with -XX:MaxDirectMemorySize
+     * and is separate from the heap, leaving the rest for the hash table and for other users of direct buffers.
+     */
+    public static long defaultMaxBytesInRam() {
+        return sun.misc.VM.maxDirectMemory() / 2;
+    }
+
+    @Override
+    public ReadEndsForMarkDuplicates remove(final int mateSequenceIndex, final String key) {
+        ++lookups;
+        final long hash = hash(mateSequenceIndex, key);
+        final int slot = find(hash, mateSequenceIndex, key);
+        if (slot < 0) return null;
+        ++hits;
+
+        final long location = table.get(2 * slot + 1) - 1;
+        final Segment segment = segments.get(segmentOf(location));
+        final ReadEndsForMarkDuplicates readEnds = read(segment.buffer, offsetOf(location) + 8 + 2 * key.length());
+        deleteSlot(slot);
+        release(location);
+        return readEnds;
+    }
+
+    @Override
+    public void put(final int mateSequenceIndex, final String key, final ReadEndsForMarkDuplicates readEnds) {
+        final long hash = hash(mateSequenceIndex, key);
+        final long location = write(mateSequenceIndex, key, readEnds) + 1;
+
+        final int existing = find(hash, mateSequenceIndex, key);
+        if (existing >= 0) {
+            final long previous = table.get(2 * existing + 1) - 1;
+            table.put(2 * existing + 1, location);
+            release(previous);
+            return;
+        }
+
+        if (2 * (size + 1) > capacity) resize(capacity * 2);
+        int slot = home(hash);
+        while (table.get(2 * slot + 1) != 0) slot = (slot + 1) & (capacity - 1);
+        table.put(2 * slot, hash);
+        table.put(2 * slot + 1, location);
+        maxSize = Math.max(maxSize, ++size);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int sizeInRam() {
+        return sizeInRam;
+    }
+
+    /** The fraction of calls to remove() that found an entry. */
+    public double getHitRate() {
+        return lookups == 0 ? 0 : hits / (double) lookups;
+    }
+
+    /** The number of bytes of records written to memory-mapped segments rather than direct memory. */
+    public long getBytesSpilled() {
+        return bytesSpilled;
+    }
+
+    /** Logs the counters and deletes the memory-mapped files.  The map cannot be used afterwards. */
+    @Override
+    public void close() {
+        log.info(String.format("Off-heap read ends map: %d lookups with a hit rate of %.2f%%, at most %d entries, " +
+                        "%d bytes spilled to %d memory-mapped segments.",
+                lookups, 100 * getHitRate(), maxSize, bytesSpilled, segmentFilesCreated));
+        for (final Segment segment : segments.values()) {
+            if (segment.file != null) IOUtil.deleteFiles(segment.file);
+        }
+        segments.clear();
+        freeRamBuffers.clear();
+        current = null;
+        table = null;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Hash table
+    ////////////////////////////////////////////////////////////////////////////
+
+    /** A 64-bit FNV-1a hash of the mate sequence index and the key, with a final mix so that all bits are used. */
+    private static long hash(final int mateSequenceIndex, final String key) {
+        long h = 0xcbf29ce484222325L ^ mateSequenceIndex;
+        for (int i = 0; i < key.length(); ++i) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private int home(final long hash) {
+        return (int) hash & (capacity - 1);
+    }
+
+    /** Returns the slot holding the given key, or -1 if there is none. */
+    private int find(final long hash, final int mateSequenceIndex, final String key) {
+        for (int slot = home(hash); ; slot = (slot + 1) & (capacity - 1)) {
+            final long location = table.get(2 * slot + 1);
+            if (location == 0) return -1;
+            if (table.get(2 * slot) == hash && hasKey(location - 1, mateSequenceIndex, key)) return slot;
+        }
+    }
+
+    /** Empties a slot, moving later entries of the same probe sequence back so that none is left unreachable. */
+    private void deleteSlot(int slot) {
+        final int mask = capacity - 1;
+        for (int next = (slot + 1) & mask; table.get(2 * next + 1) != 0; next = (next + 1) & mask) {
+            final int home = home(table.get(2 * next));
+            // Move the entry back unless its home lies cyclically in (slot, next]
+            final boolean homeBetween = slot <= next ? (slot < home && home <= next) : (slot < home || home <= next);
+            if (!homeBetween) {
+                table.put(2 * slot, table.get(2 * next));
+                table.put(2 * slot + 1, table.get(2 * next + 1));
+                slot = next;
+            }
+        }
+        table.put(2 * slot, 0);
+        table.put(2 * slot + 1, 0);
+        --size;
+    }
+
+    private void resize(final int newCapacity) {
+        if (newCapacity > (1 << 29)) throw new PicardException("Too many read ends in OffHeapReadEndsForMarkDuplicatesMap");
+        final LongBuffer oldTable = table;
+        final int oldCapacity = capacity;
+        table = ByteBuffer.allocateDirect(newCapacity * 2 * Long.BYTES).asLongBuffer();
+        capacity = newCapacity;
+        for (int i = 0; i < oldCapacity; ++i) {
+            final long location = oldTable.get(2 * i + 1);
+            if (location == 0) continue;
+            final long hash = oldTable.get(2 * i);
+            int slot = home(hash);
+            while (table.get(2 * slot + 1) != 0) slot = (slot + 1) & (capacity - 1);
+            table.put(2 * slot, hash);
+            table.put(2 * slot + 1, location);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Segments
+    ////////////////////////////////////////////////////////////////////////////
+
+    private static int segmentOf(final long location) { return (int) (location >>> 32); }
+
+    private static int offsetOf(final long location) { return (int) location; }
+
+    private boolean hasKey(final long location, final int mateSequenceIndex, final String key) {
+        final ByteBuffer buffer = segments.get(segmentOf(location)).buffer;
+        int offset = offsetOf(location);
+        if (buffer.getInt(offset) != mateSequenceIndex || buffer.getInt(offset + 4) != key.length()) return false;
+        offset += 8;
+        for (int i = 0; i < key.length(); ++i, offset += 2) {
+            if (buffer.getChar(offset) != key.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /** Appends a record to the current segment, starting a new one if necessary, and returns its location. */
+    private long write(final int mateSequenceIndex, final String key, final ReadEndsForMarkDuplicates readEnds) {
+        final int recordSize = FIXED_RECORD_SIZE + 2 * key.length() + (useBarcodes ? BARCODES_SIZE : 0);
+        if (recordSize > segmentSize) throw new PicardException("Key too long for OffHeapReadEndsForMarkDuplicatesMap: " + key);
+        if (current == null || current.position + recordSize > segmentSize) startSegment();
+
+        final ByteBuffer buffer = current.buffer;
+        final int start = current.position;
+        int offset = start;
+        buffer.putInt(offset, mateSequenceIndex);
+        buffer.putInt(offset + 4, key.length());
+        offset += 8;
+        for (int i = 0; i < key.length(); ++i, offset += 2) buffer.putChar(offset, key.charAt(i));
+
+        buffer.putShort(offset, readEnds.libraryId);
+        buffer.put(offset + 2, readEnds.orientation);
+        buffer.put(offset + 3, readEnds.orientationForOpticalDuplicates);
+        buffer.putShort(offset + 4, readEnds.score);
+        buffer.putShort(offset + 6, readEnds.readGroup);
+        buffer.putInt(offset + 8, readEnds.read1ReferenceIndex);
+        buffer.putInt(offset + 12, readEnds.read1Coordinate);
+        buffer.putInt(offset + 16, readEnds.read2ReferenceIndex);
+        buffer.putInt(offset + 20, readEnds.read2Coordinate);
+        buffer.putLong(offset + 24, readEnds.read1IndexInFile);
+        buffer.putLong(offset + 32, readEnds.read2IndexInFile);
+        buffer.putShort(offset + 40, readEnds.tile);
+        buffer.putInt(offset + 42, readEnds.x);
+        buffer.putInt(offset + 46, readEnds.y);
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) readEnds;
+            buffer.putInt(offset + 50, withBarcodes.barcode);
+            buffer.putInt(offset + 54, withBarcodes.readOneBarcode);
+            buffer.putInt(offset + 58, withBarcodes.readTwoBarcode);
+        }
+
+        current.position += recordSize;
+        ++current.liveRecords;
+        if (current.file == null) ++sizeInRam;
+        else bytesSpilled += recordSize;
+        return ((long) current.id << 32) | start;
+    }
+
+    /** Reads the fields of a record, starting after its key. */
+    private ReadEndsForMarkDuplicates read(final ByteBuffer buffer, final int offset) {
+        final ReadEndsForMarkDuplicates readEnds;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = new ReadEndsForMarkDuplicatesWithBarcodes();
+            withBarcodes.barcode = buffer.getInt(offset + 50);
+            withBarcodes.readOneBarcode = buffer.getInt(offset + 54);
+            withBarcodes.readTwoBarcode = buffer.getInt(offset + 58);
+            readEnds = withBarcodes;
+        } else {
+            readEnds = new ReadEndsForMarkDuplicates();
+        }
+        readEnds.libraryId = buffer.getShort(offset);
+        readEnds.orientation = buffer.get(offset + 2);
+        readEnds.orientationForOpticalDuplicates = buffer.get(offset + 3);
+        readEnds.score = buffer.getShort(offset + 4);
+        readEnds.readGroup = buffer.getShort(offset + 6);
+        readEnds.read1ReferenceIndex = buffer.getInt(offset + 8);
+        readEnds.read1Coordinate = buffer.getInt(offset + 12);
+        readEnds.read2ReferenceIndex = buffer.getInt(offset + 16);
+        readEnds.read2Coordinate = buffer.getInt(offset + 20);
+        readEnds.read1IndexInFile = buffer.getLong(offset + 24);
+        readEnds.read2IndexInFile = buffer.getLong(offset + 32);
+        readEnds.tile = buffer.getShort(offset + 40);
+        readEnds.x = buffer.getInt(offset + 42);
+        readEnds.y = buffer.getInt(offset + 46);
+        return readEnds;
+    }
+
+    /** Starts a new segment, in memory if the budget allows, otherwise memory-mapped from a new temporary file. */
+    private void startSegment() {
+        if (current != null && current.liveRecords == 0) releaseSegment(current);
+        if (nextSegmentId == Integer.MAX_VALUE) throw new PicardException("Too many segments in OffHeapReadEndsForMarkDuplicatesMap");
+        final int id = nextSegmentId++;
+
+        if (!freeRamBuffers.isEmpty()) {
+            current = new Segment(id, freeRamBuffers.pop(), null);
+        } else if (segmentsInRam < maxSegmentsInRam) {
+            current = new Segment(id, ByteBuffer.allocateDirect(segmentSize), null);
+            ++segmentsInRam;
+        } else {
+            try {
+                final File file = IOUtil.newTempFile("readEndsMap.", ".segment", tmpDirs.toArray(new File[tmpDirs.size()]));
+                file.deleteOnExit();
+                try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(segmentSize);
+                    current = new Segment(id, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize), file);
+                }
+                ++segmentFilesCreated;
+            } catch (final IOException e) {
+                throw new PicardException("Error creating memory-mapped segment for read ends", e);
+            }
+        }
+        segments.put(id, current);
+    }
+
+    /** Notes that the record at the given location is no longer needed, releasing its segment if it is now empty. */
+    private void release(final long location) {
+        final Segment segment = segments.get(segmentOf(location));
+        --segment.liveRecords;
+        if (segment.file == null) --sizeInRam;
+        if (segment.liveRecords == 0 && segment != current) releaseSegment(segment);
+    }
+
+    /** Forgets an empty segment, keeping its buffer for reuse if it is in memory and deleting its file otherwise. */
+    private void releaseSegment(final Segment segment) {
+        segments.remove(segment.id);
+        if (segment.file == null) {
+            freeRamBuffers.push(segment.buffer);
+        } else {
+            IOUtil.deleteFiles(segment.file);
+        }
+    }
+}
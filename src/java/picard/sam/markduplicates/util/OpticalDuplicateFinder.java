@@ -29,6 +29,7 @@ import htsjdk.samtools.util.ProgressLogger;
 import picard.sam.util.PhysicalLocation;
 import picard.sam.util.ReadNameParser;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -56,6 +57,21 @@ public class OpticalDuplicateFinder extends ReadNameParser {
 
     private int bigDuplicateSetSize = DEFAULT_BIG_DUPLICATE_SET_SIZE;
 
+    public static final int DEFAULT_SPATIAL_INDEX_DUPLICATE_SET_SIZE = 500;
+
+    /**
+     * Sets the size above which a set is compared using a spatial index rather than all pairs of reads.  The result
+     * is the same either way.
+     * Defaults to {@value OpticalDuplicateFinder#DEFAULT_SPATIAL_INDEX_DUPLICATE_SET_SIZE}
+     *
+     * @param spatialIndexDuplicateSetSize the size of a set above which to use a spatial index
+     */
+    public void setSpatialIndexDuplicateSetSize(final int spatialIndexDuplicateSetSize) {
+        this.spatialIndexDuplicateSetSize = spatialIndexDuplicateSetSize;
+    }
+
+    private int spatialIndexDuplicateSetSize = DEFAULT_SPATIAL_INDEX_DUPLICATE_SET_SIZE;
+
     /**
      * Uses the default duplicate distance {@value OpticalDuplicateFinder#DEFAULT_OPTICAL_DUPLICATE_DISTANCE} and the default read name regex
      * {@link ReadNameParser#DEFAULT_READ_NAME_REGEX}.
@@ -134,6 +150,11 @@ public class OpticalDuplicateFinder extends ReadNameParser {
         }
         if (logProgress) log.debug("Done with comparing to keeper, now the rest.");
 
+        if (length > spatialIndexDuplicateSetSize) {
+            findCloseEnoughWithGrid(list, actualKeeper, opticalDuplicateFlags, distance, progressLoggerForRest);
+            return opticalDuplicateFlags;
+        }
+
         // Now go through and do each pairwise comparison not involving the actualKeeper
         for (int i = 0; i < length; ++i) {
             final PhysicalLocation lhs = list.get(i);
@@ -160,6 +181,94 @@ public class OpticalDuplicateFinder extends ReadNameParser {
         return opticalDuplicateFlags;
     }
 
+    /**
+     * Does the same pairwise comparisons as findOpticalDuplicates, in the same order, but only between reads that fall
+     * in the same or adjacent cells of a grid over (read group, tile, x, y) whose cells are distance + 1 pixels wide.
+     * Reads within the distance of each other are always in adjacent cells, so the flags are identical to comparing
+     * every pair, while each read is only compared to its neighbours.  Cells are found by binary search over the reads
+     * sorted by cell.
+     */
+    private void findCloseEnoughWithGrid(final List<? extends PhysicalLocation> list, final PhysicalLocation actualKeeper,
+                                         final boolean[] opticalDuplicateFlags, final int distance,
+                                         final ProgressLogger progressLoggerForRest) {
+        if (distance < 0) return; // nothing can be close enough
+        final long cellWidth = (long) distance + 1;
+        final int length = list.size();
+
+        // Index the reads that take part in pairwise comparisons, sorted by cell and then by position in the list
+        final long[] cellOf = new long[length];
+        Integer[] byCell = new Integer[length];
+        int numIndexed = 0;
+        for (int i = 0; i < length; ++i) {
+            final PhysicalLocation loc = list.get(i);
+            if (loc == actualKeeper || !loc.hasLocation()) continue;
+            cellOf[i] = cellKey(loc.getReadGroup(), loc.getTile(), Math.floorDiv(loc.getX(), cellWidth), Math.floorDiv(loc.getY(), cellWidth));
+            byCell[numIndexed++] = i;
+        }
+        byCell = Arrays.copyOf(byCell, numIndexed);
+        Arrays.sort(byCell, (lhs, rhs) -> cellOf[lhs] != cellOf[rhs] ? Long.compare(cellOf[lhs], cellOf[rhs]) : Integer.compare(lhs, rhs));
+        final long[] sortedCells = new long[numIndexed];
+        final int[] sortedIndexes = new int[numIndexed];
+        for (int k = 0; k < numIndexed; ++k) {
+            sortedIndexes[k] = byCell[k];
+            sortedCells[k] = cellOf[byCell[k]];
+        }
+
+        int[] candidates = new int[16];
+        for (int i = 0; i < length; ++i) {
+            final PhysicalLocation lhs = list.get(i);
+            if (lhs == actualKeeper) continue;
+            if (progressLoggerForRest != null) progressLoggerForRest.record(String.format("%d", lhs.getReadGroup()), lhs.getX());
+            if (!lhs.hasLocation()) continue;
+
+            // Gather the reads after this one in the nine surrounding cells, in list order
+            final long cellX = Math.floorDiv(lhs.getX(), cellWidth);
+            final long cellY = Math.floorDiv(lhs.getY(), cellWidth);
+            int numCandidates = 0;
+            for (long dx = -1; dx <= 1; ++dx) {
+                for (long dy = -1; dy <= 1; ++dy) {
+                    final long cell = cellKey(lhs.getReadGroup(), lhs.getTile(), cellX + dx, cellY + dy);
+                    for (int k = lowerBound(sortedCells, cell); k < numIndexed && sortedCells[k] == cell; ++k) {
+                        if (sortedIndexes[k] <= i) continue;
+                        if (numCandidates == candidates.length) candidates = Arrays.copyOf(candidates, numCandidates * 2);
+                        candidates[numCandidates++] = sortedIndexes[k];
+                    }
+                }
+            }
+            Arrays.sort(candidates, 0, numCandidates);
+
+            for (int c = 0; c < numCandidates; ++c) {
+                final int j = candidates[c];
+                if (opticalDuplicateFlags[i] && opticalDuplicateFlags[j]) continue; // both already marked, no need to check
+
+                if (closeEnough(lhs, list.get(j), distance)) {
+                    final int index = opticalDuplicateFlags[j] ? i : j;
+                    opticalDuplicateFlags[index] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Packs a grid cell into a long.  The cell coordinates are truncated to 16 bits, so distant cells may share a key;
+     * that only adds candidates, which are then rejected by closeEnough, and the nine cells around any read still have
+     * distinct keys.
+     */
+    private static long cellKey(final short readGroup, final short tile, final long cellX, final long cellY) {
+        return (readGroup & 0xFFFFL) << 48 | (tile & 0xFFFFL) << 32 | (cellX & 0xFFFFL) << 16 | (cellY & 0xFFFFL);
+    }
+
+    /** Returns the first position in the sorted array whose value is not less than the given value. */
+    private static int lowerBound(final long[] sorted, final long value) {
+        int low = 0, high = sorted.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (sorted[mid] < value) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
     /** Returns the keeper if it is contained within the list and has location information, otherwise null. */
     private PhysicalLocation keeperOrNull(final List<? extends PhysicalLocation> list, final PhysicalLocation keeper) {
         if (keeper != null && keeper.hasLocation()) {
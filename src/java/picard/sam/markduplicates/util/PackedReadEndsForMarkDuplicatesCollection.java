@@ -0,0 +1,435 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * A sorting collection for ReadEndsForMarkDuplicates that stores each read end packed into a fixed number of longs
+ * in one large array, rather than as an object.  This avoids the per-object header, padding and reference overhead,
+ * so that more read ends fit in memory before anything has to be spilled to disk.
+ *
+ * Read ends are sorted in place in the same order as MarkDuplicates' ReadEndsMDComparator: by library, barcodes (if
+ * used), read1 position, orientation, read2 position and finally the indexes in the file.  When the in-memory buffer
+ * is full it is sorted and written to a temporary file as a sorted run; iteration merges the runs.  Each read end is
+ * handed back as a newly allocated ReadEndsForMarkDuplicates (or ReadEndsForMarkDuplicatesWithBarcodes).
+ *
+ * Packed layout, one long per line:
+ *   0: libraryId (16) | orientation (8) | orientationForOpticalDuplicates (8) | score (16) | readGroup (16)
+ *   1: read1ReferenceIndex (32) | read1Coordinate (32)
+ *   2: read2ReferenceIndex (32) | read2Coordinate (32)
+ *   3: read1IndexInFile
+ *   4: read2IndexInFile
+ *   5: tile (16) | x (16) | y (16) | unused (16)
+ *   6: barcode (32) | readOneBarcode (32)       (only with barcodes)
+ *   7: readTwoBarcode (32) | unused (32)         (only with barcodes)
+ *
+ * x and y are stored as shorts, as in ReadEndsForMarkDuplicatesCodec.
+ */
+public class PackedReadEndsForMarkDuplicatesCollection implements Iterable<ReadEndsForMarkDuplicates> {
+    private static final int LONGS_PER_READ_ENDS = 6;
+    private static final int LONGS_PER_READ_ENDS_WITH_BARCODES = 8;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final boolean useBarcodes;
+    private final int stride;
+    private final int maxRecordsInRam;
+    private final File[] tmpDirs;
+
+    private long[] records;
+    private int numRecords = 0;
+    private boolean sorted = false;
+    private boolean doneAdding = false;
+
+    /** Scratch space for a single packed read ends, used while sorting. */
+    private final long[] scratch;
+
+    private final List<File> spillFiles = new ArrayList<>();
+    private final List<DataInputStream> openSpillStreams = new ArrayList<>();
+
+    /**
+     * @param useBarcodes     whether the read ends carry barcodes, i.e. are ReadEndsForMarkDuplicatesWithBarcodes
+     * @param maxRecordsInRam the number of read ends to hold in memory before spilling to disk
+     * @param tmpDirs         where to write spilled read ends
+     */
+    public PackedReadEndsForMarkDuplicatesCollection(final boolean useBarcodes, final int maxRecordsInRam, final Collection<File> tmpDirs) {
+        if (maxRecordsInRam <= 0) throw new IllegalArgumentException("maxRecordsInRam must be > 0");
+        this.useBarcodes = useBarcodes;
+        this.stride = useBarcodes ? LONGS_PER_READ_ENDS_WITH_BARCODES : LONGS_PER_READ_ENDS;
+        // Java arrays are indexed by int, so that caps how much we can hold in a single array
+        this.maxRecordsInRam = Math.min(maxRecordsInRam, (Integer.MAX_VALUE - 8) / stride);
+        this.tmpDirs = tmpDirs.toArray(new File[tmpDirs.size()]);
+        this.records = new long[Math.min(INITIAL_CAPACITY, this.maxRecordsInRam) * stride];
+        this.scratch = new long[stride];
+    }
+
+    /** The number of bytes of memory used to hold a single read ends in this collection. */
+    public static int getSizeOf(final boolean useBarcodes) {
+        return 8 * (useBarcodes ? LONGS_PER_READ_ENDS_WITH_BARCODES : LONGS_PER_READ_ENDS);
+    }
+
+    /** Adds a copy of the given read ends to the collection. */
+    public void add(final ReadEndsForMarkDuplicates readEnds) {
+        if (doneAdding) throw new IllegalStateException("Cannot add after calling doneAdding()");
+        if (numRecords == maxRecordsInRam) spillToDisk();
+        if (numRecords * stride == records.length) {
+            records = Arrays.copyOf(records, Math.min(2 * numRecords, maxRecordsInRam) * stride);
+        }
+        pack(readEnds, records, numRecords * stride);
+        ++numRecords;
+        sorted = false;
+    }
+
+    /** Signals that all read ends have been added, and frees any unused memory. */
+    public void doneAdding() {
+        doneAdding = true;
+        if (records.length > numRecords * stride) records = Arrays.copyOf(records, numRecords * stride);
+    }
+
+    /** Returns an iterator over all read ends in sorted order.  Implicitly calls doneAdding(). */
+    @Override
+    public CloseableIterator<ReadEndsForMarkDuplicates> iterator() {
+        if (!doneAdding) doneAdding();
+        if (!sorted) sortInMemoryRecords();
+
+        final List<RunCursor> runs = new ArrayList<>(spillFiles.size() + 1);
+        for (int i = 0; i < spillFiles.size(); ++i) runs.add(new FileRunCursor(spillFiles.get(i), i));
+        runs.add(new MemoryRunCursor(spillFiles.size()));
+        return new MergingIterator(runs);
+    }
+
+    /** Deletes any temporary files and releases memory. Further use of this collection is not possible. */
+    public void cleanup() {
+        openSpillStreams.forEach(CloserUtil::close);
+        openSpillStreams.clear();
+        IOUtil.deleteFiles(spillFiles);
+        spillFiles.clear();
+        records = null;
+        numRecords = 0;
+    }
+
+    private void spillToDisk() {
+        sortInMemoryRecords();
+        try {
+            final File file = IOUtil.newTempFile("readEnds.", ".packed", tmpDirs);
+            file.deleteOnExit();
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024))) {
+                for (int i = 0; i < numRecords * stride; ++i) out.writeLong(records[i]);
+            }
+            spillFiles.add(file);
+        } catch (final IOException ioe) {
+            throw new PicardException("Exception writing ReadEnds to temporary file.", ioe);
+        }
+        numRecords = 0;
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Packing and unpacking
+    //////////////////////////////////////////////////////////////////////////
+
+    private void pack(final ReadEndsForMarkDuplicates read, final long[] dest, final int offset) {
+        dest[offset] = (long) (read.libraryId & 0xFFFF) << 48 |
+                (long) (read.orientation & 0xFF) << 40 |
+                (long) (read.orientationForOpticalDuplicates & 0xFF) << 32 |
+                (long) (read.score & 0xFFFF) << 16 |
+                (long) (read.readGroup & 0xFFFF);
+        dest[offset + 1] = pair(read.read1ReferenceIndex, read.read1Coordinate);
+        dest[offset + 2] = pair(read.read2ReferenceIndex, read.read2Coordinate);
+        dest[offset + 3] = read.read1IndexInFile;
+        dest[offset + 4] = read.read2IndexInFile;
+        dest[offset + 5] = (long) (read.tile & 0xFFFF) << 48 |
+                (long) (read.x & 0xFFFF) << 32 |
+                (long) (read.y & 0xFFFF) << 16;
+
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) read;
+            dest[offset + 6] = pair(withBarcodes.barcode, withBarcodes.readOneBarcode);
+            dest[offset + 7] = pair(withBarcodes.readTwoBarcode, 0);
+        }
+    }
+
+    private ReadEndsForMarkDuplicates unpack(final long[] src, final int offset) {
+        final ReadEndsForMarkDuplicates read;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = new ReadEndsForMarkDuplicatesWithBarcodes();
+            withBarcodes.barcode = high(src[offset + 6]);
+            withBarcodes.readOneBarcode = low(src[offset + 6]);
+            withBarcodes.readTwoBarcode = high(src[offset + 7]);
+            read = withBarcodes;
+        } else {
+            read = new ReadEndsForMarkDuplicates();
+        }
+
+        final long first = src[offset];
+        read.libraryId = (short) (first >>> 48);
+        read.orientation = (byte) (first >>> 40);
+        read.orientationForOpticalDuplicates = (byte) (first >>> 32);
+        read.score = (short) (first >>> 16);
+        read.readGroup = (short) first;
+        read.read1ReferenceIndex = high(src[offset + 1]);
+        read.read1Coordinate = low(src[offset + 1]);
+        read.read2ReferenceIndex = high(src[offset + 2]);
+        read.read2Coordinate = low(src[offset + 2]);
+        read.read1IndexInFile = src[offset + 3];
+        read.read2IndexInFile = src[offset + 4];
+
+        final long location = src[offset + 5];
+        read.tile = (short) (location >>> 48);
+        read.x = (short) (location >>> 32);
+        read.y = (short) (location >>> 16);
+        return read;
+    }
+
+    private static long pair(final int high, final int low) { return (long) high << 32 | (low & 0xFFFFFFFFL); }
+
+    private static int high(final long value) { return (int) (value >> 32); }
+
+    private static int low(final long value) { return (int) value; }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Sorting
+    //////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Compares two packed read ends.  This must give exactly the same answers as MarkDuplicates.ReadEndsMDComparator
+     * so that duplicate sets, and the order of read ends within them, do not depend on how read ends are stored.
+     */
+    private int compare(final long[] lhs, final int l, final long[] rhs, final int r) {
+        int compareDifference = (short) (lhs[l] >>> 48) - (short) (rhs[r] >>> 48); // libraryId
+        if (useBarcodes) {
+            if (compareDifference == 0) compareDifference = Integer.compare(high(lhs[l + 6]), high(rhs[r + 6]));
+            if (compareDifference == 0) compareDifference = Integer.compare(low(lhs[l + 6]), low(rhs[r + 6]));
+            if (compareDifference == 0) compareDifference = Integer.compare(high(lhs[l + 7]), high(rhs[r + 7]));
+        }
+        if (compareDifference == 0) compareDifference = high(lhs[l + 1]) - high(rhs[r + 1]);
+        if (compareDifference == 0) compareDifference = low(lhs[l + 1]) - low(rhs[r + 1]);
+        if (compareDifference == 0) compareDifference = (byte) (lhs[l] >>> 40) - (byte) (rhs[r] >>> 40); // orientation
+        if (compareDifference == 0) compareDifference = high(lhs[l + 2]) - high(rhs[r + 2]);
+        if (compareDifference == 0) compareDifference = low(lhs[l + 2]) - low(rhs[r + 2]);
+        if (compareDifference == 0) compareDifference = (int) (lhs[l + 3] - rhs[r + 3]);
+        if (compareDifference == 0) compareDifference = (int) (lhs[l + 4] - rhs[r + 4]);
+
+        return compareDifference;
+    }
+
+    private void sortInMemoryRecords() {
+        quickSort(0, numRecords);
+        sorted = true;
+    }
+
+    /** Sorts the records in [from, to) in place. */
+    private void quickSort(int from, int to) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            // Use the median of three as the pivot, moved to the front of the range
+            swap(from, medianOfThree(from, from + (to - from) / 2, to - 1));
+            System.arraycopy(records, from * stride, scratch, 0, stride);
+
+            // Hoare partition
+            int i = from - 1, j = to;
+            while (true) {
+                do ++i; while (compare(records, i * stride, scratch, 0) < 0);
+                do --j; while (compare(records, j * stride, scratch, 0) > 0);
+                if (i >= j) break;
+                swap(i, j);
+            }
+
+            // Recurse into the smaller half, loop on the larger one to bound the stack depth
+            if (j + 1 - from < to - (j + 1)) {
+                quickSort(from, j + 1);
+                from = j + 1;
+            } else {
+                quickSort(j + 1, to);
+                to = j + 1;
+            }
+        }
+        insertionSort(from, to);
+    }
+
+    private void insertionSort(final int from, final int to) {
+        for (int i = from + 1; i < to; ++i) {
+            System.arraycopy(records, i * stride, scratch, 0, stride);
+            int j = i - 1;
+            while (j >= from && compare(records, j * stride, scratch, 0) > 0) {
+                System.arraycopy(records, j * stride, records, (j + 1) * stride, stride);
+                --j;
+            }
+            System.arraycopy(scratch, 0, records, (j + 1) * stride, stride);
+        }
+    }
+
+    private int medianOfThree(final int a, final int b, final int c) {
+        final int ab = compare(records, a * stride, records, b * stride);
+        final int bc = compare(records, b * stride, records, c * stride);
+        final int ac = compare(records, a * stride, records, c * stride);
+        if (ab < 0) {
+            if (bc < 0) return b;
+            return ac < 0 ? c : a;
+        } else {
+            if (bc > 0) return b;
+            return ac > 0 ? c : a;
+        }
+    }
+
+    private void swap(final int a, final int b) {
+        if (a == b) return;
+        final int aOffset = a * stride, bOffset = b * stride;
+        for (int k = 0; k < stride; ++k) {
+            final long tmp = records[aOffset + k];
+            records[aOffset + k] = records[bOffset + k];
+            records[bOffset + k] = tmp;
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Iteration over, and merging of, sorted runs
+    //////////////////////////////////////////////////////////////////////////
+
+    /** A position within a sorted run of packed read ends, either in memory or on disk. */
+    private abstract class RunCursor {
+        final int runIndex;
+
+        RunCursor(final int runIndex) { this.runIndex = runIndex; }
+
+        /** Moves to the next read ends in the run, returning false if there are no more. */
+        abstract boolean advance();
+
+        abstract long[] buffer();
+
+        abstract int offset();
+
+        void close() { }
+    }
+
+    private class MemoryRunCursor extends RunCursor {
+        private int index = -1;
+
+        MemoryRunCursor(final int runIndex) { super(runIndex); }
+
+        @Override
+        boolean advance() { return ++index < numRecords; }
+
+        @Override
+        long[] buffer() { return records; }
+
+        @Override
+        int offset() { return index * stride; }
+    }
+
+    private class FileRunCursor extends RunCursor {
+        private final DataInputStream in;
+        private final long[] current = new long[stride];
+
+        FileRunCursor(final File file, final int runIndex) {
+            super(runIndex);
+            try {
+                this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            } catch (final IOException ioe) {
+                throw new PicardException("Exception opening temporary file " + file, ioe);
+            }
+            openSpillStreams.add(in);
+        }
+
+        @Override
+        boolean advance() {
+            try {
+                try {
+                    current[0] = in.readLong();
+                } catch (final EOFException eof) {
+                    close();
+                    return false;
+                }
+                for (int k = 1; k < stride; ++k) current[k] = in.readLong();
+                return true;
+            } catch (final IOException ioe) {
+                throw new PicardException("Exception reading ReadEnds from temporary file.", ioe);
+            }
+        }
+
+        @Override
+        long[] buffer() { return current; }
+
+        @Override
+        int offset() { return 0; }
+
+        @Override
+        void close() {
+            CloserUtil.close(in);
+            openSpillStreams.remove(in);
+        }
+    }
+
+    /** Merges the sorted runs, handing back unpacked read ends. */
+    private class MergingIterator implements CloseableIterator<ReadEndsForMarkDuplicates> {
+        private final PriorityQueue<RunCursor> queue;
+
+        MergingIterator(final List<RunCursor> runs) {
+            this.queue = new PriorityQueue<>(Math.max(1, runs.size()), (lhs, rhs) -> {
+                final int compareDifference = compare(lhs.buffer(), lhs.offset(), rhs.buffer(), rhs.offset());
+                return compareDifference != 0 ? compareDifference : Integer.compare(lhs.runIndex, rhs.runIndex);
+            });
+            for (final RunCursor run : runs) {
+                if (run.advance()) queue.add(run);
+            }
+        }
+
+        @Override
+        public boolean hasNext() { return !queue.isEmpty(); }
+
+        @Override
+        public ReadEndsForMarkDuplicates next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final RunCursor run = queue.poll();
+            final ReadEndsForMarkDuplicates next = unpack(run.buffer(), run.offset());
+            if (run.advance()) queue.add(run);
+            return next;
+        }
+
+        @Override
+        public void close() {
+            queue.forEach(RunCursor::close);
+            queue.clear();
+        }
+    }
+}
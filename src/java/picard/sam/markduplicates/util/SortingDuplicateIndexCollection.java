@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.SortingLongCollection;
+
+import java.io.File;
+import java.util.NoSuchElementException;
+
+/**
+ * A DuplicateIndexCollection backed by htsjdk's SortingLongCollection, which sorts the indexes and spills them to
+ * temporary files when more than a given number have been added.  Indexes that were added more than once are
+ * returned once.
+ */
+public class SortingDuplicateIndexCollection implements DuplicateIndexCollection {
+    private final SortingLongCollection collection;
+    private boolean hasPrevious = false;
+    private long previous;
+    private boolean hasPending = false;
+    private long pending;
+
+    public SortingDuplicateIndexCollection(final int maxValuesInRam, final File... tmpDirs) {
+        this.collection = new SortingLongCollection(maxValuesInRam, tmpDirs);
+    }
+
+    @Override
+    public void add(final long index) {
+        collection.add(index);
+    }
+
+    @Override
+    public void doneAddingStartIteration() {
+        collection.doneAddingStartIteration();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!hasPending && collection.hasNext()) {
+            final long value = collection.next();
+            if (!hasPrevious || value != previous) {
+                pending = value;
+                hasPending = true;
+            }
+        }
+        return hasPending;
+    }
+
+    @Override
+    public long next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        hasPending = false;
+        hasPrevious = true;
+        previous = pending;
+        return pending;
+    }
+
+    @Override
+    public void cleanup() {
+        collection.cleanup();
+    }
+}
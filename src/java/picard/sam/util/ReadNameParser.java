@@ -26,11 +26,19 @@ public class ReadNameParser {
      */
     public static final String DEFAULT_READ_NAME_REGEX = "<optimized capture of last three ':' separated fields as numeric values>".intern();
 
-    private final int[] tmpLocationFields = new int[3]; // for optimization of addLocationInformation
+    // Per thread, as a parser such as an OpticalDuplicateFinder may be shared by several threads
+    private final ThreadLocal<int[]> tmpLocationFields = ThreadLocal.withInitial(() -> new int[3]); // for optimization of addLocationInformation
 
     private String readNameRegex = null;
 
-    private Pattern readNamePattern;
+    // Written after compiledReadNameRegex, so that a thread that sees the pattern also sees the compiled regex
+    private volatile Pattern readNamePattern;
+
+    /** The read name regex compiled for allocation-free matching, or null if it uses unsupported syntax. */
+    private ReadNameRegex compiledReadNameRegex;
+
+    /** The groups of the last match of compiledReadNameRegex on each thread. */
+    private final ThreadLocal<int[]> compiledReadNameGroups = ThreadLocal.withInitial(() -> compiledReadNameRegex.newGroups());
 
     private boolean warnedAboutRegexNotMatching = false;
 
@@ -76,6 +84,7 @@ public class ReadNameParser {
         try {
             // Optimized version if using the default read name regex (== used on purpose):
             if (this.readNameRegex == ReadNameParser.DEFAULT_READ_NAME_REGEX) {
+                final int[] tmpLocationFields = this.tmpLocationFields.get();
                 final int fields = getLastThreeFields(readName, ':', tmpLocationFields);
                 if (!(fields == 5 || fields == 7)) {
                     if (null != log && !this.warnedAboutRegexNotMatching) {
@@ -95,7 +104,25 @@ public class ReadNameParser {
                 return false;
             } else {
                 // Standard version that will use the regex
-                if (this.readNamePattern == null) this.readNamePattern = Pattern.compile(this.readNameRegex);
+                if (this.readNamePattern == null) {
+                    final Pattern pattern = Pattern.compile(this.readNameRegex);
+                    this.compiledReadNameRegex = ReadNameRegex.compile(this.readNameRegex);
+                    this.readNamePattern = pattern;
+                }
+
+                // Common regexes are matched without allocating a Matcher and group Strings, with the same results
+                if (this.compiledReadNameRegex != null && this.compiledReadNameRegex.canMatch(readName)) {
+                    final int[] groups = this.compiledReadNameGroups.get();
+                    if (this.compiledReadNameRegex.matches(readName, groups)) {
+                        loc.setTile((short) this.compiledReadNameRegex.parseGroup(readName, groups, 1));
+                        loc.setX(this.compiledReadNameRegex.parseGroup(readName, groups, 2));
+                        loc.setY(this.compiledReadNameRegex.parseGroup(readName, groups, 3));
+                        return true;
+                    } else {
+                        warnAboutRegexNotMatching(readName);
+                        return false;
+                    }
+                }
 
                 final Matcher m = this.readNamePattern.matcher(readName);
                 if (m.matches()) {
@@ -104,12 +131,7 @@ public class ReadNameParser {
                     loc.setY(Integer.parseInt(m.group(3)));
                     return true;
                 } else {
-                    if (null != log && !this.warnedAboutRegexNotMatching) {
-                        this.log.warn(String.format("READ_NAME_REGEX '%s' did not match read name '%s'.  Your regex may not be correct.  " +
-                                        "Note that this message will not be emitted again even if other read names do not match the regex.",
-                                this.readNameRegex, readName));
-                        warnedAboutRegexNotMatching = true;
-                    }
+                    warnAboutRegexNotMatching(readName);
                     return false;
                 }
             }
@@ -124,6 +146,15 @@ public class ReadNameParser {
         }
     }
 
+    private void warnAboutRegexNotMatching(final String readName) {
+        if (null != log && !this.warnedAboutRegexNotMatching) {
+            this.log.warn(String.format("READ_NAME_REGEX '%s' did not match read name '%s'.  Your regex may not be correct.  " +
+                            "Note that this message will not be emitted again even if other read names do not match the regex.",
+                    this.readNameRegex, readName));
+            warnedAboutRegexNotMatching = true;
+        }
+    }
+
     /**
      * Given a string, splits the string by the delimiter, and returns the the last three fields parsed as integers.  Parsing a field
      * considers only a sequence of digits up until the first non-digit character.  The three values are stored in the passed-in array.
@@ -139,7 +170,7 @@ public class ReadNameParser {
         for (i = readName.length() - 1; 0 <= i && 0 <= tokensIdx; i--) {
             if (readName.charAt(i) == delim || 0 == i) {
                 numFields++;
-                tokens[tokensIdx] = rapidParseInt(readName.substring((0 == i) ? 0 : (i+1), endIdx));
+                tokens[tokensIdx] = rapidParseInt(readName, (0 == i) ? 0 : (i+1), endIdx);
                 tokensIdx--;
                 endIdx = i;
             }
@@ -165,18 +196,22 @@ public class ReadNameParser {
      * @throws NumberFormatException if the String does not start with an optional - followed by at least on digit
      */
     public static int rapidParseInt(final String input) throws NumberFormatException {
-        final int len = input.length();
+        return rapidParseInt(input, 0, input.length());
+    }
+
+    /** As {@link #rapidParseInt(String)}, but parses input[start, end) without creating a substring. */
+    private static int rapidParseInt(final String input, final int start, final int end) throws NumberFormatException {
         int val = 0;
-        int i = 0;
+        int i = start;
         boolean isNegative = false;
 
-        if (0 < len && '-' == input.charAt(0)) {
-            i = 1;
+        if (start < end && '-' == input.charAt(start)) {
+            i = start + 1;
             isNegative = true;
         }
 
         boolean hasDigits = false;
-        for (; i < len; ++i) {
+        for (; i < end; ++i) {
             final char ch = input.charAt(i);
             if (Character.isDigit(ch)) {
                 val = (val * 10) + (ch - 48);
@@ -186,7 +221,7 @@ public class ReadNameParser {
             }
         }
 
-        if (!hasDigits) throw new NumberFormatException("String '" + input + "' did not start with a parsable number.");
+        if (!hasDigits) throw new NumberFormatException("String '" + input.substring(start, end) + "' did not start with a parsable number.");
         if (isNegative) val = -val;
         return val;
     }
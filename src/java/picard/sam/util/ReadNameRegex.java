@@ -0,0 +1,457 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.sam.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A matcher for the simple regular expressions commonly given as READ_NAME_REGEX, which matches a read name and
+ * parses its capturing groups as integers without allocating a Matcher or any Strings.
+ *
+ * Only a subset of the java.util.regex syntax is supported: literal characters, '.', the escapes \d \D \w \W \s \S,
+ * character classes such as [a-zA-Z0-9_.] and [^:], the greedy quantifiers ?, *, +, {n}, {n,} and {n,m}, capturing
+ * groups, optional non-capturing groups (?:...)? and a leading '^' or trailing '$'.  This covers the usual expressions
+ * for Illumina, Casava 1.8 and SRA read names, e.g. "[a-zA-Z0-9]+:[0-9]:([0-9]+):([0-9]+):([0-9]+).*" or
+ * "(?:.*:)?([0-9]+)[^:]*:([0-9]+)[^:]*:([0-9]+)[^:]*$".  {@link #compile(String)} returns null for anything else, so that
+ * the caller can fall back to java.util.regex.
+ *
+ * Matching backtracks in the same order as java.util.regex does for these constructs, so the groups captured by
+ * {@link #matches(String, int[])} are the same as those of Matcher.matches(), and {@link #parseGroup(String, int[], int)} behaves as
+ * Integer.parseInt(matcher.group(n)).  Read names containing surrogate characters are rejected by
+ * {@link #canMatch(String)}, since java.util.regex matches those as single code points.
+ *
+ * Instances are immutable and can be shared between threads: the groups of a match are recorded in an array from
+ * {@link #newGroups()} that belongs to the caller.
+ */
+class ReadNameRegex {
+    private static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private final Node head;
+    private final int numGroups;
+
+    private ReadNameRegex(final Node head, final int numGroups) {
+        this.head = head;
+        this.numGroups = numGroups;
+    }
+
+    /**
+     * Compiles the given regular expression, or returns null if it uses anything outside the supported subset or has
+     * fewer than the given number of capturing groups.
+     */
+    static ReadNameRegex compile(final String regex, final int minGroups) {
+        final Parser parser = new Parser(regex);
+        try {
+            final Sequence sequence = parser.parseSequence(false);
+            if (parser.pos != regex.length() || parser.numGroups < minGroups) return null;
+            sequence.append(new Accept());
+            return new ReadNameRegex(sequence.head, parser.numGroups);
+        } catch (final UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /** Compiles a regular expression with (at least) the three capturing groups for tile, x and y. */
+    static ReadNameRegex compile(final String regex) {
+        return compile(regex, 3);
+    }
+
+    /** Returns false if the read name must be matched with java.util.regex instead. */
+    boolean canMatch(final String readName) {
+        for (int i = 0; i < readName.length(); ++i) {
+            if (Character.isSurrogate(readName.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Makes an array in which {@link #matches(String, int[])} records the start and end of each capturing group, or -1
+     * if the group did not participate.
+     */
+    int[] newGroups() {
+        return new int[2 * (numGroups + 1)];
+    }
+
+    /** Returns true if the whole read name matches, as Matcher.matches() does, recording the capturing groups. */
+    boolean matches(final String readName, final int[] groups) {
+        for (int i = 0; i < groups.length; ++i) groups[i] = -1;
+        return head.match(readName, 0, groups);
+    }
+
+    /**
+     * Parses the given capturing group of a successful match, recorded in groups, as Integer.parseInt would.
+     *
+     * @throws NumberFormatException if the group did not participate in the match or is not a parsable integer
+     */
+    int parseGroup(final String readName, final int[] groups, final int group) throws NumberFormatException {
+        if (group > numGroups) throw new IndexOutOfBoundsException("No group " + group);
+        final int start = groups[2 * group];
+        final int end = groups[2 * group + 1];
+        if (start < 0) throw new NumberFormatException("null");
+        return parseInt(readName, start, end);
+    }
+
+    /** Parses readName[start, end) exactly as Integer.parseInt(readName.substring(start, end)) would, without the substring. */
+    static int parseInt(final CharSequence s, final int start, final int end) throws NumberFormatException {
+        if (start >= end) throw numberFormatException(s, start, end);
+        boolean negative = false;
+        int limit = -Integer.MAX_VALUE;
+        int i = start;
+        final char first = s.charAt(i);
+        if (first < '0') {
+            if (first == '-') {
+                negative = true;
+                limit = Integer.MIN_VALUE;
+            } else if (first != '+') {
+                throw numberFormatException(s, start, end);
+            }
+            if (end - start == 1) throw numberFormatException(s, start, end);
+            ++i;
+        }
+        final int multmin = limit / 10;
+        int result = 0;
+        while (i < end) {
+            final int digit = Character.digit(s.charAt(i++), 10);
+            if (digit < 0 || result < multmin) throw numberFormatException(s, start, end);
+            result *= 10;
+            if (result < limit + digit) throw numberFormatException(s, start, end);
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    private static NumberFormatException numberFormatException(final CharSequence s, final int start, final int end) {
+        return new NumberFormatException("For input string: \"" + s.subSequence(start, end) + "\"");
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Matching nodes.  Each node matches its own part of the name and then
+    // hands the rest of the name to the next node.
+    ////////////////////////////////////////////////////////////////////////////
+
+    private abstract static class Node {
+        Node next;
+
+        abstract boolean match(String s, int pos, int[] groups);
+    }
+
+    /** Succeeds only at the end of the name, as Matcher.matches() requires. */
+    private static class Accept extends Node {
+        @Override
+        boolean match(final String s, final int pos, final int[] groups) {
+            return pos == s.length();
+        }
+    }
+
+    /** A greedy repetition of a set of characters, which gives back one character at a time when backtracking. */
+    private static class Repeat extends Node {
+        private final BitSet chars;
+        private final int min, max;
+
+        Repeat(final BitSet chars, final int min, final int max) {
+            this.chars = chars;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        boolean match(final String s, final int pos, final int[] groups) {
+            final int limit = (int) Math.min(s.length(), (long) pos + max);
+            int end = pos;
+            while (end < limit && chars.get(s.charAt(end))) ++end;
+            for (; end - pos >= min; --end) {
+                if (next.match(s, end, groups)) return true;
+            }
+            return false;
+        }
+    }
+
+    private static class GroupStart extends Node {
+        private final int index;
+
+        GroupStart(final int group) { this.index = 2 * group; }
+
+        @Override
+        boolean match(final String s, final int pos, final int[] groups) {
+            final int saved = groups[index];
+            groups[index] = pos;
+            if (next.match(s, pos, groups)) return true;
+            groups[index] = saved;
+            return false;
+        }
+    }
+
+    private static class GroupEnd extends Node {
+        private final int index;
+
+        GroupEnd(final int group) { this.index = 2 * group + 1; }
+
+        @Override
+        boolean match(final String s, final int pos, final int[] groups) {
+            final int saved = groups[index];
+            groups[index] = pos;
+            if (next.match(s, pos, groups)) return true;
+            groups[index] = saved;
+            return false;
+        }
+    }
+
+    /** A greedy optional sequence: first tries the body followed by the rest, then the rest alone. */
+    private static class Optional extends Node {
+        private final Node body;
+
+        Optional(final Node body) { this.body = body; }
+
+        @Override
+        boolean match(final String s, final int pos, final int[] groups) {
+            return body.match(s, pos, groups) || next.match(s, pos, groups);
+        }
+    }
+
+    /** Passes straight through to the next node; used to join the end of an optional body to what follows it. */
+    private static class Join extends Node {
+        @Override
+        boolean match(final String s, final int pos, final int[] groups) {
+            return next.match(s, pos, groups);
+        }
+    }
+
+    /** A linked list of nodes under construction. */
+    private static class Sequence {
+        Node head, tail;
+
+        void append(final Node node) {
+            if (head == null) head = node;
+            else tail.next = node;
+            tail = node;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Parsing of the supported subset of the regex syntax.  Anything else
+    // throws UnsupportedOperationException.
+    ////////////////////////////////////////////////////////////////////////////
+
+    private static class Parser {
+        private final String regex;
+        int pos = 0;
+        int numGroups = 0;
+
+        Parser(final String regex) { this.regex = regex; }
+
+        private boolean atEnd() { return pos >= regex.length(); }
+
+        private char peek() { return regex.charAt(pos); }
+
+        private static UnsupportedOperationException unsupported() { return new UnsupportedOperationException(); }
+
+        /** Parses atoms up to the end of the regex or, within a group, up to the closing parenthesis. */
+        Sequence parseSequence(final boolean inGroup) {
+            final Sequence sequence = new Sequence();
+            if (!inGroup && !atEnd() && peek() == '^') ++pos;
+            while (!atEnd()) {
+                final char c = peek();
+                if (c == ')') {
+                    if (!inGroup) throw unsupported();
+                    break;
+                } else if (c == '$') {
+                    if (inGroup || pos != regex.length() - 1) throw unsupported();
+                    ++pos;
+                } else if (c == '(') {
+                    parseGroup(sequence);
+                } else {
+                    final BitSet chars = parseAtom();
+                    final int[] bounds = parseQuantifier();
+                    sequence.append(new Repeat(chars, bounds[0], bounds[1]));
+                }
+            }
+            return sequence;
+        }
+
+        private void parseGroup(final Sequence sequence) {
+            ++pos;
+            if (regex.startsWith("?:", pos)) {
+                pos += 2;
+                final Sequence body = parseSequence(true);
+                expect(')');
+                if (!atEnd() && peek() == '?') {
+                    ++pos;
+                    checkNotLazyOrPossessive();
+                    if (body.head == null) return;
+                    final Optional optional = new Optional(body.head);
+                    final Join join = new Join();
+                    body.tail.next = join;
+                    sequence.append(optional);
+                    // Both branches continue at the join
+                    optional.next = join;
+                    sequence.tail = join;
+                } else {
+                    checkNoQuantifier();
+                    if (body.head != null) {
+                        sequence.append(body.head);
+                        sequence.tail = body.tail;
+                    }
+                }
+            } else if (!atEnd() && peek() == '?') {
+                throw unsupported(); // flags, lookaround or named groups
+            } else {
+                final int group = ++numGroups;
+                sequence.append(new GroupStart(group));
+                final Sequence body = parseSequence(true);
+                if (body.head != null) {
+                    sequence.append(body.head);
+                    sequence.tail = body.tail;
+                }
+                expect(')');
+                checkNoQuantifier();
+                sequence.append(new GroupEnd(group));
+            }
+        }
+
+        private void expect(final char c) {
+            if (atEnd() || peek() != c) throw unsupported();
+            ++pos;
+        }
+
+        private void checkNoQuantifier() {
+            if (!atEnd() && "?*+{".indexOf(peek()) >= 0) throw unsupported();
+        }
+
+        private void checkNotLazyOrPossessive() {
+            if (!atEnd() && (peek() == '?' || peek() == '+')) throw unsupported();
+        }
+
+        /** Parses a quantifier, if any, returning its minimum and maximum. */
+        private int[] parseQuantifier() {
+            int min = 1, max = 1;
+            if (!atEnd()) {
+                final char c = peek();
+                if (c == '?') { min = 0; max = 1; ++pos; }
+                else if (c == '*') { min = 0; max = UNBOUNDED; ++pos; }
+                else if (c == '+') { min = 1; max = UNBOUNDED; ++pos; }
+                else if (c == '{') {
+                    ++pos;
+                    min = max = parseNumber();
+                    if (!atEnd() && peek() == ',') {
+                        ++pos;
+                        max = (!atEnd() && peek() == '}') ? UNBOUNDED : parseNumber();
+                    }
+                    expect('}');
+                    if (max < min) throw unsupported();
+                } else {
+                    return new int[] {min, max};
+                }
+                checkNotLazyOrPossessive();
+            }
+            return new int[] {min, max};
+        }
+
+        private int parseNumber() {
+            final int start = pos;
+            while (!atEnd() && peek() >= '0' && peek() <= '9' && pos - start < 6) ++pos;
+            if (pos == start || (!atEnd() && peek() >= '0' && peek() <= '9')) throw unsupported();
+            return Integer.parseInt(regex.substring(start, pos));
+        }
+
+        /** Parses a single character, '.', escape or character class into the set of characters it matches. */
+        private BitSet parseAtom() {
+            final char c = regex.charAt(pos++);
+            final BitSet chars = new BitSet(Character.MAX_VALUE + 1);
+            switch (c) {
+                case '.':
+                    chars.set(0, Character.MAX_VALUE + 1);
+                    for (final char terminator : new char[] {'\n', '\r', '\u0085', '\u2028', '\u2029'}) chars.clear(terminator);
+                    return chars;
+                case '\\':
+                    parseEscape(chars);
+                    return chars;
+                case '[':
+                    return parseClass();
+                case '*': case '+': case '?': case '{': case '}': case '|': case ']': case '^': case '$':
+                    throw unsupported();
+                default:
+                    checkLiteral(c);
+                    chars.set(c);
+                    return chars;
+            }
+        }
+
+        /** Adds the characters matched by the escape following a backslash. */
+        private void parseEscape(final BitSet chars) {
+            if (atEnd()) throw unsupported();
+            final char c = regex.charAt(pos++);
+            final BitSet set = new BitSet(Character.MAX_VALUE + 1);
+            switch (c) {
+                case 'd': case 'D': set.set('0', '9' + 1); break;
+                case 'w': case 'W': set.set('a', 'z' + 1); set.set('A', 'Z' + 1); set.set('0', '9' + 1); set.set('_'); break;
+                case 's': case 'S': for (final char space : new char[] {' ', '\t', '\n', '\u000B', '\f', '\r'}) set.set(space); break;
+                default:
+                    // Only escaped punctuation is a plain literal; escaped letters and digits have other meanings
+                    if (c >= 128 || Character.isLetterOrDigit(c)) throw unsupported();
+                    set.set(c);
+            }
+            if (Character.isUpperCase(c)) set.flip(0, Character.MAX_VALUE + 1);
+            chars.or(set);
+        }
+
+        private BitSet parseClass() {
+            final BitSet chars = new BitSet(Character.MAX_VALUE + 1);
+            boolean negated = false;
+            if (!atEnd() && peek() == '^') {
+                negated = true;
+                ++pos;
+            }
+            boolean first = true;
+            while (true) {
+                if (atEnd()) throw unsupported();
+                final char c = regex.charAt(pos++);
+                if (c == ']' && !first) break;
+                if (c == '[' || c == ']' || (c == '&' && !atEnd() && peek() == '&')) throw unsupported();
+                if (c == '\\') {
+                    parseEscape(chars);
+                } else if (!atEnd() && peek() == '-' && pos + 1 < regex.length() && regex.charAt(pos + 1) != ']') {
+                    final char to = regex.charAt(pos + 1);
+                    if (to == '\\' || to == '[' || to < c) throw unsupported();
+                    checkLiteral(c);
+                    checkLiteral(to);
+                    chars.set(c, to + 1);
+                    pos += 2;
+                } else {
+                    checkLiteral(c);
+                    chars.set(c);
+                }
+                first = false;
+            }
+            if (negated) chars.flip(0, Character.MAX_VALUE + 1);
+            return chars;
+        }
+
+        private static void checkLiteral(final char c) {
+            if (c >= 128 || Character.isISOControl(c) || Character.isWhitespace(c)) throw unsupported();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.util;
+
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.StringUtil;
+import picard.PicardException;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for sidecar cache files, such as the GC window cache and the refFlat cache: writing a cache so that readers
+ * never see it half written, and computing the digests that decide whether a cache is stale.
+ */
+public class CacheFileUtil {
+
+    /** Writes the contents of a cache file. */
+    public interface Contents {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private CacheFileUtil() {}
+
+    /**
+     * Writes the contents to a temporary file in the directory of the cache file, which then replaces the cache file,
+     * so that a cache file is either missing or complete.
+     */
+    public static void writeAtomically(final File cacheFile, final Contents contents) {
+        final File directory = cacheFile.getAbsoluteFile().getParentFile();
+        IOUtil.assertDirectoryIsWritable(directory);
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", directory);
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), Defaults.NON_ZERO_BUFFER_SIZE))) {
+                contents.write(out);
+            }
+            if (!tmpFile.renameTo(cacheFile)) {
+                // Another process may have written the cache in the meantime, in which case there is nothing to replace.
+                if (!cacheFile.delete() || !tmpFile.renameTo(cacheFile)) {
+                    throw new PicardException("Could not move " + tmpFile + " to " + cacheFile);
+                }
+            }
+            tmpFile = null;
+        } catch (final IOException e) {
+            throw new PicardException("Error writing cache file " + cacheFile, e);
+        } finally {
+            if (tmpFile != null) tmpFile.delete();
+        }
+    }
+
+    public static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new PicardException("MD5 is not available", e);
+        }
+    }
+
+    /** The MD5 of the contents of the file. */
+    public static byte[] calculateFileMd5(final File file) {
+        final MessageDigest digest = newMd5();
+        final byte[] buffer = new byte[Defaults.NON_ZERO_BUFFER_SIZE];
+        try (final InputStream in = IOUtil.openFileForReading(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } catch (final IOException e) {
+            throw new PicardException("Error reading " + file, e);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Adds the absolute path, length and modification time of the file to the digest, which identifies a version of
+     * the file without reading it.
+     *
+     * @return false, leaving the digest unchanged, if the modification time of the file cannot be read
+     */
+    public static boolean updateWithFileStamp(final MessageDigest digest, final File file) {
+        final long lastModified = file.lastModified();
+        if (lastModified == 0) return false;
+        digest.update(StringUtil.stringToBytes(file.getAbsolutePath() + "\t" + file.length() + "\t" + lastModified + "\n"));
+        return true;
+    }
+}
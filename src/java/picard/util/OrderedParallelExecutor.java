@@ -0,0 +1,178 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.util;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+import htsjdk.samtools.util.Log;
+import picard.PicardException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs tasks on a pool of threads and hands their results to a consumer on the calling thread, in the order in which
+ * the tasks were submitted, so that the results can be merged exactly as if the tasks had run one after the other.
+ * At most twice as many results as there are threads wait to be merged at any time, so that memory use does not grow
+ * with the number of tasks.
+ * <p/>
+ * Typical use is to submit every task, call {@link #finish()}, and then {@link #close()} in a finally block or with
+ * try-with-resources.  {@link #getChunks} splits the input of a program into the parts that such tasks process.
+ */
+public class OrderedParallelExecutor<T> implements Closeable {
+    /** The number of chunks made by {@link #getChunks} for each thread, so that threads that finish early can take more. */
+    public static final int CHUNKS_PER_THREAD = 4;
+
+    private static final Log log = Log.getInstance(OrderedParallelExecutor.class);
+
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Consumer<T> merger;
+    private final Deque<Future<T>> pending = new ArrayDeque<Future<T>>();
+    private final List<Closeable> closeables = Collections.synchronizedList(new ArrayList<Closeable>());
+
+    /**
+     * @param numThreads the number of threads running the tasks
+     * @param threadName the name of the threads
+     * @param merger     given the result of each task, in order, on the calling thread
+     */
+    public OrderedParallelExecutor(final int numThreads, final String threadName, final Consumer<T> merger) {
+        this.executor = Executors.newFixedThreadPool(numThreads, daemonThreadFactory(threadName));
+        this.maxPending = 2 * numThreads;
+        this.merger = merger;
+    }
+
+    /**
+     * Makes threads that do not keep the JVM alive, so that a failure on the thread that started them cannot leave the
+     * JVM hanging.
+     */
+    public static ThreadFactory daemonThreadFactory(final String threadName) {
+        return runnable -> {
+            final Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Whether regions of the input can be read on separate threads, i.e. whether it is indexed, as is the reference if
+     * any.  Logs why not otherwise.
+     */
+    public static boolean canQueryInParallel(final SamReader in, final File referenceSequence) {
+        if (!in.hasIndex()) {
+            log.warn("The input is not indexed, so cannot be processed in parallel, running on one thread.");
+            return false;
+        }
+        if (referenceSequence == null) return true;
+        final ReferenceSequenceFile referenceFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(referenceSequence, true, true);
+        final boolean indexed = referenceFile.isIndexed();
+        CloserUtil.close(referenceFile);
+        if (!indexed) {
+            log.warn("The reference is not indexed, so the input cannot be processed in parallel, running on one thread.");
+        }
+        return indexed;
+    }
+
+    /**
+     * Splits the intervals, or the whole genome if null, into CHUNKS_PER_THREAD parts of about the same number of bases
+     * for each thread.  Intervals, and contigs, are split across parts as needed.
+     */
+    public static List<IntervalList> getChunks(final SAMFileHeader header, final IntervalList intervals, final int numThreads) {
+        final IntervalList uniqued;
+        if (intervals != null) {
+            uniqued = intervals.uniqued();
+        } else {
+            uniqued = new IntervalList(header);
+            for (final SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+                uniqued.add(new Interval(sequence.getSequenceName(), 1, sequence.getSequenceLength()));
+            }
+        }
+        if (uniqued.size() == 0) return Collections.emptyList();
+        return new IntervalListScatterer(IntervalListScatterer.Mode.INTERVAL_SUBDIVISION)
+                .scatter(uniqued, CHUNKS_PER_THREAD * numThreads, true);
+    }
+
+    /** Gives each thread its own resource, opened the first time the thread asks for it and closed by {@link #close()}. */
+    public <R extends Closeable> ThreadLocal<R> perThread(final Supplier<R> opener) {
+        return ThreadLocal.withInitial(() -> {
+            final R resource = opener.get();
+            closeables.add(resource);
+            return resource;
+        });
+    }
+
+    /** Queues a task, first merging the oldest results if too many are waiting. */
+    public void submit(final Callable<T> task) {
+        pending.add(executor.submit(task));
+        while (pending.size() > maxPending) mergeNext();
+    }
+
+    /** Waits for every task submitted so far and merges their results. */
+    public void finish() {
+        while (!pending.isEmpty()) mergeNext();
+    }
+
+    /** Stops any task still running and closes the resources opened by {@link #perThread(Supplier)}. */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        synchronized (closeables) {
+            for (final Closeable closeable : closeables) CloserUtil.close(closeable);
+            closeables.clear();
+        }
+    }
+
+    private void mergeNext() {
+        final T result;
+        try {
+            result = pending.remove().get();
+        } catch (final InterruptedException ie) {
+            throw new PicardException("Interrupted while processing in parallel.", ie);
+        } catch (final ExecutionException ee) {
+            throw new PicardException("Error while processing in parallel.", ee.getCause());
+        }
+        merger.accept(result);
+    }
+}
@@ -6,19 +6,27 @@ import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTag;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.SAMException;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.util.CollectionUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.TestUtil;
 import htsjdk.variant.utils.SAMSequenceDictionaryExtractor;
 import org.testng.Assert;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
 import picard.cmdline.CommandLineProgramTest;
+import picard.metrics.GcBiasMetrics;
 import picard.sam.SortSam;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -41,6 +49,7 @@ public class CollectGcBiasMetricsTest extends CommandLineProgramTest {
 
     private final static File TEST_DIR = new File("testdata/picard/sam/CollectGcBiasMetrics/");
     private final File dict = new File(TEST_DIR, "MNOheader.dict");
+    private final static String REFERENCE_FILE = "testdata/picard/metrics/chrMNO.reference.fasta";
 
     File tempSamFileChrM_O;
     File tempSamFileAllChr;
@@ -226,6 +235,109 @@ public class CollectGcBiasMetricsTest extends CommandLineProgramTest {
         }
     }
 
+    /////////////////////////////////////////////////////////////////////////////
+    //Checks that reading the GC windows from the cache gives the same metrics as scanning the reference, both when the
+    // cache is written and when it is reused.
+    /////////////////////////////////////////////////////////////////////////////
+    @Test
+    public void runGcWindowCacheTest() throws IOException {
+        final File cacheDir = IOUtil.createTempDir("gcWindowCache.", ".tmp");
+        try {
+            final File outfile = File.createTempFile("test", ".gc_bias.summary_metrics");
+            final File detailsOutfile = File.createTempFile("test", ".gc_bias.detail_metrics");
+            outfile.deleteOnExit();
+            detailsOutfile.deleteOnExit();
+            runGcBias(tempSamFileChrM_O, outfile, detailsOutfile);
+
+            final File cacheFile = GcWindowCache.getCacheFile(new File(REFERENCE_FILE), 100, cacheDir);
+            for (int run = 0; run < 2; ++run) {
+                final File cachedOutfile = File.createTempFile("testCached", ".gc_bias.summary_metrics");
+                final File cachedDetailsOutfile = File.createTempFile("testCached", ".gc_bias.detail_metrics");
+                cachedOutfile.deleteOnExit();
+                cachedDetailsOutfile.deleteOnExit();
+                final long lastModified = cacheFile.lastModified();
+                runGcBias(tempSamFileChrM_O, cachedOutfile, cachedDetailsOutfile,
+                        "USE_GC_WINDOW_CACHE=true", "GC_WINDOW_CACHE_DIRECTORY=" + cacheDir.getAbsolutePath());
+
+                Assert.assertTrue(cacheFile.exists());
+                if (run > 0) Assert.assertEquals(cacheFile.lastModified(), lastModified);
+                Assert.assertEquals(readMetrics(cachedOutfile), readMetrics(outfile));
+                Assert.assertEquals(readMetrics(cachedDetailsOutfile), readMetrics(detailsOutfile));
+            }
+        } finally {
+            TestUtil.recursiveDelete(cacheDir);
+        }
+    }
+
+    private List<?> readMetrics(final File file) throws IOException {
+        final MetricsFile<?, ?> metricsFile = new MetricsFile();
+        metricsFile.read(new FileReader(file));
+        return metricsFile.getMetrics();
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    //Times GcBiasMetricsCollector on a simulated chromosome at 30x coverage, with reads on both strands.
+    /////////////////////////////////////////////////////////////////////////////
+    @Test
+    public void performanceTestGcBiasMetricsCollector() {
+        final int CHROMOSOME_LENGTH = 2000000;
+        final int READ_LENGTH = 100;
+        final int COVERAGE = 30;
+
+        final Random random = new Random(42);
+        final byte[] alphabet = "ACGTN".getBytes();
+        final byte[] bases = new byte[CHROMOSOME_LENGTH];
+        for (int i = 0; i < CHROMOSOME_LENGTH; ++i) {
+            bases[i] = alphabet[random.nextInt(1000) == 0 ? 4 : random.nextInt(4)];
+        }
+        final ReferenceSequence ref = new ReferenceSequence("chrSim", 0, bases);
+
+        final SAMFileHeader header = new SAMFileHeader();
+        header.addSequence(new SAMSequenceRecord(ref.getName(), CHROMOSOME_LENGTH));
+        final SAMReadGroupRecord readGroup = new SAMReadGroupRecord(readGroupId1);
+        readGroup.setSample(sample1);
+        readGroup.setLibrary(library1);
+        header.addReadGroup(readGroup);
+
+        final int numReads = CHROMOSOME_LENGTH / READ_LENGTH * COVERAGE;
+        final SAMRecord[] records = new SAMRecord[numReads];
+        final byte[] qualities = new byte[READ_LENGTH];
+        Arrays.fill(qualities, (byte) 30);
+        for (int i = 0; i < numReads; ++i) {
+            final int start = 1 + (int) ((long) i * (CHROMOSOME_LENGTH - READ_LENGTH) / numReads);
+            final SAMRecord rec = new SAMRecord(header);
+            rec.setReadName(READ_NAME + i);
+            rec.setReferenceIndex(0);
+            rec.setAlignmentStart(start);
+            rec.setCigarString(READ_LENGTH + "M");
+            rec.setReadNegativeStrandFlag(i % 2 == 1);
+            rec.setReadBases(Arrays.copyOfRange(bases, start - 1, start - 1 + READ_LENGTH));
+            rec.setBaseQualities(qualities);
+            rec.setAttribute(SAMTag.RG.name(), readGroupId1);
+            records[i] = rec;
+        }
+
+        final int[] windowsByGc = new int[101];
+        final GcBiasMetricsCollector collector = new GcBiasMetricsCollector(
+                CollectionUtil.makeSet(MetricAccumulationLevel.ALL_READS, MetricAccumulationLevel.READ_GROUP), windowsByGc,
+                header.getReadGroups(), 100, false);
+
+        final long startTime = System.currentTimeMillis();
+        for (final SAMRecord rec : records) {
+            collector.acceptRecord(rec, ref);
+        }
+        collector.finish();
+        final long endTime = System.currentTimeMillis();
+
+        final MetricsFile<GcBiasMetrics, Integer> file = new MetricsFile<GcBiasMetrics, Integer>();
+        collector.addAllLevelsToFile(file);
+        Assert.assertEquals(file.getMetrics().size(), 2);
+        for (final GcBiasMetrics metrics : file.getMetrics()) {
+            Assert.assertEquals(metrics.SUMMARY.ALIGNED_READS, numReads);
+        }
+        System.out.println("Time taken for " + numReads + " reads: " + (endTime-startTime) + "ms.");
+    }
+
     /////////////////////////////////////////////////////////////////////////////
     // Writes the setBuilders to a SAMFileWriter and sorts the sam.
     // Takes in a list of SAMRecordSetBuilders because of the multi-level collection: setBuilders cannot take in more than one read group
@@ -260,8 +372,8 @@ public class CollectGcBiasMetricsTest extends CommandLineProgramTest {
     /////////////////////////////////////////////////////////////////////////////
     // Runs CollectGcBias with input Sam file and outputs details and summary files for truth assertion.
     /////////////////////////////////////////////////////////////////////////////
-    public void runGcBias (final File input, final File outfile, final File detailsOutfile) throws IOException {
-        final String referenceFile = "testdata/picard/metrics/chrMNO.reference.fasta";
+    public void runGcBias (final File input, final File outfile, final File detailsOutfile, final String... extraArgs) throws IOException {
+        final String referenceFile = REFERENCE_FILE;
         final File pdf = File.createTempFile("test", ".pdf");
         pdf.deleteOnExit();
 
@@ -284,7 +396,9 @@ public class CollectGcBiasMetricsTest extends CommandLineProgramTest {
                 "LEVEL=READ_GROUP",
                 "ASSUME_SORTED=" + assumeSorted
         };
-        Assert.assertEquals(runPicardCommandLine(args), 0);
+        final List<String> allArgs = new ArrayList<String>(Arrays.asList(args));
+        allArgs.addAll(Arrays.asList(extraArgs));
+        Assert.assertEquals(runPicardCommandLine(allArgs), 0);
     }
 
     /////////////////////////////////////////////////////////////////////////////
@@ -9,8 +9,12 @@ import htsjdk.samtools.SAMRecordSetBuilder;
 import htsjdk.samtools.SAMTextHeaderCodec;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.BufferedLineReader;
+import htsjdk.samtools.util.CollectionUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.TestUtil;
 import org.testng.Assert;
 import org.testng.annotations.BeforeTest;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import picard.cmdline.CommandLineProgramTest;
 import picard.sam.SortSam;
@@ -20,6 +24,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Random;
 
 /**
@@ -303,6 +308,106 @@ public class CollectMultipleMetricsTest extends CommandLineProgramTest {
         }
     }
 
+    /** The combined program already writes the plain sequencing artifact metrics, so the two cannot be run together. */
+    @Test
+    public void testSequencingArtifactProgramsRejectedTogether() throws IOException {
+        final File outfile = File.createTempFile("artifactMetrics", "");
+        outfile.deleteOnExit();
+        final String[] args = new String[]{
+                "INPUT=" + tempSamFile.getAbsolutePath(),
+                "OUTPUT=" + outfile.getAbsolutePath(),
+                "REFERENCE_SEQUENCE=testdata/picard/quality/chrM.reference.fasta",
+                "PROGRAM=null",
+                "PROGRAM=" + CollectMultipleMetrics.Program.CollectSequencingArtifactMetrics.name(),
+                "PROGRAM=" + CollectMultipleMetrics.Program.CollectSequencingArtifactAndOxoGMetrics.name()
+        };
+        Assert.assertEquals(runPicardCommandLine(args), 1);
+    }
+
+    /** Runs every program that needs no extra inputs with and without the pipeline, and expects identical metrics. */
+    @Test
+    public void testPipelineGivesSameMetrics() throws IOException {
+        final File singleThreaded = runAllPrograms(tempSamFile, 0);
+        final File pipelined = runAllPrograms(tempSamFile, 10); // small, so that the ring buffer wraps often
+        try {
+            final File[] expectedFiles = singleThreaded.listFiles();
+            Assert.assertTrue(expectedFiles.length > 0);
+            for (final File expected : expectedFiles) {
+                if (expected.getName().endsWith(".pdf")) continue;
+                final File actual = new File(pipelined, expected.getName());
+                Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(actual, expected), expected.getName());
+            }
+        } finally {
+            TestUtil.recursiveDelete(singleThreaded);
+            TestUtil.recursiveDelete(pipelined);
+        }
+    }
+
+    private File runAllPrograms(final File input, final int maxRecordsInPipeline) throws IOException {
+        final File outputDir = IOUtil.createTempDir("collectMultipleMetrics.", ".tmp");
+        final String[] args = new String[]{
+                "INPUT=" + input.getAbsolutePath(),
+                "OUTPUT=" + new File(outputDir, "metrics").getAbsolutePath(),
+                "REFERENCE_SEQUENCE=testdata/picard/quality/chrM.reference.fasta",
+                "METRIC_ACCUMULATION_LEVEL=null",
+                "METRIC_ACCUMULATION_LEVEL=" + MetricAccumulationLevel.ALL_READS.name(),
+                "METRIC_ACCUMULATION_LEVEL=" + MetricAccumulationLevel.LIBRARY.name(),
+                "METRIC_ACCUMULATION_LEVEL=" + MetricAccumulationLevel.READ_GROUP.name(),
+                "PROGRAM=null",
+                "PROGRAM=" + CollectMultipleMetrics.Program.CollectAlignmentSummaryMetrics.name(),
+                "PROGRAM=" + CollectMultipleMetrics.Program.CollectInsertSizeMetrics.name(),
+                "PROGRAM=" + CollectMultipleMetrics.Program.QualityScoreDistribution.name(),
+                "PROGRAM=" + CollectMultipleMetrics.Program.MeanQualityByCycle.name(),
+                "PROGRAM=" + CollectMultipleMetrics.Program.CollectBaseDistributionByCycle.name(),
+                "PROGRAM=" + CollectMultipleMetrics.Program.CollectGcBiasMetrics.name(),
+                "PROGRAM=" + CollectMultipleMetrics.Program.CollectSequencingArtifactMetrics.name(),
+                "PROGRAM=" + CollectMultipleMetrics.Program.CollectQualityYieldMetrics.name(),
+                "MAX_RECORDS_IN_PIPELINE=" + maxRecordsInPipeline
+        };
+        Assert.assertEquals(runPicardCommandLine(args), 0);
+        return outputDir;
+    }
+
+    @DataProvider(name = "shardedPrograms")
+    public Object[][] shardedPrograms() {
+        return new Object[][] {
+                {CollectMultipleMetrics.Program.CollectAlignmentSummaryMetrics},
+                {CollectMultipleMetrics.Program.CollectInsertSizeMetrics},
+                {CollectMultipleMetrics.Program.CollectGcBiasMetrics}
+        };
+    }
+
+    /** Runs programs that can process regions of the input in parallel with one and several threads, and expects identical metrics. */
+    @Test(dataProvider = "shardedPrograms")
+    public void testShardsGiveSameMetrics(final CollectMultipleMetrics.Program program) throws IOException {
+        final File singleThreaded = runProgram(program, 1);
+        final File sharded = runProgram(program, 4);
+        try {
+            final File[] expectedFiles = singleThreaded.listFiles();
+            Assert.assertTrue(expectedFiles.length > 0);
+            for (final File expected : expectedFiles) {
+                if (expected.getName().endsWith(".pdf")) continue;
+                final File actual = new File(sharded, expected.getName());
+                Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(actual, expected), expected.getName());
+            }
+        } finally {
+            TestUtil.recursiveDelete(singleThreaded);
+            TestUtil.recursiveDelete(sharded);
+        }
+    }
+
+    private File runProgram(final CollectMultipleMetrics.Program program, final int numThreads) throws IOException {
+        final File outputDir = IOUtil.createTempDir("collectMultipleMetrics.", ".tmp");
+        final File reference = new File("testdata/picard/quality/chrM.reference.fasta");
+        final SinglePassSamProgram instance = program.makeInstance(new File(outputDir, "metrics").getAbsolutePath(), "",
+                tempSamFile, reference,
+                CollectionUtil.makeSet(MetricAccumulationLevel.ALL_READS, MetricAccumulationLevel.LIBRARY, MetricAccumulationLevel.READ_GROUP),
+                null, null);
+        instance.shardSize = 1000; // small, so that many reads overlap the boundaries of the shards
+        SinglePassSamProgram.makeItSo(tempSamFile, reference, true, 0, Collections.singletonList(instance), 0, numThreads);
+        return outputDir;
+    }
+
     //gcBias multi level collector test creates a sam file from chrM for testing purposes
     //more variables needed for gcbias test to create temp sam file
     private final static String sample1 = "TestSample1";
@@ -370,7 +475,8 @@ public class CollectMultipleMetricsTest extends CommandLineProgramTest {
 
         //sort the temp file
         final SortSam sorter = new SortSam();
-        final String[] args = new String[]{"INPUT=" + tempSamFileUnsorted.getAbsolutePath(), "OUTPUT=" + tempSamFile.getAbsolutePath(), "SORT_ORDER=coordinate"};
+        final String[] args = new String[]{"INPUT=" + tempSamFileUnsorted.getAbsolutePath(), "OUTPUT=" + tempSamFile.getAbsolutePath(), "SORT_ORDER=coordinate",
+                "CREATE_INDEX=true"};
 
         sorter.instanceMain(args);
     }
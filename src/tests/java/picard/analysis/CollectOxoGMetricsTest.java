@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.analysis;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.cmdline.CommandLineProgramTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for CollectOxoGMetrics.
+ */
+public class CollectOxoGMetricsTest extends CommandLineProgramTest {
+
+    public String getCommandLineProgramName() {
+        return CollectOxoGMetrics.class.getSimpleName();
+    }
+
+    @DataProvider(name = "multiThreadedDataProvider")
+    public Object[][] multiThreadedDataProvider() throws IOException {
+        final File reads = writeReads();
+        final File intervals = MultiThreadedMetricsTestUtil.writeSplitChrMIntervals();
+
+        return new Object[][] {
+                {reads, new String[0]},
+                {reads, new String[] {"INTERVALS=" + intervals.getAbsolutePath()}},
+                {reads, new String[] {"INTERVALS=" + intervals.getAbsolutePath(), "CONTEXT_SIZE=0"}}
+        };
+    }
+
+    /** Runs on one and on several threads and expects identical metrics. */
+    @Test(dataProvider = "multiThreadedDataProvider")
+    public void testMultiThreadedGivesSameMetrics(final File input, final String[] extraArgs) throws IOException {
+        final List<String> multiThreadedArgs = new ArrayList<>(Arrays.asList(extraArgs));
+        multiThreadedArgs.add("NUM_THREADS=3");
+        final List<CollectOxoGMetrics.CpcgMetrics> expected = runOxoGMetrics(input, extraArgs);
+        final List<CollectOxoGMetrics.CpcgMetrics> actual = runOxoGMetrics(input, multiThreadedArgs.toArray(new String[multiThreadedArgs.size()]));
+        Assert.assertFalse(expected.isEmpty());
+        Assert.assertTrue(expected.stream().anyMatch(metrics -> metrics.TOTAL_SITES > 0));
+        Assert.assertEquals(actual, expected);
+    }
+
+    private List<CollectOxoGMetrics.CpcgMetrics> runOxoGMetrics(final File input, final String[] extraArgs) throws IOException {
+        final List<String> args = new ArrayList<>(Arrays.asList(
+                "INPUT=" + input.getAbsolutePath(),
+                "REFERENCE_SEQUENCE=" + MultiThreadedMetricsTestUtil.CHRM_REFERENCE.getAbsolutePath()));
+        args.addAll(Arrays.asList(extraArgs));
+        return MultiThreadedMetricsTestUtil.<CollectOxoGMetrics.CpcgMetrics>runAndReadMetrics(new CollectOxoGMetrics(), args).getMetrics();
+    }
+
+    /** Writes an indexed BAM of varied reads from two libraries. */
+    private File writeReads() throws IOException {
+        final List<SAMReadGroupRecord> readGroups = new ArrayList<>();
+        for (int i = 1; i <= 2; ++i) {
+            final SAMReadGroupRecord readGroup = new SAMReadGroupRecord("TestReadGroup" + i);
+            readGroup.setSample("TestSample1");
+            readGroup.setLibrary("TestLibrary" + i);
+            readGroups.add(readGroup);
+        }
+        final SAMFileHeader header = MultiThreadedMetricsTestUtil.makeChrMHeader(readGroups.toArray(new SAMReadGroupRecord[readGroups.size()]));
+        return MultiThreadedMetricsTestUtil.writeBam(header, MultiThreadedMetricsTestUtil.makeVariedReads(header, 1, 2000, 3000),
+                "CollectOxoGMetrics");
+    }
+}
@@ -17,6 +17,9 @@ import picard.cmdline.CommandLineProgramTest;
 import picard.sam.SortSam;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -200,4 +203,87 @@ public class CollectWgsMetricsTest extends CommandLineProgramTest {
 
         }
     }
-}
\ No newline at end of file
+
+    @DataProvider(name = "fastAlgorithmDataProvider")
+    public Object[][] fastAlgorithmDataProvider() throws IOException {
+        final File input = new File(TEST_DIR, "forMetrics.sam");
+        final File ref = new File(TEST_DIR, "merger.fasta");
+        final File intervals = new File(TEST_DIR, "largeIntervals.interval_list");
+        final File chrM = new File("testdata/picard/quality/chrM.reference.fasta");
+        final File variedReads = writeVariedReads();
+
+        return new Object[][] {
+                {CollectWgsMetrics.class, input, ref, new String[0]},
+                {CollectWgsMetrics.class, input, ref, new String[] {"COUNT_UNPAIRED=true", "MINIMUM_MAPPING_QUALITY=0"}},
+                {CollectWgsMetrics.class, input, ref, new String[] {"INTERVALS=" + intervals.getAbsolutePath()}},
+                {CollectWgsMetricsFromSampledSites.class, input, ref, new String[] {"INTERVALS=" + intervals.getAbsolutePath()}},
+                {CollectWgsMetrics.class, tempSamFile, chrM, new String[] {"LOCUS_ACCUMULATION_CAP=260"}},
+                {CollectWgsMetrics.class, variedReads, chrM, new String[] {"COVERAGE_CAP=20", "LOCUS_ACCUMULATION_CAP=30"}},
+                {CollectWgsMetrics.class, variedReads, chrM, new String[] {"COUNT_UNPAIRED=true", "MINIMUM_BASE_QUALITY=10"}},
+                {CollectRawWgsMetrics.class, variedReads, chrM, new String[0]}
+        };
+    }
+
+    /**
+     * Runs with and without USE_FAST_ALGORITHM and expects identical metrics, apart from the het SNP sensitivity, which
+     * is estimated by random sampling.
+     */
+    @Test(dataProvider = "fastAlgorithmDataProvider")
+    public void testFastAlgorithmGivesSameMetrics(final Class<? extends CollectWgsMetrics> programClass, final File input,
+                                                  final File ref, final String[] extraArgs) throws Exception {
+        final MetricsFile<CollectWgsMetrics.WgsMetrics, Comparable<?>> expected = runWgsMetrics(programClass, input, ref, extraArgs, false);
+        final MetricsFile<CollectWgsMetrics.WgsMetrics, Comparable<?>> actual = runWgsMetrics(programClass, input, ref, extraArgs, true);
+        Assert.assertEquals(actual.getMetrics(), expected.getMetrics());
+        Assert.assertTrue(actual.areHistogramsEqual(expected));
+    }
+
+    @DataProvider(name = "multiThreadedDataProvider")
+    public Object[][] multiThreadedDataProvider() throws IOException {
+        final File chrM = MultiThreadedMetricsTestUtil.CHRM_REFERENCE;
+        final File variedReads = writeVariedReads();
+        final File intervals = MultiThreadedMetricsTestUtil.writeSplitChrMIntervals();
+
+        final List<Object[]> data = new ArrayList<>();
+        for (final boolean useFastAlgorithm : new boolean[] {false, true}) {
+            data.add(new Object[] {CollectWgsMetrics.class, variedReads, chrM, new String[0], useFastAlgorithm});
+            data.add(new Object[] {CollectWgsMetrics.class, variedReads, chrM, new String[] {"INTERVALS=" + intervals.getAbsolutePath()}, useFastAlgorithm});
+            data.add(new Object[] {CollectWgsMetrics.class, variedReads, chrM, new String[] {"INTERVALS=" + intervals.getAbsolutePath(), "COUNT_UNPAIRED=true"}, useFastAlgorithm});
+            data.add(new Object[] {CollectWgsMetricsFromSampledSites.class, variedReads, chrM, new String[] {"INTERVALS=" + intervals.getAbsolutePath()}, useFastAlgorithm});
+            data.add(new Object[] {CollectRawWgsMetrics.class, variedReads, chrM, new String[0], useFastAlgorithm});
+        }
+        return data.toArray(new Object[data.size()][]);
+    }
+
+    /** Runs on one and on several threads and expects identical metrics, apart from the het SNP sensitivity. */
+    @Test(dataProvider = "multiThreadedDataProvider")
+    public void testMultiThreadedGivesSameMetrics(final Class<? extends CollectWgsMetrics> programClass, final File input,
+                                                  final File ref, final String[] extraArgs, final boolean useFastAlgorithm) throws Exception {
+        final List<String> multiThreadedArgs = new ArrayList<>(Arrays.asList(extraArgs));
+        multiThreadedArgs.add("NUM_THREADS=3");
+        final MetricsFile<CollectWgsMetrics.WgsMetrics, Comparable<?>> expected = runWgsMetrics(programClass, input, ref, extraArgs, useFastAlgorithm);
+        final MetricsFile<CollectWgsMetrics.WgsMetrics, Comparable<?>> actual =
+                runWgsMetrics(programClass, input, ref, multiThreadedArgs.toArray(new String[multiThreadedArgs.size()]), useFastAlgorithm);
+        Assert.assertEquals(actual.getMetrics(), expected.getMetrics());
+        Assert.assertTrue(actual.areHistogramsEqual(expected));
+    }
+
+    private MetricsFile<CollectWgsMetrics.WgsMetrics, Comparable<?>> runWgsMetrics(final Class<? extends CollectWgsMetrics> programClass, final File input, final File ref,
+                               final String[] extraArgs, final boolean useFastAlgorithm) throws Exception {
+        final List<String> args = new ArrayList<>(Arrays.asList(
+                "INPUT=" + input.getAbsolutePath(),
+                "REFERENCE_SEQUENCE=" + ref.getAbsolutePath(),
+                "INCLUDE_BQ_HISTOGRAM=true",
+                "SAMPLE_SIZE=1000",
+                "USE_FAST_ALGORITHM=" + useFastAlgorithm));
+        args.addAll(Arrays.asList(extraArgs));
+        return MultiThreadedMetricsTestUtil.runAndReadMetrics(programClass.newInstance(), args);
+    }
+
+    private File writeVariedReads() throws IOException {
+        final SAMReadGroupRecord readGroupRecord = new SAMReadGroupRecord(READ_GROUP_ID);
+        readGroupRecord.setSample(SAMPLE);
+        final SAMFileHeader header = MultiThreadedMetricsTestUtil.makeChrMHeader(readGroupRecord);
+        return MultiThreadedMetricsTestUtil.writeBam(header, MultiThreadedMetricsTestUtil.makeVariedReads(header, 1, 3000, 2000),
+                "CollectWgsMetrics.varied");
+    }
+}
@@ -1,8 +1,10 @@
 package picard.analysis;
 
 
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTag;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.metrics.MetricsFile;
@@ -16,6 +18,7 @@ import picard.metrics.MultilevelMetrics;
 import picard.metrics.PerUnitMetricCollector;
 
 import java.io.File;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -192,4 +195,67 @@ public class MultiLevelCollectorTest {
         Assert.assertEquals(totalProcessed, collector.getNumProcessed());
         CloserUtil.close(in);
     }
+
+    /** A collector that only counts the records given to each of its PerUnitMetricCollectors, to time the dispatch of records */
+    class CountingMultiLevelCollector extends MultiLevelCollector<TotalNumberMetric, Integer, SAMRecord> {
+        private long numProcessed = 0;
+
+        public CountingMultiLevelCollector(final Set<MetricAccumulationLevel> accumulationLevels, final List<SAMReadGroupRecord> samRgRecords) {
+            setup(accumulationLevels, samRgRecords);
+        }
+
+        @Override
+        protected SAMRecord makeArg(final SAMRecord samRec, final ReferenceSequence refSeq) {
+            return samRec;
+        }
+
+        @Override
+        protected PerUnitMetricCollector<TotalNumberMetric, Integer, SAMRecord> makeChildCollector(final String sample, final String library, final String readGroup) {
+            return new PerUnitMetricCollector<TotalNumberMetric, Integer, SAMRecord>() {
+                @Override
+                public void acceptRecord(final SAMRecord args) {
+                    numProcessed += 1;
+                }
+
+                @Override
+                public void finish() {}
+
+                @Override
+                public void addMetricsToFile(final MetricsFile<TotalNumberMetric, Integer> file) {}
+            };
+        }
+    }
+
+    @DataProvider(name = "numReadGroups")
+    public Object[][] numReadGroups() {
+        return new Object[][] {{1}, {4}, {100}};
+    }
+
+    @Test(dataProvider = "numReadGroups")
+    public void performanceTestAcceptRecord(final int numReadGroups) {
+        final int ITERATIONS = 5000000;
+
+        final SAMFileHeader header = new SAMFileHeader();
+        final SAMRecord[] records = new SAMRecord[numReadGroups];
+        for (int i = 0; i < numReadGroups; ++i) {
+            final SAMReadGroupRecord rg = new SAMReadGroupRecord("rg" + i);
+            rg.setSample("sample" + (i % 3));
+            rg.setLibrary("library" + (i % 7));
+            rg.setPlatformUnit("unit" + i);
+            header.addReadGroup(rg);
+            records[i] = new SAMRecord(header);
+            records[i].setAttribute(SAMTag.RG.name(), rg.getId());
+        }
+        final CountingMultiLevelCollector collector = new CountingMultiLevelCollector(EnumSet.allOf(MetricAccumulationLevel.class),
+                header.getReadGroups());
+
+        final long startTime = System.currentTimeMillis();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            collector.acceptRecord(records[i % numReadGroups], null);
+        }
+        final long endTime = System.currentTimeMillis();
+
+        Assert.assertEquals(collector.numProcessed, 4L * ITERATIONS);
+        System.out.println("Time taken with " + numReadGroups + " read groups: " + (endTime-startTime) + "ms.");
+    }
 }
@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.analysis;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordCoordinateComparator;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SAMTag;
+import htsjdk.samtools.metrics.MetricBase;
+import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+import htsjdk.variant.utils.SAMSequenceDictionaryExtractor;
+import org.testng.Assert;
+import picard.cmdline.CommandLineProgram;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Inputs and helpers shared by the tests that run a metrics program on one and on several threads and expect identical
+ * metrics: an indexed BAM of varied reads, intervals split within reads, and a way to run a program and read its metrics.
+ */
+public class MultiThreadedMetricsTestUtil {
+    public static final File CHRM_REFERENCE = new File("testdata/picard/quality/chrM.reference.fasta");
+    public static final File CHRM_DICT = new File("testdata/picard/sam/CollectGcBiasMetrics/MSmallHeader.dict");
+
+    private MultiThreadedMetricsTestUtil() {}
+
+    /** A coordinate sorted header for chrM, with the given read groups. */
+    public static SAMFileHeader makeChrMHeader(final SAMReadGroupRecord... readGroups) {
+        final SAMFileHeader header = new SAMFileHeader();
+        header.setSequenceDictionary(SAMSequenceDictionaryExtractor.extractDictionary(CHRM_DICT));
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        for (final SAMReadGroupRecord readGroup : readGroups) header.addReadGroup(readGroup);
+        return header;
+    }
+
+    /** Writes intervals on chrM that are split within reads, so that reads span the parts processed on different threads. */
+    public static File writeSplitChrMIntervals() throws IOException {
+        final File intervals = File.createTempFile("MultiThreadedMetrics", ".interval_list");
+        intervals.deleteOnExit();
+        final IntervalList intervalList = new IntervalList(makeChrMHeader());
+        intervalList.add(new Interval("chrM", 1, 1000));
+        intervalList.add(new Interval("chrM", 1050, 1800));
+        intervalList.add(new Interval("chrM", 1830, 1830));
+        intervalList.add(new Interval("chrM", 2000, 16571));
+        intervalList.write(intervals);
+        return intervals;
+    }
+
+    /**
+     * Makes, for each read group of the header, deep and overlapping pairs on the first numContigs contigs with indels,
+     * clipping, random base and mapping qualities, duplicates, non-PF reads, supplementary alignments and unmapped mates,
+     * to exercise every filter and every kind of overlap. Also adds one unmapped pair. The records are coordinate sorted.
+     */
+    public static List<SAMRecord> makeVariedReads(final SAMFileHeader header, final int numContigs, final int pairsPerReadGroup,
+                                                  final int maxStart) {
+        final String[] cigars = {"100M", "100M", "40M3D60M", "30M4I66M", "10S90M", "45M100N55M", "95M5S"};
+        final Random random = new Random(42);
+        final List<SAMRecord> records = new ArrayList<>();
+        for (final SAMReadGroupRecord readGroup : header.getReadGroups()) {
+            final SAMRecordSetBuilder setBuilder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+            setBuilder.setHeader(header);
+            setBuilder.setReadLength(100);
+            for (int i = 0; i < pairsPerReadGroup; ++i) {
+                final String name = readGroup.getId() + ".pair" + i;
+                final int contig = random.nextInt(numContigs);
+                final int start1 = 1 + random.nextInt(maxStart);
+                final int start2 = start1 + random.nextInt(150);
+                final boolean mateUnmapped = random.nextInt(20) == 0;
+                final List<SAMRecord> pair = setBuilder.addPair(name, contig, start1, start2, false, mateUnmapped,
+                        cigars[random.nextInt(cigars.length)], cigars[random.nextInt(cigars.length)], false, true, 30);
+                if (random.nextInt(50) == 0) {
+                    final SAMRecord supplementary = setBuilder.addFrag(name, contig, start2 + random.nextInt(50) - 25, false,
+                            false, "60S40M", null, 30, false, true);
+                    supplementary.setReadPairedFlag(true);
+                    supplementary.setSecondOfPairFlag(true);
+                    supplementary.setMateReferenceIndex(contig);
+                    supplementary.setMateAlignmentStart(start2);
+                    pair.get(0).setAttribute("SA", header.getSequence(contig).getSequenceName() + "," +
+                            supplementary.getAlignmentStart() + ",+,60S40M,60,0;");
+                    pair.add(supplementary);
+                }
+                for (final SAMRecord rec : pair) {
+                    // the builder names contigs after its own default dictionary, so re-resolve them against the header
+                    rec.setReferenceIndex(contig);
+                    rec.setMateReferenceIndex(contig);
+                    final byte[] qualities = new byte[rec.getReadLength()];
+                    for (int j = 0; j < qualities.length; ++j) qualities[j] = (byte) random.nextInt(41);
+                    rec.setBaseQualities(qualities);
+                    if (!rec.getReadUnmappedFlag()) rec.setMappingQuality(random.nextInt(10) == 0 ? random.nextInt(20) : 60);
+                    rec.setDuplicateReadFlag(random.nextInt(20) == 0);
+                    rec.setReadFailsVendorQualityCheckFlag(random.nextInt(50) == 0);
+                }
+            }
+            setBuilder.addUnmappedPair(readGroup.getId() + ".unmapped");
+            for (final SAMRecord rec : setBuilder) {
+                rec.setAttribute(SAMTag.RG.name(), readGroup.getId());
+                records.add(rec);
+            }
+        }
+        records.sort(new SAMRecordCoordinateComparator());
+        return records;
+    }
+
+    /** Writes the records to an indexed BAM that is deleted on exit. */
+    public static File writeBam(final SAMFileHeader header, final List<SAMRecord> records, final String prefix) throws IOException {
+        final File bam = File.createTempFile(prefix, ".bam");
+        bam.deleteOnExit();
+        new File(bam.getPath().replaceAll("\\.bam$", ".bai")).deleteOnExit();
+        final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bam);
+        for (final SAMRecord record : records) {
+            writer.addAlignment(record);
+        }
+        writer.close();
+        return bam;
+    }
+
+    /**
+     * Runs the program with the given arguments plus OUTPUT, and reads the metrics it wrote. The het SNP sensitivity of
+     * metrics that have one is set to zero, as it is estimated by random sampling.
+     */
+    public static <M extends MetricBase> MetricsFile<M, Comparable<?>> runAndReadMetrics(final CommandLineProgram program,
+                                                                                         final List<String> args) throws IOException {
+        final File outfile = File.createTempFile(program.getClass().getSimpleName(), ".metrics");
+        outfile.deleteOnExit();
+        final List<String> allArgs = new ArrayList<>(args);
+        allArgs.add("OUTPUT=" + outfile.getAbsolutePath());
+        Assert.assertEquals(program.instanceMain(allArgs.toArray(new String[allArgs.size()])), 0);
+
+        final MetricsFile<M, Comparable<?>> output = new MetricsFile<M, Comparable<?>>();
+        output.read(new FileReader(outfile));
+        for (final M metrics : output.getMetrics()) {
+            for (final String fieldName : new String[] {"HET_SNP_SENSITIVITY", "HET_SNP_Q"}) {
+                try {
+                    final Field field = metrics.getClass().getField(fieldName);
+                    field.setDouble(metrics, 0);
+                } catch (final NoSuchFieldException e) {
+                    // nothing to clear
+                } catch (final IllegalAccessException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return output;
+    }
+}
@@ -1,22 +1,34 @@
 package picard.analysis.artifacts;
 
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+import htsjdk.samtools.util.StringUtil;
 import org.testng.Assert;
 import org.testng.annotations.AfterTest;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
+import picard.PicardException;
+import picard.analysis.CollectOxoGMetrics;
+import picard.analysis.CollectOxoGMetrics.CpcgMetrics;
+import picard.analysis.artifacts.SequencingArtifactMetrics.PreAdapterDetailMetrics;
 import picard.cmdline.CommandLineProgramTest;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 public class CollectSequencingArtifactMetricsTest extends CommandLineProgramTest {
 
     private static final File TEST_DIR = new File("testdata/picard/analysis/artifacts/CollectSequencingArtifactMetrics");
     private static final File REFERENCE = new File(TEST_DIR, "test.fasta");
+    private static final File AMBIGUOUS_REFERENCE = new File(TEST_DIR, "test.ambiguous.fasta");
     private static final File TEST_SAM = new File(TEST_DIR, "test.sam");
     private static final File DB_SNP = new File(TEST_DIR, "test.dbsnp.vcf");
     private static final File INTERVALS = new File(TEST_DIR, "test.interval_list");
@@ -108,4 +120,145 @@ public class CollectSequencingArtifactMetricsTest extends CommandLineProgramTest
         runAnalysis("unmapped_mate", "MINIMUM_INSERT_SIZE=0", "MAXIMUM_INSERT_SIZE=0");
     }
 
+    /**
+     * The OxoG metrics filled in the same pass must count the same bases and sites as CollectOxoGMetrics does with the same
+     * filters, and match ConvertSequencingArtifactToOxoG run on the artifact metrics. The two programs skip different
+     * amounts of the ends of the reference, so those are left out with an interval list.
+     */
+    @Test
+    public void testOxoGMetricsInSamePass() throws IOException {
+        final IntervalList intervals = new IntervalList(SamReaderFactory.makeDefault().getFileHeader(TEST_SAM));
+        for (final SAMSequenceRecord sequence : intervals.getHeader().getSequenceDictionary().getSequences()) {
+            intervals.add(new Interval(sequence.getSequenceName(), 3, sequence.getSequenceLength() - 3));
+        }
+        final File intervalsFile = new File(globalTempOutputDir, "oxog.interval_list");
+        intervals.write(intervalsFile);
+
+        final File actual = new File(globalTempOutputDir, "with_oxog");
+        Assert.assertEquals(runPicardCommandLine(new String[] {
+                "INPUT=" + TEST_SAM.getAbsolutePath(),
+                "OUTPUT=" + actual.getAbsolutePath(),
+                "REFERENCE_SEQUENCE=" + REFERENCE.getAbsolutePath(),
+                "INTERVALS=" + intervalsFile.getAbsolutePath(),
+                "MINIMUM_INSERT_SIZE=30",
+                "MAXIMUM_INSERT_SIZE=30",
+                "INCLUDE_OXOG_METRICS=true"
+        }), 0);
+
+        final File oxogMetrics = new File(globalTempOutputDir, "oxog.oxog_metrics");
+        Assert.assertEquals(new CollectOxoGMetrics().instanceMain(new String[] {
+                "INPUT=" + TEST_SAM.getAbsolutePath(),
+                "OUTPUT=" + oxogMetrics.getAbsolutePath(),
+                "REFERENCE_SEQUENCE=" + REFERENCE.getAbsolutePath(),
+                "INTERVALS=" + intervalsFile.getAbsolutePath(),
+                "MINIMUM_INSERT_SIZE=30",
+                "MAXIMUM_INSERT_SIZE=30"
+        }), 0);
+
+        final File converted = new File(globalTempOutputDir, "converted");
+        Assert.assertEquals(new ConvertSequencingArtifactToOxoG().instanceMain(new String[] {
+                "INPUT_BASE=" + actual.getAbsolutePath(),
+                "OUTPUT_BASE=" + converted.getAbsolutePath()
+        }), 0);
+
+        final Map<String, CpcgMetrics> expectedCounts = new HashMap<>();
+        for (final CpcgMetrics m : MetricsFile.<CpcgMetrics>readBeans(oxogMetrics)) expectedCounts.put(m.CONTEXT, m);
+        final Map<String, CpcgMetrics> expectedConversion = new HashMap<>();
+        for (final CpcgMetrics m : MetricsFile.<CpcgMetrics>readBeans(new File(converted + SequencingArtifactMetrics.OXOG_METRICS_EXT))) {
+            expectedConversion.put(m.CONTEXT, m);
+        }
+
+        final List<CpcgMetrics> metrics = MetricsFile.readBeans(new File(actual + SequencingArtifactMetrics.OXOG_METRICS_EXT));
+        Assert.assertEquals(metrics.size(), expectedCounts.size());
+        for (final CpcgMetrics m : metrics) {
+            final CpcgMetrics counts = expectedCounts.get(m.CONTEXT);
+            Assert.assertEquals(m.TOTAL_SITES, counts.TOTAL_SITES);
+            Assert.assertEquals(m.TOTAL_BASES, counts.TOTAL_BASES);
+            Assert.assertEquals(m.REF_OXO_BASES, counts.REF_OXO_BASES);
+            Assert.assertEquals(m.REF_NONOXO_BASES, counts.REF_NONOXO_BASES);
+            Assert.assertEquals(m.ALT_OXO_BASES, counts.ALT_OXO_BASES);
+            Assert.assertEquals(m.ALT_NONOXO_BASES, counts.ALT_NONOXO_BASES);
+            Assert.assertEquals(m.C_REF_REF_BASES, counts.C_REF_REF_BASES);
+            Assert.assertEquals(m.G_REF_REF_BASES, counts.G_REF_REF_BASES);
+            Assert.assertEquals(m.C_REF_ALT_BASES, counts.C_REF_ALT_BASES);
+            Assert.assertEquals(m.G_REF_ALT_BASES, counts.G_REF_ALT_BASES);
+
+            final CpcgMetrics conversion = expectedConversion.get(m.CONTEXT);
+            conversion.TOTAL_SITES = m.TOTAL_SITES;
+            Assert.assertEquals(m, conversion);
+        }
+    }
+
+    /**
+     * The reference has lowercase, N and IUPAC bases where reads align. Contexts with anything other than ACGT are skipped,
+     * lowercase bases count as uppercase. The expected output was made before contexts were packed into ints.
+     */
+    @Test
+    public void testAmbiguousReference() throws IOException {
+        runAnalysis("with_ambiguous_reference", "CONTEXT_SIZE=1", "REFERENCE_SEQUENCE=" + AMBIGUOUS_REFERENCE.getAbsolutePath());
+    }
+
+    @Test
+    public void testMaxDenseContextSize() {
+        final int contextSize = ArtifactCounter.MAX_DENSE_CONTEXT_SIZE;
+        final ArtifactCounter counter = new ArtifactCounter("sample", "library", contextSize, false);
+        final String context = StringUtil.repeatCharNTimes('T', 2 * contextSize + 1);
+        Assert.assertEquals(ArtifactCounter.encodeContext(context), ArtifactCounter.contextMask(contextSize));
+        counter.countBase(ArtifactCounter.encodeContext(context), ArtifactCounter.baseCode((byte) 'G'), ContextAccumulator.R1_POS);
+        counter.finish();
+
+        final PreAdapterDetailMetrics metrics = counter.getPreAdapterDetailMetrics().stream()
+                .filter(m -> m.CONTEXT.equals(context) && m.ALT_BASE == 'G')
+                .findFirst().get();
+        Assert.assertEquals(metrics.PRO_ALT_BASES, 1);
+    }
+
+    /**
+     * Context sizes above MAX_DENSE_CONTEXT_SIZE count only the contexts seen, which must give the same metrics as dense counts.
+     */
+    @Test
+    public void testSparseCountsMatchDenseCounts() {
+        final int contextSize = 2;
+        final ArtifactCounter dense = new ArtifactCounter("sample", "library", contextSize, false);
+        final ArtifactCounter sparse = new ArtifactCounter("sample", "library", contextSize, false, contextSize - 1);
+        final Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            // a few hundred distinct contexts out of 4^5
+            final int contextCode = random.nextInt(300) * 3;
+            final int calledBase = random.nextInt(4);
+            final int category = random.nextInt(ContextAccumulator.NUM_CATEGORIES);
+            dense.countBase(contextCode, calledBase, category);
+            sparse.countBase(contextCode, calledBase, category);
+        }
+        dense.finish();
+        sparse.finish();
+
+        Assert.assertEquals(sparse.getPreAdapterDetailMetrics(), dense.getPreAdapterDetailMetrics());
+        Assert.assertEquals(sparse.getBaitBiasDetailMetrics(), dense.getBaitBiasDetailMetrics());
+        Assert.assertEquals(sparse.getPreAdapterSummaryMetrics(), dense.getPreAdapterSummaryMetrics());
+        Assert.assertEquals(sparse.getBaitBiasSummaryMetrics(), dense.getBaitBiasSummaryMetrics());
+    }
+
+    @Test
+    public void testDecodeContext() {
+        for (final String context : new String[]{"A", "ACG", "TTGCA", "GATTACAGATTACAG"}) {
+            Assert.assertEquals(ArtifactCounter.decodeContext(ArtifactCounter.encodeContext(context), context.length() / 2), context);
+        }
+    }
+
+    @Test(expectedExceptions = PicardException.class)
+    public void testContextSizeTooLarge() {
+        new ArtifactCounter("sample", "library", ArtifactCounter.MAX_CONTEXT_SIZE + 1, false);
+    }
+
+    @Test
+    public void testContextSizeTooLargeRejected() {
+        final String[] args = {
+                "INPUT=" + TEST_SAM.getAbsolutePath(),
+                "OUTPUT=" + new File(globalTempOutputDir, "too_large").getAbsolutePath(),
+                "REFERENCE_SEQUENCE=" + REFERENCE.getAbsolutePath(),
+                "CONTEXT_SIZE=" + (ArtifactCounter.MAX_CONTEXT_SIZE + 1)
+        };
+        Assert.assertEquals(runPicardCommandLine(args), 1);
+    }
 }
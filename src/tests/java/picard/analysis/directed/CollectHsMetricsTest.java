@@ -1,14 +1,29 @@
 package picard.analysis.directed;
 
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
 import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.IntervalList;
+import htsjdk.tribble.readers.TabixReader;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
+import picard.PicardException;
+import picard.analysis.MetricAccumulationLevel;
+import picard.analysis.MultiThreadedMetricsTestUtil;
 import picard.cmdline.CommandLineProgramTest;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 
 public class CollectHsMetricsTest extends CommandLineProgramTest {
     private final static File TEST_DIR = new File("testdata/picard/analysis/directed/CollectHsMetrics");
@@ -80,4 +95,135 @@ public class CollectHsMetricsTest extends CommandLineProgramTest {
             Assert.assertEquals(metrics.PCT_TARGET_BASES_2X, pctTargetBases2x);
         }
     }
+
+    @DataProvider(name = "multiThreadedDataProvider")
+    public Object[][] multiThreadedDataProvider() {
+        return new Object[][] {
+                {new String[0]},
+                {new String[] {"METRIC_ACCUMULATION_LEVEL=ALL_READS", "METRIC_ACCUMULATION_LEVEL=SAMPLE", "METRIC_ACCUMULATION_LEVEL=LIBRARY"}},
+                {new String[] {"CLIP_OVERLAPPING_READS=true", "MINIMUM_BASE_QUALITY=10", "NEAR_DISTANCE=20", "COVERAGE_CAP=5"}}
+        };
+    }
+
+    /** Runs on one and on several threads and expects identical metrics and histograms. */
+    @Test(dataProvider = "multiThreadedDataProvider")
+    public void testMultiThreadedGivesSameMetrics(final String[] extraArgs) throws IOException {
+        final List<String> args = new ArrayList<>(Arrays.asList(extraArgs));
+        args.addAll(writeVariedInput());
+        args.add("SAMPLE_SIZE=1000");
+        final MetricsFile<HsMetrics, Comparable<?>> expected = runHsMetrics(args);
+        args.add("NUM_THREADS=3");
+        final MetricsFile<HsMetrics, Comparable<?>> actual = runHsMetrics(args);
+        Assert.assertEquals(actual.getMetrics(), expected.getMetrics());
+        Assert.assertTrue(actual.areHistogramsEqual(expected));
+    }
+
+    /** Writes the per-base coverage as text and block compressed, and looks up a region through the tabix index. */
+    @Test
+    public void testBlockCompressedPerBaseCoverage() throws IOException {
+        final File text = File.createTempFile("CollectHsMetrics", ".per_base.txt");
+        text.deleteOnExit();
+        final File compressed = File.createTempFile("CollectHsMetrics", ".per_base.txt.gz");
+        compressed.deleteOnExit();
+        new File(compressed.getPath() + ".tbi").deleteOnExit();
+
+        final List<String> args = new ArrayList<>(writeVariedInput());
+        args.add("SAMPLE_SIZE=1000");
+        runHsMetrics(with(args, "PER_BASE_COVERAGE=" + text));
+        runHsMetrics(with(args, "PER_BASE_COVERAGE=" + compressed, "NUM_THREADS=3"));
+
+        final List<String> expected = IOUtil.slurpLines(text);
+        Assert.assertEquals(IOUtil.slurpLines(IOUtil.openGzipFileForReading(compressed)), expected);
+        Assert.assertTrue(new File(compressed.getPath() + ".tbi").exists());
+
+        final String contig = expected.get(1).split("\t")[0];
+        final int start = Integer.parseInt(expected.get(1).split("\t")[1]) + 10, end = start + 300;
+        final List<String> expectedInRegion = new ArrayList<>();
+        for (final String line : expected.subList(1, expected.size())) {
+            final String[] fields = line.split("\t");
+            final int pos = Integer.parseInt(fields[1]);
+            if (fields[0].equals(contig) && pos >= start && pos <= end) expectedInRegion.add(line);
+        }
+        Assert.assertFalse(expectedInRegion.isEmpty());
+
+        final List<String> actualInRegion = new ArrayList<>();
+        final TabixReader tabixReader = new TabixReader(compressed.getPath());
+        final TabixReader.Iterator iterator = tabixReader.query(contig + ":" + start + "-" + end);
+        for (String line = iterator.next(); line != null; line = iterator.next()) {
+            actualInRegion.add(line);
+        }
+        tabixReader.close();
+        Assert.assertEquals(actualInRegion, expectedInRegion);
+    }
+
+    /** The per-base coverage is written as the records go by, so records out of order over written targets are an error. */
+    @Test(expectedExceptions = PicardException.class)
+    public void testPerBaseCoverageOfUnsortedInput() throws IOException {
+        final File perBase = File.createTempFile("CollectHsMetrics", ".per_base.txt");
+        perBase.deleteOnExit();
+        final SAMFileHeader header = makeHeader();
+        final IntervalList targets = makeTargets(header, false);
+        final HsMetricCollector collector = new HsMetricCollector(Collections.singleton(MetricAccumulationLevel.ALL_READS),
+                header.getReadGroups(), null, null, perBase, targets, makeTargets(header, true),
+                "baits", TargetMetricsCollector.NEAR_PROBE_DISTANCE_DEFAULT, 0, 0, false, 200, 1000);
+        collector.setCoordinateSortedInput(true);
+
+        final List<SAMRecord> records = makeVariedReads(header);
+        Collections.reverse(records);
+        for (final SAMRecord record : records) collector.acceptRecord(record, null);
+    }
+
+    private static List<String> with(final List<String> args, final String... extraArgs) {
+        final List<String> allArgs = new ArrayList<>(args);
+        allArgs.addAll(Arrays.asList(extraArgs));
+        return allArgs;
+    }
+
+    /**
+     * Writes an indexed BAM of varied reads on three contigs, and interval lists of overlapping targets and baits, and
+     * returns the arguments to use them.
+     */
+    private List<String> writeVariedInput() throws IOException {
+        final SAMFileHeader header = makeHeader();
+        final File input = MultiThreadedMetricsTestUtil.writeBam(header, makeVariedReads(header), "CollectHsMetrics");
+
+        final File targetFile = File.createTempFile("CollectHsMetrics", ".interval_list");
+        targetFile.deleteOnExit();
+        makeTargets(header, false).write(targetFile);
+        final File baitFile = File.createTempFile("CollectHsMetrics", ".interval_list");
+        baitFile.deleteOnExit();
+        makeTargets(header, true).write(baitFile);
+
+        return Arrays.asList("TARGET_INTERVALS=" + targetFile, "BAIT_INTERVALS=" + baitFile, "INPUT=" + input);
+    }
+
+    /** The default header of SAMRecordSetBuilder, with its one read group. */
+    private SAMFileHeader makeHeader() {
+        return new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate).getHeader();
+    }
+
+    private List<SAMRecord> makeVariedReads(final SAMFileHeader header) {
+        return MultiThreadedMetricsTestUtil.makeVariedReads(header, 3, 3000, 5000);
+    }
+
+    /** Makes overlapping targets on the first three contigs, or baits overlapping them on the first two contigs only. */
+    private IntervalList makeTargets(final SAMFileHeader header, final boolean baits) {
+        final Random random = new Random(7);
+        final IntervalList intervals = new IntervalList(header);
+        for (int i = 0; i < 60; ++i) {
+            final int contig = random.nextInt(3);
+            final int start = 1 + random.nextInt(5000);
+            final int length = random.nextInt(200);
+            if (!baits) {
+                intervals.add(new Interval(header.getSequence(contig).getSequenceName(), start, start + length, false, "target" + i));
+            } else if (contig != 2) {
+                intervals.add(new Interval(header.getSequence(contig).getSequenceName(), start - 20, start + 100, false, "bait" + i));
+            }
+        }
+        return intervals;
+    }
+
+    private MetricsFile<HsMetrics, Comparable<?>> runHsMetrics(final List<String> args) throws IOException {
+        return MultiThreadedMetricsTestUtil.runAndReadMetrics(new CollectHsMetrics(), args);
+    }
 }
@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis.directed;
+
+import htsjdk.samtools.util.Interval;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.PicardException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class IntervalIndexTest {
+    private static final List<Interval> INTERVALS = Arrays.asList(
+            new Interval("chr1", 10, 20),
+            new Interval("chr1", 30, 30),
+            new Interval("chr1", 41, 40), // zero length
+            new Interval("chr1", 100, 150),
+            new Interval("chr2", 5, 8),
+            new Interval("chr2", 50, 60));
+
+    @Test
+    public void testOffsets() {
+        final IntervalIndex index = new IntervalIndex(INTERVALS);
+        Assert.assertEquals(index.size(), INTERVALS.size());
+        Assert.assertEquals(index.getTotalLength(), 11 + 1 + 0 + 51 + 4 + 11);
+
+        final int[] expectedOffsets = {0, 11, 12, 12, 63, 67, 78};
+        for (int i = 0; i < expectedOffsets.length; ++i) {
+            Assert.assertEquals(index.getOffset(i), expectedOffsets[i]);
+        }
+        for (int i = 0; i < INTERVALS.size(); ++i) {
+            Assert.assertEquals(index.getInterval(i), INTERVALS.get(i));
+            Assert.assertEquals(index.getStart(i), INTERVALS.get(i).getStart());
+            Assert.assertEquals(index.getEnd(i), INTERVALS.get(i).getEnd());
+        }
+    }
+
+    @DataProvider(name = "seekOrders")
+    public Object[][] seekOrders() {
+        return new Object[][] {{true}, {false}};
+    }
+
+    @Test(dataProvider = "seekOrders")
+    public void testSeekMatchesBruteForce(final boolean sorted) {
+        final IntervalIndex index = new IntervalIndex(INTERVALS);
+        final IntervalIndex.Cursor cursor = index.cursor();
+        final Random random = new Random(17);
+
+        final List<String> contigs = new ArrayList<>();
+        final List<Integer> positions = new ArrayList<>();
+        for (final String contig : new String[]{"chr1", "chr2", "chr3"}) {
+            final List<Integer> contigPositions = new ArrayList<>();
+            for (int i = 0; i < 200; ++i) contigPositions.add(random.nextInt(200) - 20);
+            if (sorted) contigPositions.sort(null);
+            for (final int position : contigPositions) {
+                contigs.add(contig);
+                positions.add(position);
+            }
+        }
+
+        for (int i = 0; i < positions.size(); ++i) {
+            final String contig = contigs.get(i);
+            final int position = positions.get(i);
+            final int found = cursor.seek(contig, position);
+
+            int expected = -1, limit = 0;
+            for (int j = 0; j < INTERVALS.size(); ++j) {
+                final Interval interval = INTERVALS.get(j);
+                if (!interval.getContig().equals(contig)) continue;
+                if (expected == -1 && interval.getEnd() >= position) expected = j;
+                limit = j + 1;
+            }
+            if (expected == -1) expected = limit;
+
+            Assert.assertEquals(cursor.limit(), limit, contig + ":" + position);
+            Assert.assertEquals(found, expected, contig + ":" + position);
+        }
+    }
+
+    @Test(expectedExceptions = PicardException.class)
+    public void testOverlappingIntervals() {
+        new IntervalIndex(Arrays.asList(new Interval("chr1", 10, 20), new Interval("chr1", 20, 30)));
+    }
+
+    @Test(expectedExceptions = PicardException.class)
+    public void testUngroupedContigs() {
+        new IntervalIndex(Arrays.asList(new Interval("chr1", 10, 20), new Interval("chr2", 10, 20), new Interval("chr1", 30, 40)));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis.directed;
+
+import htsjdk.samtools.util.CoordMath;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.annotation.Gene;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class TranscriptIndexTest {
+
+    /** Makes genes with up to three transcripts of up to four exons each, some of them overlapping each other. */
+    private List<Gene> makeGenes(final Random random) {
+        final List<Gene> genes = new ArrayList<>();
+        for (final String contig : new String[]{"chr1", "chr2"}) {
+            for (int g = 0; g < 40; ++g) {
+                final int start = 1 + random.nextInt(20000);
+                final int end = start + random.nextInt(g % 10 == 0 ? 8000 : 1500);
+                final Gene gene = new Gene(contig, start, end, random.nextBoolean(), contig + ".gene" + g);
+                for (int t = 1 + random.nextInt(3); t > 0; --t) {
+                    final int numExons = 1 + random.nextInt(4);
+                    final int[] bounds = random.ints(2 * numExons, start, end + 1).sorted().toArray();
+                    final Gene.Transcript tx = gene.addTranscript(gene.getName() + ".tx" + t, bounds[0], bounds[bounds.length - 1],
+                            bounds[0], bounds[bounds.length - 1], numExons);
+                    for (int e = 0; e < numExons; ++e) tx.addExon(bounds[2 * e], bounds[2 * e + 1]);
+                }
+                genes.add(gene);
+            }
+        }
+        return genes;
+    }
+
+    @DataProvider(name = "findOrders")
+    public Object[][] findOrders() {
+        return new Object[][] {{true}, {false}};
+    }
+
+    @Test(dataProvider = "findOrders")
+    public void testFindMatchesBruteForce(final boolean sorted) {
+        final Random random = new Random(23);
+        final List<Gene> genes = makeGenes(random);
+        final TranscriptIndex index = new TranscriptIndex(genes);
+        final TranscriptIndex.Cursor cursor = index.cursor();
+        Assert.assertEquals(index.getGeneCount(), genes.size());
+
+        for (final String contig : new String[]{"chr1", "chr2", "chr3"}) {
+            final List<Integer> starts = new ArrayList<>();
+            for (int i = 0; i < 500; ++i) starts.add(random.nextInt(30000) - 100);
+            if (sorted) starts.sort(null);
+
+            for (final int start : starts) {
+                final int end = start + random.nextInt(600);
+                final Set<Gene> expected = new HashSet<>();
+                for (final Gene gene : genes) {
+                    if (gene.getContig().equals(contig) && gene.getStart() <= end && gene.getEnd() >= start) expected.add(gene);
+                }
+
+                final int count = cursor.find(contig, start, end);
+                final Set<Gene> found = new HashSet<>();
+                for (int i = 0; i < count; ++i) found.add(index.getGene(cursor.getOverlap(i)));
+                Assert.assertEquals(count, expected.size(), contig + ":" + start + "-" + end);
+                Assert.assertEquals(found, expected, contig + ":" + start + "-" + end);
+            }
+        }
+    }
+
+    @Test
+    public void testCoverageMatchesTranscriptCoverage() {
+        final Random random = new Random(29);
+        final List<Gene> genes = makeGenes(random);
+        final TranscriptIndex index = new TranscriptIndex(genes);
+        final TranscriptIndex.Coverage coverage = index.newCoverage();
+
+        final List<int[]> expected = new ArrayList<>();
+        for (int g = 0; g < index.getGeneCount(); ++g) {
+            for (int t = index.getFirstTranscript(g); t < index.getFirstTranscript(g + 1); ++t) {
+                final Gene.Transcript tx = index.getTranscript(t);
+                expected.add(new int[tx.length()]);
+                Assert.assertFalse(coverage.isAllocated(t));
+            }
+        }
+
+        for (int i = 0; i < 20000; ++i) {
+            final int t = random.nextInt(expected.size());
+            final Gene.Transcript tx = index.getTranscript(t);
+            final int blockStart = tx.transcriptionStart - 50 + random.nextInt(tx.transcriptionEnd - tx.transcriptionStart + 100);
+            final int blockEnd = CoordMath.getEnd(blockStart, 1 + random.nextInt(150));
+            tx.addCoverageCounts(blockStart, blockEnd, expected.get(t));
+            coverage.add(t, blockStart, blockEnd);
+        }
+
+        for (int t = 0; t < expected.size(); ++t) {
+            Assert.assertEquals(coverage.get(t), expected.get(t), index.getTranscript(t).name);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.annotation;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.OverlapDetector;
+import htsjdk.samtools.util.TestUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RefFlatCacheTest {
+    private static final SAMSequenceDictionary DICTIONARY = new SAMSequenceDictionary(Arrays.asList(
+            new SAMSequenceRecord("chr1", 100000), new SAMSequenceRecord("chr2", 50000)));
+
+    private static final String[] REF_FLAT_LINES = {
+            "geneA\ttxA1\tchr1\t+\t99\t2000\t150\t1800\t3\t99,500,1500,\t300,700,2000,",
+            "geneA\ttxA2\tchr1\t+\t99\t1200\t99\t1200\t2\t99,1000,\t300,1200,",
+            "geneB\ttxB1\tchr2\t-\t5000\t9000\t5500\t8000\t1\t5000,\t9000,",
+            "geneC\ttxC1\tchr1\t-\t1000\t3000\t1000\t3000\t2\t1000,2500,\t1500,3000,",
+            "geneD\ttxD1\tchrUnknown\t+\t10\t20\t10\t20\t1\t10,\t20,",     // unknown sequence
+            "geneE\ttxE1\tchr1\t+\t10\t20\t10\t20\t1\t10,\t20,",
+            "geneE\ttxE2\tchr1\t-\t10\t20\t10\t20\t1\t10,\t20,"            // strand disagreement
+    };
+
+    private File writeRefFlat(final File dir, final String... lines) throws IOException {
+        final File refFlat = new File(dir, "genes.refFlat");
+        try (final PrintStream out = new PrintStream(refFlat)) {
+            for (final String line : lines) out.println(line);
+        }
+        return refFlat;
+    }
+
+    @Test
+    public void testCachedGenesMatchParsedGenes() throws IOException {
+        final File dir = IOUtil.createTempDir("refFlatCache.", ".tmp");
+        try {
+            final File refFlat = writeRefFlat(dir, REF_FLAT_LINES);
+            final List<Gene> parsed = new ArrayList<>(GeneAnnotationReader.loadRefFlat(refFlat, DICTIONARY).getAll());
+            Assert.assertEquals(parsed.size(), 3);
+
+            final File cacheFile = RefFlatCache.getCacheFile(refFlat, RefFlatCache.calculateDictionaryMd5(DICTIONARY), null);
+            Assert.assertFalse(cacheFile.exists());
+            for (int run = 0; run < 2; ++run) {
+                final long lastModified = cacheFile.lastModified();
+                final OverlapDetector<Gene> cached = GeneAnnotationReader.loadRefFlatWithCache(refFlat, DICTIONARY, null);
+                Assert.assertTrue(cacheFile.exists());
+                if (run > 0) Assert.assertEquals(cacheFile.lastModified(), lastModified);
+                assertSameGenes(new ArrayList<>(cached.getAll()), parsed);
+            }
+
+            // A changed refFlat file makes the cache stale
+            final File changed = writeRefFlat(dir, REF_FLAT_LINES[2]);
+            final List<Gene> cached = new ArrayList<>(GeneAnnotationReader.loadRefFlatWithCache(changed, DICTIONARY, null).getAll());
+            assertSameGenes(cached, new ArrayList<>(GeneAnnotationReader.loadRefFlat(changed, DICTIONARY).getAll()));
+            Assert.assertEquals(cached.size(), 1);
+        } finally {
+            TestUtil.recursiveDelete(dir);
+        }
+    }
+
+    private void assertSameGenes(final List<Gene> actual, final List<Gene> expected) {
+        Assert.assertEquals(actual.size(), expected.size());
+        for (int g = 0; g < expected.size(); ++g) {
+            final Gene actualGene = actual.get(g);
+            final Gene expectedGene = expected.get(g);
+            Assert.assertEquals(actualGene, expectedGene);
+            Assert.assertEquals(actualGene.getName(), expectedGene.getName());
+            Assert.assertEquals(actualGene.isNegativeStrand(), expectedGene.isNegativeStrand());
+
+            final List<Gene.Transcript> actualTranscripts = new ArrayList<>();
+            actualGene.forEach(actualTranscripts::add);
+            final List<Gene.Transcript> expectedTranscripts = new ArrayList<>();
+            expectedGene.forEach(expectedTranscripts::add);
+            Assert.assertEquals(actualTranscripts, expectedTranscripts);
+            for (int t = 0; t < expectedTranscripts.size(); ++t) {
+                final Gene.Transcript.Exon[] actualExons = actualTranscripts.get(t).exons;
+                final Gene.Transcript.Exon[] expectedExons = expectedTranscripts.get(t).exons;
+                Assert.assertEquals(actualExons.length, expectedExons.length);
+                for (int e = 0; e < expectedExons.length; ++e) {
+                    Assert.assertEquals(actualExons[e].start, expectedExons[e].start);
+                    Assert.assertEquals(actualExons[e].end, expectedExons[e].end);
+                }
+                Assert.assertEquals(actualTranscripts.get(t).length(), expectedTranscripts.get(t).length());
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.sam.markduplicates;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.sam.markduplicates.EstimateLibraryComplexity.PairedReadSequence;
+import picard.sam.markduplicates.EstimateLibraryComplexity.PairedReadSequenceWithBarcodes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that comparing the read pairs of a group by buckets finds exactly the same duplicate sets, in the same order,
+ * as comparing every pair with every later pair.
+ */
+public class BucketedPairedReadMatcherTest {
+    private static final byte[] BASES = {'A', 'C', 'G', 'T', 'N', '.'};
+
+    @DataProvider(name = "groupParameters")
+    public Object[][] groupParameters() {
+        return new Object[][] {
+                // useBarcodes, maxReadLength, maxDiffRate, minLength, maxLength
+                {false, 0, 0.03, 101, 101},
+                {false, 0, 0.03, 30, 151},
+                {false, 0, 0.1, 20, 40},
+                {false, 50, 0.03, 30, 151},
+                {false, 0, 0.0, 36, 76},
+                {false, 0, 0.5, 10, 12},  // too few bases for the blocks, so all pairs are compared
+                {true, 0, 0.03, 30, 101}
+        };
+    }
+
+    @Test(dataProvider = "groupParameters")
+    public void testSameDuplicateSetsAsAllPairs(final boolean useBarcodes, final int maxReadLength, final double maxDiffRate,
+                                                final int minLength, final int maxLength) {
+        final Random random = new Random(42);
+        final EstimateLibraryComplexity elc = new EstimateLibraryComplexity();
+        elc.MAX_READ_LENGTH = maxReadLength;
+        elc.MAX_DIFF_RATE = maxDiffRate;
+
+        int numDuplicates = 0;
+        for (int iteration = 0; iteration < 20; ++iteration) {
+            final List<PairedReadSequence> group = randomGroup(random, elc.MIN_IDENTICAL_BASES, useBarcodes, minLength, maxLength);
+            final List<List<PairedReadSequence>> expected = elc.findDuplicateSets(new ArrayList<>(group), useBarcodes, false);
+            final List<List<PairedReadSequence>> actual = elc.findDuplicateSets(new ArrayList<>(group), useBarcodes, true);
+
+            Assert.assertEquals(actual.size(), expected.size());
+            numDuplicates += group.size() - expected.size();
+            for (int i = 0; i < expected.size(); ++i) {
+                final List<PairedReadSequence> expectedSet = expected.get(i), actualSet = actual.get(i);
+                Assert.assertEquals(actualSet.size(), expectedSet.size());
+                for (int j = 0; j < expectedSet.size(); ++j) {
+                    Assert.assertSame(actualSet.get(j), expectedSet.get(j));
+                }
+            }
+        }
+        Assert.assertTrue(numDuplicates > 0);
+    }
+
+    /** Builds a group sharing a prefix, made of a few templates each copied many times with some mismatches. */
+    private List<PairedReadSequence> randomGroup(final Random random, final int minIdenticalBases, final boolean useBarcodes,
+                                                 final int minLength, final int maxLength) {
+        final byte[] prefix1 = randomBases(random, minIdenticalBases, 4), prefix2 = randomBases(random, minIdenticalBases, 4);
+        final List<PairedReadSequence> templates = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            templates.add(randomPair(random, prefix1, prefix2, minLength, maxLength, useBarcodes));
+        }
+
+        final List<PairedReadSequence> group = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            if (random.nextInt(10) == 0) {
+                group.add(randomPair(random, prefix1, prefix2, minLength, maxLength, useBarcodes));
+                continue;
+            }
+            final PairedReadSequence template = templates.get(random.nextInt(templates.size()));
+            final PairedReadSequence copy = useBarcodes ? new PairedReadSequenceWithBarcodes(template) : new PairedReadSequence();
+            copy.read1 = mutate(random, template.read1, minIdenticalBases, minLength);
+            copy.read2 = mutate(random, template.read2, minIdenticalBases, minLength);
+            if (useBarcodes) {
+                final PairedReadSequenceWithBarcodes withBarcodes = (PairedReadSequenceWithBarcodes) copy;
+                final PairedReadSequenceWithBarcodes templateWithBarcodes = (PairedReadSequenceWithBarcodes) template;
+                withBarcodes.barcode = random.nextInt(4) == 0 ? random.nextInt(2) : templateWithBarcodes.barcode;
+                withBarcodes.readOneBarcode = templateWithBarcodes.readOneBarcode;
+                withBarcodes.readTwoBarcode = templateWithBarcodes.readTwoBarcode;
+            }
+            group.add(copy);
+        }
+        return group;
+    }
+
+    private PairedReadSequence randomPair(final Random random, final byte[] prefix1, final byte[] prefix2,
+                                          final int minLength, final int maxLength, final boolean useBarcodes) {
+        final PairedReadSequence prs = useBarcodes ? new PairedReadSequenceWithBarcodes() : new PairedReadSequence();
+        prs.read1 = withPrefix(prefix1, randomBases(random, minLength + random.nextInt(maxLength - minLength + 1), 6));
+        prs.read2 = withPrefix(prefix2, randomBases(random, minLength + random.nextInt(maxLength - minLength + 1), 6));
+        if (useBarcodes) {
+            ((PairedReadSequenceWithBarcodes) prs).barcode = random.nextInt(2);
+        }
+        return prs;
+    }
+
+    /** Copies the bases with a few substitutions after the prefix, sometimes trimming the copy. */
+    private byte[] mutate(final Random random, final byte[] bases, final int minIdenticalBases, final int minLength) {
+        final int length = random.nextBoolean() ? bases.length : minLength + random.nextInt(bases.length - minLength + 1);
+        final byte[] copy = new byte[length];
+        System.arraycopy(bases, 0, copy, 0, length);
+        final int numMutations = random.nextInt(6);
+        for (int i = 0; i < numMutations; ++i) {
+            copy[minIdenticalBases + random.nextInt(length - minIdenticalBases)] = BASES[random.nextInt(BASES.length)];
+        }
+        return copy;
+    }
+
+    private byte[] randomBases(final Random random, final int length, final int numDistinctBases) {
+        final byte[] bases = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            // Mostly ACGT, with the occasional other base
+            bases[i] = BASES[random.nextInt(20) == 0 ? random.nextInt(numDistinctBases) : random.nextInt(4)];
+        }
+        return bases;
+    }
+
+    private byte[] withPrefix(final byte[] prefix, final byte[] bases) {
+        System.arraycopy(prefix, 0, bases, 0, prefix.length);
+        return bases;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.sam.markduplicates;
+
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.TestUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.sam.markduplicates.util.BitmapDuplicateIndexCollection;
+import picard.sam.markduplicates.util.DuplicateIndexCollection;
+import picard.sam.markduplicates.util.SortingDuplicateIndexCollection;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Tests that both DuplicateIndexCollection implementations return each added index once, in ascending order.
+ */
+public class DuplicateIndexCollectionTest {
+
+    @DataProvider(name = "indexDistributions")
+    public Object[][] indexDistributions() {
+        return new Object[][] {
+                {0, 1L},               // empty
+                {10, 100L},            // a handful of indexes within one container
+                {5000, 1L << 20},      // sparse array containers
+                {200000, 300000L},     // dense enough to become bitmaps
+                {1000, 1L << 40}       // far apart, with many empty containers in between
+        };
+    }
+
+    @Test(dataProvider = "indexDistributions")
+    public void testBitmapCollection(final int numIndexes, final long maxIndex) {
+        assertAscendingAndDistinct(new BitmapDuplicateIndexCollection("Test indexes"), numIndexes, maxIndex);
+    }
+
+    @Test(dataProvider = "indexDistributions")
+    public void testSortingCollection(final int numIndexes, final long maxIndex) {
+        final File tmpDir = IOUtil.createTempDir("duplicateIndexes.", ".tmp");
+        try {
+            assertAscendingAndDistinct(new SortingDuplicateIndexCollection(1000, tmpDir), numIndexes, maxIndex);
+        } finally {
+            TestUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    @Test
+    public void testIndexesAtContainerBoundaries() {
+        final TreeSet<Long> expected = new TreeSet<>();
+        final DuplicateIndexCollection collection = new BitmapDuplicateIndexCollection("Test indexes");
+        for (final long index : new long[] {65536, 0, 65535, 63, 64, 131071, 131072, 65536, 0}) {
+            collection.add(index);
+            expected.add(index);
+        }
+        collection.doneAddingStartIteration();
+        Assert.assertEquals(drain(collection), new ArrayList<>(expected));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNegativeIndex() {
+        new BitmapDuplicateIndexCollection("Test indexes").add(-1);
+    }
+
+    private void assertAscendingAndDistinct(final DuplicateIndexCollection collection, final int numIndexes, final long maxIndex) {
+        final Random random = new Random(42);
+        final TreeSet<Long> expected = new TreeSet<>();
+        for (int i = 0; i < numIndexes; ++i) {
+            final long index = (long) (random.nextDouble() * maxIndex);
+            collection.add(index);
+            expected.add(index);
+            // Add some indexes twice, as happens for the two ends of a query-sorted pair
+            if (random.nextInt(10) == 0) collection.add(index);
+        }
+        collection.doneAddingStartIteration();
+        Assert.assertEquals(drain(collection), new ArrayList<>(expected));
+        collection.cleanup();
+    }
+
+    private List<Long> drain(final DuplicateIndexCollection collection) {
+        final List<Long> actual = new ArrayList<>();
+        while (collection.hasNext()) actual.add(collection.next());
+        return actual;
+    }
+}
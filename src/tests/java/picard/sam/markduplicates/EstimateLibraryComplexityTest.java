@@ -24,6 +24,12 @@
 
 package picard.sam.markduplicates;
 
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
 import htsjdk.samtools.metrics.MetricsFile;
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -33,7 +39,9 @@ import picard.sam.DuplicationMetrics;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 public class EstimateLibraryComplexityTest extends CommandLineProgramTest {
 
@@ -118,4 +126,89 @@ public class EstimateLibraryComplexityTest extends CommandLineProgramTest {
         Assert.assertEquals(runPicardCommandLine(args), 0);
         examineMetricsFile(output, 0, 0); // no read pairs examined!!!
     }
+
+    /** Finds the same duplicates and optical duplicates, in every library, whatever the number of threads. */
+    @Test
+    public void testSameOutputWithThreads() throws IOException {
+        final File input = File.createTempFile("estimateLibraryComplexity", ".sam");
+        input.deleteOnExit();
+        writeReadsWithDuplicates(input);
+
+        final File expected = run(input, "NUM_THREADS=1");
+        for (final int numThreads : new int[] {2, 4}) {
+            Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(run(input, "NUM_THREADS=" + numThreads), expected));
+        }
+        Assert.assertTrue(MetricsFile.<DuplicationMetrics>readBeans(expected).get(0).READ_PAIR_DUPLICATES > 0);
+    }
+
+    /** Finds the same duplicates when the read pairs are sorted through temporary files. */
+    @Test
+    public void testSameOutputWhenSpilling() throws IOException {
+        final File input = File.createTempFile("estimateLibraryComplexity", ".sam");
+        input.deleteOnExit();
+        writeReadsWithDuplicates(input);
+
+        Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(run(input, "MAX_RECORDS_IN_RAM=100"), run(input)));
+    }
+
+    private File run(final File input, final String... extraArgs) throws IOException {
+        final File output = File.createTempFile("estimateLibraryComplexity", ".els_metrics");
+        output.deleteOnExit();
+
+        final EstimateLibraryComplexity estimateLibraryComplexity = new EstimateLibraryComplexity();
+        estimateLibraryComplexity.readPairsPerBatch = 10; // many small batches
+        final List<String> args = new ArrayList<String>();
+        args.add("INPUT=" + input.getAbsolutePath());
+        args.add("OUTPUT=" + output.getAbsolutePath());
+        args.add("MIN_GROUP_COUNT=1");
+        args.addAll(Arrays.asList(extraArgs));
+        Assert.assertEquals(estimateLibraryComplexity.instanceMain(args.toArray(new String[args.size()])), 0);
+        return output;
+    }
+
+    /** Writes read pairs from two libraries, copied with a few errors from a small number of templates. */
+    private void writeReadsWithDuplicates(final File output) {
+        final Random random = new Random(42);
+        final int readLength = 50;
+        final byte[] bases = {'A', 'C', 'G', 'T'};
+        final byte[][] templates = new byte[300][];
+        for (int i = 0; i < templates.length; ++i) {
+            templates[i] = new byte[2 * readLength];
+            for (int j = 0; j < templates[i].length; ++j) templates[i][j] = bases[random.nextInt(4)];
+            // Few distinct prefixes, so that groups hold several templates
+            System.arraycopy(templates[random.nextInt(Math.min(i + 1, 10))], 0, templates[i], 0, 5);
+            System.arraycopy(templates[i % 10], readLength, templates[i], readLength, 5);
+        }
+
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.queryname);
+        builder.setReadLength(readLength);
+        for (int rg = 0; rg < 3; ++rg) {
+            final SAMReadGroupRecord readGroup = new SAMReadGroupRecord("RG" + rg);
+            readGroup.setSample("Sample");
+            readGroup.setLibrary("Library" + (rg % 2));
+            builder.setReadGroup(readGroup);
+            for (int i = 0; i < 1000; ++i) {
+                // Tiles and coordinates close enough together for some optical duplicates
+                builder.addPair("HWI" + rg + "_" + i + ":1:" + (1 + random.nextInt(2)) + ":" + random.nextInt(2000) + ":" + random.nextInt(2000),
+                        0, 1 + random.nextInt(1000), 1 + random.nextInt(1000));
+            }
+        }
+
+        int pair = 0;
+        byte[] template = null;
+        for (final SAMRecord rec : builder.getRecords()) {
+            if (pair++ % 2 == 0) template = templates[random.nextInt(templates.length)];
+            final byte[] readBases = Arrays.copyOfRange(template, rec.getFirstOfPairFlag() ? 0 : readLength,
+                    rec.getFirstOfPairFlag() ? readLength : 2 * readLength);
+            if (random.nextInt(4) == 0) readBases[5 + random.nextInt(readLength - 5)] = 'N';
+            rec.setReadBases(readBases);
+            final byte[] qualities = new byte[readLength];
+            Arrays.fill(qualities, (byte) 30);
+            rec.setBaseQualities(qualities);
+        }
+
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMWriter(builder.getHeader(), false, output);
+        for (final SAMRecord rec : builder.getRecords()) writer.addAlignment(rec);
+        writer.close();
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.CollectionUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.TestUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the MarkDuplicates test cases with duplicate sets resolved on several threads, and checks that
+ * the output of a multi-threaded run is identical to that of a single-threaded run.
+ */
+public class MultiThreadedMarkDuplicatesTest extends MarkDuplicatesTest {
+
+    @Override
+    protected AbstractMarkDuplicatesCommandLineProgramTester getTester() {
+        final AbstractMarkDuplicatesCommandLineProgramTester tester = new MarkDuplicatesTester();
+        tester.addArg("NUM_THREADS=4");
+        return tester;
+    }
+
+    @Test
+    public void testSameOutputAsSingleThreaded() {
+        final File outputDir = IOUtil.createTempDir(TEST_BASE_NAME + ".", ".tmp");
+        try {
+            // Few distinct start positions so that there are many duplicate sets of varying size, and read names
+            // placing reads close enough together on the same tile for some of them to be optical duplicates.
+            final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+            builder.setRandomSeed(42);
+            for (int i = 0; i < 2000; ++i) {
+                final String readName = "RUNID" + i + ":1:" + (i % 2) + ":" + (i / 194 * 30 % 600) + ":100";
+                final int start = 1 + 10 * (i % 97);
+                if (i % 5 == 0) builder.addFrag(readName, i % 2, start, i % 3 == 0);
+                else builder.addPair(readName, i % 2, start, start + 100);
+            }
+            final File input = new File(outputDir, "input.sam");
+            final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMWriter(builder.getHeader(), false, input);
+            builder.forEach(writer::addAlignment);
+            writer.close();
+
+            final File singleThreadedOutput = new File(outputDir, "single.sam");
+            final File singleThreadedMetrics = new File(outputDir, "single.duplicate_metrics");
+            runMarkDuplicates(input, singleThreadedOutput, singleThreadedMetrics, outputDir, 1);
+
+            final File multiThreadedOutput = new File(outputDir, "multi.sam");
+            final File multiThreadedMetrics = new File(outputDir, "multi.duplicate_metrics");
+            runMarkDuplicates(input, multiThreadedOutput, multiThreadedMetrics, outputDir, 4);
+
+            final List<String> expected = readRecords(singleThreadedOutput);
+            Assert.assertTrue(expected.stream().anyMatch(record -> record.contains("DT:Z:" + MarkDuplicates.DUPLICATE_TYPE_SEQUENCING)));
+            Assert.assertEquals(readRecords(multiThreadedOutput), expected);
+            Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(singleThreadedMetrics, multiThreadedMetrics));
+        } finally {
+            TestUtil.recursiveDelete(outputDir);
+        }
+    }
+
+    private void runMarkDuplicates(final File input, final File output, final File metrics, final File tmpDir, final int numThreads) {
+        final MarkDuplicates markDuplicates = new MarkDuplicates();
+        markDuplicates.setupOpticalDuplicateFinder();
+        markDuplicates.INPUT = CollectionUtil.makeList(input.getAbsolutePath());
+        markDuplicates.OUTPUT = output;
+        markDuplicates.METRICS_FILE = metrics;
+        markDuplicates.TMP_DIR = CollectionUtil.makeList(tmpDir);
+        markDuplicates.TAGGING_POLICY = MarkDuplicates.DuplicateTaggingPolicy.All;
+        markDuplicates.NUM_THREADS = numThreads;
+        // Small batches so that duplicate sets are spread over many batches and threads
+        markDuplicates.readEndsPerBatch = 5;
+        // Needed to suppress calling CommandLineProgram.getVersion(), which doesn't work for code not in a jar
+        markDuplicates.PROGRAM_RECORD_ID = null;
+        Assert.assertEquals(markDuplicates.doWork(), 0);
+    }
+
+    private List<String> readRecords(final File sam) {
+        final SamReader reader = SamReaderFactory.makeDefault().open(sam);
+        final List<String> records = new ArrayList<>();
+        for (final SAMRecord record : reader) records.add(record.getSAMString());
+        CloserUtil.close(reader);
+        return records;
+    }
+}
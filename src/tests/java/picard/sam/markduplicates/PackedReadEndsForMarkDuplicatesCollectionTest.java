@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates;
+
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.TestUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.sam.markduplicates.util.PackedReadEndsForMarkDuplicatesCollection;
+import picard.sam.markduplicates.util.ReadEnds;
+import picard.sam.markduplicates.util.ReadEndsForMarkDuplicates;
+import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodes;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that PackedReadEndsForMarkDuplicatesCollection stores read ends faithfully and sorts them in exactly the same
+ * order as MarkDuplicates.ReadEndsMDComparator, both in memory and when spilling to disk.
+ */
+public class PackedReadEndsForMarkDuplicatesCollectionTest {
+
+    @DataProvider(name = "packedCollectionParameters")
+    public Object[][] packedCollectionParameters() {
+        return new Object[][] {
+                {false, 100000}, // all in memory
+                {false, 37},     // many spills
+                {true, 100000},
+                {true, 37}
+        };
+    }
+
+    @Test(dataProvider = "packedCollectionParameters")
+    public void testSortedLikeReadEndsMDComparator(final boolean useBarcodes, final int maxRecordsInRam) {
+        final File tmpDir = IOUtil.createTempDir("packedReadEnds.", ".tmp");
+        try {
+            final Random random = new Random(42);
+            final List<ReadEndsForMarkDuplicates> expected = new ArrayList<>();
+            final PackedReadEndsForMarkDuplicatesCollection collection =
+                    new PackedReadEndsForMarkDuplicatesCollection(useBarcodes, maxRecordsInRam, Collections.singletonList(tmpDir));
+
+            for (int i = 0; i < 1000; ++i) {
+                final ReadEndsForMarkDuplicates readEnds = randomReadEnds(random, useBarcodes, i);
+                expected.add(readEnds);
+                collection.add(readEnds);
+            }
+            collection.doneAdding();
+            expected.sort(new MarkDuplicates.ReadEndsMDComparator(useBarcodes));
+
+            final List<ReadEndsForMarkDuplicates> actual = new ArrayList<>();
+            collection.forEach(actual::add);
+            Assert.assertEquals(actual.size(), expected.size());
+            for (int i = 0; i < expected.size(); ++i) {
+                assertSameReadEnds(actual.get(i), expected.get(i), useBarcodes);
+            }
+
+            collection.cleanup();
+            Assert.assertEquals(tmpDir.listFiles().length, 0);
+        } finally {
+            TestUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    /** Builds read ends with few distinct positions, so that the later fields of the sort key are exercised. */
+    private ReadEndsForMarkDuplicates randomReadEnds(final Random random, final boolean useBarcodes, final int index) {
+        final ReadEndsForMarkDuplicates readEnds;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = new ReadEndsForMarkDuplicatesWithBarcodes();
+            withBarcodes.barcode = random.nextInt(3) - 1;
+            withBarcodes.readOneBarcode = random.nextInt(2) == 0 ? 0 : random.nextInt();
+            withBarcodes.readTwoBarcode = random.nextInt(2);
+            readEnds = withBarcodes;
+        } else {
+            readEnds = new ReadEndsForMarkDuplicates();
+        }
+        readEnds.libraryId = (short) (1 + random.nextInt(2));
+        readEnds.read1ReferenceIndex = random.nextInt(2);
+        readEnds.read1Coordinate = random.nextInt(5) - 1;
+        readEnds.read1IndexInFile = index;
+        readEnds.score = (short) random.nextInt(Short.MAX_VALUE);
+        readEnds.readGroup = (short) random.nextInt(4);
+        readEnds.tile = (short) random.nextInt(100);
+        readEnds.x = random.nextInt(Short.MAX_VALUE);
+        readEnds.y = random.nextInt(Short.MAX_VALUE);
+        if (random.nextBoolean()) {
+            readEnds.orientation = (byte) (ReadEnds.FF + random.nextInt(4));
+            readEnds.orientationForOpticalDuplicates = (byte) (ReadEnds.FF + random.nextInt(4));
+            readEnds.read2ReferenceIndex = random.nextInt(2);
+            readEnds.read2Coordinate = random.nextInt(5);
+            readEnds.read2IndexInFile = 100000 + index;
+        } else {
+            readEnds.orientation = random.nextBoolean() ? ReadEnds.F : ReadEnds.R;
+        }
+        return readEnds;
+    }
+
+    private void assertSameReadEnds(final ReadEndsForMarkDuplicates actual, final ReadEndsForMarkDuplicates expected, final boolean useBarcodes) {
+        Assert.assertEquals(actual.libraryId, expected.libraryId);
+        Assert.assertEquals(actual.orientation, expected.orientation);
+        Assert.assertEquals(actual.orientationForOpticalDuplicates, expected.orientationForOpticalDuplicates);
+        Assert.assertEquals(actual.read1ReferenceIndex, expected.read1ReferenceIndex);
+        Assert.assertEquals(actual.read1Coordinate, expected.read1Coordinate);
+        Assert.assertEquals(actual.read2ReferenceIndex, expected.read2ReferenceIndex);
+        Assert.assertEquals(actual.read2Coordinate, expected.read2Coordinate);
+        Assert.assertEquals(actual.read1IndexInFile, expected.read1IndexInFile);
+        Assert.assertEquals(actual.read2IndexInFile, expected.read2IndexInFile);
+        Assert.assertEquals(actual.score, expected.score);
+        Assert.assertEquals(actual.readGroup, expected.readGroup);
+        Assert.assertEquals(actual.tile, expected.tile);
+        Assert.assertEquals(actual.x, expected.x);
+        Assert.assertEquals(actual.y, expected.y);
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes actualWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) actual;
+            final ReadEndsForMarkDuplicatesWithBarcodes expectedWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) expected;
+            Assert.assertEquals(actualWithBarcodes.barcode, expectedWithBarcodes.barcode);
+            Assert.assertEquals(actualWithBarcodes.readOneBarcode, expectedWithBarcodes.readOneBarcode);
+            Assert.assertEquals(actualWithBarcodes.readTwoBarcode, expectedWithBarcodes.readTwoBarcode);
+        }
+    }
+}
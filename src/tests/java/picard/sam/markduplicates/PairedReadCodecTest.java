@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.sam.markduplicates;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.sam.markduplicates.EstimateLibraryComplexity.PairedReadCodec;
+import picard.sam.markduplicates.EstimateLibraryComplexity.PairedReadSequence;
+import picard.sam.markduplicates.EstimateLibraryComplexity.PairedReadSequenceWithBarcodes;
+import picard.sam.markduplicates.EstimateLibraryComplexity.PairedReadWithBarcodesCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that the packed version of the PairedReadSequence codecs decodes exactly what the byte version does, in a
+ * fraction of the space.
+ */
+public class PairedReadCodecTest {
+    private static final byte[] BASES = {'A', 'C', 'G', 'T', 'N', 'a', '.'};
+
+    @DataProvider(name = "useBarcodes")
+    public Object[][] useBarcodes() {
+        return new Object[][] {{false}, {true}};
+    }
+
+    @Test(dataProvider = "useBarcodes")
+    public void testPackedRoundTripMatchesByteVersion(final boolean useBarcodes) {
+        final Random random = new Random(42);
+        final List<PairedReadSequence> pairs = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) pairs.add(randomPair(random, useBarcodes));
+
+        final ByteArrayOutputStream byteBases = new ByteArrayOutputStream();
+        final ByteArrayOutputStream packedBases = new ByteArrayOutputStream();
+        final List<PairedReadSequence> byteDecoded = roundTrip(pairs, newCodec(useBarcodes, PairedReadCodec.BYTE_BASES_VERSION), byteBases);
+        final List<PairedReadSequence> packedDecoded = roundTrip(pairs, newCodec(useBarcodes, PairedReadCodec.PACKED_BASES_VERSION), packedBases);
+
+        Assert.assertEquals(byteDecoded.size(), pairs.size());
+        Assert.assertEquals(packedDecoded.size(), pairs.size());
+        for (int i = 0; i < pairs.size(); ++i) {
+            assertSamePair(byteDecoded.get(i), pairs.get(i), useBarcodes);
+            assertSamePair(packedDecoded.get(i), byteDecoded.get(i), useBarcodes);
+        }
+        Assert.assertTrue(packedBases.size() < byteBases.size() / 2,
+                "packed " + packedBases.size() + " bytes, unpacked " + byteBases.size() + " bytes");
+    }
+
+    @Test(expectedExceptions = picard.PicardException.class)
+    public void testUnknownVersion() {
+        new PairedReadCodec(3);
+    }
+
+    private PairedReadCodec newCodec(final boolean useBarcodes, final int version) {
+        return useBarcodes ? new PairedReadWithBarcodesCodec(version) : new PairedReadCodec(version);
+    }
+
+    private List<PairedReadSequence> roundTrip(final List<PairedReadSequence> pairs, final PairedReadCodec codec,
+                                               final ByteArrayOutputStream bytes) {
+        codec.setOutputStream(bytes);
+        for (final PairedReadSequence pair : pairs) codec.encode(pair);
+
+        // Decode with a clone, as SortingCollection does
+        final PairedReadCodec decoder = (PairedReadCodec) codec.clone();
+        decoder.setInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        final List<PairedReadSequence> decoded = new ArrayList<>();
+        for (PairedReadSequence pair = decoder.decode(); pair != null; pair = decoder.decode()) decoded.add(pair);
+        return decoded;
+    }
+
+    private PairedReadSequence randomPair(final Random random, final boolean useBarcodes) {
+        final PairedReadSequence pair;
+        if (useBarcodes) {
+            final PairedReadSequenceWithBarcodes withBarcodes = new PairedReadSequenceWithBarcodes();
+            withBarcodes.barcode = random.nextInt();
+            withBarcodes.readOneBarcode = random.nextBoolean() ? 0 : random.nextInt();
+            withBarcodes.readTwoBarcode = random.nextInt();
+            pair = withBarcodes;
+        } else {
+            pair = new PairedReadSequence();
+        }
+        pair.readGroup = (short) (random.nextInt(10) - 1);
+        pair.tile = (short) random.nextInt(Short.MAX_VALUE);
+        pair.x = (short) (random.nextInt(1 << 16)); // may be negative once cast, as for large coordinates
+        pair.y = (short) (random.nextInt(1 << 16));
+        pair.read1 = randomBases(random, random.nextInt(10) == 0 ? random.nextInt(5) : 100 + random.nextInt(52));
+        pair.read2 = randomBases(random, 100 + random.nextInt(52));
+        return pair;
+    }
+
+    private byte[] randomBases(final Random random, final int length) {
+        final byte[] bases = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bases[i] = BASES[random.nextInt(50) == 0 ? random.nextInt(BASES.length) : random.nextInt(4)];
+        }
+        return bases;
+    }
+
+    private void assertSamePair(final PairedReadSequence actual, final PairedReadSequence expected, final boolean useBarcodes) {
+        Assert.assertEquals(actual.getReadGroup(), expected.getReadGroup());
+        Assert.assertEquals(actual.getTile(), expected.getTile());
+        Assert.assertEquals(actual.getX(), expected.getX());
+        Assert.assertEquals(actual.getY(), expected.getY());
+        Assert.assertEquals(actual.read1, expected.read1);
+        Assert.assertEquals(actual.read2, expected.read2);
+        if (useBarcodes) {
+            final PairedReadSequenceWithBarcodes actualWithBarcodes = (PairedReadSequenceWithBarcodes) actual;
+            final PairedReadSequenceWithBarcodes expectedWithBarcodes = (PairedReadSequenceWithBarcodes) expected;
+            Assert.assertEquals(actualWithBarcodes.barcode, expectedWithBarcodes.barcode);
+            Assert.assertEquals(actualWithBarcodes.readOneBarcode, expectedWithBarcodes.readOneBarcode);
+            Assert.assertEquals(actualWithBarcodes.readTwoBarcode, expectedWithBarcodes.readTwoBarcode);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.TestUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests OffHeapReadEndsForMarkDuplicatesMap against a HashMap, both in memory and when spilling to memory-mapped files.
+ */
+public class OffHeapReadEndsForMarkDuplicatesMapTest {
+
+    @DataProvider(name = "offHeapMapParameters")
+    public Object[][] offHeapMapParameters() {
+        return new Object[][] {
+                {false, 1L << 30}, // all in memory
+                {false, 0L},       // all memory-mapped
+                {true, 8192L}      // a little of both
+        };
+    }
+
+    @Test(dataProvider = "offHeapMapParameters")
+    public void testAgainstHashMap(final boolean useBarcodes, final long maxBytesInRam) {
+        final File tmpDir = IOUtil.createTempDir("offHeapReadEnds.", ".tmp");
+        try {
+            final OffHeapReadEndsForMarkDuplicatesMap map =
+                    new OffHeapReadEndsForMarkDuplicatesMap(useBarcodes, maxBytesInRam, Collections.singletonList(tmpDir), 4096);
+            final Map<String, ReadEndsForMarkDuplicates> expected = new HashMap<>();
+            final List<String> keys = new ArrayList<>();
+            final Random random = new Random(42);
+            int lookups = 0, hits = 0;
+
+            for (int i = 0; i < 200000; ++i) {
+                final int mateSequenceIndex = random.nextInt(3);
+                if (keys.isEmpty() || random.nextInt(100) < 55) {
+                    // a new key, or occasionally an existing one, which replaces the old record
+                    final String key = keys.isEmpty() || random.nextInt(20) != 0 ? "RG" + random.nextInt(3) + ":READ" + i : keys.get(random.nextInt(keys.size()));
+                    final int keySequenceIndex = key.hashCode() & 1;
+                    final ReadEndsForMarkDuplicates readEnds = randomReadEnds(random, useBarcodes);
+                    map.put(keySequenceIndex, key, readEnds);
+                    if (expected.put(keySequenceIndex + "/" + key, readEnds) == null) keys.add(key);
+                } else {
+                    // look up a present key with the right or wrong sequence index, or a key that was never added
+                    final String key = random.nextInt(10) == 0 ? "MISSING" + i : keys.get(random.nextInt(keys.size()));
+                    final int keySequenceIndex = random.nextInt(10) == 0 ? 2 : key.hashCode() & 1;
+                    final ReadEndsForMarkDuplicates actual = map.remove(keySequenceIndex, key);
+                    final ReadEndsForMarkDuplicates expectedReadEnds = expected.remove(keySequenceIndex + "/" + key);
+                    if (expectedReadEnds != null) {
+                        keys.remove(key);
+                        ++hits;
+                    }
+                    ++lookups;
+                    assertSameReadEnds(actual, expectedReadEnds, useBarcodes);
+                }
+                Assert.assertEquals(map.size(), expected.size());
+                Assert.assertTrue(map.sizeInRam() <= map.size());
+            }
+
+            Assert.assertEquals(map.getHitRate(), hits / (double) lookups, 1e-9);
+            if (maxBytesInRam == 0) Assert.assertEquals(map.sizeInRam(), 0);
+            Assert.assertEquals(map.getBytesSpilled() > 0, maxBytesInRam < 1L << 30);
+
+            map.close();
+            Assert.assertEquals(tmpDir.listFiles().length, 0);
+        } finally {
+            TestUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    private ReadEndsForMarkDuplicates randomReadEnds(final Random random, final boolean useBarcodes) {
+        final ReadEndsForMarkDuplicates readEnds;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = new ReadEndsForMarkDuplicatesWithBarcodes();
+            withBarcodes.barcode = random.nextInt();
+            withBarcodes.readOneBarcode = random.nextInt();
+            withBarcodes.readTwoBarcode = random.nextInt();
+            readEnds = withBarcodes;
+        } else {
+            readEnds = new ReadEndsForMarkDuplicates();
+        }
+        readEnds.libraryId = (short) random.nextInt();
+        readEnds.orientation = (byte) random.nextInt();
+        readEnds.orientationForOpticalDuplicates = (byte) random.nextInt();
+        readEnds.score = (short) random.nextInt();
+        readEnds.readGroup = (short) random.nextInt();
+        readEnds.read1ReferenceIndex = random.nextInt();
+        readEnds.read1Coordinate = random.nextInt();
+        readEnds.read2ReferenceIndex = random.nextInt();
+        readEnds.read2Coordinate = random.nextInt();
+        readEnds.read1IndexInFile = random.nextLong();
+        readEnds.read2IndexInFile = random.nextLong();
+        readEnds.tile = (short) random.nextInt();
+        readEnds.x = random.nextInt();
+        readEnds.y = random.nextInt();
+        return readEnds;
+    }
+
+    private void assertSameReadEnds(final ReadEndsForMarkDuplicates actual, final ReadEndsForMarkDuplicates expected, final boolean useBarcodes) {
+        if (expected == null) {
+            Assert.assertNull(actual);
+            return;
+        }
+        Assert.assertNotNull(actual);
+        Assert.assertEquals(actual.libraryId, expected.libraryId);
+        Assert.assertEquals(actual.orientation, expected.orientation);
+        Assert.assertEquals(actual.orientationForOpticalDuplicates, expected.orientationForOpticalDuplicates);
+        Assert.assertEquals(actual.score, expected.score);
+        Assert.assertEquals(actual.readGroup, expected.readGroup);
+        Assert.assertEquals(actual.read1ReferenceIndex, expected.read1ReferenceIndex);
+        Assert.assertEquals(actual.read1Coordinate, expected.read1Coordinate);
+        Assert.assertEquals(actual.read2ReferenceIndex, expected.read2ReferenceIndex);
+        Assert.assertEquals(actual.read2Coordinate, expected.read2Coordinate);
+        Assert.assertEquals(actual.read1IndexInFile, expected.read1IndexInFile);
+        Assert.assertEquals(actual.read2IndexInFile, expected.read2IndexInFile);
+        Assert.assertEquals(actual.tile, expected.tile);
+        Assert.assertEquals(actual.x, expected.x);
+        Assert.assertEquals(actual.y, expected.y);
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes actualWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) actual;
+            final ReadEndsForMarkDuplicatesWithBarcodes expectedWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) expected;
+            Assert.assertEquals(actualWithBarcodes.barcode, expectedWithBarcodes.barcode);
+            Assert.assertEquals(actualWithBarcodes.readOneBarcode, expectedWithBarcodes.readOneBarcode);
+            Assert.assertEquals(actualWithBarcodes.readTwoBarcode, expectedWithBarcodes.readTwoBarcode);
+        }
+    }
+}
@@ -125,6 +125,30 @@ public class OpticalDuplicateFinderTest {
         assertEquals(finder.findOpticalDuplicates(locs, locs.get(2)), new boolean[] {true, true, false});
     }
 
+    @Test
+    public void testSpatialIndexGivesSameFlagsAsAllPairs() {
+        final Log log = Log.getInstance(OpticalDuplicateFinderTest.class);
+        final OpticalDuplicateFinder allPairs = new OpticalDuplicateFinder(OpticalDuplicateFinder.DEFAULT_READ_NAME_REGEX, 100, log);
+        allPairs.setSpatialIndexDuplicateSetSize(Integer.MAX_VALUE);
+        final OpticalDuplicateFinder spatialIndex = new OpticalDuplicateFinder(OpticalDuplicateFinder.DEFAULT_READ_NAME_REGEX, 100, log);
+        spatialIndex.setSpatialIndexDuplicateSetSize(0);
+
+        for (int i = 0; i < 20; ++i) {
+            final Random random = new Random(i);
+            final List<PhysicalLocation> locs = new ArrayList<>();
+            final int spread = 200 + random.nextInt(5000);
+            for (int j = 0; j < 2000; ++j) {
+                locs.add(loc(1 + random.nextInt(3), random.nextInt(spread), random.nextInt(spread)));
+            }
+            // a read without location information, and the same read twice, are never optical duplicates of anything
+            locs.add(loc(PhysicalLocation.NO_VALUE, 0, 0));
+            locs.add(locs.get(random.nextInt(locs.size())));
+
+            final PhysicalLocation keeper = random.nextBoolean() ? locs.get(random.nextInt(locs.size())) : null;
+            assertEquals(spatialIndex.findOpticalDuplicates(locs, keeper), allPairs.findOpticalDuplicates(locs, keeper));
+        }
+    }
+
     /** Helper method to create a physical location. */
     private PhysicalLocation loc(final int tile, final int x, final int y) {
         final PhysicalLocation l = new PhysicalLocationInt() {
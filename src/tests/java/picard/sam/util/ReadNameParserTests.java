@@ -5,7 +5,14 @@ import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Tests for the ReadNameParser class.
@@ -139,4 +146,148 @@ public class ReadNameParserTests {
         }
     }
 
+
+    @DataProvider(name = "compiledReadNameRegexes")
+    public Object[][] compiledReadNameRegexes() {
+        return new Object[][]{
+                {"[a-zA-Z0-9]+:[0-9]:([0-9]+):([0-9]+):([0-9]+).*"},                  // Illumina, pre Casava 1.8
+                {"(?:.*:)?([0-9]+)[^:]*:([0-9]+)[^:]*:([0-9]+)[^:]*$"},                // last three fields
+                {"[\\w-]+:\\d+:[\\w-]+:\\d+:(\\d+):(\\d+):(\\d+)"},                    // Casava 1.8
+                {"^(?:SRR\\d+\\.\\d+[.:_])?.*:(\\d{1,5}):(-?\\d+):(-?\\d+)(?:#\\d)?(?:/[12])?$"}, // SRA
+                {"(?:.*_)?(\\d+)_(\\d+)_(\\d+)"},
+        };
+    }
+
+    /** Tests that the allocation-free matcher gives the same groups, integers and errors as java.util.regex. */
+    @Test(dataProvider = "compiledReadNameRegexes")
+    public void testCompiledReadNameRegexMatchesJavaRegex(final String regex) {
+        final ReadNameRegex compiled = ReadNameRegex.compile(regex);
+        Assert.assertNotNull(compiled, regex);
+        final Pattern pattern = Pattern.compile(regex);
+        final int[] groups = compiled.newGroups();
+
+        for (final String readName : readNames()) {
+            final Matcher m = pattern.matcher(readName);
+            final boolean matches = m.matches();
+            Assert.assertEquals(compiled.matches(readName, groups), matches, readName);
+            if (!matches) continue;
+            for (int group = 1; group <= 3; ++group) {
+                Integer expected = null, actual = null;
+                try { expected = Integer.parseInt(m.group(group)); } catch (final NumberFormatException e) { /* compared below */ }
+                try { actual = compiled.parseGroup(readName, groups, group); } catch (final NumberFormatException e) { /* compared below */ }
+                Assert.assertEquals(actual, expected, readName + " group " + group);
+            }
+        }
+    }
+
+    @Test
+    public void testUnsupportedReadNameRegexes() {
+        for (final String regex : new String[] {"(a)|(b)|(c)", "(?i)([0-9]+):([0-9]+):([0-9]+)", "(.*?):([0-9]+):([0-9]+)",
+                "([0-9]+):([0-9]+)", "(?:(\\d+):)+(\\d+):(\\d+)", "(\\d+)\\1(\\d+)(\\d+)", "(\\d+) (\\d+)\\t(\\d+)"}) {
+            Assert.assertNull(ReadNameRegex.compile(regex), regex);
+        }
+    }
+
+    @Test
+    public void testCustomRegexParsedWithoutMatcher() {
+        final ReadNameParser parser = new ReadNameParser("[a-zA-Z0-9]+:[0-9]:([0-9]+):([0-9]+):([0-9]+).*");
+        final PhysicalLocationInt loc = new PhysicalLocationInt();
+        Assert.assertTrue(parser.addLocationInformation("RUNID:7:1203:2886:82292", loc));
+        Assert.assertEquals(loc.getTile(), 1203);
+        Assert.assertEquals(loc.getX(), 2886);
+        Assert.assertEquals(loc.getY(), 82292);
+        Assert.assertFalse(parser.addLocationInformation("RUNID:7:1203:2886", loc));
+        Assert.assertFalse(parser.addLocationInformation("RUNID:7:1203:2886:99999999999", loc)); // does not fit in an int
+    }
+
+    /** A single parser, as held by an OpticalDuplicateFinder, must give the same answers when shared by several threads. */
+    @Test(dataProvider = "compiledReadNameRegexes")
+    public void testParserSharedAcrossThreads(final String regex) throws Exception {
+        final List<String> readNames = readNames();
+        final ReadNameParser expectedParser = new ReadNameParser(regex);
+        final List<String> expected = new ArrayList<>();
+        for (final String readName : readNames) expected.add(parseToString(expectedParser, readName));
+
+        final ReadNameParser shared = new ReadNameParser(regex);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<List<String>>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    final List<String> actual = new ArrayList<>();
+                    for (int i = 0; i < 20; i++) {
+                        actual.clear();
+                        for (final String readName : readNames) actual.add(parseToString(shared, readName));
+                    }
+                    return actual;
+                }));
+            }
+            for (final Future<List<String>> future : futures) Assert.assertEquals(future.get(), expected);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String parseToString(final ReadNameParser parser, final String readName) {
+        final PhysicalLocationInt loc = new PhysicalLocationInt();
+        if (!parser.addLocationInformation(readName, loc)) return "none";
+        return loc.getTile() + ":" + loc.getX() + ":" + loc.getY();
+    }
+
+    /** Compares the time taken to parse read names with java.util.regex, the compiled regex and the default parser. */
+    @Test
+    public void performanceTestReadNameParsing() {
+        final int ITERATIONS = 1000000;
+        final String regex = "[a-zA-Z0-9]+:[0-9]:([0-9]+):([0-9]+):([0-9]+).*";
+        final String readName = "RUNID:7:1203:2886:82292";
+        final PhysicalLocationInt loc = new PhysicalLocationInt();
+
+        final Pattern pattern = Pattern.compile(regex);
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            final Matcher m = pattern.matcher(readName);
+            if (!m.matches()) throw new RuntimeException("Regex did not match " + readName);
+            loc.setTile((short) Integer.parseInt(m.group(1)));
+            loc.setX(Integer.parseInt(m.group(2)));
+            loc.setY(Integer.parseInt(m.group(3)));
+        }
+        System.out.println("java.util.regex: " + (System.currentTimeMillis() - startTime) + "ms.");
+
+        for (final String parserRegex : new String[] {regex, ReadNameParser.DEFAULT_READ_NAME_REGEX}) {
+            final ReadNameParser parser = new ReadNameParser(parserRegex);
+            startTime = System.currentTimeMillis();
+            for (int i = 0; i < ITERATIONS; ++i) {
+                if (!parser.addLocationInformation(readName, loc)) throw new RuntimeException("Could not parse " + readName);
+            }
+            System.out.println("ReadNameParser with " + parserRegex + ": " + (System.currentTimeMillis() - startTime) + "ms.");
+            Assert.assertEquals(loc.getY(), 82292);
+        }
+    }
+
+    /** Read names in several formats, plus random mutations of them. */
+    private List<String> readNames() {
+        final List<String> readNames = new ArrayList<>();
+        final String[] templates = {
+                "RUNID:7:1203:2886:82292", "HWI-ST1234:8:1101:1234:5678#0/1", "EAS139:136:FC706VJ:2:2104:15343:197393",
+                "M01234:123:000000000-ZZZZZ:1:1105:17981:23325", "SRR1234567.1.1:HWI-ST1234:8:1101:1234:-5678",
+                "SRR1234567.15 HWI:1:2:3", "1109ABC:22981DEF:17995GHI", "READ_12_3456_7890", "RUNID:7:1203:2886:99999999999",
+                "RUNID:7:1203:2886:2147483648", "RUNID:7:1203:-2147483648:2147483647", "", ":::", "a:b:c", "1:2:3"
+        };
+        final String alphabet = "0123456789:_.-#/ aZ\u00e9\u0661";
+        final Random random = new Random(42);
+        for (final String template : templates) {
+            readNames.add(template);
+            for (int i = 0; i < 200; ++i) {
+                final StringBuilder name = new StringBuilder(template);
+                for (int edits = 1 + random.nextInt(3); edits > 0; --edits) {
+                    final int at = name.length() == 0 ? 0 : random.nextInt(name.length());
+                    final char c = alphabet.charAt(random.nextInt(alphabet.length()));
+                    if (random.nextBoolean() && name.length() > 0) name.setCharAt(at, c);
+                    else name.insert(at, c);
+                }
+                readNames.add(name.toString());
+            }
+        }
+        return readNames;
+    }
 }
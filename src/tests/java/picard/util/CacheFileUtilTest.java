@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.util;
+
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.TestUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import picard.PicardException;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+public class CacheFileUtilTest {
+
+    @Test
+    public void testWriteAtomicallyReplacesCacheFile() throws IOException {
+        final File dir = IOUtil.createTempDir("cacheFileUtil.", ".tmp");
+        try {
+            final File cacheFile = new File(dir, "test.cache");
+            for (int value = 1; value <= 2; ++value) {
+                final int expected = value;
+                CacheFileUtil.writeAtomically(cacheFile, out -> out.writeInt(expected));
+                try (final DataInputStream in = new DataInputStream(new FileInputStream(cacheFile))) {
+                    Assert.assertEquals(in.readInt(), expected);
+                }
+            }
+
+            // A failed write leaves the old cache file and no temporary file
+            try {
+                CacheFileUtil.writeAtomically(cacheFile, out -> {
+                    out.writeInt(3);
+                    throw new IOException("failed");
+                });
+                Assert.fail("The write should have failed");
+            } catch (final PicardException e) {
+                // expected
+            }
+            Assert.assertEquals(dir.list(), new String[]{cacheFile.getName()});
+            Assert.assertEquals(cacheFile.length(), 4);
+        } finally {
+            TestUtil.recursiveDelete(dir);
+        }
+    }
+
+    @Test
+    public void testFileStampChangesWithModificationTime() throws IOException {
+        final File file = File.createTempFile("cacheFileUtil.", ".txt");
+        file.deleteOnExit();
+        final byte[] before = stamp(file);
+        Assert.assertEquals(stamp(file), before);
+        Assert.assertTrue(file.setLastModified(file.lastModified() - 10000));
+        Assert.assertFalse(Arrays.equals(stamp(file), before));
+    }
+
+    private static byte[] stamp(final File file) {
+        final MessageDigest digest = CacheFileUtil.newMd5();
+        Assert.assertTrue(CacheFileUtil.updateWithFileStamp(digest, file));
+        return digest.digest();
+    }
+}
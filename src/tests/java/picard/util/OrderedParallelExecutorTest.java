@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.util;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import picard.PicardException;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class OrderedParallelExecutorTest {
+
+    @Test
+    public void testResultsMergedInSubmissionOrder() {
+        final List<Integer> merged = new ArrayList<>();
+        final Random random = new Random(42);
+        try (final OrderedParallelExecutor<Integer> executor = new OrderedParallelExecutor<>(4, "test", merged::add)) {
+            for (int i = 0; i < 100; ++i) {
+                final int task = i;
+                final int sleep = random.nextInt(3);
+                executor.submit(() -> {
+                    Thread.sleep(sleep);
+                    return task;
+                });
+                // No more than twice as many results as threads are left waiting
+                Assert.assertTrue(task + 1 - merged.size() <= 8);
+            }
+            executor.finish();
+        }
+        Assert.assertEquals(merged.size(), 100);
+        for (int i = 0; i < merged.size(); ++i) Assert.assertEquals((int) merged.get(i), i);
+    }
+
+    @Test(expectedExceptions = PicardException.class)
+    public void testTaskFailureRethrown() {
+        try (final OrderedParallelExecutor<Integer> executor = new OrderedParallelExecutor<>(2, "test", result -> { })) {
+            executor.submit(() -> {
+                throw new IllegalStateException("failed");
+            });
+            executor.finish();
+        }
+    }
+
+    @Test
+    public void testPerThreadResourcesClosed() {
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        try (final OrderedParallelExecutor<Integer> executor = new OrderedParallelExecutor<>(3, "test", result -> { })) {
+            final ThreadLocal<Closeable> resources = executor.perThread(() -> {
+                opened.incrementAndGet();
+                return closed::incrementAndGet;
+            });
+            for (int i = 0; i < 20; ++i) {
+                executor.submit(() -> {
+                    resources.get();
+                    return 0;
+                });
+            }
+            executor.finish();
+        }
+        Assert.assertTrue(opened.get() >= 1 && opened.get() <= 3);
+        Assert.assertEquals(closed.get(), opened.get());
+    }
+}